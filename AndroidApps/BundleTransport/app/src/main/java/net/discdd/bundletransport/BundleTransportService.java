@@ -79,8 +79,14 @@ public class BundleTransportService extends Service implements BundleExchangeSer
     final private SharedPreferences.OnSharedPreferenceChangeListener preferenceChangeListener =
             (sharedPreferences, key) -> {
                 switch (key) {
-                    case BUNDLETRANSPORT_DOMAIN_PREFERENCE -> host = sharedPreferences.getString(key, "");
-                    case BUNDLETRANSPORT_PORT_PREFERENCE -> port = sharedPreferences.getInt(key, 0);
+                    case BUNDLETRANSPORT_DOMAIN_PREFERENCE -> {
+                        host = sharedPreferences.getString(key, "");
+                        shutdownServerManager();
+                    }
+                    case BUNDLETRANSPORT_PORT_PREFERENCE -> {
+                        port = sharedPreferences.getInt(key, 0);
+                        shutdownServerManager();
+                    }
                     case BUNDLETRANSPORT_PERIODIC_PREFERENCE ->
                             periodicExchangeScheduler.setPeriodInMinutes(sharedPreferences.getInt(key, 0));
                 }
@@ -89,6 +95,8 @@ public class BundleTransportService extends Service implements BundleExchangeSer
     private FileHttpServer httpServer;
     private boolean httpServerRunning = false;
     private DDDWifiServer dddWifiServer;
+    // kept between exchanges so that they reuse the same connection to the server
+    private TransportToBundleServerManager serverManager;
 
     public Future<Void> queueServerExchangeNow() {
         return periodicExchangeScheduler.callItNow();
@@ -107,10 +115,7 @@ public class BundleTransportService extends Service implements BundleExchangeSer
         try {
             // Pass the highest known messageId so we only fetch messages newer than what we already have
             long lastMessageId = serverMessageRepository.getMaxMessageId();
-            var exchangeCounts = new TransportToBundleServerManager(grpcKeys,
-                                                                    transportPaths,
-                                                                    host,
-                                                                    Integer.toString(port)).doExchange(lastMessageId);
+            var exchangeCounts = getServerManager().doExchange(lastMessageId);
             logExchange(INFO,
                         R.string.deleted_d_bundles_sent_d_d_received_d_d,
                         exchangeCounts.deleteCount,
@@ -142,6 +147,20 @@ public class BundleTransportService extends Service implements BundleExchangeSer
         return null;
     }
 
+    private synchronized TransportToBundleServerManager getServerManager() {
+        if (serverManager == null) {
+            serverManager = new TransportToBundleServerManager(grpcKeys, transportPaths, host, Integer.toString(port));
+        }
+        return serverManager;
+    }
+
+    private synchronized void shutdownServerManager() {
+        if (serverManager != null) {
+            serverManager.shutdown();
+            serverManager = null;
+        }
+    }
+
     public void logWifi(Level level, Throwable ex, @StringRes int resId, Object... args) {
         LogUtil.logUi(getApplicationContext(), logger, UserLogRepository.UserLogType.WIFI, level, ex, resId, args);
     }
@@ -246,6 +265,7 @@ public class BundleTransportService extends Service implements BundleExchangeSer
         }
         stopHttpServer();
         stopRpcServer();
+        shutdownServerManager();
         super.onDestroy();
     }
 
@@ -6,8 +6,7 @@ import io.grpc.TlsServerCredentials;
 import io.grpc.okhttp.OkHttpServerBuilder;
 import io.grpc.stub.StreamObserver;
 import net.discdd.bundlerouting.service.BundleExchangeServiceImpl;
-import net.discdd.bundlesecurity.BundleOwnershipPSI;
-import net.discdd.grpc.BundleChunk;
+import net.discdd.bundlesecurity.PSIGroup;
 import net.discdd.grpc.BundleDownloadResponse;
 import net.discdd.grpc.BundleSenderType;
 import net.discdd.grpc.GetRecencyBlobRequest;
@@ -19,16 +18,14 @@ import net.discdd.grpc.PSIResponse;
 import net.discdd.grpc.PublicKeyMap;
 import net.discdd.pathutils.TransportPaths;
 import net.discdd.tls.DDDTLSUtil;
+import net.discdd.tls.GrpcChannelPool;
 import net.discdd.transport.TransportToBundleServerManager;
 
 import javax.net.ssl.KeyManager;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.math.BigInteger;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
@@ -92,6 +89,11 @@ public class RpcServer {
                                             Path path) {
             }
 
+            @Override
+            protected Path partialUploadDirectory() {
+                return transportPaths.partialPath;
+            }
+
             @Override
             public void getRecencyBlob(GetRecencyBlobRequest request,
                                        StreamObserver<GetRecencyBlobResponse> responseObserver) {
@@ -118,17 +120,32 @@ public class RpcServer {
                                         MAX_PSI_ELEMENTS_PER_REQUEST).asException());
                         return;
                     }
-                    var psi = new BundleOwnershipPSI();
-                    BigInteger transportSecret = psi.generateSecret();
+                    var psi = PSIGroup.forVersion(request.getVersion());
+                    if (psi == null) {
+                        // tell the client which version to ask again with
+                        responseObserver.onNext(PSIResponse.newBuilder()
+                                                        .setVersion(PSIGroup.PREFERRED_VERSION)
+                                                        .build());
+                        responseObserver.onCompleted();
+                        return;
+                    }
+                    byte[] transportSecret = psi.newSecret();
 
                     List<String> bundleFileNames = listBundleFiles(toClientPath);
 
-                    List<BigInteger> clientBlinded = request.getClientBlindedValuesList()
+                    List<byte[]> clientBlinded = request.getClientBlindedValuesList()
                             .stream()
-                            .map(e -> new BigInteger(1, e.getValue().toByteArray()))
+                            .map(e -> e.getValue().toByteArray())
                             .collect(Collectors.toList());
 
-                    var transportResponse = psi.transportProcess(clientBlinded, bundleFileNames, transportSecret);
+                    PSIGroup.TransportResult transportResponse;
+                    try {
+                        transportResponse = psi.transportProcess(clientBlinded, bundleFileNames, transportSecret);
+                    } catch (IllegalArgumentException e) {
+                        responseObserver.onError(io.grpc.Status.INVALID_ARGUMENT.withDescription(e.getMessage())
+                                                         .asException());
+                        return;
+                    }
 
                     String sessionId = UUID.randomUUID().toString();
                     psiSessions.put(sessionId, new PSISession(bundleFileNames, System.currentTimeMillis()));
@@ -137,15 +154,15 @@ public class RpcServer {
                     long cutoff = System.currentTimeMillis() - PSI_SESSION_TTL_MS;
                     psiSessions.entrySet().removeIf(e -> e.getValue().createdAt() < cutoff);
 
-                    var responseBuilder = PSIResponse.newBuilder().setSessionId(sessionId);
-                    for (BigInteger val : transportResponse.doublyBlindedClientValues()) {
+                    var responseBuilder = PSIResponse.newBuilder().setSessionId(sessionId).setVersion(psi.version());
+                    for (byte[] val : transportResponse.doublyBlindedClientValues()) {
                         responseBuilder.addDoublyBlindedClientValues(PSIElement.newBuilder()
-                                                                             .setValue(ByteString.copyFrom(val.toByteArray()))
+                                                                             .setValue(ByteString.copyFrom(val))
                                                                              .build());
                     }
-                    for (BigInteger val : transportResponse.transportBlindedValues()) {
+                    for (byte[] val : transportResponse.transportBlindedValues()) {
                         responseBuilder.addTransportBlindedValues(PSIElement.newBuilder()
-                                                                          .setValue(ByteString.copyFrom(val.toByteArray()))
+                                                                          .setValue(ByteString.copyFrom(val))
                                                                           .build());
                     }
 
@@ -163,6 +180,7 @@ public class RpcServer {
             public void psiDownloadBundle(PSIDownloadRequest request,
                                           StreamObserver<BundleDownloadResponse> responseObserver) {
                 onBundleExchangeEvent(BundleExchangeEvent.DOWNLOAD_STARTED);
+                boolean sending = false;
                 try {
                     PSISession session = psiSessions.get(request.getSessionId());
                     if (session == null || System.currentTimeMillis() - session.createdAt() > PSI_SESSION_TTL_MS) {
@@ -188,21 +206,27 @@ public class RpcServer {
                         return;
                     }
 
-                    try (InputStream is = Files.newInputStream(filePath, StandardOpenOption.READ)) {
-                        transferToStream(is,
-                                         bytes -> responseObserver.onNext(BundleDownloadResponse.newBuilder()
-                                                                                  .setChunk(BundleChunk.newBuilder()
-                                                                                                    .setChunk(bytes)
-                                                                                                    .build())
-                                                                                  .build()));
+                    long offset = request.getOffset();
+                    if (offset < 0 || offset > Files.size(filePath)) {
+                        responseObserver.onError(io.grpc.Status.OUT_OF_RANGE.withDescription("Bad offset " + offset)
+                                                         .asException());
+                        return;
                     }
-                    responseObserver.onCompleted();
-                    psiSessions.remove(request.getSessionId());
+
+                    sendFile(filePath, offset, responseObserver, completed -> {
+                        if (completed) {
+                            psiSessions.remove(request.getSessionId());
+                        }
+                        onBundleExchangeEvent(BundleExchangeEvent.DOWNLOAD_FINISHED);
+                    });
+                    sending = true;
                 } catch (Exception e) {
                     logger.log(SEVERE, "PSI download failed", e);
                     responseObserver.onError(io.grpc.Status.INTERNAL.withDescription(e.getMessage()).asException());
                 } finally {
-                    onBundleExchangeEvent(BundleExchangeEvent.DOWNLOAD_FINISHED);
+                    if (!sending) {
+                        onBundleExchangeEvent(BundleExchangeEvent.DOWNLOAD_FINISHED);
+                    }
                 }
             }
 
@@ -222,6 +246,7 @@ public class RpcServer {
                     .getKeyManagers();
             var credentials = TlsServerCredentials.newBuilder().keyManager(keyManagers).build();
             server = OkHttpServerBuilder.forPort(port, credentials).maxInboundMessageSize(20 * 1024 * 1024) // 20 MB;
+                    .permitKeepAliveTime(GrpcChannelPool.PERMIT_KEEPALIVE_TIME_MS, TimeUnit.MILLISECONDS)
                     .addService(bundleExchangeService).executor(Executors.newFixedThreadPool(4)).build();
         } catch (Exception e) {
             logger.log(SEVERE, "TLS communication exceptions ", e);
@@ -7,7 +7,8 @@ import picocli.CommandLine.Command;
                                        EncryptBundle.class,
                                        LocalAduSendReceive.class,
                                        SelfSignedCertCreator.class,
-                                       JavaKeyCreator.class }, mixinStandardHelpOptions = true)
+                                       JavaKeyCreator.class,
+                                       TrainDictionary.class }, mixinStandardHelpOptions = true)
 public class Main {
 
     public static void main(String[] args) {
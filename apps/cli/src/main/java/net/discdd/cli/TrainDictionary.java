@@ -0,0 +1,92 @@
+package net.discdd.cli;
+
+import net.discdd.utils.CompressionDictionary;
+import net.discdd.utils.CompressionPolicies;
+import picocli.CommandLine;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+@CommandLine.Command(name = "train-dictionary", description = "Train a compression dictionary from sample ADUs")
+public class TrainDictionary extends StdOutMixin implements Callable<Integer> {
+    @CommandLine.Option(names = "--samples", required = true, description = "Directory with sample ADUs of the app")
+    private Path samplesDir;
+    @CommandLine.Option(names = "--out", required = true, description = "Compression policies directory")
+    private Path outDir;
+    @CommandLine.Option(names = "--size", defaultValue = "32768", description = "Dictionary size in bytes")
+    private int size;
+    @CommandLine.Option(names = "--app", description = "App ID to use the dictionary for in policies.properties")
+    private String appId;
+
+    @Override
+    public Integer call() throws IOException {
+        List<byte[]> samples = new ArrayList<>();
+        try (Stream<Path> files = Files.walk(samplesDir)) {
+            for (var file : files.filter(Files::isRegularFile).sorted().collect(Collectors.toList())) {
+                samples.add(Files.readAllBytes(file));
+            }
+        }
+        if (samples.size() < 2) {
+            err().println("Need at least two samples in " + samplesDir);
+            return 1;
+        }
+
+        var dictionary = CompressionDictionary.train(samples, size);
+        var dictionaryFile = dictionary.write(outDir);
+        long original = 0;
+        long deflated = 0;
+        long withDictionary = 0;
+        for (var sample : samples) {
+            original += sample.length;
+            deflated += deflatedSize(sample);
+            var bos = new ByteArrayOutputStream();
+            dictionary.deflate(new ByteArrayInputStream(sample), bos, Deflater.BEST_COMPRESSION);
+            withDictionary += bos.size();
+        }
+        out().printf("Wrote %d byte dictionary %s to %s%n", dictionary.size(), dictionary.getId(), dictionaryFile);
+        out().printf("%d samples, %d bytes: deflated %d bytes (%.1f%%), with the dictionary %d bytes (%.1f%%)%n",
+                     samples.size(),
+                     original,
+                     deflated,
+                     100.0 * deflated / original,
+                     withDictionary,
+                     100.0 * withDictionary / original);
+
+        if (appId != null) {
+            var policiesFile = outDir.resolve(CompressionPolicies.POLICIES_FILE);
+            var properties = new Properties();
+            if (Files.exists(policiesFile)) {
+                try (Reader reader = Files.newBufferedReader(policiesFile)) {
+                    properties.load(reader);
+                }
+            }
+            properties.setProperty(appId, "dictionary:" + dictionaryFile.getFileName());
+            try (Writer writer = Files.newBufferedWriter(policiesFile)) {
+                properties.store(writer, null);
+            }
+            out().println("Set the policy of " + appId + " in " + policiesFile);
+        }
+        return 0;
+    }
+
+    private static long deflatedSize(byte[] sample) throws IOException {
+        var bos = new ByteArrayOutputStream();
+        try (var dos = new DeflaterOutputStream(bos, new Deflater(Deflater.BEST_COMPRESSION, true))) {
+            dos.write(sample);
+        }
+        return bos.size();
+    }
+}
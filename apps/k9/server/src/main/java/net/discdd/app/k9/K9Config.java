@@ -1,5 +1,6 @@
 package net.discdd.app.k9;
 
+import net.discdd.utils.SegmentAduStorage;
 import net.discdd.utils.StoreADUs;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
@@ -17,9 +18,16 @@ import java.util.concurrent.Executors;
 
 @Component
 public class K9Config {
+    /**
+     * @param aduStorage "segments" appends the emails of each client to segment files instead of writing a file per
+     *                   email, which holds up better with lots of clients and small emails
+     */
     @Bean
-    public StoreADUs sendStoreADUs(@Value("${adapter-server.rootdir}") Path rootDir) {
-        return new StoreADUs(rootDir.resolve("send"));
+    public StoreADUs sendStoreADUs(@Value("${adapter-server.rootdir}") Path rootDir,
+                                   @Value("${adapter-server.adu-storage:files}") String aduStorage) {
+        var sendDir = rootDir.resolve("send");
+        return "segments".equals(aduStorage) ? new StoreADUs(sendDir, new SegmentAduStorage(sendDir)) :
+               new StoreADUs(sendDir);
     }
 
     @Bean(name = "grpcExecutor")
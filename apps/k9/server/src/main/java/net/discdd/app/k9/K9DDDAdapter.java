@@ -9,13 +9,10 @@ import net.discdd.app.k9.repository.entity.K9ClientIdToEmailMapping;
 import net.discdd.app.k9.service.EmailService;
 import net.discdd.app.k9.utils.MailUtils;
 import net.discdd.grpc.AppDataUnit;
-import net.discdd.grpc.ExchangeADUsRequest;
-import net.discdd.grpc.ExchangeADUsResponse;
 import net.discdd.grpc.GrpcService;
 import net.discdd.grpc.PendingDataCheckRequest;
 import net.discdd.grpc.PendingDataCheckResponse;
-import net.discdd.grpc.ServiceAdapterServiceGrpc;
-import net.discdd.model.ADU;
+import net.discdd.grpc.StreamingServiceAdapter;
 import net.discdd.utils.StoreADUs;
 import org.jetbrains.annotations.Nullable;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -30,7 +27,9 @@ import jakarta.mail.internet.MimeMessage;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -44,7 +43,7 @@ import static java.util.logging.Level.INFO;
 import static java.util.logging.Level.SEVERE;
 
 @GrpcService
-public class K9DDDAdapter extends ServiceAdapterServiceGrpc.ServiceAdapterServiceImplBase {
+public class K9DDDAdapter extends StreamingServiceAdapter {
 
     static final Logger logger = Logger.getLogger(K9DDDAdapter.class.getName());
     public static final int MAX_RECIPIENTS = 5;
@@ -308,63 +307,28 @@ public class K9DDDAdapter extends ServiceAdapterServiceGrpc.ServiceAdapterServic
     }
 
     @Override
-    public void exchangeADUs(ExchangeADUsRequest request, StreamObserver<ExchangeADUsResponse> responseObserver) {
-        String clientId = request.getClientId();
-        logger.log(INFO, "Received ADUs for clientId: " + clientId);
-        var lastADUIdRecvd = request.getLastADUIdReceived();
-        var aduListRecvd = request.getAdusList();
-        var lastProcessedADUId = 0L;
-        for (AppDataUnit adu : aduListRecvd) {
-            try {
-                processADUsToSend(adu, clientId);
-                if (lastProcessedADUId < adu.getAduId()) {
-                    lastProcessedADUId = adu.getAduId();
-                }
-            } catch (IOException e) {
-                logger.log(SEVERE, "Error while processing aduId:" + adu.getAduId(), e);
-            }
-        }
-
-        try {
-            sendADUsStorage.deleteAllFilesUpTo(clientId, APP_ID, lastADUIdRecvd);
-            logger.log(INFO, "Deleted all ADUs till Id:" + lastADUIdRecvd);
-        } catch (IOException e) {
-            logger.log(SEVERE,
-                       format("Error while deleting ADUs for client: %s app: %s till AduId: %s",
-                              clientId,
-                              APP_ID,
-                              lastADUIdRecvd),
-                       e);
-        }
-
-        List<AppDataUnit> dataListToReturn = new ArrayList<>();
-        List<ADU> aduListToReturn = new ArrayList<>();
+    protected void processAdu(String clientId, AppDataUnit adu) throws IOException {
+        processADUsToSend(adu, clientId);
+    }
 
-        try {
-            aduListToReturn = sendADUsStorage.getAppData(clientId, APP_ID);
-        } catch (IOException e) {
-            logger.log(SEVERE, "Error fetching ADUs to return for clientId: " + clientId, e);
-        }
+    @Override
+    protected void adusDeliveredUpTo(String clientId, long aduId) throws IOException {
+        sendADUsStorage.deleteAllFilesUpTo(clientId, APP_ID, aduId);
+        logger.log(INFO, "Deleted all ADUs till Id:" + aduId);
+    }
 
-        try {
-            for (var adu : aduListToReturn) {
-                long aduId = adu.getADUId();
-                var data = sendADUsStorage.getADU(clientId, APP_ID, aduId);
-                dataListToReturn.add(AppDataUnit.newBuilder()
-                                             .setData(ByteString.copyFrom(data))
-                                             .setAduId(aduId)
-                                             .build());
+    @Override
+    protected Iterator<AppDataUnit> adusToSend(String clientId) throws IOException {
+        return sendADUsStorage.getADUs(clientId, APP_ID).map(adu -> {
+            try {
+                return AppDataUnit.newBuilder()
+                        .setData(ByteString.copyFrom(sendADUsStorage.getADU(clientId, APP_ID, adu.getADUId())))
+                        .setAduId(adu.getADUId())
+                        .build();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
-        } catch (Exception e) {
-            logger.log(SEVERE, "Error while building response data for clientId: " + clientId, e);
-        }
-
-        responseObserver.onNext(ExchangeADUsResponse.newBuilder()
-                                        .addAllAdus(dataListToReturn)
-                                        .setLastADUIdReceived(lastProcessedADUId)
-                                        .build());
-
-        responseObserver.onCompleted();
+        }).iterator();
     }
 
     @Override
@@ -0,0 +1,91 @@
+package net.discdd.benchmarks;
+
+import net.discdd.model.ADU;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Helpers for creating the test data that the benchmarks work on.
+ */
+class BenchmarkFiles {
+    static final String APP_ID = "net.discdd.benchmark";
+
+    /**
+     * Random data, seeded so that every run (and every fork) works on the same bytes.
+     */
+    static byte[] randomBytes(int size, long seed) {
+        var bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Write aduCount ADU files of aduSize bytes to dir.
+     */
+    static List<ADU> createAdus(Path dir, int aduCount, int aduSize) throws IOException {
+        Files.createDirectories(dir);
+        var adus = new ArrayList<ADU>(aduCount);
+        for (int i = 1; i <= aduCount; i++) {
+            var file = dir.resolve(Integer.toString(i));
+            Files.write(file, randomBytes(aduSize, i));
+            adus.add(new ADU(file.toFile(), APP_ID, i, aduSize));
+        }
+        return adus;
+    }
+
+    private static final String[] NAMES = { "alice", "bob", "carol", "dave", "erin", "frank", "grace", "heidi" };
+    private static final String[] WORDS = { "the", "meeting", "tomorrow", "please", "find", "attached", "report",
+                                            "thanks", "water", "delivery", "village", "schedule", "clinic", "market",
+                                            "about", "would", "could", "before", "after", "should", "update", "road" };
+
+    /**
+     * Emails that look like what K9 sends: the same MIME headers with different values, and a short text body.
+     */
+    static List<byte[]> syntheticMails(int count, long seed) {
+        var random = new Random(seed);
+        var mails = new ArrayList<byte[]>(count);
+        for (int i = 0; i < count; i++) {
+            var from = NAMES[random.nextInt(NAMES.length)];
+            var to = NAMES[random.nextInt(NAMES.length)];
+            var mail = new StringBuilder();
+            mail.append("Return-Path: <").append(from).append("@discdd.net>\r\n");
+            mail.append("Message-ID: <").append(Long.toHexString(random.nextLong())).append("@discdd.net>\r\n");
+            mail.append("Date: Mon, ").append(1 + random.nextInt(28)).append(" Sep 2025 ")
+                    .append(String.format("%02d:%02d:%02d", random.nextInt(24), random.nextInt(60), random.nextInt(60)))
+                    .append(" +0000\r\n");
+            mail.append("From: ").append(from).append(" <").append(from).append("@discdd.net>\r\n");
+            mail.append("To: ").append(to).append(" <").append(to).append("@discdd.net>\r\n");
+            mail.append("Subject: ").append(WORDS[random.nextInt(WORDS.length)]).append(' ')
+                    .append(WORDS[random.nextInt(WORDS.length)]).append("\r\n");
+            mail.append("MIME-Version: 1.0\r\n");
+            mail.append("Content-Type: text/plain; charset=UTF-8\r\n");
+            mail.append("Content-Transfer-Encoding: quoted-printable\r\n");
+            mail.append("User-Agent: K-9 Mail for Android\r\n\r\n");
+            mail.append("Hi ").append(to).append(",\r\n\r\n");
+            int words = 20 + random.nextInt(200);
+            for (int w = 0; w < words; w++) {
+                mail.append(WORDS[random.nextInt(WORDS.length)]).append(w % 12 == 11 ? "\r\n" : " ");
+            }
+            mail.append("\r\n\r\n-- \r\nSent from my Android device with K-9 Mail.\r\n");
+            mails.add(mail.toString().getBytes());
+        }
+        return mails;
+    }
+
+    static void deleteRecursively(Path dir) throws IOException {
+        if (!Files.exists(dir)) return;
+        try (Stream<Path> walk = Files.walk(dir)) {
+            for (var path : walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(path);
+            }
+        }
+    }
+}
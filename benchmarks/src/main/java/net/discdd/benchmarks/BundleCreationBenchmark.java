@@ -0,0 +1,87 @@
+package net.discdd.benchmarks;
+
+import net.discdd.model.ADU;
+import net.discdd.utils.BundleUtils;
+import net.discdd.utils.RingBufferPipe;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bundle generation on the server: building the payload jar from ADU files, and the whole pipeline of
+ * ServerBundleTransmission that pipes the payload through encryption into the bundle jar.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BundleCreationBenchmark {
+    @Param({ "1", "10", "100" })
+    int aduCount;
+    @Param({ "1024", "65536", "1048576" })
+    int aduSize;
+
+    private Path rootDir;
+    private List<ADU> adus;
+    private SecurityFixture security;
+    private ExecutorService executor;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        rootDir = Files.createTempDirectory("bundle-creation-benchmark");
+        adus = BenchmarkFiles.createAdus(rootDir.resolve("adus"), aduCount, aduSize);
+        security = new SecurityFixture(rootDir.resolve("security"));
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        BenchmarkFiles.deleteRecursively(rootDir);
+    }
+
+    @Benchmark
+    public void createPayload() throws Exception {
+        BundleUtils.createBundlePayloadForAdus(adus, "{}".getBytes(), "HB", null, OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public void createEncryptedBundle() throws Exception {
+        var serverSecurity = security.serverSecurity;
+        var clientId = security.clientId;
+        var payloadPipe = new RingBufferPipe();
+        var future = BundleUtils.runFuture(executor, "HB", null, adus, null, payloadPipe);
+        try {
+            BundleUtils.encryptPayloadAndCreateBundle((in, out) -> serverSecurity.encrypt(clientId, in, out),
+                                                      serverSecurity.getClientIdentityPublicKey(clientId),
+                                                      serverSecurity.getClientBaseKey(clientId),
+                                                      serverSecurity.getIdentityPublicKey().getPublicKey(),
+                                                      "benchmark-bundle",
+                                                      payloadPipe.getInputStream(),
+                                                      OutputStream.nullOutputStream());
+        } finally {
+            payloadPipe.getInputStream().close();
+            future.cancel(true);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package net.discdd.benchmarks;
+
+import net.discdd.bundlesecurity.SecurityUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What decrypting bundle IDs costs the server per received bundle, which decrypts the bundle ID for the counter
+ * check and the acked bundle ID, with the AES key derived every time and with it taken from the derived key cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BundleIdDecryptionBenchmark {
+    private static final String SHARED_SECRET = "YmVuY2htYXJrLXNoYXJlZC1zZWNyZXQ=";
+
+    private String encryptedBundleId;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        encryptedBundleId = SecurityUtils.encryptAesCbcPkcs5(SHARED_SECRET, "client#1");
+    }
+
+    @Benchmark
+    public void uncached(Blackhole blackhole) throws Exception {
+        SecurityUtils.getDerivedKeyCache().clear();
+        blackhole.consume(SecurityUtils.decryptAesCbcPkcs5(SHARED_SECRET, encryptedBundleId));
+        SecurityUtils.getDerivedKeyCache().clear();
+        blackhole.consume(SecurityUtils.decryptAesCbcPkcs5(SHARED_SECRET, encryptedBundleId));
+    }
+
+    @Benchmark
+    public void cached(Blackhole blackhole) throws Exception {
+        blackhole.consume(SecurityUtils.decryptAesCbcPkcs5(SHARED_SECRET, encryptedBundleId));
+        blackhole.consume(SecurityUtils.decryptAesCbcPkcs5(SHARED_SECRET, encryptedBundleId));
+    }
+}
@@ -0,0 +1,79 @@
+package net.discdd.benchmarks;
+
+import net.discdd.bundlesecurity.BundleOwnershipPSI;
+import net.discdd.bundlesecurity.PSIGroup;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The steps of the bundle ownership PSI in each group it can run in, which cost a blinding per bundle on each side.
+ * The version parameter is the PSI version: 0 is the 3072-bit MODP group, 1 is Curve25519.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BundleOwnershipPSIBenchmark {
+    @Param({ "0", "1" })
+    int version;
+    @Param({ "10", "100", "1000" })
+    int bundleCount;
+
+    private PSIGroup psi;
+    private byte[] clientSecret;
+    private byte[] transportSecret;
+    private List<String> bundleIds;
+    private List<byte[]> clientBlinded;
+    private PSIGroup.TransportResult transportResult;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        psi = PSIGroup.forVersion(version);
+        clientSecret = psi.newSecret();
+        transportSecret = psi.newSecret();
+        bundleIds = new ArrayList<>(bundleCount);
+        for (int i = 0; i < bundleCount; i++) {
+            bundleIds.add("benchmark-client-bundle-" + i);
+        }
+        clientBlinded = psi.clientBlindBundleIds(bundleIds, clientSecret);
+        transportResult = psi.transportProcess(clientBlinded, bundleIds, transportSecret);
+    }
+
+    @Benchmark
+    public byte[] hashAndBlindOne() {
+        return psi.hashAndBlind(bundleIds.get(0), clientSecret);
+    }
+
+    @Benchmark
+    public List<byte[]> clientBlindBundleIds() {
+        return psi.clientBlindBundleIds(bundleIds, clientSecret);
+    }
+
+    @Benchmark
+    public PSIGroup.TransportResult transportProcess() {
+        return psi.transportProcess(clientBlinded, bundleIds, transportSecret);
+    }
+
+    @Benchmark
+    public List<BundleOwnershipPSI.PSIMatch> clientFindMatches() {
+        return psi.clientFindMatches(transportResult.doublyBlindedClientValues(),
+                                     transportResult.transportBlindedValues(),
+                                     clientSecret);
+    }
+}
@@ -0,0 +1,110 @@
+package net.discdd.benchmarks;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.stub.StreamObserver;
+import net.discdd.bundlesecurity.SecurityUtils;
+import net.discdd.grpc.BundleExchangeServiceGrpc;
+import net.discdd.grpc.GetRecencyBlobRequest;
+import net.discdd.grpc.GetRecencyBlobResponse;
+import net.discdd.tls.DDDNettyTLS;
+import net.discdd.tls.GrpcChannelPool;
+import net.discdd.tls.GrpcSecurityKey;
+import net.discdd.utils.Constants;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to first byte of 1,000 back-to-back exchanges with a TLS bundle exchange service running in this process: the
+ * recency blob request that opens every exchange, on a channel built for the exchange as ClientBundleTransmission
+ * used to, against one taken from the channel pool. The server is a real TLS server on the loopback interface, since
+ * the in-process transport has no TLS handshake to save.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1, batchSize = ChannelPoolBenchmark.EXCHANGES)
+@Measurement(iterations = 5, batchSize = ChannelPoolBenchmark.EXCHANGES)
+@Fork(1)
+public class ChannelPoolBenchmark {
+    static final int EXCHANGES = 1000;
+
+    @Param({ "fresh", "pooled" })
+    String channels;
+
+    private Path rootDir;
+    private ExecutorService serverExecutor;
+    private Server server;
+    private GrpcSecurityKey clientKey;
+    private GrpcChannelPool pool;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        rootDir = Files.createTempDirectory("channel-pool-benchmark");
+        var serverKey = new GrpcSecurityKey(rootDir.resolve("server"), SecurityUtils.SERVER);
+        clientKey = new GrpcSecurityKey(rootDir.resolve("client"), SecurityUtils.CLIENT);
+        serverExecutor = Executors.newFixedThreadPool(4);
+        server = DDDNettyTLS.createGrpcServer(serverExecutor,
+                                              serverKey.grpcKeyPair,
+                                              serverKey.grpcCert,
+                                              0,
+                                              new RecencyBlobService()).start();
+        pool = GrpcChannelPool.getShared();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        pool.shutdown();
+        server.shutdownNow().awaitTermination(10, TimeUnit.SECONDS);
+        serverExecutor.shutdownNow();
+        BenchmarkFiles.deleteRecursively(rootDir);
+    }
+
+    @Benchmark
+    public GetRecencyBlobResponse exchange() throws Exception {
+        boolean pooled = "pooled".equals(channels);
+        ManagedChannel channel = pooled ?
+                                 pool.acquire(clientKey, "localhost", server.getPort()) :
+                                 GrpcChannelPool.createChannel(clientKey,
+                                                               "localhost",
+                                                               server.getPort(),
+                                                               GrpcChannelPool.DEFAULT_IDLE_TIMEOUT_MS);
+        try {
+            return BundleExchangeServiceGrpc.newBlockingStub(channel)
+                    .withDeadlineAfter(Constants.GRPC_SHORT_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                    .getRecencyBlob(GetRecencyBlobRequest.getDefaultInstance());
+        } finally {
+            if (pooled) {
+                pool.release(channel);
+            } else {
+                channel.shutdownNow();
+            }
+        }
+    }
+
+    private static class RecencyBlobService extends BundleExchangeServiceGrpc.BundleExchangeServiceImplBase {
+        @Override
+        public void getRecencyBlob(GetRecencyBlobRequest request,
+                                   StreamObserver<GetRecencyBlobResponse> responseObserver) {
+            responseObserver.onNext(GetRecencyBlobResponse.getDefaultInstance());
+            responseObserver.onCompleted();
+        }
+    }
+}
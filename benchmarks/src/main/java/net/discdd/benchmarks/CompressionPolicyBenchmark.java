@@ -0,0 +1,118 @@
+package net.discdd.benchmarks;
+
+import net.discdd.model.ADU;
+import net.discdd.utils.BundleUtils;
+import net.discdd.utils.CompressionDictionary;
+import net.discdd.utils.CompressionPolicies;
+import net.discdd.utils.CompressionPolicy;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Payloads of synthetic emails under each compression policy. The dictionary is trained on a different set of
+ * emails than the ones in the payload. The payloadBytes and aduBytes counters in the report give the compression
+ * ratio, they are totals for the iteration so their ratio is the same as per payload.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionPolicyBenchmark {
+    @Param({ "stored", "deflate", "dictionary" })
+    String policy;
+    @Param({ "1", "10", "100" })
+    int mailCount;
+
+    private Path rootDir;
+    private List<ADU> adus;
+    private long aduSize;
+    private CompressionPolicies compressionPolicies;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        rootDir = Files.createTempDirectory("compression-policy-benchmark");
+        adus = new ArrayList<>();
+        var mails = BenchmarkFiles.syntheticMails(mailCount, 2);
+        Files.createDirectories(rootDir.resolve("adus"));
+        for (int i = 0; i < mails.size(); i++) {
+            var file = rootDir.resolve("adus").resolve(Integer.toString(i + 1));
+            Files.write(file, mails.get(i));
+            adus.add(new ADU(file.toFile(), BenchmarkFiles.APP_ID, i + 1, mails.get(i).length));
+            aduSize += mails.get(i).length;
+        }
+        compressionPolicies = new CompressionPolicies();
+        switch (policy) {
+            case "stored":
+                compressionPolicies.setPolicy(BenchmarkFiles.APP_ID, CompressionPolicy.STORED);
+                break;
+            case "dictionary":
+                var dictionary = CompressionDictionary.train(BenchmarkFiles.syntheticMails(1000, 1),
+                                                             CompressionDictionary.MAX_SIZE);
+                compressionPolicies.setPolicy(BenchmarkFiles.APP_ID, CompressionPolicy.withDictionary(dictionary));
+                break;
+            default:
+                break;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        BenchmarkFiles.deleteRecursively(rootDir);
+    }
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Sizes {
+        public long payloadBytes;
+        public long aduBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            payloadBytes = 0;
+            aduBytes = 0;
+        }
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    @Benchmark
+    public void createPayload(Sizes sizes) throws Exception {
+        var out = new CountingOutputStream();
+        BundleUtils.createBundlePayloadForAdus(adus, "{}".getBytes(), "HB", null, compressionPolicies, out);
+        sizes.payloadBytes += out.count;
+        sizes.aduBytes += aduSize;
+    }
+}
@@ -0,0 +1,84 @@
+package net.discdd.benchmarks;
+
+import net.discdd.utils.JarUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Packing a directory of ADUs into a jar and unpacking it again, which the clients and the transport still do with
+ * JarUtils.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JarUtilsBenchmark {
+    @Param({ "1", "10", "100" })
+    int aduCount;
+    @Param({ "1024", "65536", "1048576" })
+    int aduSize;
+
+    private Path rootDir;
+    private Path aduDir;
+    private Path jarFile;
+    private int extractCount;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        rootDir = Files.createTempDirectory("jar-utils-benchmark");
+        aduDir = rootDir.resolve("adus");
+        BenchmarkFiles.createAdus(aduDir.resolve(BenchmarkFiles.APP_ID), aduCount, aduSize);
+        jarFile = rootDir.resolve("adus.jar");
+        JarUtils.dirToJar(aduDir.toString(), jarFile.toString());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        BenchmarkFiles.deleteRecursively(rootDir);
+    }
+
+    /**
+     * jarToDir writes into an existing directory, so every call gets a new one.
+     */
+    @State(Scope.Thread)
+    public static class ExtractedDir {
+        Path dir;
+
+        @Setup(Level.Invocation)
+        public void create(JarUtilsBenchmark benchmark) {
+            dir = benchmark.rootDir.resolve("extracted-" + benchmark.extractCount++);
+        }
+
+        @TearDown(Level.Invocation)
+        public void delete() throws Exception {
+            BenchmarkFiles.deleteRecursively(dir);
+        }
+    }
+
+    @Benchmark
+    public void dirToJar() {
+        JarUtils.dirToJar(aduDir.toString(), rootDir.resolve("created.jar").toString());
+    }
+
+    @Benchmark
+    public void jarToDir(ExtractedDir extractedDir) {
+        JarUtils.jarToDir(jarFile.toString(), extractedDir.dir.toString());
+    }
+}
@@ -0,0 +1,166 @@
+package net.discdd.benchmarks;
+
+import net.discdd.utils.DDDJarFileCreator;
+import net.discdd.utils.DDDJarFileReader;
+import net.discdd.utils.JarUtils;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing and reading bundles that carry a 100 MB encrypted payload. Every invocation is a single shot, and the
+ * cpuNanos and bytesWritten counters in the report are the CPU time of the benchmark thread and the bytes that the
+ * jar writer or the extraction produced for it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LargePayloadJarBenchmark {
+    private static final int PAYLOAD_SIZE = 100 * 1024 * 1024;
+    private static final int WRITE_SIZE = 64 * 1024;
+
+    private Path rootDir;
+    private Path bundleDir;
+    private Path bundleJar;
+    private byte[] payload;
+    private int extractCount;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        rootDir = Files.createTempDirectory("large-payload-jar-benchmark");
+        // encrypted data looks random to the deflater
+        payload = BenchmarkFiles.randomBytes(PAYLOAD_SIZE, 1);
+        bundleDir = rootDir.resolve("bundle");
+        Files.createDirectories(bundleDir.resolve("payloads"));
+        Files.write(bundleDir.resolve("payloads").resolve("payload"), payload);
+        Files.writeString(bundleDir.resolve("bundle.id"), "benchmark-bundle");
+        bundleJar = rootDir.resolve("bundle.jar");
+        JarUtils.dirToJar(bundleDir.toString(), bundleJar.toString());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        BenchmarkFiles.deleteRecursively(rootDir);
+    }
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Cost {
+        public long cpuNanos;
+        public long bytesWritten;
+        private long cpuStart;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            cpuNanos = 0;
+            bytesWritten = 0;
+        }
+
+        void start() {
+            cpuStart = ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime();
+        }
+
+        void stop(long written) {
+            cpuNanos += ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime() - cpuStart;
+            bytesWritten += written;
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream() {
+            super(OutputStream.nullOutputStream());
+        }
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    private long writeBundle(boolean uncompressed) throws Exception {
+        var out = new CountingOutputStream();
+        try (var creator = new DDDJarFileCreator(out)) {
+            try (var os = uncompressed ? creator.createUncompressedEntry("payloads/payload") :
+                          creator.createEntry("payloads/payload")) {
+                for (int offset = 0; offset < payload.length; offset += WRITE_SIZE) {
+                    os.write(payload, offset, Math.min(WRITE_SIZE, payload.length - offset));
+                }
+            }
+            creator.createEntry("bundle.id", "benchmark-bundle".getBytes());
+        }
+        return out.count;
+    }
+
+    /**
+     * How the server writes a bundle, the encrypted payload is only framed and not deflated.
+     */
+    @Benchmark
+    public void createBundle(Cost cost) throws Exception {
+        cost.start();
+        cost.stop(writeBundle(true));
+    }
+
+    /**
+     * The same bundle with the payload deflated, which is what the bundle writer used to do.
+     */
+    @Benchmark
+    public void createBundleDeflated(Cost cost) throws Exception {
+        cost.start();
+        cost.stop(writeBundle(false));
+    }
+
+    @Benchmark
+    public void readBundle(Cost cost) throws Exception {
+        cost.start();
+        var out = new CountingOutputStream();
+        try (var reader = new DDDJarFileReader(bundleJar)) {
+            reader.copyEntry("payloads/payload", out);
+        }
+        cost.stop(out.count);
+    }
+
+    @Benchmark
+    public void dirToJar(Cost cost) throws IOException {
+        var jar = rootDir.resolve("created.jar");
+        cost.start();
+        JarUtils.dirToJar(bundleDir.toString(), jar.toString());
+        cost.stop(Files.size(jar));
+    }
+
+    @Benchmark
+    public void jarToDir(Cost cost) throws IOException {
+        var dir = rootDir.resolve("extracted-" + extractCount++);
+        cost.start();
+        JarUtils.jarToDir(bundleJar.toString(), dir.toString());
+        cost.stop(Files.size(dir.resolve("payloads").resolve("payload")));
+        BenchmarkFiles.deleteRecursively(dir);
+    }
+}
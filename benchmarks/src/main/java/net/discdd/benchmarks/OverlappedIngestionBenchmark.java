@@ -0,0 +1,143 @@
+package net.discdd.benchmarks;
+
+import net.discdd.model.Bundle;
+import net.discdd.model.ReceivedBundle;
+import net.discdd.utils.BundleUtils;
+import net.discdd.utils.ReceivedPayload;
+import net.discdd.utils.RingBufferPipe;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The latency of a received bundle from the first byte of its upload to the last of its ADUs being handed on, when
+ * the bundle is only read once the upload has completed, against reading it through a pipe while it arrives, the
+ * way the server does with overlapped ingestion. The upload is paced to uploadMegabytesPerSecond, since the overlap
+ * can only hide work behind a link that is slower than the disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class OverlappedIngestionBenchmark {
+    private static final int ADU_SIZE = 1 << 20;
+    // the default size of the chunks transports upload in
+    private static final int CHUNK_SIZE = 512 * 1024;
+
+    @Param({ "10", "100" })
+    int bundleMegabytes;
+    @Param({ "25", "100" })
+    int uploadMegabytesPerSecond;
+    @Param({ "sequential", "overlapped" })
+    String ingestion;
+
+    private Path rootDir;
+    private Path receiveDir;
+    private SecurityFixture security;
+    private byte[] payload;
+    private ExecutorService executor;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        rootDir = Files.createTempDirectory("overlapped-ingestion-benchmark");
+        receiveDir = Files.createDirectories(rootDir.resolve("receive"));
+        var adus = BenchmarkFiles.createAdus(rootDir.resolve("adus"), bundleMegabytes, ADU_SIZE);
+        var bos = new ByteArrayOutputStream(bundleMegabytes * ADU_SIZE + 64 * 1024);
+        BundleUtils.createBundlePayloadForAdus(adus, "{}".getBytes(), "HB", null, bos);
+        payload = bos.toByteArray();
+        security = new SecurityFixture(rootDir.resolve("security"));
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        BenchmarkFiles.deleteRecursively(rootDir);
+    }
+
+    /**
+     * The session rejects a message it has already decrypted, so every upload needs a new bundle from the client.
+     */
+    @State(Scope.Thread)
+    public static class ClientBundle {
+        Path bundlePath;
+
+        @Setup(Level.Invocation)
+        public void create(OverlappedIngestionBenchmark benchmark) throws Exception {
+            bundlePath = benchmark.security.createClientBundleFile(benchmark.payload);
+        }
+
+        @TearDown(Level.Invocation)
+        public void delete(OverlappedIngestionBenchmark benchmark) throws Exception {
+            Files.deleteIfExists(bundlePath);
+            BenchmarkFiles.deleteRecursively(benchmark.receiveDir);
+            Files.createDirectories(benchmark.receiveDir);
+        }
+    }
+
+    @Benchmark
+    public long receive(ClientBundle clientBundle) throws Exception {
+        long start = System.nanoTime();
+        var uploadPath = receiveDir.resolve("upload");
+        RingBufferPipe pipe = "overlapped".equals(ingestion) ? new RingBufferPipe() : null;
+        Future<BundleUtils.StreamedBundle> streamed = pipe == null ? null : executor.submit(() -> {
+            try (InputStream is = pipe.getInputStream()) {
+                var streamedBundle = BundleUtils.readReceivedBundle(is, receiveDir.resolve("streamed.payload"));
+                is.transferTo(OutputStream.nullOutputStream());
+                return streamedBundle;
+            }
+        });
+
+        try (var is = Files.newInputStream(clientBundle.bundlePath);
+             var os = Files.newOutputStream(uploadPath)) {
+            var chunk = new byte[CHUNK_SIZE];
+            long uploaded = 0;
+            int bytesRead;
+            while ((bytesRead = is.readNBytes(chunk, 0, chunk.length)) > 0) {
+                uploaded += bytesRead;
+                // the chunk arrives once the link has had the time to carry it
+                long arrival = start + uploaded * 1_000_000_000L / ((long) uploadMegabytesPerSecond << 20);
+                while (System.nanoTime() < arrival) {
+                    LockSupport.parkNanos(arrival - System.nanoTime());
+                }
+                os.write(chunk, 0, bytesRead);
+                if (pipe != null) pipe.getOutputStream().write(chunk, 0, bytesRead);
+            }
+        }
+        if (pipe != null) pipe.getOutputStream().close();
+
+        ReceivedBundle receivedBundle = streamed != null ? streamed.get().receivedBundle() :
+                                        BundleUtils.readReceivedBundle(new Bundle(uploadPath.toFile()),
+                                                                       receiveDir.resolve("payload"));
+        var decryptedPath = receiveDir.resolve("decrypted");
+        security.serverSecurity.decrypt(security.clientId, receivedBundle, decryptedPath);
+        long[] delivered = new long[1];
+        try (var receivedPayload = new ReceivedPayload(decryptedPath)) {
+            receivedPayload.forEachAdu((appId, aduId, data) -> delivered[0] += data.length);
+        }
+        return delivered[0];
+    }
+}
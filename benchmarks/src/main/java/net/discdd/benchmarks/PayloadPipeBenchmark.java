@@ -0,0 +1,115 @@
+package net.discdd.benchmarks;
+
+import net.discdd.model.ADU;
+import net.discdd.utils.BundleUtils;
+import net.discdd.utils.RingBufferPipe;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole bundle generation (payload jar piped through encryption into the bundle jar) with the PipedInputStream pipe
+ * on a cached thread pool that it used to run on, against the RingBufferPipe on the payload executor.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class PayloadPipeBenchmark {
+    private static final int ADU_SIZE = 1 << 20;
+
+    @Param({ "1", "30", "100" })
+    int bundleMegabytes;
+    @Param({ "piped", "ring" })
+    String pipe;
+
+    private Path rootDir;
+    private List<ADU> adus;
+    private SecurityFixture security;
+    private ExecutorService executor;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        rootDir = Files.createTempDirectory("payload-pipe-benchmark");
+        adus = BenchmarkFiles.createAdus(rootDir.resolve("adus"), bundleMegabytes, ADU_SIZE);
+        security = new SecurityFixture(rootDir.resolve("security"));
+        executor = "ring".equals(pipe) ? BundleUtils.newPayloadExecutor(1) : Executors.newCachedThreadPool();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        BenchmarkFiles.deleteRecursively(rootDir);
+    }
+
+    @Benchmark
+    public void generateBundle() throws Exception {
+        if ("ring".equals(pipe)) {
+            var payloadPipe = new RingBufferPipe();
+            var future = BundleUtils.runFuture(executor, "HB", null, adus, null, payloadPipe);
+            try {
+                encrypt(payloadPipe.getInputStream());
+            } finally {
+                payloadPipe.getInputStream().close();
+                future.cancel(true);
+            }
+        } else {
+            var pipedInputStream = new PipedInputStream();
+            var future = runPipedFuture(pipedInputStream);
+            try {
+                encrypt(pipedInputStream);
+            } finally {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private void encrypt(InputStream payload) throws Exception {
+        var serverSecurity = security.serverSecurity;
+        var clientId = security.clientId;
+        BundleUtils.encryptPayloadAndCreateBundle((in, out) -> serverSecurity.encrypt(clientId, in, out),
+                                                  serverSecurity.getClientIdentityPublicKey(clientId),
+                                                  serverSecurity.getClientBaseKey(clientId),
+                                                  serverSecurity.getIdentityPublicKey().getPublicKey(),
+                                                  "benchmark-bundle",
+                                                  payload,
+                                                  OutputStream.nullOutputStream());
+    }
+
+    /* BundleUtils.runFuture as it was before the RingBufferPipe */
+    private Future<?> runPipedFuture(PipedInputStream inputPipe) throws Exception {
+        var outputPipe = new PipedOutputStream(inputPipe);
+        return executor.submit(() -> {
+            try {
+                BundleUtils.createBundlePayloadForAdus(adus, null, "HB", null, outputPipe);
+            } finally {
+                outputPipe.close();
+            }
+            return null;
+        });
+    }
+}
@@ -0,0 +1,79 @@
+package net.discdd.benchmarks;
+
+import net.discdd.bundlerouting.RoutingTable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looking up the clients reachable through a transport, which the server does on every inventory of the transport,
+ * and recording the routes of a received bundle.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoutingTableBenchmark {
+    private static final String TRANSPORT_ID = "benchmark-transport";
+
+    @Param({ "1000", "50000" })
+    int clientCount;
+    @Param({ "1", "8" })
+    int routesPerBundle;
+
+    private RoutingTable table;
+    private Map<String, Double> bundleRoutes;
+    private int iteration;
+
+    // rebuilt every iteration, so that the new clients of one don't make the transport bigger for the next
+    @Setup(Level.Iteration)
+    public void setUp() {
+        iteration = 0;
+        table = new RoutingTable();
+        for (int i = 0; i < clientCount; i++) {
+            table.put(TRANSPORT_ID, "client" + i, 0);
+            table.put("other-transport" + i % 16, "client" + i, 1);
+        }
+        bundleRoutes = new HashMap<>();
+        bundleRoutes.put(TRANSPORT_ID, 0.0);
+        for (int i = 1; i < routesPerBundle; i++) {
+            bundleRoutes.put("other-transport" + i, (double) i);
+        }
+    }
+
+    /* an inventory between changes of the routes */
+    @Benchmark
+    public List<String> inventory() {
+        return table.clientsFor(TRANSPORT_ID);
+    }
+
+    /* a bundle of a known client updates its scores, then the transport asks for an inventory */
+    @Benchmark
+    public List<String> knownClientBundleThenInventory() {
+        table.putAll("client" + (iteration++ % clientCount), bundleRoutes);
+        return table.clientsFor(TRANSPORT_ID);
+    }
+
+    /* a bundle of a client new to the transport, which makes the next inventory copy the clients again */
+    @Benchmark
+    public List<String> newClientBundleThenInventory() {
+        table.putAll("new-client" + iteration++, bundleRoutes);
+        return table.clientsFor(TRANSPORT_ID);
+    }
+}
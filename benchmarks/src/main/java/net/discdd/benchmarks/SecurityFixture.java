@@ -0,0 +1,127 @@
+package net.discdd.benchmarks;
+
+import net.discdd.bundlesecurity.DDDPEMEncoder;
+import net.discdd.bundlesecurity.SecurityUtils;
+import net.discdd.bundlesecurity.ServerSecurity;
+import net.discdd.model.Bundle;
+import net.discdd.model.ReceivedBundle;
+import net.discdd.utils.BundleUtils;
+import org.whispersystems.libsignal.IdentityKey;
+import org.whispersystems.libsignal.IdentityKeyPair;
+import org.whispersystems.libsignal.SessionCipher;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.ecc.Curve;
+import org.whispersystems.libsignal.ecc.ECKeyPair;
+import org.whispersystems.libsignal.ratchet.AliceSignalProtocolParameters;
+import org.whispersystems.libsignal.ratchet.RatchetingSession;
+import org.whispersystems.libsignal.state.SessionRecord;
+import org.whispersystems.libsignal.util.guava.Optional;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static net.discdd.bundlesecurity.DDDPEMEncoder.ECPrivateKeyType;
+import static net.discdd.bundlesecurity.DDDPEMEncoder.ECPublicKeyType;
+
+/**
+ * A bundle server with freshly generated keys and a client that has a session with it, set up the same way as in
+ * the end-to-end tests.
+ */
+class SecurityFixture {
+    final ServerSecurity serverSecurity;
+    final String clientId;
+    private final IdentityKeyPair serverIdentity;
+    private final IdentityKeyPair clientIdentity;
+    private final ECKeyPair clientBaseKeyPair;
+    private final SessionCipher clientSessionCipher;
+    private final Path workDir;
+    private int bundleCount;
+
+    SecurityFixture(Path rootDir) throws Exception {
+        var keysDir = Files.createDirectories(rootDir.resolve(SecurityUtils.SERVER_KEY_PATH));
+        var identityKeyPair = Curve.generateKeyPair();
+        serverIdentity =
+                new IdentityKeyPair(new IdentityKey(identityKeyPair.getPublicKey()), identityKeyPair.getPrivateKey());
+        var serverSignedPreKey = Curve.generateKeyPair();
+        var serverRatchetKey = Curve.generateKeyPair();
+        writePem(keysDir.resolve(SecurityUtils.SERVER_IDENTITY_KEY),
+                 serverIdentity.getPublicKey().serialize(),
+                 ECPublicKeyType);
+        writePem(keysDir.resolve(SecurityUtils.SERVER_IDENTITY_PRIVATE_KEY),
+                 serverIdentity.serialize(),
+                 ECPrivateKeyType);
+        writePem(keysDir.resolve(SecurityUtils.SERVER_SIGNED_PRE_KEY),
+                 serverSignedPreKey.getPublicKey().serialize(),
+                 ECPublicKeyType);
+        writePem(keysDir.resolve(SecurityUtils.SERVER_SIGNEDPRE_PRIVATE_KEY),
+                 serverSignedPreKey.getPrivateKey().serialize(),
+                 ECPrivateKeyType);
+        writePem(keysDir.resolve(SecurityUtils.SERVER_RATCHET_KEY),
+                 serverRatchetKey.getPublicKey().serialize(),
+                 ECPublicKeyType);
+        writePem(keysDir.resolve(SecurityUtils.SERVER_RATCHET_PRIVATE_KEY),
+                 serverRatchetKey.getPrivateKey().serialize(),
+                 ECPrivateKeyType);
+        serverSecurity = new ServerSecurity(rootDir);
+
+        var clientKeyPair = Curve.generateKeyPair();
+        clientIdentity =
+                new IdentityKeyPair(new IdentityKey(clientKeyPair.getPublicKey()), clientKeyPair.getPrivateKey());
+        clientBaseKeyPair = Curve.generateKeyPair();
+        clientId = SecurityUtils.generateID(clientIdentity.getPublicKey().getPublicKey().serialize());
+        var sessionRecord = new SessionRecord();
+        var address = new SignalProtocolAddress(clientId, 1);
+        var clientSessionStore = SecurityUtils.createInMemorySignalProtocolStore();
+        RatchetingSession.initializeSession(sessionRecord.getSessionState(),
+                                            AliceSignalProtocolParameters.newBuilder()
+                                                    .setOurBaseKey(clientBaseKeyPair)
+                                                    .setOurIdentityKey(clientIdentity)
+                                                    .setTheirOneTimePreKey(Optional.absent())
+                                                    .setTheirRatchetKey(serverRatchetKey.getPublicKey())
+                                                    .setTheirSignedPreKey(serverSignedPreKey.getPublicKey())
+                                                    .setTheirIdentityKey(serverIdentity.getPublicKey())
+                                                    .create());
+        clientSessionStore.storeSession(address, sessionRecord);
+        clientSessionCipher = new SessionCipher(clientSessionStore, address);
+
+        workDir = Files.createDirectories(rootDir.resolve("work"));
+        // the server only has a session with the client once it has received a bundle from it
+        var first = createClientBundle(new byte[0]);
+        serverSecurity.decrypt(clientId, first, workDir.resolve("first.decrypted"));
+    }
+
+    private static void writePem(Path path, byte[] key, String type) throws Exception {
+        Files.writeString(path, DDDPEMEncoder.encode(key, type));
+    }
+
+    /**
+     * Encrypt payload with the client's session into a bundle, and read it back the way the server receives bundles.
+     */
+    ReceivedBundle createClientBundle(byte[] payload) throws Exception {
+        var encryptedPayloadPath = workDir.resolve("bundle-" + bundleCount + ".payload");
+        var bundlePath = createClientBundleFile(payload);
+        var receivedBundle = BundleUtils.readReceivedBundle(new Bundle(bundlePath.toFile()), encryptedPayloadPath);
+        Files.delete(bundlePath);
+        return receivedBundle;
+    }
+
+    /**
+     * Encrypt payload with the client's session into a bundle file, as it would be uploaded. The caller deletes it.
+     */
+    Path createClientBundleFile(byte[] payload) throws Exception {
+        var bundlePath = workDir.resolve("bundle-" + bundleCount);
+        bundleCount++;
+        try (OutputStream os = Files.newOutputStream(bundlePath)) {
+            BundleUtils.encryptPayloadAndCreateBundle(clientSessionCipher::encrypt,
+                                                      clientIdentity.getPublicKey().getPublicKey(),
+                                                      clientBaseKeyPair.getPublicKey(),
+                                                      serverIdentity.getPublicKey().getPublicKey(),
+                                                      "bundle" + bundleCount,
+                                                      new ByteArrayInputStream(payload),
+                                                      os);
+        }
+        return bundlePath;
+    }
+}
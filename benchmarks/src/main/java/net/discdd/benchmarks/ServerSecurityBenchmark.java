@@ -0,0 +1,85 @@
+package net.discdd.benchmarks;
+
+import net.discdd.model.ReceivedBundle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encrypting a payload for a client and decrypting a bundle from it with the Signal session of ServerSecurity.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ServerSecurityBenchmark {
+    @Param({ "1024", "65536", "1048576", "10485760" })
+    int payloadSize;
+
+    private Path rootDir;
+    private SecurityFixture security;
+    private byte[] payload;
+    private Path decryptedPath;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        rootDir = Files.createTempDirectory("server-security-benchmark");
+        security = new SecurityFixture(rootDir);
+        payload = BenchmarkFiles.randomBytes(payloadSize, payloadSize);
+        decryptedPath = rootDir.resolve("decrypted");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        BenchmarkFiles.deleteRecursively(rootDir);
+    }
+
+    /**
+     * The session rejects a message it has already decrypted, so every decrypt needs a new bundle from the client.
+     */
+    @State(Scope.Thread)
+    public static class ClientBundle {
+        ReceivedBundle receivedBundle;
+
+        @Setup(Level.Invocation)
+        public void create(ServerSecurityBenchmark benchmark) throws Exception {
+            receivedBundle = benchmark.security.createClientBundle(benchmark.payload);
+        }
+
+        @TearDown(Level.Invocation)
+        public void delete(ServerSecurityBenchmark benchmark) throws Exception {
+            Files.deleteIfExists(receivedBundle.encryptedPayload());
+            Files.deleteIfExists(benchmark.decryptedPath);
+        }
+    }
+
+    @Benchmark
+    public void encrypt() throws Exception {
+        security.serverSecurity.encrypt(security.clientId,
+                                        new ByteArrayInputStream(payload),
+                                        OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public void decrypt(ClientBundle clientBundle) throws Exception {
+        security.serverSecurity.decrypt(security.clientId, clientBundle.receivedBundle, decryptedPath);
+    }
+}
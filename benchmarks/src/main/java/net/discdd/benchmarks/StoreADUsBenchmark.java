@@ -0,0 +1,102 @@
+package net.discdd.benchmarks;
+
+import net.discdd.model.ADU;
+import net.discdd.utils.StoreADUs;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adding ADUs to a StoreADUs and listing them back, as the server does for every client app when it receives and
+ * generates bundles.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StoreADUsBenchmark {
+    private static final String CLIENT_ID = "benchmark-client";
+
+    @Param({ "1", "10", "100" })
+    int aduCount;
+    @Param({ "1024", "65536", "1048576" })
+    int aduSize;
+
+    private Path rootDir;
+    private StoreADUs populatedStore;
+    private byte[] data;
+    private Path addDir;
+    private StoreADUs addStore;
+    private int iteration;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        rootDir = Files.createTempDirectory("store-adus-benchmark");
+        data = BenchmarkFiles.randomBytes(aduSize, aduSize);
+        populatedStore = new StoreADUs(rootDir.resolve("populated"));
+        for (int i = 1; i <= aduCount; i++) {
+            populatedStore.addADU(CLIENT_ID, BenchmarkFiles.APP_ID, data, i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        BenchmarkFiles.deleteRecursively(rootDir);
+    }
+
+    /**
+     * addADU keeps adding to the same app, so each iteration starts with an empty store to keep it from growing
+     * without bound.
+     */
+    @Setup(Level.Iteration)
+    public void newAddStore() {
+        addDir = rootDir.resolve("add-" + iteration++);
+        addStore = new StoreADUs(addDir);
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteAddStore() throws Exception {
+        BenchmarkFiles.deleteRecursively(addDir);
+    }
+
+    @Benchmark
+    public File addADU() throws Exception {
+        return addStore.addADU(CLIENT_ID, BenchmarkFiles.APP_ID, data, -1);
+    }
+
+    @Benchmark
+    public void getADUs(Blackhole blackhole) throws Exception {
+        try (var adus = populatedStore.getADUs(CLIENT_ID, BenchmarkFiles.APP_ID)) {
+            adus.forEach(blackhole::consume);
+        }
+    }
+
+    @Benchmark
+    public void getADUsAndRead(Blackhole blackhole) throws Exception {
+        try (var adus = populatedStore.getADUs(CLIENT_ID, BenchmarkFiles.APP_ID)) {
+            for (ADU adu : (Iterable<ADU>) adus::iterator) {
+                try (var in = adu.openStream()) {
+                    blackhole.consume(in.readAllBytes());
+                }
+            }
+        }
+    }
+}
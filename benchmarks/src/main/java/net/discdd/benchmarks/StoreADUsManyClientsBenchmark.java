@@ -0,0 +1,80 @@
+package net.discdd.benchmarks;
+
+import net.discdd.utils.StoreADUs;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What fetchADUsToSend does for every client of a server with many clients: walk the ADUs of each app up to the size
+ * limit. The score is per client. Run with -p clients=100000 for a full-sized store; loading its indexes at startup is
+ * logged by StoreADUs.loadIndexes during setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StoreADUsManyClientsBenchmark {
+    private static final int APPS = 5;
+    private static final int ADUS_PER_APP = 3;
+
+    @Param({ "500", "10000" })
+    int clients;
+
+    private Path rootDir;
+    private StoreADUs store;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        rootDir = Files.createTempDirectory("store-adus-many-clients-benchmark");
+        var populating = new StoreADUs(rootDir);
+        byte[] data = new byte[100];
+        for (int c = 0; c < clients; c++) {
+            for (int a = 0; a < APPS; a++) {
+                for (int id = 1; id <= ADUS_PER_APP; id++) {
+                    populating.addADU("client" + c, "app" + a, data, id);
+                }
+            }
+        }
+        store = new StoreADUs(rootDir);
+        store.loadIndexes(false);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        BenchmarkFiles.deleteRecursively(rootDir);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(10000)
+    public long fetchPerClient() throws Exception {
+        long fetched = 0;
+        // the same number of clients per invocation whatever the size of the store, so the score is per client
+        for (int i = 0; i < 10000; i++) {
+            var clientId = "client" + (i % clients);
+            for (int a = 0; a < APPS; a++) {
+                try (var adus = store.getADUs(clientId, "app" + a)) {
+                    fetched += adus.takeWhile(adu -> adu.getSize() < 1000).count();
+                }
+            }
+        }
+        return fetched;
+    }
+}
@@ -0,0 +1,94 @@
+package net.discdd.bundlerouting;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Which clients can be reached through which transport, and how well, kept in memory so that a bundle inventory
+ * doesn't have to ask the database.
+ *
+ * <p>The clients of a transport are handed out as an unmodifiable list that is built once and reused until the
+ * routes of the transport change, so transports with many clients cost nothing extra between changes.
+ */
+public class RoutingTable {
+    private static class Routes {
+        final ConcurrentHashMap<String, Double> scores = new ConcurrentHashMap<>();
+        // goes up every time a client is added, the clients list is only good for the version it was built for
+        final AtomicInteger version = new AtomicInteger();
+        volatile Clients clients;
+    }
+
+    private static class Clients {
+        final int version;
+        final List<String> list;
+
+        Clients(int version, List<String> list) {
+            this.version = version;
+            this.list = list;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Routes> byTransport = new ConcurrentHashMap<>();
+
+    /**
+     * Record that clientId can be reached through transportId with the given score.
+     */
+    public void put(String transportId, String clientId, double score) {
+        var routes = byTransport.computeIfAbsent(transportId, t -> new Routes());
+        var previous = routes.scores.put(clientId, score);
+        if (previous == null) {
+            routes.version.incrementAndGet();
+        }
+    }
+
+    /**
+     * Record the scores of clientId for every transport in scoresByTransport.
+     */
+    public void putAll(String clientId, Map<String, Double> scoresByTransport) {
+        for (var entry : scoresByTransport.entrySet()) {
+            put(entry.getKey(), clientId, entry.getValue());
+        }
+    }
+
+    /**
+     * @return the clients that can be reached through transportId. The list doesn't change.
+     */
+    public List<String> clientsFor(String transportId) {
+        var routes = byTransport.get(transportId);
+        if (routes == null) {
+            return Collections.emptyList();
+        }
+        var clients = routes.clients;
+        int version = routes.version.get();
+        if (clients == null || clients.version != version) {
+            // a client added while copying bumps the version again, so the copy is redone on the next call
+            clients = new Clients(version, Collections.unmodifiableList(new ArrayList<>(routes.scores.keySet())));
+            routes.clients = clients;
+        }
+        return clients.list;
+    }
+
+    /**
+     * @return the score of clientId through transportId, or NaN if there is no such route
+     */
+    public double score(String transportId, String clientId) {
+        var routes = byTransport.get(transportId);
+        var score = routes == null ? null : routes.scores.get(clientId);
+        return score == null ? Double.NaN : score;
+    }
+
+    /**
+     * @return the number of routes
+     */
+    public int size() {
+        int size = 0;
+        for (var routes : byTransport.values()) {
+            size += routes.scores.size();
+        }
+        return size;
+    }
+}
@@ -2,7 +2,6 @@ package net.discdd.bundlerouting.service;
 
 import com.google.protobuf.ByteString;
 import io.grpc.stub.StreamObserver;
-import net.discdd.grpc.BundleChunk;
 import net.discdd.grpc.BundleDownloadRequest;
 import net.discdd.grpc.BundleDownloadResponse;
 import net.discdd.grpc.BundleExchangeServiceGrpc;
@@ -14,28 +13,38 @@ import net.discdd.grpc.PSIRequest;
 import net.discdd.grpc.PSIResponse;
 import net.discdd.grpc.PublicKeyMap;
 import net.discdd.grpc.Status;
+import net.discdd.grpc.UploadOffsetRequest;
+import net.discdd.grpc.UploadOffsetResponse;
+import net.discdd.grpc.UploadSession;
 import net.discdd.utils.BundleUtils;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
-import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
-import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.logging.Logger;
 
 import static java.lang.String.format;
+import static java.util.logging.Level.FINE;
 import static java.util.logging.Level.INFO;
 import static java.util.logging.Level.SEVERE;
+import static java.util.logging.Level.WARNING;
 
 public abstract class BundleExchangeServiceImpl extends BundleExchangeServiceGrpc.BundleExchangeServiceImplBase {
     private static final Logger logger = Logger.getLogger(BundleExchangeServiceImpl.class.getName());
 
-    private static final int DOWNLOAD_BUFFER_SIZE = 4096;
+    public static final int MIN_DOWNLOAD_CHUNK_SIZE = 256 * 1024;
+    public static final int MAX_DOWNLOAD_CHUNK_SIZE = 1024 * 1024;
+    public static final int DEFAULT_DOWNLOAD_CHUNK_SIZE = 512 * 1024;
+    private int downloadChunkSize = DEFAULT_DOWNLOAD_CHUNK_SIZE;
+    // the partial file of each resumable upload that a stream is currently writing to, guarded by itself
+    private final Map<String, PartialFile> activeUploads = new HashMap<>();
+    private long lastPartialUploadSweep;
 
     @Override
     public StreamObserver<BundleUploadRequest> uploadBundle(StreamObserver<BundleUploadResponse> responseObserver) {
@@ -45,6 +54,137 @@ public abstract class BundleExchangeServiceImpl extends BundleExchangeServiceGrp
 
     protected abstract void onBundleExchangeEvent(BundleExchangeEvent event);
 
+    /**
+     * Set the size of the chunks that downloads are sent in. It is clamped to between MIN_DOWNLOAD_CHUNK_SIZE and
+     * MAX_DOWNLOAD_CHUNK_SIZE: smaller chunks add per-message overhead, and larger ones get close to the default
+     * 4 MB maximum inbound message size of the receiver.
+     */
+    public void setDownloadChunkSize(int downloadChunkSize) {
+        this.downloadChunkSize =
+                Math.max(MIN_DOWNLOAD_CHUNK_SIZE, Math.min(MAX_DOWNLOAD_CHUNK_SIZE, downloadChunkSize));
+    }
+
+    public int getDownloadChunkSize() {
+        return downloadChunkSize;
+    }
+
+    /**
+     * The directory that partially uploaded bundles are kept in so that their uploads can be resumed, or null if
+     * uploads to this service can't be resumed.
+     */
+    protected Path partialUploadDirectory() {
+        return null;
+    }
+
+    /**
+     * Whether the bundle being uploaded has already been received, in which case the upload is acknowledged as soon
+     * as its bundle ID arrives and the chunks that follow are dropped.
+     */
+    protected boolean isAlreadyReceived(BundleExchangeName bundleExchangeName) {
+        return false;
+    }
+
+    /**
+     * Gets the chunks of an upload as they arrive, next to the file they are written to, so that the bundle can be
+     * read before the upload has completed. The calls for an upload come from one thread at a time.
+     */
+    public interface UploadTap {
+        void write(ByteString chunk) throws IOException;
+
+        /* the whole upload has arrived and been written to its file */
+        void complete();
+
+        /* the upload broke off, or the tap failed */
+        void abort();
+    }
+
+    /**
+     * Returns a tap for an upload that starts from the beginning, or null if the upload is only processed once it
+     * has completed. Uploads that resume after breaking off are never tapped.
+     */
+    protected UploadTap tapUpload(BundleExchangeName bundleExchangeName) {
+        return null;
+    }
+
+    @Override
+    public void getUploadOffset(UploadOffsetRequest request, StreamObserver<UploadOffsetResponse> responseObserver) {
+        var directory = partialUploadDirectory();
+        if (directory == null) {
+            responseObserver.onError(io.grpc.Status.UNIMPLEMENTED.withDescription("Uploads can't be resumed")
+                                             .asException());
+            return;
+        }
+        var token = request.getToken();
+        if (!ResumableTransfers.isValidUploadToken(token)) {
+            responseObserver.onError(io.grpc.Status.INVALID_ARGUMENT.withDescription("Bad upload token").asException());
+            return;
+        }
+        try {
+            long committedOffset;
+            synchronized (activeUploads) {
+                // the uploader only asks after losing its stream, which we may not have noticed yet
+                detachUpload(token);
+                committedOffset = PartialFile.committedOffset(directory, partialUploadName(token));
+            }
+            responseObserver.onNext(UploadOffsetResponse.newBuilder().setCommittedOffset(committedOffset).build());
+            responseObserver.onCompleted();
+        } catch (IOException e) {
+            logger.log(SEVERE, "Error getting the offset of upload " + token, e);
+            responseObserver.onError(io.grpc.Status.INTERNAL.withDescription(e.getMessage()).asException());
+        }
+    }
+
+    /**
+     * Open the partial file of an upload for a new stream, taking it away from the stream that had it before.
+     */
+    private PartialFile attachUpload(UploadSession session) throws IOException {
+        var directory = partialUploadDirectory();
+        if (directory == null) {
+            if (session.getOffset() == 0) return null;
+            throw io.grpc.Status.UNIMPLEMENTED.withDescription("Uploads can't be resumed").asRuntimeException();
+        }
+        var token = session.getToken();
+        if (!ResumableTransfers.isValidUploadToken(token)) {
+            throw io.grpc.Status.INVALID_ARGUMENT.withDescription("Bad upload token").asRuntimeException();
+        }
+        synchronized (activeUploads) {
+            sweepPartialUploads(directory);
+            detachUpload(token);
+            var partial = PartialFile.open(directory, partialUploadName(token));
+            if (partial.getCommittedOffset() != session.getOffset()) {
+                long committedOffset = partial.getCommittedOffset();
+                partial.close();
+                throw io.grpc.Status.OUT_OF_RANGE.withDescription("Upload " + token + " is committed up to " +
+                                                                          committedOffset + " not " +
+                                                                          session.getOffset()).asRuntimeException();
+            }
+            activeUploads.put(token, partial);
+            return partial;
+        }
+    }
+
+    /* must hold activeUploads */
+    private void detachUpload(String token) throws IOException {
+        var previous = activeUploads.remove(token);
+        if (previous != null) {
+            logger.log(INFO, "Taking over upload " + token + " from its previous stream");
+            previous.close();
+        }
+    }
+
+    /* must hold activeUploads */
+    private void sweepPartialUploads(Path directory) {
+        long now = System.currentTimeMillis();
+        if (now - lastPartialUploadSweep > TimeUnit.HOURS.toMillis(1)) {
+            lastPartialUploadSweep = now;
+            PartialFile.deleteStale(directory, PartialFile.STALE_AFTER_MS);
+        }
+    }
+
+    private static String partialUploadName(String token) {
+        return "upload-" + token;
+    }
+
     @Override
     public void downloadBundle(BundleDownloadRequest request, StreamObserver<BundleDownloadResponse> responseObserver) {
         onBundleExchangeEvent(BundleExchangeEvent.DOWNLOAD_STARTED);
@@ -52,6 +192,7 @@ public abstract class BundleExchangeServiceImpl extends BundleExchangeServiceGrp
 
         var bundleExchangeName = new BundleExchangeName(request.getBundleId().getEncryptedId(), true);
 
+        boolean sending = false;
         try {
             Path downloadPath = request.hasPublicKeyMap() ?
                                 pathProducer(bundleExchangeName, request.getSenderType(), request.getPublicKeyMap()) :
@@ -66,36 +207,50 @@ public abstract class BundleExchangeServiceImpl extends BundleExchangeServiceGrp
                 return;
             }
 
-            try (InputStream is = Files.newInputStream(downloadPath, StandardOpenOption.READ)) {
-                transferToStream(is,
-                                 bytes -> responseObserver.onNext(BundleDownloadResponse.newBuilder()
-                                                                          .setChunk(BundleChunk.newBuilder()
-                                                                                            .setChunk(bytes)
-                                                                                            .build())
-                                                                          .build()));
+            long offset = request.getOffset();
+            if (offset < 0 || offset > Files.size(downloadPath)) {
+                responseObserver.onError(io.grpc.Status.OUT_OF_RANGE.withDescription("Bad offset " + offset)
+                                                 .asException());
+                return;
             }
-            logger.log(INFO, "Complete " + request.getBundleId().getEncryptedId());
-            responseObserver.onCompleted();
+            sendFile(downloadPath,
+                     offset,
+                     responseObserver,
+                     completed -> onBundleExchangeEvent(BundleExchangeEvent.DOWNLOAD_FINISHED));
+            sending = true;
         } catch (Exception e) {
             logger.log(SEVERE, "Error downloading bundle: " + request.getBundleId().getEncryptedId(), e);
             var status = (e instanceof SecurityException) ? io.grpc.Status.UNAUTHENTICATED : io.grpc.Status.INTERNAL;
             responseObserver.onError(status.withDescription(e.getMessage()).asException());
         } finally {
-            onBundleExchangeEvent(BundleExchangeEvent.DOWNLOAD_FINISHED);
+            // once sending has started, the sender reports when the download has finished
+            if (!sending) {
+                onBundleExchangeEvent(BundleExchangeEvent.DOWNLOAD_FINISHED);
+            }
         }
-        ;
     }
 
-    public void transferToStream(InputStream in, Consumer<ByteString> callback) throws IOException {
-        ByteBuffer buffer = ByteBuffer.allocate(DOWNLOAD_BUFFER_SIZE);
-        try (ReadableByteChannel channel = Channels.newChannel(in)) {
-            int n;
-            while ((n = channel.read(buffer)) > 0) {
-                buffer.flip();
-                callback.accept(ByteString.copyFrom(buffer));
-                buffer.clear();
-            }
-        }
+    /**
+     * Send the file at path as a stream of BundleDownloadResponse chunks, honoring the flow control of the call.
+     * The transfer may still be in progress when this returns; responseObserver is completed (or errored) when it
+     * is done, after which onFinished is called with whether the whole file was sent.
+     * This must be called from the RPC method itself.
+     */
+    protected void sendFile(Path path,
+                            StreamObserver<BundleDownloadResponse> responseObserver,
+                            Consumer<Boolean> onFinished) throws IOException {
+        sendFile(path, 0, responseObserver, onFinished);
+    }
+
+    /**
+     * Like {@link #sendFile(Path, StreamObserver, Consumer)}, but starting offset bytes into the file, to resume a
+     * download that broke off.
+     */
+    protected void sendFile(Path path,
+                            long offset,
+                            StreamObserver<BundleDownloadResponse> responseObserver,
+                            Consumer<Boolean> onFinished) throws IOException {
+        new FlowControlledFileSender(path, offset, downloadChunkSize, responseObserver, onFinished).start();
     }
 
     @Override
@@ -130,10 +285,19 @@ public abstract class BundleExchangeServiceImpl extends BundleExchangeServiceGrp
         private final StreamObserver<BundleUploadResponse> responseObserver;
         // upload context variables
         OutputStream writer;
+        // set instead of writer when the upload can be resumed
+        UploadSession session;
+        PartialFile partial;
+        // a resumable upload has failed and its call has been closed
+        boolean failed;
+        // the bundle was already received and the call has been closed
+        boolean skipped;
         Path path;
         Status status;
         BundleExchangeName bundleExchangeName;
         BundleSenderType bundleSenderType;
+        // gets a copy of the chunks of a fresh upload
+        UploadTap tap;
 
         public BundleUploadRequestStreamObserver(StreamObserver<BundleUploadResponse> responseObserver) {
             this.responseObserver = responseObserver;
@@ -142,6 +306,7 @@ public abstract class BundleExchangeServiceImpl extends BundleExchangeServiceGrp
 
         @Override
         public void onNext(BundleUploadRequest bundleUploadRequest) {
+            if (failed || skipped) return;
             try {
                 if (bundleUploadRequest.hasBundleId()) {
                     logger.log(INFO,
@@ -149,6 +314,14 @@ public abstract class BundleExchangeServiceImpl extends BundleExchangeServiceGrp
                                        bundleUploadRequest.getBundleId().getEncryptedId());
                     bundleExchangeName =
                             new BundleExchangeName(bundleUploadRequest.getBundleId().getEncryptedId(), false);
+                    if (isAlreadyReceived(bundleExchangeName)) {
+                        logger.log(INFO, "Already received " + bundleExchangeName.encryptedBundleId + ", skipping it");
+                        skipped = true;
+                        responseObserver.onNext(BundleUploadResponse.newBuilder().setStatus(Status.SUCCESS).build());
+                        responseObserver.onCompleted();
+                        onBundleExchangeEvent(BundleExchangeEvent.UPLOAD_FINISHED);
+                        return;
+                    }
 
                     path = pathProducer(bundleExchangeName, bundleSenderType, null);
                     try {
@@ -156,18 +329,36 @@ public abstract class BundleExchangeServiceImpl extends BundleExchangeServiceGrp
                             throw new IOException(
                                     "Could not produce a path for " + bundleExchangeName.encryptedBundleId);
                         }
-                        writer = Files.newOutputStream(path,
-                                                       StandardOpenOption.CREATE,
-                                                       StandardOpenOption.TRUNCATE_EXISTING);
+                        if (session != null) {
+                            partial = attachUpload(session);
+                            // a fresh upload to a service that can't resume is received like any other
+                            if (partial == null) session = null;
+                        }
+                        if (partial == null) {
+                            writer = Files.newOutputStream(path,
+                                                           StandardOpenOption.CREATE,
+                                                           StandardOpenOption.TRUNCATE_EXISTING);
+                        }
+                        if (session == null || session.getOffset() == 0) {
+                            tap = tapUpload(bundleExchangeName);
+                        }
                     } catch (IOException e) {
                         logger.log(SEVERE, "Error creating file " + path, e);
                         this.onError(io.grpc.Status.INTERNAL.withDescription(e.getMessage()).asException());
                     }
+                } else if (bundleUploadRequest.hasSession()) {
+                    session = bundleUploadRequest.getSession();
                 } else if (bundleUploadRequest.hasSenderType()) {
                     bundleSenderType = bundleUploadRequest.getSenderType();
+                } else if (partial != null) {
+                    partial.write(bundleUploadRequest.getChunk().getChunk().asReadOnlyByteBuffer());
+                    writeTap(bundleUploadRequest.getChunk().getChunk());
                 } else {
                     writeFile(writer, bundleUploadRequest.getChunk().getChunk());
+                    writeTap(bundleUploadRequest.getChunk().getChunk());
                 }
+            } catch (io.grpc.StatusRuntimeException e) {
+                this.onError(e.getStatus().asException());
             } catch (Exception e) {
                 this.onError(io.grpc.Status.INTERNAL.withDescription(e.getMessage()).asException());
             }
@@ -175,8 +366,19 @@ public abstract class BundleExchangeServiceImpl extends BundleExchangeServiceGrp
 
         @Override
         public void onError(Throwable throwable) {
+            if (skipped) return;
             logger.log(SEVERE, "Error" + throwable.toString());
             status = Status.FAILED;
+            abortTap();
+            if (session != null) {
+                if (failed) return;
+                failed = true;
+                // keep what we have so that the uploader can resume, and tell it what went wrong
+                releasePartial();
+                responseObserver.onError(throwable);
+                onBundleExchangeEvent(BundleExchangeEvent.UPLOAD_FINISHED);
+                return;
+            }
             // TODO we should probably convey that the upload failed. We'll figure it out later, but it
             //      would be nice to indicate early on.
 
@@ -189,12 +391,40 @@ public abstract class BundleExchangeServiceImpl extends BundleExchangeServiceGrp
 
         @Override
         public void onCompleted() {
+            if (failed || skipped) return;
             logger.log(INFO, "File Upload Complete for " + path);
             try {
                 if (writer != null) writer.close();
             } catch (Exception e) {
                 logger.log(SEVERE, "Problem closing bundle", e);
             }
+            if (partial != null) {
+                synchronized (activeUploads) {
+                    activeUploads.remove(session.getToken(), partial);
+                }
+                try {
+                    partial.complete(path);
+                } catch (IOException e) {
+                    // most likely another stream took over the upload
+                    logger.log(WARNING, "Could not complete upload " + session.getToken(), e);
+                    status = Status.FAILED;
+                }
+            } else if (session != null) {
+                // the upload never got as far as the bundle ID
+                status = Status.FAILED;
+            }
+            if (status == Status.FAILED) {
+                abortTap();
+            } else if (tap != null) {
+                tap.complete();
+                tap = null;
+            }
+            if (status == Status.FAILED && session != null) {
+                responseObserver.onNext(BundleUploadResponse.newBuilder().setStatus(status).build());
+                responseObserver.onCompleted();
+                onBundleExchangeEvent(BundleExchangeEvent.UPLOAD_FINISHED);
+                return;
+            }
 
             if (bundleExchangeName != null && bundleSenderType != null) {
                 bundleCompletion(bundleExchangeName, bundleSenderType, path);
@@ -209,5 +439,34 @@ public abstract class BundleExchangeServiceImpl extends BundleExchangeServiceGrp
             writer.flush();
         }
 
+        /* the upload doesn't depend on the tap, a tap that fails is dropped */
+        private void writeTap(ByteString chunk) {
+            if (tap == null) return;
+            try {
+                tap.write(chunk);
+            } catch (IOException e) {
+                logger.log(FINE, "Dropping the tap of upload to " + path, e);
+                abortTap();
+            }
+        }
+
+        private void abortTap() {
+            if (tap == null) return;
+            tap.abort();
+            tap = null;
+        }
+
+        private void releasePartial() {
+            if (partial == null) return;
+            synchronized (activeUploads) {
+                activeUploads.remove(session.getToken(), partial);
+            }
+            try {
+                partial.close();
+            } catch (IOException e) {
+                logger.log(WARNING, "Could not commit upload " + session.getToken(), e);
+            }
+        }
+
     }
 }
@@ -0,0 +1,121 @@
+package net.discdd.bundlerouting.service;
+
+import com.google.protobuf.UnsafeByteOperations;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import net.discdd.grpc.BundleChunk;
+import net.discdd.grpc.BundleDownloadResponse;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.INFO;
+import static java.util.logging.Level.SEVERE;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * Streams a file to a download response observer without copying it through the heap: each chunk is a read-only
+ * memory-mapped region of the file that is wrapped, not copied, into the protobuf message.
+ * <p>
+ * When the observer is a {@link ServerCallStreamObserver}, chunks are only sent while the call is ready, and sending
+ * resumes from the onReady handler, so a slow receiver does not cause the whole file to be queued up in the
+ * transport. Other observers get the whole file immediately.
+ */
+class FlowControlledFileSender implements Runnable {
+    private static final Logger logger = Logger.getLogger(FlowControlledFileSender.class.getName());
+    private final Path path;
+    private final FileChannel channel;
+    private final long size;
+    private final int chunkSize;
+    private final StreamObserver<BundleDownloadResponse> responseObserver;
+    private final ServerCallStreamObserver<BundleDownloadResponse> serverCallObserver;
+    private final Consumer<Boolean> onFinished;
+    // guarded by this
+    private long position;
+    private boolean finished;
+
+    /**
+     * @param offset     where in the file to start, for a download that is being resumed
+     * @param onFinished called once when the transfer has completed (with true), failed, or been cancelled
+     */
+    FlowControlledFileSender(Path path,
+                             long offset,
+                             int chunkSize,
+                             StreamObserver<BundleDownloadResponse> responseObserver,
+                             Consumer<Boolean> onFinished) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.size = channel.size();
+        this.position = offset;
+        this.chunkSize = chunkSize;
+        this.responseObserver = responseObserver;
+        this.serverCallObserver = responseObserver instanceof ServerCallStreamObserver<BundleDownloadResponse> s ?
+                                  s : null;
+        this.onFinished = onFinished;
+    }
+
+    /**
+     * Starts the transfer. This must be called from the RPC method itself, since the onReady handler can only be
+     * registered before the method returns.
+     */
+    void start() {
+        if (serverCallObserver != null) {
+            serverCallObserver.setOnCancelHandler(() -> {
+                logger.log(WARNING, "Download of " + path + " cancelled after " + getPosition() + " bytes");
+                finish(false);
+            });
+            serverCallObserver.setOnReadyHandler(this);
+        }
+        run();
+    }
+
+    @Override
+    public synchronized void run() {
+        if (finished) return;
+        try {
+            while (position < size && (serverCallObserver == null || serverCallObserver.isReady())) {
+                long length = Math.min(chunkSize, size - position);
+                var region = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                responseObserver.onNext(BundleDownloadResponse.newBuilder()
+                                                .setChunk(BundleChunk.newBuilder()
+                                                                  .setChunk(UnsafeByteOperations.unsafeWrap(region))
+                                                                  .build())
+                                                .build());
+                position += length;
+            }
+        } catch (Exception e) {
+            logger.log(SEVERE, "Error sending " + path, e);
+            finish(false);
+            responseObserver.onError(io.grpc.Status.INTERNAL.withDescription(e.getMessage()).asException());
+            return;
+        }
+        if (position >= size) {
+            logger.log(INFO, "Complete " + path + " " + size + " bytes");
+            try {
+                responseObserver.onCompleted();
+            } finally {
+                finish(true);
+            }
+        }
+    }
+
+    private synchronized long getPosition() {
+        return position;
+    }
+
+    private synchronized void finish(boolean completed) {
+        if (finished) return;
+        finished = true;
+        try {
+            // the mapped regions stay valid after the channel is closed
+            channel.close();
+        } catch (IOException e) {
+            logger.log(WARNING, "Problem closing " + path, e);
+        }
+        onFinished.accept(completed);
+    }
+}
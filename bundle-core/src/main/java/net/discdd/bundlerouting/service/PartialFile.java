@@ -0,0 +1,220 @@
+package net.discdd.bundlerouting.service;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import static java.util.logging.Level.INFO;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * A bundle that is received in pieces, possibly over several streams and across restarts, so that a transfer that
+ * breaks off can be resumed instead of starting over.
+ *
+ * <p>The bytes go to name.part in the partial directory. Every CHECKPOINT_BYTES, and when the partial file is
+ * closed, the data is fsynced and the committed length and the CRC32 of the committed bytes are written to
+ * name.ckpt. Opening a partial file checks the committed bytes against that CRC and drops anything written after
+ * the checkpoint, so the committed offset is always safe to resume from. If the check fails the transfer starts over.
+ */
+public class PartialFile implements Closeable {
+    private static final Logger logger = Logger.getLogger(PartialFile.class.getName());
+    public static final long CHECKPOINT_BYTES = 4L * 1024 * 1024;
+    // a transfer that hasn't been resumed for this long is not coming back
+    public static final long STALE_AFTER_MS = TimeUnit.DAYS.toMillis(1);
+    private static final String PART_SUFFIX = ".part";
+    private static final String CHECKPOINT_SUFFIX = ".ckpt";
+    private static final int CHECKPOINT_SIZE = 12;
+
+    private final Path partPath;
+    private final Path checkpointPath;
+    private final FileChannel channel;
+    private final CRC32 crc = new CRC32();
+    private long size;
+    private long committed;
+    private boolean closed;
+
+    private PartialFile(Path partPath, Path checkpointPath) throws IOException {
+        this.partPath = partPath;
+        this.checkpointPath = checkpointPath;
+        this.channel = FileChannel.open(partPath,
+                                        StandardOpenOption.CREATE,
+                                        StandardOpenOption.READ,
+                                        StandardOpenOption.WRITE);
+        try {
+            recover();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Open the partial file called name in directory, creating it if there is none yet.
+     */
+    public static PartialFile open(Path directory, String name) throws IOException {
+        Files.createDirectories(directory);
+        return new PartialFile(directory.resolve(name + PART_SUFFIX), directory.resolve(name + CHECKPOINT_SUFFIX));
+    }
+
+    /**
+     * @return the committed offset of the partial file called name in directory, 0 if there is none
+     */
+    public static long committedOffset(Path directory, String name) throws IOException {
+        if (!Files.exists(directory.resolve(name + PART_SUFFIX))) return 0;
+        try (var partial = open(directory, name)) {
+            return partial.getCommittedOffset();
+        }
+    }
+
+    /**
+     * Delete the partial files in directory that have not been written to for maxAgeMs.
+     */
+    public static void deleteStale(Path directory, long maxAgeMs) {
+        var files = directory.toFile().listFiles();
+        if (files == null) return;
+        long cutoff = System.currentTimeMillis() - maxAgeMs;
+        for (File file : files) {
+            var name = file.getName();
+            if ((name.endsWith(PART_SUFFIX) || name.endsWith(CHECKPOINT_SUFFIX)) && file.lastModified() < cutoff) {
+                logger.log(INFO, "Deleting stale partial transfer " + file);
+                if (!file.delete()) {
+                    logger.log(WARNING, "Could not delete " + file);
+                }
+            }
+        }
+    }
+
+    private void recover() throws IOException {
+        long checkpointLength = 0;
+        long checkpointCrc = 0;
+        try {
+            var checkpoint = ByteBuffer.wrap(Files.readAllBytes(checkpointPath));
+            if (checkpoint.remaining() == CHECKPOINT_SIZE) {
+                checkpointLength = checkpoint.getLong();
+                checkpointCrc = Integer.toUnsignedLong(checkpoint.getInt());
+            }
+        } catch (NoSuchFileException e) {
+            // nothing committed yet
+        }
+        if (checkpointLength > 0 && checkpointLength <= channel.size()) {
+            var buffer = ByteBuffer.allocate(64 * 1024);
+            long position = 0;
+            while (position < checkpointLength) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), checkpointLength - position));
+                int read = channel.read(buffer, position);
+                if (read < 0) break;
+                buffer.flip();
+                crc.update(buffer);
+                position += read;
+            }
+            if (position == checkpointLength && crc.getValue() == checkpointCrc) {
+                committed = checkpointLength;
+            }
+        }
+        if (committed == 0) {
+            if (checkpointLength > 0) {
+                logger.log(WARNING, partPath + " does not match its checkpoint, starting over");
+            }
+            crc.reset();
+        }
+        // anything after the checkpoint may not have made it to the disk intact
+        channel.truncate(committed);
+        size = committed;
+    }
+
+    /**
+     * @return how many bytes are safely stored; a transfer resumes from here
+     */
+    public synchronized long getCommittedOffset() {
+        return committed;
+    }
+
+    /**
+     * @return how many bytes have been written, including those not checkpointed yet
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized void write(ByteBuffer data) throws IOException {
+        if (closed) throw new ClosedChannelException();
+        crc.update(data.duplicate());
+        while (data.hasRemaining()) {
+            size += channel.write(data, size);
+        }
+        if (size - committed >= CHECKPOINT_BYTES) {
+            checkpoint();
+        }
+    }
+
+    private void checkpoint() throws IOException {
+        channel.force(false);
+        var tmp = checkpointPath.resolveSibling(checkpointPath.getFileName() + ".tmp");
+        Files.write(tmp, ByteBuffer.allocate(CHECKPOINT_SIZE).putLong(size).putInt((int) crc.getValue()).array());
+        move(tmp, checkpointPath);
+        committed = size;
+    }
+
+    /**
+     * Move the received bytes to target, which is replaced if it exists.
+     */
+    public synchronized void complete(Path target) throws IOException {
+        if (closed) throw new ClosedChannelException();
+        closed = true;
+        try {
+            channel.force(false);
+        } finally {
+            channel.close();
+        }
+        move(partPath, target);
+        Files.deleteIfExists(checkpointPath);
+    }
+
+    /**
+     * Throw away what has been received, the transfer will start over.
+     */
+    public synchronized void discard() throws IOException {
+        if (!closed) {
+            closed = true;
+            channel.close();
+        }
+        Files.deleteIfExists(partPath);
+        Files.deleteIfExists(checkpointPath);
+    }
+
+    /**
+     * Commit what has been received so far and close the file. The transfer can be resumed from getCommittedOffset().
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            if (size > committed) {
+                checkpoint();
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package net.discdd.bundlerouting.service;
+
+import io.grpc.StatusRuntimeException;
+import net.discdd.grpc.BundleExchangeServiceGrpc;
+import net.discdd.grpc.UploadOffsetRequest;
+import net.discdd.utils.Constants;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Pattern;
+
+/**
+ * Helpers shared by the uploaders and downloaders that resume transfers from where they broke off.
+ */
+public class ResumableTransfers {
+    private static final Pattern UPLOAD_TOKEN = Pattern.compile("[A-Za-z0-9_-]{16,64}");
+    private static final SecureRandom random = new SecureRandom();
+
+    /**
+     * @return a new upload session token, to be used for every attempt at uploading one bundle
+     */
+    public static String newUploadToken() {
+        var bytes = new byte[18];
+        random.nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    public static boolean isValidUploadToken(String token) {
+        return UPLOAD_TOKEN.matcher(token).matches();
+    }
+
+    /**
+     * Ask the receiver how much of the upload with token it has committed.
+     *
+     * @return the offset to resume the upload from, or -1 if the receiver can't resume uploads
+     */
+    public static long queryUploadOffset(BundleExchangeServiceGrpc.BundleExchangeServiceBlockingStub stub,
+                                         String token) {
+        try {
+            return stub.withDeadlineAfter(Constants.GRPC_SHORT_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                    .getUploadOffset(UploadOffsetRequest.newBuilder().setToken(token).build())
+                    .getCommittedOffset();
+        } catch (StatusRuntimeException e) {
+            if (e.getStatus().getCode() == io.grpc.Status.Code.UNIMPLEMENTED) return -1;
+            throw e;
+        }
+    }
+
+    /**
+     * @return whether a transfer that failed with t is worth trying again. OUT_OF_RANGE means the offset we resumed
+     *         from was not the one the other side has, the next attempt asks again.
+     */
+    public static boolean isRetryable(Throwable t) {
+        if (t instanceof StatusRuntimeException sre) {
+            return switch (sre.getStatus().getCode()) {
+                case UNAVAILABLE, DEADLINE_EXCEEDED, RESOURCE_EXHAUSTED, ABORTED, INTERNAL, UNKNOWN, OUT_OF_RANGE ->
+                        true;
+                default -> false;
+            };
+        }
+        return t instanceof IOException || t instanceof TimeoutException;
+    }
+}
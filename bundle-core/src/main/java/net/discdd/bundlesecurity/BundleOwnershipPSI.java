@@ -17,9 +17,10 @@ import java.util.Map;
  * <p>The protocol allows a client to check whether a transport holds a specific
  * bundle without revealing which bundle ID the client is looking for.
  *
- * <p>Uses RFC 3526 Group 15 (3072-bit MODP safe prime) for modular arithmetic.
+ * <p>Uses RFC 3526 Group 15 (3072-bit MODP safe prime) for modular arithmetic. This is PSI version 0, see
+ * {@link PSIGroup}; elements are unsigned big-endian integers.
  */
-public class BundleOwnershipPSI {
+public class BundleOwnershipPSI implements PSIGroup {
 
     // RFC 3526 Group 15: 3072-bit MODP safe prime
     public static final BigInteger MODP_PRIME = new BigInteger(
@@ -64,6 +65,39 @@ public class BundleOwnershipPSI {
         return secret;
     }
 
+    @Override
+    public int version() {
+        return MODP_3072_VERSION;
+    }
+
+    @Override
+    public byte[] newSecret() {
+        return generateSecret().toByteArray();
+    }
+
+    @Override
+    public byte[] hashAndBlind(String bundleId, byte[] secret) {
+        return blind(hashToGroup(bundleId), new BigInteger(1, secret)).toByteArray();
+    }
+
+    @Override
+    public byte[] blind(byte[] element, byte[] secret) {
+        BigInteger value = new BigInteger(1, element);
+        // 0, 1 and p - 1 would blind to the same value whatever the secret
+        if (value.compareTo(BigInteger.ONE) <= 0 || value.compareTo(MODP_PRIME.subtract(BigInteger.ONE)) >= 0) {
+            throw new IllegalArgumentException("Invalid MODP PSI element");
+        }
+        return blind(value, new BigInteger(1, secret)).toByteArray();
+    }
+
+    /**
+     * Peers may or may not send the leading zero byte of BigInteger.toByteArray().
+     */
+    @Override
+    public byte[] canonical(byte[] element) {
+        return new BigInteger(1, element).toByteArray();
+    }
+
     /**
      * Hash a bundle ID string to a group element in the quadratic residue subgroup.
      * Uses SHA-256, then squares mod p to ensure subgroup membership.
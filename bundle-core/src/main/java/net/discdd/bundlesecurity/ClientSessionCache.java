@@ -0,0 +1,108 @@
+package net.discdd.bundlesecurity;
+
+import net.discdd.bundlesecurity.SecurityUtils.ClientSession;
+import net.discdd.utils.KeyedLocks;
+import org.whispersystems.libsignal.InvalidKeyException;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, thread-safe LRU cache of the Signal sessions of the clients the server is talking to.
+ *
+ * <p>Sessions are persisted in the client's directory after every use, so an evicted session is simply loaded from
+ * there again the next time the client shows up. Encrypting or decrypting ratchets the session, so two operations on
+ * the same client must not overlap: callers hold {@link #lock(String)} while they get and use a session. Each client
+ * has its own lock, so an operation on one client never waits for another client, however long it takes. A lock only
+ * exists while some thread holds or is waiting for it, so the locks don't grow with the number of clients.
+ */
+public class ClientSessionCache {
+    public static final int DEFAULT_MAX_ENTRIES = 1024;
+
+    private final Map<String, ClientSession> cache;
+    private final KeyedLocks<String> locks = new KeyedLocks<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public ClientSessionCache(int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+        }
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ClientSession> eldest) {
+                if (size() > maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /* Loads a session that is not in the cache */
+    public interface SessionLoader {
+        ClientSession load(String clientId) throws IOException, InvalidKeyException;
+    }
+
+    /**
+     * Takes the lock that must be held while getting and using the session of clientId. Use it with
+     * try-with-resources so that it is released.
+     */
+    public KeyedLocks<String>.Held lock(String clientId) {
+        return locks.lock(clientId);
+    }
+
+    /* The number of clients whose lock is held or waited for */
+    int lockCount() {
+        return locks.size();
+    }
+
+    /**
+     * Returns the session of clientId, loading it with loader if it is not cached. The caller must hold
+     * {@link #lock(String)}, which also keeps a session from being loaded twice. The load runs outside the cache
+     * lock, so a slow load does not block other clients.
+     */
+    public ClientSession get(String clientId, SessionLoader loader) throws IOException, InvalidKeyException {
+        synchronized (cache) {
+            ClientSession session = cache.get(clientId);
+            if (session != null) {
+                hits.incrementAndGet();
+                return session;
+            }
+        }
+        misses.incrementAndGet();
+        ClientSession session = loader.load(clientId);
+        synchronized (cache) {
+            cache.put(clientId, session);
+        }
+        return session;
+    }
+
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+}
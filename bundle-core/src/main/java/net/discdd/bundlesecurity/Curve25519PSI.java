@@ -0,0 +1,124 @@
+package net.discdd.bundlesecurity;
+
+import org.whispersystems.libsignal.InvalidKeyException;
+import org.whispersystems.libsignal.ecc.Curve;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * The bundle ownership PSI over Curve25519. Blinding is X25519 with the Curve25519 code of the Signal library, so it
+ * costs a 255-bit scalar multiplication instead of a 3072-bit modular exponentiation.
+ *
+ * <p>Bundle IDs are hashed to the curve with the Elligator 2 map of RFC 9380 (map_to_curve_elligator2_curve25519).
+ * X25519 clamps the secrets, which clears the cofactor, so blinded values are always in the prime order subgroup and
+ * blinding commutes: X25519(a, X25519(b, H)) = X25519(b, X25519(a, H)). Elements are 32-byte little-endian
+ * u-coordinates.
+ */
+public class Curve25519PSI implements PSIGroup {
+    public static final int ELEMENT_LENGTH = 32;
+    // 2^255 - 19
+    static final BigInteger FIELD_PRIME = BigInteger.TWO.pow(255).subtract(BigInteger.valueOf(19));
+    private static final BigInteger A = BigInteger.valueOf(486662);
+    // the non-square used by the RFC 9380 suite for curve25519
+    private static final BigInteger Z = BigInteger.TWO;
+    private static final BigInteger LEGENDRE_EXPONENT = FIELD_PRIME.subtract(BigInteger.ONE).shiftRight(1);
+    private static final byte[] HASH_DOMAIN = "DDD-BundleOwnershipPSI-Curve25519-v1:".getBytes(StandardCharsets.UTF_8);
+
+    private final SecureRandom secureRandom;
+
+    public Curve25519PSI() {
+        this.secureRandom = new SecureRandom();
+    }
+
+    // Package-private for testing with deterministic randomness
+    Curve25519PSI(SecureRandom secureRandom) {
+        this.secureRandom = secureRandom;
+    }
+
+    @Override
+    public int version() {
+        return CURVE25519_VERSION;
+    }
+
+    @Override
+    public byte[] newSecret() {
+        byte[] secret = new byte[32];
+        secureRandom.nextBytes(secret);
+        // clamp the way X25519 will use it
+        secret[0] &= (byte) 248;
+        secret[31] &= 127;
+        secret[31] |= 64;
+        return secret;
+    }
+
+    @Override
+    public byte[] hashAndBlind(String bundleId, byte[] secret) {
+        return blind(hashToCurve(bundleId), secret);
+    }
+
+    @Override
+    public byte[] blind(byte[] element, byte[] secret) {
+        if (element == null || element.length != ELEMENT_LENGTH) {
+            throw new IllegalArgumentException("Curve25519 PSI elements are " + ELEMENT_LENGTH + " bytes");
+        }
+        byte[] encodedPoint = new byte[ELEMENT_LENGTH + 1];
+        encodedPoint[0] = (byte) Curve.DJB_TYPE;
+        System.arraycopy(element, 0, encodedPoint, 1, ELEMENT_LENGTH);
+        byte[] blinded;
+        try {
+            blinded = Curve.calculateAgreement(Curve.decodePoint(encodedPoint, 0), Curve.decodePrivatePoint(secret));
+        } catch (InvalidKeyException e) {
+            throw new IllegalArgumentException("Invalid Curve25519 PSI element", e);
+        }
+        // a low order point would blind every bundle ID to the same value
+        if (Arrays.equals(blinded, new byte[ELEMENT_LENGTH])) {
+            throw new IllegalArgumentException("Curve25519 PSI element has low order");
+        }
+        return blinded;
+    }
+
+    /**
+     * Hash a bundle ID to the u-coordinate of a point on Curve25519 with Elligator 2.
+     */
+    static byte[] hashToCurve(String bundleId) {
+        BigInteger r;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-512");
+            digest.update(HASH_DOMAIN);
+            // 512 bits reduced mod p, so the bias is negligible
+            r = new BigInteger(1, digest.digest(bundleId.getBytes(StandardCharsets.UTF_8))).mod(FIELD_PRIME);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-512 not available", e);
+        }
+        BigInteger p = FIELD_PRIME;
+        // x1 = -A / (1 + Z * r^2), or -A if the denominator is 0
+        BigInteger denominator = BigInteger.ONE.add(Z.multiply(r).multiply(r)).mod(p);
+        BigInteger x1 = A.negate().mod(p);
+        if (denominator.signum() != 0) {
+            x1 = x1.multiply(denominator.modInverse(p)).mod(p);
+        }
+        // g(x1) = x1^3 + A * x1^2 + x1; if it is not a square, -x1 - A is on the curve instead
+        BigInteger gx1 = x1.add(A).multiply(x1).add(BigInteger.ONE).multiply(x1).mod(p);
+        BigInteger x = isSquare(gx1) ? x1 : x1.negate().subtract(A).mod(p);
+        return toLittleEndian(x);
+    }
+
+    private static boolean isSquare(BigInteger v) {
+        return v.signum() == 0 || v.modPow(LEGENDRE_EXPONENT, FIELD_PRIME).equals(BigInteger.ONE);
+    }
+
+    private static byte[] toLittleEndian(BigInteger v) {
+        byte[] bigEndian = v.toByteArray();
+        byte[] littleEndian = new byte[ELEMENT_LENGTH];
+        // toByteArray may have a leading sign byte, which is zero here since v < 2^255
+        for (int i = 0; i < ELEMENT_LENGTH && i < bigEndian.length; i++) {
+            littleEndian[i] = bigEndian[bigEndian.length - 1 - i];
+        }
+        return littleEndian;
+    }
+}
@@ -6,7 +6,11 @@ import org.whispersystems.libsignal.ecc.ECKeyPair;
 import org.whispersystems.libsignal.ecc.ECPrivateKey;
 import org.whispersystems.libsignal.ecc.ECPublicKey;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
@@ -15,6 +19,7 @@ import java.security.NoSuchAlgorithmException;
 import java.util.Base64;
 import java.util.List;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
 import static java.util.logging.Level.SEVERE;
 import static net.discdd.bundlesecurity.SecurityUtils.decryptAesCbcPkcs5;
@@ -129,7 +134,23 @@ public class DDDPEMEncoder {
      */
     public static String decodeEncryptedPublicKeyfromFile(ECPrivateKey ServerPrivKey, Path clientEncFile) throws
             IOException, InvalidKeyException, NoSuchAlgorithmException {
-        List<String> encodedKeyList = Files.readAllLines(clientEncFile);
+        return decodeEncryptedPublicKey(ServerPrivKey,
+                                        Files.readAllLines(clientEncFile),
+                                        clientEncFile.getFileName().toString());
+    }
+
+    /**
+     * Same as {@link #decodeEncryptedPublicKeyfromFile(ECPrivateKey, Path)} for a key file that has already been
+     * read into memory.
+     */
+    public static String decodeEncryptedPublicKey(ECPrivateKey ServerPrivKey, byte[] clientEncKey, String name) throws
+            IOException, InvalidKeyException, NoSuchAlgorithmException {
+        return decodeEncryptedPublicKey(ServerPrivKey, readLines(clientEncKey), name);
+    }
+
+    private static String decodeEncryptedPublicKey(ECPrivateKey ServerPrivKey,
+                                                   List<String> encodedKeyList,
+                                                   String name) throws IOException, InvalidKeyException {
         if (encodedKeyList.size() != 4) {
             throw (new IOException(
                     "Wrong use of decode encrypted key... this key is probably not encrypted or is an old client... " +
@@ -153,23 +174,35 @@ public class DDDPEMEncoder {
             return keyInStandardBase64Characters;
         } else {
             throw new InvalidKeyException(String.format("Error: %s has invalid public key header or footer",
-                                                        clientEncFile.getFileName()));
+                                                        name));
         }
     }
 
     public static byte[] decodePublicKeyfromFile(Path path) throws IOException, InvalidKeyException {
-        List<String> encodedKeyList = Files.readAllLines(path);
+        return decodePublicKey(Files.readAllLines(path), path.getFileName().toString());
+    }
 
+    public static byte[] decodePublicKey(byte[] encodedKey, String name) throws IOException, InvalidKeyException {
+        return decodePublicKey(readLines(encodedKey), name);
+    }
+
+    private static byte[] decodePublicKey(List<String> encodedKeyList, String name) throws InvalidKeyException {
         if (encodedKeyList.size() != 3) {
             throw new InvalidKeyException(String.format("Error: %s should have three lines: HEADER, KEY, FOOTER",
-                                                        path.getFileName()));
+                                                        name));
         }
 
         if ((encodedKeyList.get(0).equals(PUB_KEY_HEADER)) && (encodedKeyList.get(2).equals(PUB_KEY_FOOTER))) {
             return Base64.getUrlDecoder().decode(encodedKeyList.get(1));
         } else {
-            throw new InvalidKeyException(String.format("Error: %s has invalid public key header or footer",
-                                                        path.getFileName()));
+            throw new InvalidKeyException(String.format("Error: %s has invalid public key header or footer", name));
+        }
+    }
+
+    private static List<String> readLines(byte[] bytes) throws IOException {
+        try (var reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(bytes),
+                                                                   StandardCharsets.UTF_8))) {
+            return reader.lines().collect(Collectors.toList());
         }
     }
 
@@ -0,0 +1,106 @@
+package net.discdd.bundlesecurity;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, thread-safe LRU cache of AES keys derived with PBKDF2WithHmacSHA256.
+ *
+ * <p>Bundle IDs are encrypted with a key derived from the Diffie-Hellman shared secret between a client and the
+ * server. The shared secret only changes when a client re-keys, so deriving it again (65,536 PBKDF2 iterations) for
+ * every window slot and every received bundle is wasted work. Entries are keyed by a SHA-256 hash of the secret and
+ * salt so the cache never holds the secrets themselves.
+ */
+public class DerivedKeyCache {
+    public static final int DEFAULT_MAX_ENTRIES = 1024;
+
+    private final int iterations;
+    private final int keyLength;
+    private final Map<String, SecretKeySpec> cache;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public DerivedKeyCache(int maxEntries, int iterations, int keyLength) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+        }
+        this.iterations = iterations;
+        this.keyLength = keyLength;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SecretKeySpec> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the AES key derived from sharedSecret and salt, running PBKDF2 only if it is not already cached.
+     * The derivation runs outside the lock, so a slow miss does not block lookups for other clients.
+     */
+    public SecretKeySpec getKey(String sharedSecret, byte[] salt) throws GeneralSecurityException {
+        String cacheKey = cacheKey(sharedSecret, salt);
+        synchronized (cache) {
+            SecretKeySpec key = cache.get(cacheKey);
+            if (key != null) {
+                hits.incrementAndGet();
+                return key;
+            }
+        }
+        misses.incrementAndGet();
+        SecretKeySpec key = derive(sharedSecret, salt);
+        synchronized (cache) {
+            cache.putIfAbsent(cacheKey, key);
+        }
+        return key;
+    }
+
+    private SecretKeySpec derive(String sharedSecret, byte[] salt) throws GeneralSecurityException {
+        SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+        PBEKeySpec spec = new PBEKeySpec(sharedSecret.toCharArray(), salt, iterations, keyLength);
+        try {
+            return new SecretKeySpec(factory.generateSecret(spec).getEncoded(), "AES");
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    private static String cacheKey(String sharedSecret, byte[] salt) throws GeneralSecurityException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        byte[] secretBytes = sharedSecret.getBytes(StandardCharsets.UTF_8);
+        // length prefix so that (secret, salt) boundaries cannot be shifted to collide
+        digest.update(new byte[] { (byte) (secretBytes.length >>> 24), (byte) (secretBytes.length >>> 16),
+                (byte) (secretBytes.length >>> 8), (byte) secretBytes.length });
+        digest.update(secretBytes);
+        digest.update(salt);
+        return Base64.getEncoder().encodeToString(digest.digest());
+    }
+
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+}
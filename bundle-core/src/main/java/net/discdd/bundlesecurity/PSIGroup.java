@@ -0,0 +1,110 @@
+package net.discdd.bundlesecurity;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A group that the bundle ownership PSI can run in. The protocol only needs a hash into the group and blinding
+ * (exponentiation by a secret) that commutes, so it is implemented here once on top of those. Elements and secrets
+ * are passed around in the encoding they have on the wire (PSIElement.value).
+ *
+ * <p>The version is sent in PSIRequest/PSIResponse so that clients and transports can agree on a group. Version 0,
+ * what a peer that doesn't know about versions sends, is the original MODP group.
+ */
+public interface PSIGroup {
+    int MODP_3072_VERSION = 0;
+    int CURVE25519_VERSION = 1;
+    /* the version clients ask for first */
+    int PREFERRED_VERSION = CURVE25519_VERSION;
+
+    /**
+     * @return the group for a PSI version, or null if the version is not supported
+     */
+    static PSIGroup forVersion(int version) {
+        return switch (version) {
+            case MODP_3072_VERSION -> new BundleOwnershipPSI();
+            case CURVE25519_VERSION -> new Curve25519PSI();
+            default -> null;
+        };
+    }
+
+    int version();
+
+    byte[] newSecret();
+
+    /**
+     * H(bundleId)^secret
+     */
+    byte[] hashAndBlind(String bundleId, byte[] secret);
+
+    /**
+     * element^secret. Throws IllegalArgumentException if element is not a valid element of the group.
+     */
+    byte[] blind(byte[] element, byte[] secret);
+
+    /**
+     * The encoding that equal elements are compared in, for groups that allow more than one encoding of an element.
+     */
+    default byte[] canonical(byte[] element) {
+        return element;
+    }
+
+    /**
+     * Client step 1: for each bundle ID, compute H(bundleID)^a.
+     */
+    default List<byte[]> clientBlindBundleIds(List<String> bundleIds, byte[] clientSecret) {
+        List<byte[]> blinded = new ArrayList<>(bundleIds.size());
+        for (String id : bundleIds) {
+            blinded.add(hashAndBlind(id, clientSecret));
+        }
+        return blinded;
+    }
+
+    /**
+     * Transport step: blind the client values and the transport's own bundle file names with the transport secret b.
+     */
+    default TransportResult transportProcess(List<byte[]> clientBlindedValues,
+                                             List<String> bundleFileNames,
+                                             byte[] transportSecret) {
+        List<byte[]> doublyBlindedClient = new ArrayList<>(clientBlindedValues.size());
+        for (byte[] val : clientBlindedValues) {
+            doublyBlindedClient.add(blind(val, transportSecret));
+        }
+        List<byte[]> transportBlinded = new ArrayList<>(bundleFileNames.size());
+        for (String fileName : bundleFileNames) {
+            transportBlinded.add(hashAndBlind(fileName, transportSecret));
+        }
+        return new TransportResult(doublyBlindedClient, transportBlinded);
+    }
+
+    /**
+     * Client step 2: blind the transport values with a and match them against H(bundleID)^(ab).
+     *
+     * @return list of matches as (transportIndex, clientIndex) pairs
+     */
+    default List<BundleOwnershipPSI.PSIMatch> clientFindMatches(List<byte[]> doublyBlindedClientValues,
+                                                                List<byte[]> transportBlindedValues,
+                                                                byte[] clientSecret) {
+        Map<ByteBuffer, List<Integer>> transportIndex = new HashMap<>();
+        for (int i = 0; i < transportBlindedValues.size(); i++) {
+            var val = ByteBuffer.wrap(canonical(blind(transportBlindedValues.get(i), clientSecret)));
+            transportIndex.computeIfAbsent(val, k -> new ArrayList<>()).add(i);
+        }
+
+        List<BundleOwnershipPSI.PSIMatch> matches = new ArrayList<>();
+        for (int j = 0; j < doublyBlindedClientValues.size(); j++) {
+            var hits = transportIndex.get(ByteBuffer.wrap(canonical(doublyBlindedClientValues.get(j))));
+            if (hits != null) {
+                for (int i : hits) {
+                    matches.add(new BundleOwnershipPSI.PSIMatch(i, j));
+                }
+            }
+        }
+        return matches;
+    }
+
+    record TransportResult(List<byte[]> doublyBlindedClientValues, List<byte[]> transportBlindedValues) {}
+}
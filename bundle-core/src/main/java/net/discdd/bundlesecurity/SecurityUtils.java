@@ -9,6 +9,7 @@ import org.whispersystems.libsignal.ecc.Curve;
 import org.whispersystems.libsignal.ecc.ECKeyPair;
 import org.whispersystems.libsignal.ecc.ECPrivateKey;
 import org.whispersystems.libsignal.ecc.ECPublicKey;
+import org.whispersystems.libsignal.state.SignalProtocolStore;
 import org.whispersystems.libsignal.state.impl.InMemorySignalProtocolStore;
 import org.whispersystems.libsignal.util.KeyHelper;
 
@@ -16,10 +17,7 @@ import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
-import javax.crypto.SecretKey;
-import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.File;
 import java.io.FileInputStream;
@@ -32,7 +30,6 @@ import java.security.InvalidAlgorithmParameterException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
-import java.security.spec.KeySpec;
 import java.util.Base64;
 import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
@@ -63,6 +60,7 @@ public class SecurityUtils {
     // ----------------- ClientSecurity -----------------
     public static final String CLIENT = "client";
     public static final String SESSION_STORE_FILE = "Session.store";
+    public static final String SESSION_JOURNAL_FILE = "Session.journal";
     public static final String CLIENT_KEY_PATH = "Client_Keys";
     public static final String CLIENT_IDENTITY_KEY = "clientIdentity.pub";
     public static final String CLIENT_IDENTITY_PRIVATE_KEY = "clientIdentity.pvt";
@@ -92,6 +90,8 @@ public class SecurityUtils {
     public static final int ITERATIONS = 65536;
     public static final int KEYLEN = 256;
     private static final Logger logger = Logger.getLogger(SecurityUtils.class.getName());
+    private static final DerivedKeyCache derivedKeyCache =
+            new DerivedKeyCache(DerivedKeyCache.DEFAULT_MAX_ENTRIES, ITERATIONS, KEYLEN);
 
     /* Creates an ID based on the given public key file
      * Generates a SHA-1 hash and then encodes it in Base64 (URL safe)
@@ -159,14 +159,7 @@ public class SecurityUtils {
         byte[] iv = new byte[16];
         byte[] encryptedData = null;
 
-        /* Create SecretKeyFactory object */
-        SecretKeyFactory factory;
-        factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
-
-        /* Create KeySpec object */
-        KeySpec spec = new PBEKeySpec(sharedSecret.toCharArray(), sharedSecret.getBytes(), ITERATIONS, KEYLEN);
-        SecretKey skey = factory.generateSecret(spec);
-        SecretKeySpec secretKeySpec = new SecretKeySpec(skey.getEncoded(), "AES");
+        SecretKeySpec secretKeySpec = getAesKey(sharedSecret);
 
         Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
         cipher.init(Cipher.ENCRYPT_MODE, secretKeySpec, new IvParameterSpec(iv));
@@ -180,12 +173,7 @@ public class SecurityUtils {
         byte[] iv = new byte[16];
         byte[] encryptedData = Base64.getUrlDecoder().decode(cipherText);
 
-        /* Create SecretKeyFactory object */
-        SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
-        /* Create KeySpec object */
-        KeySpec spec = new PBEKeySpec(sharedSecret.toCharArray(), sharedSecret.getBytes(), ITERATIONS, KEYLEN);
-        SecretKey skey = factory.generateSecret(spec);
-        SecretKeySpec secretKeySpec = new SecretKeySpec(skey.getEncoded(), "AES");
+        SecretKeySpec secretKeySpec = getAesKey(sharedSecret);
 
         Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
         cipher.init(Cipher.DECRYPT_MODE, secretKeySpec, new IvParameterSpec(iv));
@@ -193,6 +181,24 @@ public class SecurityUtils {
         return cipher.doFinal(encryptedData);
     }
 
+    /* Derives (or fetches from the cache) the AES key for a shared secret.
+     * The secret doubles as the PBKDF2 salt, as it always has.
+     */
+    private static SecretKeySpec getAesKey(String sharedSecret) throws NoSuchAlgorithmException,
+            InvalidKeySpecException {
+        try {
+            return derivedKeyCache.getKey(sharedSecret, sharedSecret.getBytes());
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+            throw e;
+        } catch (GeneralSecurityException e) {
+            throw new InvalidKeySpecException(e);
+        }
+    }
+
+    public static DerivedKeyCache getDerivedKeyCache() {
+        return derivedKeyCache;
+    }
+
     public static String unzip(String zipFilePath) throws IOException {
         File zipFile = new File(zipFilePath);
         String destDirPath = zipFile.getParent() + File.separator + zipFile.getName().replaceFirst("[.][^.]+$", "");
@@ -237,6 +243,8 @@ public class SecurityUtils {
         public IdentityKey IdentityKey;
         public ECPublicKey BaseKey;
         public SessionCipher cipherSession;
+        // each session has its own store so that a session can be dropped from memory on its own
+        public SignalProtocolStore protocolStore;
 
         public String getClientID() {
             return this.clientProtocolAddress.getName();
@@ -2,6 +2,7 @@ package net.discdd.bundlesecurity;
 
 import lombok.NonNull;
 import net.discdd.bundlesecurity.SecurityUtils.ClientSession;
+import net.discdd.model.ReceivedBundle;
 import org.whispersystems.libsignal.DuplicateMessageException;
 import org.whispersystems.libsignal.IdentityKey;
 import org.whispersystems.libsignal.IdentityKeyPair;
@@ -19,7 +20,8 @@ import org.whispersystems.libsignal.ratchet.BobSignalProtocolParameters;
 import org.whispersystems.libsignal.ratchet.RatchetingSession;
 import org.whispersystems.libsignal.state.SessionRecord;
 import org.whispersystems.libsignal.state.SessionState;
-import org.whispersystems.libsignal.state.SignalProtocolStore;
+import org.whispersystems.libsignal.state.impl.InMemorySignalProtocolStore;
+import org.whispersystems.libsignal.util.KeyHelper;
 import org.whispersystems.libsignal.util.guava.Optional;
 
 import java.io.IOException;
@@ -29,11 +31,9 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
-import java.nio.file.StandardOpenOption;
 import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
 import java.util.Base64;
-import java.util.HashMap;
 import java.util.logging.Logger;
 
 import static java.util.logging.Level.FINE;
@@ -47,14 +47,14 @@ public class ServerSecurity {
     private static final int ServerDeviceID = 0;
     private static final Logger logger = Logger.getLogger(ServerSecurity.class.getName());
     private static ServerSecurity singleServerInstance = null;
-    private final HashMap<String, ClientSession> clientMap = new HashMap<>();
+    private final ClientSessionCache sessionCache;
     private SignalProtocolAddress ourAddress;
     private IdentityKeyPair ourIdentityKeyPair;
     private ECKeyPair ourSignedPreKey;
     private ECKeyPair ourRatchetKey;
     private Path serverRootPath;
     private Path clientRootPath;
-    private SignalProtocolStore serverProtocolStore;
+    private int registrationId;
 
     /* Initializes Security Module on the server
      * Parameters:
@@ -63,12 +63,18 @@ public class ServerSecurity {
      *      IOException:    Thrown if keys cannot be written to provided path
      */
     public ServerSecurity(Path serverRootPath) {
+        this(serverRootPath, ClientSessionCache.DEFAULT_MAX_ENTRIES);
+    }
+
+    /* maxCachedSessions: how many client sessions to keep in memory, the rest are loaded from Clients when needed */
+    public ServerSecurity(Path serverRootPath, int maxCachedSessions) {
+        sessionCache = new ClientSessionCache(maxCachedSessions);
         var serverKeyPath = serverRootPath.resolve(SecurityUtils.SERVER_KEY_PATH);
 
         try {
             loadKeysfromFiles(serverKeyPath);
             this.serverRootPath = serverRootPath;
-            serverProtocolStore = SecurityUtils.createInMemorySignalProtocolStore();
+            registrationId = KeyHelper.generateRegistrationId(false);
 
             String name = DEFAULT_SERVER_NAME;
             name = SecurityUtils.generateID(ourIdentityKeyPair.getPublicKey().serialize());
@@ -137,12 +143,9 @@ public class ServerSecurity {
     private void updateSessionRecord(ClientSession clientSession) {
         String clientID = clientSession.getClientID();
         var sessionStorePath = clientRootPath.resolve(clientID).resolve(SecurityUtils.SESSION_STORE_FILE);
-        var clientSessionRecord = serverProtocolStore.loadSession(clientSession.clientProtocolAddress);
+        var clientSessionRecord = clientSession.protocolStore.loadSession(clientSession.clientProtocolAddress);
         try {
-            Files.write(sessionStorePath,
-                        clientSessionRecord.serialize(),
-                        StandardOpenOption.CREATE,
-                        StandardOpenOption.TRUNCATE_EXISTING);
+            SessionJournal.forStore(sessionStorePath).append(clientSessionRecord.serialize());
         } catch (IOException e) {
             logger.log(SEVERE, "Couldn't update session record for " + clientID + " PROBLEMS AHEAD!!!", e);
         }
@@ -181,46 +184,69 @@ public class ServerSecurity {
     @NonNull
     private ClientSession getClientSession(String clientID, Path keyPathIfNeeded) throws InvalidKeyException,
             IOException {
-        var clientSession = clientMap.get(clientID);
-        if (clientSession != null) {
-            return clientSession;
-        }
+        return getClientSession(clientID, keyPathIfNeeded == null ? null : clientKeyPath -> {
+            Files.copy(keyPathIfNeeded.resolve(CLIENT_IDENTITY_KEY),
+                       clientKeyPath.resolve(CLIENT_IDENTITY_KEY),
+                       StandardCopyOption.REPLACE_EXISTING);
+            Files.copy(keyPathIfNeeded.resolve(CLIENT_BASE_KEY),
+                       clientKeyPath.resolve(CLIENT_BASE_KEY),
+                       StandardCopyOption.REPLACE_EXISTING);
+        });
+    }
+
+    /**
+     * Get the session of a client from the cache, loading it from its directory under Clients if needed. The caller
+     * must hold the client's lock from the session cache for as long as it uses the session.
+     */
+    @NonNull
+    private ClientSession getClientSession(String clientID, ClientKeyInstaller keysIfNeeded) throws
+            InvalidKeyException, IOException {
+        return sessionCache.get(clientID, id -> loadClientSession(id, keysIfNeeded));
+    }
+
+    private ClientSession loadClientSession(String clientID, ClientKeyInstaller keysIfNeeded) throws
+            InvalidKeyException, IOException {
         var keyPath = clientRootPath.resolve(clientID);
         SessionRecord clientSessionRecord = null;
+        boolean newSession = false;
 
         // Try to read an existing session store
-        clientSession = new ClientSession();
+        var clientSession = new ClientSession();
         clientSession.clientProtocolAddress = new SignalProtocolAddress(clientID, clientID.hashCode());
+        clientSession.protocolStore = new InMemorySignalProtocolStore(ourIdentityKeyPair, registrationId);
         var sessionStorePath = keyPath.resolve(SecurityUtils.SESSION_STORE_FILE);
-        if (sessionStorePath.toFile().exists()) {
-            byte[] sessionStoreBytes = Files.readAllBytes(sessionStorePath);
+        byte[] sessionStoreBytes = SessionJournal.forStore(sessionStorePath).load();
+        if (sessionStoreBytes != null) {
             clientSessionRecord = new SessionRecord(sessionStoreBytes);
+            initializeClientKeysFromFiles(keyPath, clientSession);
         } else {
             // create one from the keys if we have them
-            if (keyPathIfNeeded == null) {
+            if (keysIfNeeded == null) {
                 throw new InvalidKeyException("Keys for " + clientID + " not found and none provided");
             }
             keyPath.toFile().mkdirs();
-            Files.copy(keyPathIfNeeded.resolve(CLIENT_IDENTITY_KEY),
-                       keyPath.resolve(CLIENT_IDENTITY_KEY),
-                       StandardCopyOption.REPLACE_EXISTING);
-            Files.copy(keyPathIfNeeded.resolve(CLIENT_BASE_KEY),
-                       keyPath.resolve(CLIENT_BASE_KEY),
-                       StandardCopyOption.REPLACE_EXISTING);
+            keysIfNeeded.installKeys(keyPath);
             clientSessionRecord = new SessionRecord();
             initializeClientKeysFromFiles(keyPath, clientSession);
             initializeRatchet(clientSessionRecord.getSessionState(), clientSession);
-            updateSessionRecord(clientSession);
+            newSession = true;
         }
-        initializeClientKeysFromFiles(keyPath, clientSession);
 
-        serverProtocolStore.storeSession(clientSession.clientProtocolAddress, clientSessionRecord);
-        clientSession.cipherSession = new SessionCipher(serverProtocolStore, clientSession.clientProtocolAddress);
-        clientMap.put(clientID, clientSession);
+        clientSession.protocolStore.storeSession(clientSession.clientProtocolAddress, clientSessionRecord);
+        clientSession.cipherSession =
+                new SessionCipher(clientSession.protocolStore, clientSession.clientProtocolAddress);
+        if (newSession) {
+            updateSessionRecord(clientSession);
+        }
 
         return clientSession;
     }
 
+    /* Writes a new client's key files into its directory under Clients */
+    private interface ClientKeyInstaller {
+        void installKeys(Path clientKeyPath) throws IOException;
+    }
+
     private String getsharedSecret(ClientSession client) throws InvalidKeyException {
         byte[] agreement =
                 Curve.calculateAgreement(client.IdentityKey.getPublicKey(), ourIdentityKeyPair.getPrivateKey());
@@ -236,7 +262,10 @@ public class ServerSecurity {
 
     private String getsharedSecret(String clientID) throws InvalidKeyException, InvalidClientIDException, IOException {
         /* get Client Session */
-        ClientSession client = getClientSession(clientID, null);
+        ClientSession client;
+        try (var ignored = sessionCache.lock(clientID)) {
+            client = getClientSession(clientID, null);
+        }
         if (client == null) {
             throw new InvalidClientIDException("Failed to get client [" + clientID + "]", null);
         }
@@ -261,12 +290,14 @@ public class ServerSecurity {
         String payloadName = SecurityUtils.PAYLOAD_FILENAME;
 
         var clientId = SecurityUtils.getClientID(bundlePath);
-        SecurityUtils.ClientSession client = getClientSession(clientId, bundlePath);
+        try (var ignored = sessionCache.lock(clientId)) {
+            SecurityUtils.ClientSession client = getClientSession(clientId, bundlePath);
 
-        if (client.cipherSession.decrypt(payloadPath.resolve(payloadName), decryptedFile)) {
-            updateSessionRecord(client);
-        } else {
-            throw new GeneralSecurityException("Could not decrypt the file");
+            if (client.cipherSession.decrypt(payloadPath.resolve(payloadName), decryptedFile)) {
+                updateSessionRecord(client);
+            } else {
+                throw new GeneralSecurityException("Could not decrypt the file");
+            }
         }
 
         logger.log(FINE, "[ServerSecurity]:Decrypted Size = %d", Files.size(decryptedFile));
@@ -274,11 +305,39 @@ public class ServerSecurity {
         return decryptedFile;
     }
 
+    /**
+     * Decrypts the payload of a bundle that was read with BundleUtils.readReceivedBundle. If this is the first
+     * bundle from the client, its session is initialized from the keys in the bundle header.
+     */
+    public void decrypt(String clientId, ReceivedBundle bundle, Path decryptedFile) throws IOException,
+            GeneralSecurityException, InvalidKeyException, InvalidMessageException, LegacyMessageException,
+            NoSessionException, DuplicateMessageException {
+        try (var ignored = sessionCache.lock(clientId)) {
+            ClientSession client = getClientSession(clientId, clientKeyPath -> {
+                Files.write(clientKeyPath.resolve(CLIENT_IDENTITY_KEY), bundle.encryptedClientIdentityKey());
+                Files.write(clientKeyPath.resolve(CLIENT_BASE_KEY), bundle.clientBaseKey());
+            });
+
+            if (client.cipherSession.decrypt(bundle.encryptedPayload(), decryptedFile)) {
+                updateSessionRecord(client);
+            } else {
+                throw new GeneralSecurityException("Could not decrypt the file");
+            }
+        }
+
+        logger.log(FINE, "[ServerSecurity]:Decrypted Size = " + Files.size(decryptedFile));
+    }
+
     public void encrypt(String clientID, InputStream plaintext, OutputStream outputStream) throws IOException,
             NoSuchAlgorithmException, InvalidKeyException {
-        ClientSession client = getClientSession(clientID, null);
-        client.cipherSession.encrypt(plaintext, outputStream);
-        updateSessionRecord(client);
+        // the session ratchets as the payload streams through the cipher, so the client's lock is held until the
+        // record is stored. Only operations on this client wait for it, and bundles for a client are generated one
+        // at a time, so the writer of plaintext never waits behind another encrypt holding this lock
+        try (var ignored = sessionCache.lock(clientID)) {
+            ClientSession client = getClientSession(clientID, null);
+            client.cipherSession.encrypt(plaintext, outputStream);
+            updateSessionRecord(client);
+        }
     }
 
     public String encryptBundleID(String bundleID, String clientID) throws GeneralSecurityException,
@@ -337,21 +396,30 @@ public class ServerSecurity {
             GeneralSecurityException {
         var bundleIDPath = bundlePath.resolve(SecurityUtils.BUNDLEID_FILENAME);
         byte[] encryptedBundleID = Files.readAllBytes(bundleIDPath);
-        String receivedBundleID, latestBundleID;
 
         ServerSecurity serverSecurityInstance = ServerSecurity.getInstance(bundlePath.getParent());
         ECPrivateKey ServerPrivKey = serverSecurityInstance.getSigningKey();
         var clientIdentityKeyBase64 =
                 DDDPEMEncoder.decodeEncryptedPublicKeyfromFile(ServerPrivKey, bundlePath.resolve(CLIENT_IDENTITY_KEY));
+        return getCounterFromBundleId(new String(encryptedBundleID, StandardCharsets.UTF_8),
+                                      clientIdentityKeyBase64,
+                                      direction);
+    }
+
+    /**
+     * Decrypts a bundle ID using the client identity key that came with the bundle, rather than the stored session,
+     * so it works before the client's session has been set up.
+     */
+    public long getCounterFromBundleId(String encryptedBundleID, String clientIdentityKeyBase64, boolean direction)
+            throws InvalidKeyException, GeneralSecurityException {
         byte[] clientIdentityKeyBytes = Base64.getUrlDecoder().decode(clientIdentityKeyBase64);
         IdentityKey clientIdentityKey = new IdentityKey(clientIdentityKeyBytes, 0);
 
         String sharedSecret = getsharedSecret(clientIdentityKey.getPublicKey());
 
-        byte[] bundleIDbytes =
-                SecurityUtils.decryptAesCbcPkcs5(sharedSecret, new String(encryptedBundleID, StandardCharsets.UTF_8));
+        byte[] bundleIDbytes = SecurityUtils.decryptAesCbcPkcs5(sharedSecret, encryptedBundleID);
 
-        receivedBundleID = new String(bundleIDbytes, StandardCharsets.UTF_8);
+        String receivedBundleID = new String(bundleIDbytes, StandardCharsets.UTF_8);
         return BundleIDGenerator.getCounterFromBundleID(receivedBundleID, direction);
     }
 
@@ -364,11 +432,22 @@ public class ServerSecurity {
     }
 
     public ECPublicKey getClientIdentityPublicKey(String clientId) throws IOException, InvalidKeyException {
-        return getClientSession(clientId, null).IdentityKey.getPublicKey();
+        try (var ignored = sessionCache.lock(clientId)) {
+            return getClientSession(clientId, null).IdentityKey.getPublicKey();
+        }
     }
 
     public ECPublicKey getClientBaseKey(String clientId) throws IOException, InvalidKeyException {
-        return getClientSession(clientId, null).BaseKey;
+        try (var ignored = sessionCache.lock(clientId)) {
+            return getClientSession(clientId, null).BaseKey;
+        }
+    }
+
+    /**
+     * The cache of client sessions, for its hit, miss and eviction counts.
+     */
+    public ClientSessionCache getSessionCache() {
+        return sessionCache;
     }
 
     public ECPrivateKey getSigningKey() {
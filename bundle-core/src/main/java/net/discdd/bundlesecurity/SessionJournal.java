@@ -0,0 +1,280 @@
+package net.discdd.bundlesecurity;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import static java.util.logging.Level.INFO;
+import static java.util.logging.Level.SEVERE;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * Group-committed journal of the serialized Signal session record of one client, kept next to its Session.store.
+ *
+ * <p>Every encrypt and decrypt ratchets the session. Instead of rewriting Session.store each time, the new record is
+ * appended to Session.journal and {@link #append(byte[])} waits until a single committer thread has fsynced it. The
+ * committer fsyncs every journal appended to since its last round in one go, and records appended while a round is
+ * running go into the next one, so appends from many clients share rounds instead of each doing its own fsync and
+ * rename of Session.store. libsignal has no notion of a ratchet delta, so each journal record is a full
+ * SessionRecord.
+ *
+ * <p>Record layout: payload length (4 bytes), payload, CRC32 of everything before it (4 bytes). On load the last
+ * record with a good CRC wins; a record that was only partly written when the process died, and anything after it,
+ * is truncated. Once the journal grows past the compaction size the committer writes the latest record to
+ * Session.store (temp file, fsync, atomic rename) and empties the journal. A journal without records falls back to
+ * Session.store, which is also how stores written before the journal existed are picked up.
+ *
+ * <p>There is one instance per store file, obtained with {@link #forStore(Path)}. Callers must not append to the same
+ * journal concurrently; the server already serializes all session use per client.
+ */
+public class SessionJournal {
+    private static final Logger logger = Logger.getLogger(SessionJournal.class.getName());
+    static final long COMMIT_RETRY_MS = 100;
+    static final long DEFAULT_COMPACT_SIZE = 256 * 1024;
+    private static final int LENGTH_SIZE = 4;
+    private static final int CRC_SIZE = 4;
+
+    private static final Map<Path, SessionJournal> journals = new ConcurrentHashMap<>();
+    private static final Set<SessionJournal> dirty = ConcurrentHashMap.newKeySet();
+    /* notified when a journal is added to dirty */
+    private static final Object commitSignal = new Object();
+    private static Thread committer;
+
+    private final Path storeFile;
+    private final Path journalFile;
+    private final long compactSize;
+    private FileChannel channel;
+    private boolean recovered;
+    private long size;
+    /* the last appended record, kept until it is committed so that it can be compacted into the store */
+    private byte[] latest;
+    /* sequence numbers of the records appended, fsynced, and appended before the last failed commit */
+    private long appended;
+    private long committed;
+    private long failedThrough;
+    private IOException commitFailure;
+
+    SessionJournal(Path storeFile, long compactSize) {
+        this.storeFile = storeFile;
+        this.journalFile = storeFile.resolveSibling(SecurityUtils.SESSION_JOURNAL_FILE);
+        this.compactSize = compactSize;
+    }
+
+    /**
+     * @return the journal of the session stored in storeFile
+     */
+    public static SessionJournal forStore(Path storeFile) {
+        return journals.computeIfAbsent(storeFile.toAbsolutePath().normalize(),
+                                        path -> new SessionJournal(path, DEFAULT_COMPACT_SIZE));
+    }
+
+    /**
+     * Commits every journal with uncommitted records now rather than waiting for the committer.
+     *
+     * @return false if a journal couldn't be committed
+     */
+    public static boolean commitAll() {
+        boolean committedAll = true;
+        for (var journal : dirty) {
+            dirty.remove(journal);
+            try {
+                journal.commit();
+            } catch (IOException e) {
+                logger.log(SEVERE, "Couldn't commit " + journal.journalFile, e);
+                journal.commitFailed(e);
+                // try again on the next round
+                dirty.add(journal);
+                committedAll = false;
+            }
+        }
+        return committedAll;
+    }
+
+    /**
+     * @return the latest session record, or null if neither the journal nor the store has one
+     */
+    public synchronized byte[] load() throws IOException {
+        Files.deleteIfExists(tempStoreFile());
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(journalFile);
+        } catch (NoSuchFileException e) {
+            bytes = new byte[0];
+        }
+        var buffer = ByteBuffer.wrap(bytes);
+        byte[] record = null;
+        int validLength = 0;
+        while (buffer.remaining() >= LENGTH_SIZE) {
+            int recordStart = buffer.position();
+            int length = buffer.getInt();
+            if (length < 0 || buffer.remaining() < (long) length + CRC_SIZE) break;
+            var crc = new CRC32();
+            crc.update(bytes, recordStart, LENGTH_SIZE + length);
+            var payload = new byte[length];
+            buffer.get(payload);
+            if ((int) crc.getValue() != buffer.getInt()) break;
+            record = payload;
+            validLength = buffer.position();
+        }
+        if (validLength < bytes.length) {
+            logger.log(WARNING,
+                       "Truncating " + (bytes.length - validLength) + " bytes of incomplete records from " +
+                               journalFile);
+            // anything appended by this instance is fsynced before the channel goes away
+            commit();
+            try (var truncate = FileChannel.open(journalFile, StandardOpenOption.WRITE)) {
+                truncate.truncate(validLength);
+                truncate.force(false);
+            }
+        }
+        size = validLength;
+        recovered = true;
+        if (record != null) return record;
+        try {
+            return Files.readAllBytes(storeFile);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Appends a serialized session record and returns once the committer has fsynced it.
+     *
+     * @throws IOException if the record couldn't be written or fsynced. The committer keeps trying to fsync it.
+     */
+    public synchronized void append(byte[] record) throws IOException {
+        if (!recovered) {
+            // never append after a torn record, it would hide everything appended later
+            load();
+        }
+        if (channel == null) {
+            channel = FileChannel.open(journalFile,
+                                       StandardOpenOption.CREATE,
+                                       StandardOpenOption.WRITE,
+                                       StandardOpenOption.APPEND);
+        }
+        var frame = ByteBuffer.allocate(LENGTH_SIZE + record.length + CRC_SIZE);
+        frame.putInt(record.length).put(record);
+        var crc = new CRC32();
+        crc.update(frame.array(), 0, frame.position());
+        frame.putInt((int) crc.getValue());
+        frame.flip();
+        while (frame.hasRemaining()) {
+            channel.write(frame);
+        }
+        size += frame.limit();
+        latest = record;
+        long seq = ++appended;
+        dirty.add(this);
+        startCommitter();
+        synchronized (commitSignal) {
+            commitSignal.notify();
+        }
+        // wait() releases this journal, so the committer can commit it
+        while (committed < seq) {
+            if (failedThrough >= seq) {
+                throw new IOException("Couldn't commit " + journalFile, commitFailure);
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for " + journalFile + " to be committed");
+            }
+        }
+    }
+
+    /* true if a record has been appended that has not been fsynced yet */
+    synchronized boolean hasUncommitted() {
+        return committed < appended;
+    }
+
+    /**
+     * Fsyncs what has been appended, and compacts the journal into the store if it has grown too big.
+     */
+    synchronized void commit() throws IOException {
+        // the channel is only closed once what was written through it is fsynced
+        if (channel != null) {
+            channel.force(false);
+            if (size > compactSize) {
+                compact();
+            }
+            closeChannel();
+        }
+        committed = appended;
+        notifyAll();
+    }
+
+    private synchronized void commitFailed(IOException e) {
+        failedThrough = appended;
+        commitFailure = e;
+        notifyAll();
+    }
+
+    private void compact() throws IOException {
+        var tmp = tempStoreFile();
+        try (var out = FileChannel.open(tmp,
+                                        StandardOpenOption.CREATE,
+                                        StandardOpenOption.WRITE,
+                                        StandardOpenOption.TRUNCATE_EXISTING)) {
+            var buffer = ByteBuffer.wrap(latest);
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            out.force(false);
+        }
+        Files.move(tmp, storeFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // the store now has the latest record, so a crash before this truncation just replays the same record
+        channel.truncate(0);
+        channel.force(false);
+        logger.log(INFO, "Compacted " + size + " bytes of " + journalFile + " into " + storeFile);
+        size = 0;
+    }
+
+    private void closeChannel() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+        latest = null;
+    }
+
+    private Path tempStoreFile() {
+        return storeFile.resolveSibling(storeFile.getFileName() + ".tmp");
+    }
+
+    private static synchronized void startCommitter() {
+        if (committer != null) return;
+        committer = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    synchronized (commitSignal) {
+                        while (dirty.isEmpty()) {
+                            commitSignal.wait();
+                        }
+                    }
+                    if (!commitAll()) {
+                        // don't spin on a disk that keeps failing
+                        Thread.sleep(COMMIT_RETRY_MS);
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }, "session-journal-commit");
+        committer.setDaemon(true);
+        committer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(SessionJournal::commitAll, "session-journal-shutdown"));
+    }
+}
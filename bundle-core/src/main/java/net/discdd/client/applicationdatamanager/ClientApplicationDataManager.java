@@ -5,6 +5,7 @@ import com.google.gson.GsonBuilder;
 import com.google.gson.reflect.TypeToken;
 import net.discdd.model.ADU;
 import net.discdd.pathutils.ClientPaths;
+import net.discdd.utils.ReceivedPayload;
 import net.discdd.utils.StoreADUs;
 import net.discdd.utils.StreamExt;
 
@@ -102,13 +103,37 @@ public class ClientApplicationDataManager {
         aduConsumer.accept(null);
     }
 
+    /* Stores the ADUs of a received payload directly from the payload jar */
+    public void storeReceivedADUs(ReceivedPayload payload) throws IOException {
+        int count = payload.forEachAdu((appId, aduId, data) -> {
+            try {
+                var aduFile = receiveADUsStorage.addADU(null, appId, data, aduId);
+                // if aduFile == null, the ADU was not added
+                if (aduFile != null) {
+                    aduConsumer.accept(new ADU(aduFile, appId, aduId, data.length));
+                }
+                logger.log(FINE, "[ADM] Updated Largest ADU id: " + aduId + "," + aduFile);
+            } catch (IOException e) {
+                logger.log(WARNING, "Could not persist adu: " + aduId, e);
+            }
+        });
+        logger.log(INFO, "[ADM] Stored ADUs in the Data Store, Size:" + count);
+        // this indicates that the batch of ADUs has been finished
+        aduConsumer.accept(null);
+    }
+
     public List<ADU> fetchADUsToSend(long initialSize, String clientId) throws IOException {
         List<ADU> adusToSend = new ArrayList<>();
         final long dataSizeLimit = ClientPaths.APP_DATA_SIZE_LIMIT;
         var sizeLimiter = new SizeLimiter(dataSizeLimit - initialSize);
         for (String appId : this.getRegisteredAppIds()) {
+            long generation = sendADUsStorage.getGeneration(clientId, appId);
             StreamExt.takeWhile(sendADUsStorage.getADUs(clientId, appId), a -> sizeLimiter.test(a.getSize()))
                     .forEach(adusToSend::add);
+            // an app whose ADUs didn't all fit still has something new for the next bundle
+            if (sizeLimiter.remaining >= 0) {
+                sendADUsStorage.markClean(clientId, appId, generation);
+            }
         }
         return adusToSend;
     }
@@ -144,8 +169,8 @@ public class ClientApplicationDataManager {
         }
     }
 
-    public boolean hasNewADUs(String clientId, long lastBundleSentTimestamp) {
-        return sendADUsStorage.hasNewADUs(clientId, lastBundleSentTimestamp);
+    public boolean hasNewADUs(String clientId) {
+        return sendADUsStorage.hasNewADUs(clientId);
     }
 
     static class SizeLimiter implements Predicate<Long> {
@@ -8,18 +8,21 @@ import net.discdd.utils.Constants;
 import org.whispersystems.libsignal.InvalidKeyException;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Locale;
+import java.util.Map;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 
 import static java.util.logging.Level.FINE;
 import static java.util.logging.Level.INFO;
-import static java.util.logging.Level.SEVERE;
 import static java.util.logging.Level.WARNING;
 
 public class ClientWindow {
@@ -31,9 +34,20 @@ public class ClientWindow {
     record UnencryptedBundleId(String bundleId, long bundleCounter) {}
 
     private final LinkedList<UnencryptedBundleId> windowOfUnencryptedBundleIds = new LinkedList<>();
+    /*
+     * The encrypted IDs of the bundles in the window by counter, encrypted with the keys identified by
+     * encryptedKeyTag. They are only computed for bundles that enter the window, so the window an exchange starts with
+     * is already encrypted.
+     */
+    private final Map<Long, String> encryptedBundleIds = new HashMap<>();
+    private long encryptedKeyTag;
+    private ClientSecurity encryptedFor;
+    /* what getWindow returns, null when a bundle in the window has not been encrypted yet */
+    private volatile List<String> encryptedWindow;
     private final String clientID;
     private int windowLength = 10; /* Default Value */
     private final ClientPaths clientPaths;
+    private final ClientWindowLog windowLog;
 
     /* Generates bundleIDs for window slots
      * Parameter:
@@ -49,16 +63,21 @@ public class ClientWindow {
             String bundleId = BundleIDGenerator.generateBundleID(this.clientID, i, BundleIDGenerator.DOWNSTREAM);
             windowOfUnencryptedBundleIds.add(new UnencryptedBundleId(bundleId, i));
         }
+        if (count > 0) {
+            encryptedWindow = null;
+        }
 
         updateDBWindow();
     }
 
     private void updateDBWindow() throws IOException {
-        Files.write(clientPaths.dbFile,
-                    String.format(Locale.US,
-                                  "%d,%d",
-                                  windowOfUnencryptedBundleIds.getFirst().bundleCounter(),
-                                  windowOfUnencryptedBundleIds.getLast().bundleCounter()).getBytes());
+        long first = windowOfUnencryptedBundleIds.getFirst().bundleCounter();
+        long last = windowOfUnencryptedBundleIds.getLast().bundleCounter();
+        if (windowLog.needsCompaction()) {
+            windowLog.rewrite(first, last, encryptedKeyTag, encryptedBundleIds);
+        } else {
+            windowLog.appendWindow(first, last);
+        }
 
         logger.log(FINE,
                    "Update window: " + windowOfUnencryptedBundleIds.getFirst().bundleCounter() + " - " +
@@ -71,18 +90,35 @@ public class ClientWindow {
         windowLength = Constants.DEFAULT_WINDOW_SIZE;
         var end = start + windowLength - 1;
 
+        ClientWindowLog.State state = null;
         try {
-            String dbData = new String(Files.readAllBytes(clientPaths.dbFile));
-            String[] dbCSV = dbData.split(",");
-            start = Long.parseLong(dbCSV[0]);
-            end = Long.parseLong(dbCSV[1]);
-        } catch (NoSuchFileException e) {
-            // this is expected the first time
-            logger.log(INFO, "Window File not found -- creating new window");
+            state = windowLog.load();
         } catch (IOException e) {
-            logger.log(WARNING, "Failed to read Window from Disk -- creating new window", e);
+            logger.log(WARNING, "Failed to read Window log from Disk -- creating new window", e);
+        }
+        if (state != null) {
+            start = state.start();
+            end = state.end();
+            encryptedKeyTag = state.keyTag();
+            encryptedBundleIds.putAll(state.encryptedIds());
+        } else {
+            // clients that haven't been upgraded yet have the window in a csv file
+            try {
+                String dbData = new String(Files.readAllBytes(clientPaths.dbFile));
+                String[] dbCSV = dbData.split(",");
+                start = Long.parseLong(dbCSV[0]);
+                end = Long.parseLong(dbCSV[1]);
+            } catch (NoSuchFileException e) {
+                // this is expected the first time
+                logger.log(INFO, "Window File not found -- creating new window");
+            } catch (IOException e) {
+                logger.log(WARNING, "Failed to read Window from Disk -- creating new window", e);
+            }
         }
         fillWindow(start, (int) (end - start + 1));
+        // start every run with a compact log
+        windowLog.rewrite(start, end, encryptedKeyTag, encryptedBundleIds);
+        Files.deleteIfExists(clientPaths.dbFile);
     }
 
     /* Allocate and Initialize Window with provided size
@@ -95,6 +131,7 @@ public class ClientWindow {
     private ClientWindow(int length, String clientID, ClientPaths clientPaths) {
         this.clientID = clientID;
         this.clientPaths = clientPaths;
+        this.windowLog = new ClientWindowLog(clientPaths.windowLogFile);
 
         try {
             initializeWindow();
@@ -131,8 +168,8 @@ public class ClientWindow {
      * Returns:
      * None
      */
-    public void processBundle(String bundleID, ClientSecurity clientSecurity) throws BufferOverflow, IOException,
-            GeneralSecurityException, InvalidKeyException {
+    public synchronized void processBundle(String bundleID, ClientSecurity clientSecurity) throws BufferOverflow,
+            IOException, GeneralSecurityException, InvalidKeyException {
         String decryptedBundleID = clientSecurity.decryptBundleID(bundleID);
         logger.log(FINE, "Largest Bundle ID = " + decryptedBundleID);
         long ack = BundleIDGenerator.getCounterFromBundleID(decryptedBundleID, BundleIDGenerator.DOWNSTREAM);
@@ -148,26 +185,71 @@ public class ClientWindow {
         }
 
         windowOfUnencryptedBundleIds.removeIf(bundle -> bundle.bundleCounter() <= ack);
+        encryptedBundleIds.keySet().removeIf(counter -> counter <= ack);
 
         fillWindow(end + 1, windowLength - windowOfUnencryptedBundleIds.size());
+        // encrypt the bundles that slid into the window now, rather than at the start of the next exchange
+        encryptWindow(clientSecurity);
 
         logger.log(FINE, "Updated Begin: " + Long.toUnsignedString(begin) + "; End: " + Long.toUnsignedString(end));
     }
 
     /* Returns the entire window
      * Parameters:
-     * None
+     * client      : used to encrypt bundle IDs that haven't been encrypted yet
      * Returns:
-     * None
+     * the encrypted bundle IDs of the window
      */
     public List<String> getWindow(ClientSecurity client) throws InvalidKeyException, GeneralSecurityException {
-        return windowOfUnencryptedBundleIds.stream().map(ueb -> {
+        var window = encryptedWindow;
+        if (window != null && encryptedFor == client) {
+            return window;
+        }
+        synchronized (this) {
             try {
-                return client.encryptBundleID(ueb.bundleId);
-            } catch (GeneralSecurityException | InvalidKeyException e) {
-                logger.log(SEVERE, "Failed to encrypt bundleID: " + ueb.bundleId, e);
+                return encryptWindow(client);
+            } catch (IOException e) {
+                throw new GeneralSecurityException("Failed to log encrypted bundle IDs", e);
             }
-            return null;
-        }).collect(Collectors.toList());
+        }
+    }
+
+    /* Encrypts the bundle IDs of the window that don't have an encrypted ID for client's keys yet, and logs them */
+    private List<String> encryptWindow(ClientSecurity client) throws InvalidKeyException, GeneralSecurityException,
+            IOException {
+        if (encryptedFor != client) {
+            long keyTag = keyTag(client);
+            if (keyTag != encryptedKeyTag) {
+                encryptedBundleIds.clear();
+                encryptedKeyTag = keyTag;
+            }
+            encryptedFor = client;
+            encryptedWindow = null;
+        }
+        var window = encryptedWindow;
+        if (window != null) {
+            return window;
+        }
+        var encrypted = new ArrayList<String>(windowOfUnencryptedBundleIds.size());
+        for (var ueb : windowOfUnencryptedBundleIds) {
+            var encryptedBundleId = encryptedBundleIds.get(ueb.bundleCounter());
+            if (encryptedBundleId == null) {
+                encryptedBundleId = client.encryptBundleID(ueb.bundleId());
+                encryptedBundleIds.put(ueb.bundleCounter(), encryptedBundleId);
+                windowLog.appendEncryptedId(encryptedKeyTag, ueb.bundleCounter(), encryptedBundleId);
+            }
+            encrypted.add(encryptedBundleId);
+        }
+        window = Collections.unmodifiableList(encrypted);
+        encryptedWindow = window;
+        return window;
+    }
+
+    /* Identifies the keys bundle IDs are encrypted with, so IDs from the log are only used with the same keys */
+    private static long keyTag(ClientSecurity client) throws GeneralSecurityException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(client.getServerPublicKey().serialize());
+        digest.update(client.getClientIdentityPublicKey().serialize());
+        return ByteBuffer.wrap(digest.digest()).getLong();
     }
 }
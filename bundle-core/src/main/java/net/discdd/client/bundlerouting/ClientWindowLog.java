@@ -0,0 +1,171 @@
+package net.discdd.client.bundlerouting;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import static java.util.logging.Level.INFO;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * Append-only binary log of the client window. Every change is appended as a small record instead of rewriting the
+ * window file, and loading replays the records.
+ *
+ * <p>Record layout: type (1 byte), payload length (2 bytes), payload, CRC32 of everything before it (4 bytes). A
+ * WINDOW_RECORD payload is the first and last counter of the window. An ENCRYPTED_ID_RECORD payload is the tag of the
+ * keys the ID was encrypted with, the bundle counter, and the UTF-8 encrypted bundle ID. A record that was only partly
+ * written when the client died fails the CRC; it and anything after it are truncated on load. Once the log grows past
+ * COMPACT_SIZE it is rewritten with just the current state.
+ */
+class ClientWindowLog {
+    private static final Logger logger = Logger.getLogger(ClientWindowLog.class.getName());
+    static final byte WINDOW_RECORD = 1;
+    static final byte ENCRYPTED_ID_RECORD = 2;
+    private static final int HEADER_SIZE = 3;
+    private static final int CRC_SIZE = 4;
+    static final int COMPACT_SIZE = 16 * 1024;
+
+    /* The window replayed from the log. encryptedIds only holds IDs encrypted with the keys of keyTag. */
+    record State(long start, long end, long keyTag, Map<Long, String> encryptedIds) {}
+
+    private final Path logFile;
+    private long size;
+
+    ClientWindowLog(Path logFile) {
+        this.logFile = logFile;
+    }
+
+    /**
+     * @return the state in the log, or null if there is no log or it has no window record yet
+     */
+    State load() throws IOException {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(logFile);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        var buffer = ByteBuffer.wrap(bytes);
+        long start = 0;
+        long end = -1;
+        long keyTag = 0;
+        var encryptedIds = new HashMap<Long, String>();
+        boolean haveWindow = false;
+        int validLength = 0;
+        while (buffer.remaining() >= HEADER_SIZE) {
+            int recordStart = buffer.position();
+            byte type = buffer.get();
+            int length = Short.toUnsignedInt(buffer.getShort());
+            if (buffer.remaining() < length + CRC_SIZE) break;
+            var crc = new CRC32();
+            crc.update(bytes, recordStart, HEADER_SIZE + length);
+            var payload = buffer.slice();
+            payload.limit(length);
+            buffer.position(buffer.position() + length);
+            if ((int) crc.getValue() != buffer.getInt()) break;
+
+            if (type == WINDOW_RECORD && length == 16) {
+                start = payload.getLong();
+                end = payload.getLong();
+                haveWindow = true;
+            } else if (type == ENCRYPTED_ID_RECORD && length > 16) {
+                long tag = payload.getLong();
+                long counter = payload.getLong();
+                if (tag != keyTag) {
+                    // the keys changed, IDs encrypted with the old ones are useless
+                    encryptedIds.clear();
+                    keyTag = tag;
+                }
+                var encryptedId = new byte[payload.remaining()];
+                payload.get(encryptedId);
+                encryptedIds.put(counter, new String(encryptedId, StandardCharsets.UTF_8));
+            } else {
+                logger.log(WARNING, "Skipping unknown client window log record type " + type);
+            }
+            validLength = buffer.position();
+        }
+        if (validLength < bytes.length) {
+            logger.log(WARNING,
+                       "Truncating " + (bytes.length - validLength) + " bytes of incomplete records from " + logFile);
+            try (var channel = FileChannel.open(logFile, StandardOpenOption.WRITE)) {
+                channel.truncate(validLength);
+            }
+        }
+        size = validLength;
+        if (!haveWindow) return null;
+        final long first = start;
+        final long last = end;
+        encryptedIds.keySet().removeIf(counter -> counter < first || counter > last);
+        return new State(start, end, keyTag, encryptedIds);
+    }
+
+    void appendWindow(long start, long end) throws IOException {
+        append(encodeWindow(start, end));
+    }
+
+    void appendEncryptedId(long keyTag, long counter, String encryptedId) throws IOException {
+        append(encodeEncryptedId(keyTag, counter, encryptedId));
+    }
+
+    boolean needsCompaction() {
+        return size > COMPACT_SIZE;
+    }
+
+    /**
+     * Replace the log with one that only has the given state.
+     */
+    void rewrite(long start, long end, long keyTag, Map<Long, String> encryptedIds) throws IOException {
+        var out = new ByteArrayOutputStream();
+        out.write(encodeWindow(start, end));
+        for (var entry : encryptedIds.entrySet()) {
+            out.write(encodeEncryptedId(keyTag, entry.getKey(), entry.getValue()));
+        }
+        var tmp = logFile.resolveSibling(logFile.getFileName() + ".tmp");
+        Files.write(tmp, out.toByteArray());
+        Files.move(tmp, logFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        size = out.size();
+        logger.log(INFO, "Compacted " + logFile + " to " + size + " bytes");
+    }
+
+    private void append(byte[] record) throws IOException {
+        Files.write(logFile, record, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        size += record.length;
+    }
+
+    private static byte[] encodeWindow(long start, long end) throws IOException {
+        return encode(WINDOW_RECORD, ByteBuffer.allocate(16).putLong(start).putLong(end).array());
+    }
+
+    private static byte[] encodeEncryptedId(long keyTag, long counter, String encryptedId) throws IOException {
+        var id = encryptedId.getBytes(StandardCharsets.UTF_8);
+        return encode(ENCRYPTED_ID_RECORD,
+                      ByteBuffer.allocate(16 + id.length).putLong(keyTag).putLong(counter).put(id).array());
+    }
+
+    private static byte[] encode(byte type, byte[] payload) throws IOException {
+        if (payload.length > 0xffff) {
+            throw new IOException("Client window log record too long: " + payload.length);
+        }
+        var bytes = new ByteArrayOutputStream(HEADER_SIZE + payload.length + CRC_SIZE);
+        var out = new DataOutputStream(bytes);
+        out.writeByte(type);
+        out.writeShort(payload.length);
+        out.write(payload);
+        var crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+        return bytes.toByteArray();
+    }
+}
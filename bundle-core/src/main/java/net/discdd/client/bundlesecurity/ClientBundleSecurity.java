@@ -4,22 +4,17 @@ import net.discdd.bundlerouting.WindowUtils.WindowExceptions;
 import net.discdd.bundlesecurity.SecurityUtils;
 import net.discdd.client.bundlerouting.ClientBundleGenerator;
 import net.discdd.client.bundlerouting.ClientWindow;
-import net.discdd.model.Payload;
-import net.discdd.model.UncompressedBundle;
+import net.discdd.model.ReceivedBundle;
 import net.discdd.pathutils.ClientPaths;
 import net.discdd.tls.GrpcSecurityKey;
-import net.discdd.utils.Constants;
 import org.bouncycastle.operator.OperatorCreationException;
 import org.whispersystems.libsignal.DuplicateMessageException;
 import org.whispersystems.libsignal.InvalidKeyException;
 import org.whispersystems.libsignal.InvalidMessageException;
 import org.whispersystems.libsignal.NoSessionException;
 
-import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
+import java.nio.file.Path;
 import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.NoSuchAlgorithmException;
@@ -29,13 +24,13 @@ import java.util.logging.Logger;
 
 import static java.util.logging.Level.INFO;
 import static java.util.logging.Level.SEVERE;
+import static java.util.logging.Level.WARNING;
 
 public class ClientBundleSecurity {
     private static final Logger logger = Logger.getLogger(ClientBundleSecurity.class.getName());
     final private ClientPaths clientPaths;
     private final ClientWindow clientWindow;
     private final ClientBundleGenerator clientBundleGenerator;
-    private final boolean isEncryptionEnabled = true;
     private ClientSecurity client = null;
     private GrpcSecurityKey clientGrpcSecurityKey = null;
 
@@ -47,6 +42,12 @@ public class ClientBundleSecurity {
         client = ClientSecurity.initializeInstance(1, clientPaths);
         clientBundleGenerator = ClientBundleGenerator.initializeInstance(client, clientPaths);
         clientWindow = ClientWindow.initializeInstance(5, client.getClientID(), clientPaths);
+        try {
+            // encrypt the window now (if it wasn't logged already) so that the first exchange doesn't have to
+            clientWindow.getWindow(client);
+        } catch (GeneralSecurityException e) {
+            logger.log(WARNING, "Failed to encrypt the client window", e);
+        }
         try {
             this.clientGrpcSecurityKey = new GrpcSecurityKey(clientPaths.grpcSecurityPath, SecurityUtils.CLIENT);
         } catch (IOException | NoSuchAlgorithmException | InvalidAlgorithmParameterException | CertificateException |
@@ -74,23 +75,9 @@ public class ClientBundleSecurity {
         return clientBundleGenerator.generateBundleID();
     }
 
-    public Payload decryptPayload(UncompressedBundle uncompressedBundle) throws NoSessionException,
+    public void decryptPayload(ReceivedBundle receivedBundle, Path decryptedPayload) throws NoSessionException,
             InvalidMessageException, DuplicateMessageException, IOException, InvalidKeyException {
-        File decryptedPayloadJar = uncompressedBundle.getSource()
-                .toPath()
-                .resolve(Constants.BUNDLE_ENCRYPTED_PAYLOAD_FILE_NAME + ".jar")
-                .toFile();
-        String bundleId = "";
-        if (this.isEncryptionEnabled) {
-            ClientSecurity clientSecurity = ClientSecurity.getInstance();
-            clientSecurity.decrypt(uncompressedBundle.getSource().toPath(), uncompressedBundle.getSource().toPath());
-            bundleId = clientSecurity.getBundleIDFromFile(uncompressedBundle.getSource().toPath());
-            File decryptedPayload = uncompressedBundle.getSource().toPath().resolve(bundleId + ".decrypted").toFile();
-            if (decryptedPayload.exists()) {
-                decryptedPayload.renameTo(decryptedPayloadJar);
-            }
-        }
-        return new Payload(bundleId, decryptedPayloadJar);
+        ClientSecurity.getInstance().decryptPayload(receivedBundle.encryptedPayload(), decryptedPayload);
     }
 
     public ClientWindow getClientWindow() {
@@ -2,6 +2,7 @@ package net.discdd.client.bundlesecurity;
 
 import net.discdd.bundlesecurity.DDDPEMEncoder;
 import net.discdd.bundlesecurity.SecurityUtils;
+import net.discdd.bundlesecurity.SessionJournal;
 import net.discdd.pathutils.ClientPaths;
 import org.whispersystems.libsignal.DuplicateMessageException;
 import org.whispersystems.libsignal.IdentityKey;
@@ -25,12 +26,12 @@ import org.whispersystems.libsignal.util.guava.Optional;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.security.GeneralSecurityException;
@@ -164,9 +165,9 @@ public class ClientSecurity {
     }
 
     private void updateSessionRecord() {
-        try (FileOutputStream stream = new FileOutputStream(clientPaths.sessionStorePath.toString())) {
+        try {
             SessionRecord clientSessionRecord = clientProtocolStore.loadSession(ourAddress);
-            stream.write(clientSessionRecord.serialize());
+            SessionJournal.forStore(clientPaths.sessionStorePath).append(clientSessionRecord.serialize());
         } catch (IOException e) {
             logger.log(SEVERE, "Error Writing Session record to " + clientPaths.sessionStorePath, e);
         }
@@ -176,7 +177,10 @@ public class ClientSecurity {
         SessionRecord clientSessionRecord = null;
 
         try {
-            byte[] sessionStoreBytes = Files.readAllBytes(clientPaths.sessionStorePath);
+            byte[] sessionStoreBytes = SessionJournal.forStore(clientPaths.sessionStorePath).load();
+            if (sessionStoreBytes == null) {
+                throw new NoSuchFileException(clientPaths.sessionStorePath.toString());
+            }
             clientSessionRecord = new SessionRecord(sessionStoreBytes);
         } catch (IOException e) {
             logger.log(WARNING,
@@ -254,10 +258,16 @@ public class ClientSecurity {
 
         String payloadName = SecurityUtils.PAYLOAD_FILENAME;
 
-        if (cipherSession.decrypt(payloadPath.resolve(payloadName), decryptedFile)) {
+        decryptPayload(payloadPath.resolve(payloadName), decryptedFile);
+    }
+
+    /* Decrypts an encrypted payload file into decryptedFile */
+    public void decryptPayload(Path encryptedPayload, Path decryptedFile) throws IOException, InvalidMessageException,
+            NoSessionException, DuplicateMessageException, InvalidKeyException {
+        if (cipherSession.decrypt(encryptedPayload, decryptedFile)) {
             updateSessionRecord();
         }
-        logger.log(FINER, "Decrypted Size = %d\n", Files.size(decryptedPath));
+        logger.log(FINER, "Decrypted Size = " + Files.size(decryptedFile));
     }
 
     public String decryptBundleID(String encryptedBundleID) throws GeneralSecurityException, InvalidKeyException {
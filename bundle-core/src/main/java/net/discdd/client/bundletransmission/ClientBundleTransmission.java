@@ -2,15 +2,17 @@ package net.discdd.client.bundletransmission;
 
 import com.google.protobuf.ByteString;
 import io.grpc.StatusRuntimeException;
-import io.grpc.okhttp.OkHttpChannelBuilder;
 import io.grpc.stub.StreamObserver;
 import lombok.Getter;
 import lombok.Setter;
 import net.discdd.bundlerouting.RoutingExceptions;
 import net.discdd.bundlerouting.WindowUtils.WindowExceptions;
 import net.discdd.bundlerouting.service.BundleUploadResponseObserver;
+import net.discdd.bundlerouting.service.PartialFile;
+import net.discdd.bundlerouting.service.ResumableTransfers;
 import net.discdd.bundlesecurity.BundleIDGenerator;
 import net.discdd.bundlesecurity.BundleOwnershipPSI;
+import net.discdd.bundlesecurity.PSIGroup;
 import net.discdd.bundlesecurity.SecurityUtils;
 import net.discdd.client.applicationdatamanager.ClientApplicationDataManager;
 import net.discdd.client.bundlerouting.ClientBundleGenerator;
@@ -19,6 +21,7 @@ import net.discdd.client.bundlesecurity.ClientBundleSecurity;
 import net.discdd.client.bundlesecurity.ClientSecurity;
 import net.discdd.grpc.BundleChunk;
 import net.discdd.grpc.BundleDownloadRequest;
+import net.discdd.grpc.BundleDownloadResponse;
 import net.discdd.grpc.BundleExchangeServiceGrpc;
 import net.discdd.grpc.BundleSenderType;
 import net.discdd.grpc.BundleUploadRequest;
@@ -32,49 +35,46 @@ import net.discdd.grpc.PSIResponse;
 import net.discdd.grpc.PublicKeyMap;
 import net.discdd.grpc.RecencyBlobStatus;
 import net.discdd.grpc.Status;
+import net.discdd.grpc.UploadSession;
 import net.discdd.model.ADU;
 import net.discdd.model.Acknowledgement;
 import net.discdd.model.Bundle;
-import net.discdd.model.Payload;
-import net.discdd.model.UncompressedBundle;
-import net.discdd.model.UncompressedPayload;
+import net.discdd.model.ReceivedBundle;
 import net.discdd.pathutils.ClientPaths;
-import net.discdd.tls.DDDTLSUtil;
-import net.discdd.tls.DDDX509ExtendedTrustManager;
+import net.discdd.tls.GrpcChannelPool;
 import net.discdd.utils.AckRecordUtils;
 import net.discdd.utils.BundleUtils;
+import net.discdd.utils.CompressionPolicies;
 import net.discdd.utils.FileUtils;
+import net.discdd.utils.ReceivedPayload;
+import net.discdd.utils.RingBufferPipe;
 import org.whispersystems.libsignal.DuplicateMessageException;
 import org.whispersystems.libsignal.InvalidKeyException;
 import org.whispersystems.libsignal.InvalidMessageException;
 import org.whispersystems.libsignal.NoSessionException;
 import org.whispersystems.libsignal.ecc.Curve;
 
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManager;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
 import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
-import java.math.BigInteger;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
 import java.util.stream.Collectors;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.function.Consumer;
 import java.util.logging.Logger;
@@ -96,11 +96,15 @@ public class ClientBundleTransmission {
     }
 
     private static final Logger logger = Logger.getLogger(ClientBundleTransmission.class.getName());
-    private final ExecutorService executorService = Executors.newCachedThreadPool();
+    // how many times an upload or download that breaks off is resumed within one exchange
+    private static final int MAX_TRANSFER_ATTEMPTS = 3;
+    private final ExecutorService executorService = BundleUtils.newPayloadExecutor(1);
+    private final GrpcChannelPool channelPool = GrpcChannelPool.getShared();
     private final ClientBundleSecurity bundleSecurity;
     public final ClientApplicationDataManager applicationDataManager;
 
     final private ClientRouting clientRouting;
+    final private CompressionPolicies compressionPolicies;
     @Getter
     final private ClientPaths clientPaths;
     @Setter
@@ -113,6 +117,7 @@ public class ClientBundleTransmission {
         this.bundleSecurity = new ClientBundleSecurity(clientPaths);
         this.applicationDataManager = new ClientApplicationDataManager(clientPaths, aduConsumer);
         this.clientRouting = ClientRouting.initializeInstance(clientPaths);
+        this.compressionPolicies = CompressionPolicies.load(clientPaths.compressionPath);
     }
 
     public void registerBundleId(String bundleId) throws IOException, WindowExceptions.BufferOverflow,
@@ -143,34 +148,41 @@ public class ClientBundleTransmission {
             RoutingExceptions.ClientMetaDataFileException, NoSessionException, InvalidMessageException,
             DuplicateMessageException, InvalidKeyException, GeneralSecurityException, WindowExceptions.BufferOverflow {
         String largestBundleIdReceived = this.getLargestBundleIdReceived();
-        UncompressedBundle uncompressedBundle = BundleUtils.extractBundle(bundle, clientPaths.uncompressedPayloadStore);
-        Payload payload = this.bundleSecurity.decryptPayload(uncompressedBundle);
-        logger.log(INFO, "Updating client routing metadata for sender:  " + bundleSenderToString(senderId));
-        clientRouting.updateMetaData(senderId);
-
-        String bundleId = payload.getBundleId();
+        String bundleFileName = bundle.getSource().getName();
+        Path encryptedPayload = clientPaths.receivedProcDir.resolve(bundleFileName + ".payload");
+        Path decryptedPayload = clientPaths.receivedProcDir.resolve(bundleFileName + SecurityUtils.DECRYPTED_FILE_EXT);
+        try {
+            ReceivedBundle receivedBundle = BundleUtils.readReceivedBundle(bundle, encryptedPayload);
+            this.bundleSecurity.decryptPayload(receivedBundle, decryptedPayload);
+            logger.log(INFO, "Updating client routing metadata for sender:  " + bundleSenderToString(senderId));
+            clientRouting.updateMetaData(senderId);
 
-        ClientBundleGenerator clientBundleGenerator = this.bundleSecurity.getClientBundleGenerator();
-        boolean isLatestBundleId = (!largestBundleIdReceived.isEmpty() && clientBundleGenerator.compareBundleIDs(
-                bundleId,
-                largestBundleIdReceived,
-                BundleIDGenerator.DOWNSTREAM) == 1);
+            String bundleId = receivedBundle.bundleId();
 
-        if (!isLatestBundleId) {
-            return;
-        }
+            ClientBundleGenerator clientBundleGenerator = this.bundleSecurity.getClientBundleGenerator();
+            boolean isLatestBundleId = (!largestBundleIdReceived.isEmpty() && clientBundleGenerator.compareBundleIDs(
+                    bundleId,
+                    largestBundleIdReceived,
+                    BundleIDGenerator.DOWNSTREAM) == 1);
 
-        UncompressedPayload uncompressedPayload =
-                BundleUtils.extractPayload(payload, uncompressedBundle.getSource().toPath());
+            if (!isLatestBundleId) {
+                return;
+            }
 
-        AckRecordUtils.writeAckRecordToFile(new Acknowledgement(bundleId), clientPaths.ackRecordPath);
-        this.registerBundleId(bundleId);
+            try (var payload = new ReceivedPayload(decryptedPayload, compressionPolicies)) {
+                String ackedBundleId = payload.getAcknowledgement();
 
-        String ackedBundleId = uncompressedPayload.getAckRecord().getBundleId();
+                AckRecordUtils.writeAckRecordToFile(new Acknowledgement(bundleId), clientPaths.ackRecordPath);
+                this.registerBundleId(bundleId);
 
-        this.applicationDataManager.processAcknowledgement(ackedBundleId);
-        this.applicationDataManager.storeReceivedADUs(null, null, uncompressedPayload.getADUs());
-        deleteSentBundle(bundle);
+                this.applicationDataManager.processAcknowledgement(ackedBundleId);
+                this.applicationDataManager.storeReceivedADUs(payload);
+            }
+            deleteSentBundle(bundle);
+        } finally {
+            Files.deleteIfExists(encryptedPayload);
+            Files.deleteIfExists(decryptedPayload);
+        }
     }
 
     public static String bundleSenderToString(String senderId) {
@@ -186,7 +198,7 @@ public class ClientBundleTransmission {
         List<ADU> adus = this.applicationDataManager.fetchADUsToSend(clientPaths.BUNDLE_SIZE_LIMIT, null);
         var routingData = clientRouting.bundleMetaData();
 
-        PipedInputStream pipedInputStream = new PipedInputStream();
+        var payloadPipe = new RingBufferPipe();
 
         Path bundleFile = clientPaths.tosendDir.resolve(bundleId);
         var ackedEncryptedBundleId = ackRecord == null ? null : ackRecord.getBundleId();
@@ -195,7 +207,8 @@ public class ClientBundleTransmission {
                                                  crashReport,
                                                  adus,
                                                  routingData,
-                                                 pipedInputStream);
+                                                 compressionPolicies,
+                                                 payloadPipe);
         try {
             ClientSecurity clientSecurity = bundleSecurity.getClientSecurity();
 
@@ -206,12 +219,13 @@ public class ClientBundleTransmission {
                                                       clientSecurity.getClientBaseKeyPairPublicKey(),
                                                       clientSecurity.getServerPublicKey(),
                                                       bundleId,
-                                                      pipedInputStream,
+                                                      payloadPipe.getInputStream(),
                                                       os);
             applicationDataManager.notifyBundleSent(adus, bundleId);
         } catch (InvalidMessageException e) {
             throw new IOException("Error processing message: " + e.getMessage(), e);
         } finally {
+            payloadPipe.getInputStream().close();
             future.cancel(true);
         }
         return new Bundle(bundleId, bundleFile.toFile());
@@ -230,7 +244,7 @@ public class ClientBundleTransmission {
 
             // lets check to see if we have gotten new ADUs or a new ack record
             if (clientPaths.ackRecordPath.toFile().lastModified() <= lastBundleSentTimestamp &&
-                    !applicationDataManager.hasNewADUs(null, lastBundleSentTimestamp)) {
+                    !applicationDataManager.hasNewADUs(null)) {
                 return new Bundle(lastSentBundle.getName(), lastSentBundle);
             }
 
@@ -321,18 +335,8 @@ public class ClientBundleTransmission {
                                                         String transportAddress,
                                                         int port,
                                                         boolean connectingToTransport) throws Exception {
-        var sslClientContext = SSLContext.getInstance("TLS");
-        var trustManager = new DDDX509ExtendedTrustManager(true);
-        sslClientContext.init(DDDTLSUtil.getKeyManagerFactory(bundleSecurity.getClientGrpcSecurityKey().grpcKeyPair,
-                                                              bundleSecurity.getClientGrpcSecurityKey().grpcCert)
-                                      .getKeyManagers(), new TrustManager[] { trustManager }, new SecureRandom());
-
-        var channel = OkHttpChannelBuilder.forAddress(transportAddress, port)
-                .hostnameVerifier((host, session) -> true)
-                .useTransportSecurity()
-                .sslSocketFactory(sslClientContext.getSocketFactory())
-                .build();
-
+        var grpcSecurityKey = bundleSecurity.getClientGrpcSecurityKey();
+        var channel = channelPool.acquire(grpcSecurityKey, transportAddress, port);
         var blockingStub = BundleExchangeServiceGrpc.newBlockingStub(channel);
 
         Statuses uploadStatus = Statuses.FAILED;
@@ -343,8 +347,18 @@ public class ClientBundleTransmission {
         try {
             if (isServerRunning(transportAddress, port)) {
                 var recencyBlobRequest = GetRecencyBlobRequest.newBuilder().build();
-                var blobRecencyReply = blockingStub.withDeadlineAfter(GRPC_SHORT_TIMEOUT_MS, MILLISECONDS)
-                        .getRecencyBlob(recencyBlobRequest);
+                GetRecencyBlobResponse blobRecencyReply;
+                try {
+                    blobRecencyReply = blockingStub.withDeadlineAfter(GRPC_SHORT_TIMEOUT_MS, MILLISECONDS)
+                            .getRecencyBlob(recencyBlobRequest);
+                } catch (StatusRuntimeException e) {
+                    if (!GrpcChannelPool.isConnectionFailure(e)) throw e;
+                    // the pooled connection may be to a transport that has gone away since, try a new one
+                    channel = channelPool.reconnect(channel, grpcSecurityKey, transportAddress, port);
+                    blockingStub = BundleExchangeServiceGrpc.newBlockingStub(channel);
+                    blobRecencyReply = blockingStub.withDeadlineAfter(GRPC_SHORT_TIMEOUT_MS, MILLISECONDS)
+                            .getRecencyBlob(recencyBlobRequest);
+                }
                 var recencyBlob = blobRecencyReply.getRecencyBlob();
                 if (!processRecencyBlob(device, blobRecencyReply)) {
                     logger.log(SEVERE,
@@ -355,6 +369,7 @@ public class ClientBundleTransmission {
                     logger.log(INFO, "Recency blob processed for " + transportSenderId);
                 }
 
+                PartialFile.deleteStale(clientPaths.partialBundlePath, PartialFile.STALE_AFTER_MS);
                 var clientSecurity = bundleSecurity.getClientSecurity();
                 var bundleRequests = getNextBundles();
                 PublicKeyMap publicKeyMap = PublicKeyMap.newBuilder()
@@ -385,14 +400,18 @@ public class ClientBundleTransmission {
 
                 var stub = BundleExchangeServiceGrpc.newStub(channel)
                         .withDeadlineAfter(GRPC_LONG_TIMEOUT_MS, MILLISECONDS);
-                uploadStatus = uploadBundle(stub);
+                uploadStatus = uploadBundle(stub, blockingStub);
 
             }
         } catch (Exception e) {
             logger.log(WARNING, "Exchange failed", e);
             transmissionException = e;
         }
-        channel.shutdownNow();
+        if (GrpcChannelPool.isConnectionFailure(transmissionException)) {
+            channelPool.invalidate(channel);
+        } else {
+            channelPool.release(channel);
+        }
         return new BundleExchangeCounts(device, uploadStatus, downloadStatus, transmissionException);
     }
 
@@ -401,15 +420,58 @@ public class ClientBundleTransmission {
         return bundleSecurity.getClientWindow().getWindow(clientSecurity);
     }
 
-    private Statuses uploadBundle(BundleExchangeServiceGrpc.BundleExchangeServiceStub stub) throws
+    /**
+     * Upload the next bundle. If the upload breaks off, it is resumed from the offset the receiver has committed.
+     */
+    private Statuses uploadBundle(BundleExchangeServiceGrpc.BundleExchangeServiceStub stub,
+                                  BundleExchangeServiceGrpc.BundleExchangeServiceBlockingStub blockingStub) throws
             RoutingExceptions.ClientMetaDataFileException, IOException, InvalidKeyException, GeneralSecurityException {
         Bundle toSend = generateBundleForTransmission();
+        var token = ResumableTransfers.newUploadToken();
 
+        for (int attempt = 1; ; attempt++) {
+            Throwable failure;
+            try {
+                long offset = ResumableTransfers.queryUploadOffset(blockingStub, token);
+                var bundleUploadResponseObserver = uploadBundleFrom(stub, toSend, token, offset);
+                if (bundleUploadResponseObserver.bundleUploadResponse != null) {
+                    return bundleUploadResponseObserver.bundleUploadResponse.getStatus() == Status.SUCCESS ?
+                           Statuses.COMPLETE :
+                           Statuses.EMPTY;
+                }
+                failure = bundleUploadResponseObserver.throwable;
+            } catch (StatusRuntimeException e) {
+                failure = e;
+            }
+            if (attempt >= MAX_TRANSFER_ATTEMPTS || !ResumableTransfers.isRetryable(failure)) {
+                logger.log(SEVERE, "Upload failed: No response received from server.", failure);
+                return Statuses.FAILED;
+            }
+            logger.log(WARNING, "Upload attempt " + attempt + " of " + toSend.getBundleId() + " failed: " + failure);
+        }
+    }
+
+    /**
+     * Upload toSend starting offset bytes in, or from the start without a session if offset is -1 because the
+     * receiver can't resume uploads.
+     */
+    private BundleUploadResponseObserver uploadBundleFrom(BundleExchangeServiceGrpc.BundleExchangeServiceStub stub,
+                                                          Bundle toSend,
+                                                          String token,
+                                                          long offset) throws IOException {
         var bundleUploadResponseObserver = new BundleUploadResponseObserver();
 
         StreamObserver<BundleUploadRequest> uploadRequestStreamObserver =
                 stub.withDeadlineAfter(GRPC_LONG_TIMEOUT_MS, MILLISECONDS).uploadBundle(bundleUploadResponseObserver);
 
+        if (offset >= 0) {
+            uploadRequestStreamObserver.onNext(BundleUploadRequest.newBuilder()
+                                                       .setSession(UploadSession.newBuilder()
+                                                                           .setToken(token)
+                                                                           .setOffset(offset)
+                                                                           .build())
+                                                       .build());
+        }
         uploadRequestStreamObserver.onNext(BundleUploadRequest.newBuilder()
                                                    .setBundleId(EncryptedBundleId.newBuilder()
                                                                         .setEncryptedId(toSend.getBundleId())
@@ -417,12 +479,16 @@ public class ClientBundleTransmission {
                                                    .build());
 
         // upload file as chunk
-        logger.log(INFO, "Started upload bundle: " + toSend.getBundleId());
-        try (FileInputStream inputStream = new FileInputStream(toSend.getSource())) {
+        logger.log(INFO, "Started upload bundle: " + toSend.getBundleId() + " at " + Math.max(offset, 0));
+        try (FileChannel channel = FileChannel.open(toSend.getSource().toPath(), StandardOpenOption.READ)) {
+            channel.position(Math.max(offset, 0));
+            var inputStream = Channels.newInputStream(channel);
             int chunkSize = 1000 * 1000 * 4;
             byte[] bytes = new byte[chunkSize];
             int size;
             while ((size = inputStream.read(bytes)) != -1) {
+                // the server answers early if it already has the bundle
+                if (bundleUploadResponseObserver.throwable != null || bundleUploadResponseObserver.completed) break;
                 var uploadRequest = BundleUploadRequest.newBuilder()
                         .setChunk(BundleChunk.newBuilder().setChunk(ByteString.copyFrom(bytes, 0, size)).build())
                         .build();
@@ -434,39 +500,34 @@ public class ClientBundleTransmission {
                                                    .build());
         uploadRequestStreamObserver.onCompleted();
         bundleUploadResponseObserver.waitForCompletion(GRPC_LONG_TIMEOUT_MS);
-
-        if (bundleUploadResponseObserver.bundleUploadResponse == null) {
-            logger.log(SEVERE,
-                       "Upload failed: No response received from server.",
-                       bundleUploadResponseObserver.throwable);
-            return Statuses.FAILED;
-        }
-        return bundleUploadResponseObserver.bundleUploadResponse.getStatus() == Status.SUCCESS ?
-               Statuses.COMPLETE :
-               Statuses.EMPTY;
+        return bundleUploadResponseObserver;
     }
 
     private Path downloadBundleViaPSI(List<String> encryptedBundleIds,
                                       BundleExchangeServiceGrpc.BundleExchangeServiceBlockingStub stub) throws
             IOException {
 
-        var psi = new BundleOwnershipPSI();
-        BigInteger clientSecret = psi.generateSecret();
-
-        // Blind the encrypted bundle IDs (same strings the transport has as filenames)
-        List<BigInteger> blindedValues = psi.clientBlindBundleIds(encryptedBundleIds, clientSecret);
-
-        var requestBuilder = PSIRequest.newBuilder();
-        for (BigInteger val : blindedValues) {
-            requestBuilder.addClientBlindedValues(PSIElement.newBuilder()
-                                                          .setValue(ByteString.copyFrom(val.toByteArray()))
-                                                          .build());
-        }
-
+        PSIGroup psi = PSIGroup.forVersion(PSIGroup.PREFERRED_VERSION);
+        byte[] clientSecret = psi.newSecret();
         PSIResponse psiResponse;
         try {
-            psiResponse =
-                    stub.withDeadlineAfter(GRPC_LONG_TIMEOUT_MS, MILLISECONDS).psiExchange(requestBuilder.build());
+            psiResponse = psiExchange(encryptedBundleIds, psi, clientSecret, stub);
+            if (psiResponse.getVersion() != psi.version()) {
+                // the transport doesn't do our group (a transport that predates versions answers in version 0)
+                var transportPsi = PSIGroup.forVersion(psiResponse.getVersion());
+                if (transportPsi == null) {
+                    logger.log(WARNING, "PSI: Transport wants unsupported PSI version " + psiResponse.getVersion());
+                    return null;
+                }
+                logger.log(INFO, "PSI: Transport asked for PSI version " + psiResponse.getVersion());
+                psi = transportPsi;
+                clientSecret = psi.newSecret();
+                psiResponse = psiExchange(encryptedBundleIds, psi, clientSecret, stub);
+                if (psiResponse.getVersion() != psi.version()) {
+                    logger.log(WARNING, "PSI: Transport did not agree on a PSI version");
+                    return null;
+                }
+            }
         } catch (StatusRuntimeException e) {
             if (e.getStatus().getCode() == io.grpc.Status.Code.UNIMPLEMENTED) {
                 logger.log(INFO, "Transport does not support PSI, falling back to legacy download");
@@ -475,16 +536,22 @@ public class ClientBundleTransmission {
             throw e;
         }
 
-        List<BigInteger> doublyBlinded = psiResponse.getDoublyBlindedClientValuesList()
+        List<byte[]> doublyBlinded = psiResponse.getDoublyBlindedClientValuesList()
                 .stream()
-                .map(e -> new BigInteger(1, e.getValue().toByteArray()))
+                .map(e -> e.getValue().toByteArray())
                 .collect(Collectors.toList());
-        List<BigInteger> transportValues = psiResponse.getTransportBlindedValuesList()
+        List<byte[]> transportValues = psiResponse.getTransportBlindedValuesList()
                 .stream()
-                .map(e -> new BigInteger(1, e.getValue().toByteArray()))
+                .map(e -> e.getValue().toByteArray())
                 .collect(Collectors.toList());
 
-        var matches = psi.clientFindMatches(doublyBlinded, transportValues, clientSecret);
+        List<BundleOwnershipPSI.PSIMatch> matches;
+        try {
+            matches = psi.clientFindMatches(doublyBlinded, transportValues, clientSecret);
+        } catch (IllegalArgumentException e) {
+            logger.log(WARNING, "PSI: Transport sent invalid PSI elements", e);
+            return null;
+        }
 
         if (matches.isEmpty()) {
             logger.log(INFO, "PSI: No matching bundles found on transport");
@@ -509,21 +576,14 @@ public class ClientBundleTransmission {
 
             logger.log(INFO, "PSI: Downloading match at transport index " + match.transportIndex());
 
-            var bundlePath = clientPaths.receiveBundlePath.resolve(encryptedBundleId);
             try {
-                var responses =
-                        stub.withDeadlineAfter(GRPC_LONG_TIMEOUT_MS, MILLISECONDS).psiDownloadBundle(downloadRequest);
-
-                try (var fileOutputStream = Files.newOutputStream(bundlePath,
-                                                                  StandardOpenOption.CREATE,
-                                                                  StandardOpenOption.TRUNCATE_EXISTING)) {
-                    while (responses.hasNext()) {
-                        var response = responses.next();
-                        fileOutputStream.write(response.getChunk().getChunk().toByteArray());
-                    }
-                }
-
-                if (Files.size(bundlePath) > 0) {
+                var bundlePath = downloadResumable(encryptedBundleId,
+                                                   offset -> stub.withDeadlineAfter(GRPC_LONG_TIMEOUT_MS,
+                                                                                    MILLISECONDS)
+                                                           .psiDownloadBundle(downloadRequest.toBuilder()
+                                                                                      .setOffset(offset)
+                                                                                      .build()));
+                if (bundlePath != null) {
                     return bundlePath;
                 }
             } catch (StatusRuntimeException e) {
@@ -537,6 +597,20 @@ public class ClientBundleTransmission {
         return null;
     }
 
+    /**
+     * Blind the encrypted bundle IDs (same strings the transport has as filenames) and send them to the transport.
+     */
+    private PSIResponse psiExchange(List<String> encryptedBundleIds,
+                                    PSIGroup psi,
+                                    byte[] clientSecret,
+                                    BundleExchangeServiceGrpc.BundleExchangeServiceBlockingStub stub) {
+        var requestBuilder = PSIRequest.newBuilder().setVersion(psi.version());
+        for (byte[] val : psi.clientBlindBundleIds(encryptedBundleIds, clientSecret)) {
+            requestBuilder.addClientBlindedValues(PSIElement.newBuilder().setValue(ByteString.copyFrom(val)).build());
+        }
+        return stub.withDeadlineAfter(GRPC_LONG_TIMEOUT_MS, MILLISECONDS).psiExchange(requestBuilder.build());
+    }
+
     private Path downloadBundles(List<String> bundleRequests,
                                  BundleSenderType senderType,
                                  BundleExchangeServiceGrpc.BundleExchangeServiceBlockingStub stub,
@@ -552,23 +626,13 @@ public class ClientBundleTransmission {
             }
 
             logger.log(INFO, "Downloading file: " + bundle);
-            var responses = stub.withDeadlineAfter(GRPC_LONG_TIMEOUT_MS, MILLISECONDS)
-                    .downloadBundle(downloadRequestBuilder.build());
-            OutputStream fileOutputStream = null;
-
-            var bundlePath = clientPaths.receiveBundlePath.resolve(bundle);
-
             try {
-                fileOutputStream = Files.newOutputStream(bundlePath,
-                                                         StandardOpenOption.CREATE,
-                                                         StandardOpenOption.TRUNCATE_EXISTING);
-
-                while (responses.hasNext()) {
-                    var response = responses.next();
-                    fileOutputStream.write(response.getChunk().getChunk().toByteArray());
-                }
-
-                if (Files.size(bundlePath) > 0) {
+                var bundlePath = downloadResumable(bundle,
+                                                   offset -> stub.withDeadlineAfter(GRPC_LONG_TIMEOUT_MS,
+                                                                                    MILLISECONDS)
+                                                           .downloadBundle(downloadRequestBuilder.setOffset(offset)
+                                                                                   .build()));
+                if (bundlePath != null) {
                     return bundlePath;
                 }
             } catch (StatusRuntimeException e) {
@@ -578,18 +642,53 @@ public class ClientBundleTransmission {
                 } else {
                     logger.log(SEVERE, "Receive bundle failed " + stub.getChannel(), e);
                 }
-            } finally {
-                if (fileOutputStream != null) {
-                    try {
-                        fileOutputStream.flush();
-                        fileOutputStream.close();
-                    } catch (IOException e) {
-                        logger.log(SEVERE, "Failed to close file output stream", e);
-                    }
-                }
             }
         }
         return null;
     }
-}
 
+    private interface DownloadCall {
+        Iterator<BundleDownloadResponse> start(long offset);
+    }
+
+    /**
+     * Download a bundle into the partial directory, resuming from what an earlier attempt left there, and move it to
+     * the receive directory once it is complete. A stream that breaks off is resumed up to MAX_TRANSFER_ATTEMPTS
+     * times; after that, or if the sender doesn't have the bundle, what we have is kept for the next exchange.
+     *
+     * @return the path of the downloaded bundle, or null if it was empty
+     */
+    private Path downloadResumable(String encryptedBundleId, DownloadCall call) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            var partial = PartialFile.open(clientPaths.partialBundlePath, encryptedBundleId);
+            try {
+                if (partial.getCommittedOffset() > 0) {
+                    logger.log(INFO, "Resuming download of " + encryptedBundleId + " at " + partial.getCommittedOffset());
+                }
+                var responses = call.start(partial.getCommittedOffset());
+                while (responses.hasNext()) {
+                    partial.write(responses.next().getChunk().getChunk().asReadOnlyByteBuffer());
+                }
+                if (partial.getSize() == 0) {
+                    partial.discard();
+                    return null;
+                }
+                var bundlePath = clientPaths.receiveBundlePath.resolve(encryptedBundleId);
+                partial.complete(bundlePath);
+                return bundlePath;
+            } catch (StatusRuntimeException e) {
+                if (e.getStatus().getCode() == io.grpc.Status.Code.OUT_OF_RANGE) {
+                    // the sender's bundle is not the one we have the start of
+                    partial.discard();
+                } else {
+                    partial.close();
+                }
+                if (attempt >= MAX_TRANSFER_ATTEMPTS || !ResumableTransfers.isRetryable(e)) throw e;
+                logger.log(WARNING, "Download attempt " + attempt + " of " + encryptedBundleId + " failed: " + e);
+            } catch (IOException e) {
+                partial.close();
+                throw e;
+            }
+        }
+    }
+}
@@ -1,13 +1,24 @@
 package net.discdd.model;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
 import java.util.Objects;
 import java.lang.Comparable;
 
 public class ADU implements Comparable<ADU> {
+    /**
+     * Opens the data of an ADU that doesn't have a file of its own.
+     */
+    public interface Opener {
+        InputStream open() throws IOException;
+    }
 
     private File source;
 
+    private Opener opener;
+
     private final String appId;
 
     private final long aduId;
@@ -24,6 +35,11 @@ public class ADU implements Comparable<ADU> {
         this.clientId = clientId;
     }
 
+    public ADU(File source, String appId, long aduId, long size, String clientId, Opener opener) {
+        this(source, appId, aduId, size, clientId);
+        this.opener = opener;
+    }
+
     public ADU(File source, String appId, long aduId, long size) {
         this.source = source;
         this.appId = appId;
@@ -35,6 +51,14 @@ public class ADU implements Comparable<ADU> {
         return this.source;
     }
 
+    /**
+     * @return the data of the ADU. ADUs from a store that keeps them in segments have the segment as their source,
+     * so read them with this rather than from the source.
+     */
+    public InputStream openStream() throws IOException {
+        return opener == null ? Files.newInputStream(source.toPath()) : opener.open();
+    }
+
     public long getSize() {
         return this.size;
     }
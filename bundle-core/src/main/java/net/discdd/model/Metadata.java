@@ -6,4 +6,10 @@ public class Metadata {
 
     // last ADU id deleted
     public long lastAduDeleted;
+
+    // store generation of the last change to the ADUs
+    public long generation;
+
+    // generation up to which the ADUs have gone out in a bundle
+    public long cleanGeneration;
 }
\ No newline at end of file
@@ -0,0 +1,13 @@
+package net.discdd.model;
+
+import java.nio.file.Path;
+
+/**
+ * The outer layer of a received bundle: the (still encrypted) bundle ID and the key files from the bundle header,
+ * held in memory, plus the location the encrypted payload was spooled to.
+ */
+public record ReceivedBundle(String bundleId,
+                             byte[] encryptedClientIdentityKey,
+                             byte[] clientBaseKey,
+                             byte[] serverIdentityKey,
+                             Path encryptedPayload) {}
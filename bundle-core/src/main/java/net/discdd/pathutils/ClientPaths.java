@@ -16,8 +16,11 @@ public class ClientPaths {
     // client window
     public static final String CLIENT_WINDOW_SUBDIR = "ClientWindow";
     private static final String WINDOW_FILE = "clientWindow.csv";
+    private static final String WINDOW_LOG_FILE = "clientWindow.log";
     public final Path clientWindowDataPath;
+    // only read to migrate windows written before the log
     public final Path dbFile;
+    public final Path windowLogFile;
 
     // client bundle generator
     public final Path counterFilePath;
@@ -39,8 +42,10 @@ public class ClientPaths {
     private static final String RECEIVED_PROCESSING = "received-processing";
     private static final String LARGEST_BUNDLE_ID_RECEIVED = "Shared/DB/LARGEST_BUNDLE_ID_RECEIVED.txt";
     private static final String RECEIVED_BUNDLES_DIRECTORY = "Shared/received-bundles";
+    private static final String PARTIAL_BUNDLES_DIRECTORY = "Shared/partial-bundles";
     private static final String SENT_BUNDLE_DETAILS = "Shared/DB/SENT_BUNDLE_DETAILS.json";
     private static final String LAST_SENT_BUNDLE_STRUCTURE = "Shared/DB/LAST_SENT_BUNDLE_STRUCTURE.json";
+    private static final String COMPRESSION_DIRECTORY = "Shared/compression";
 
     public static final Long APP_DATA_SIZE_LIMIT = 1000000000L;
     public static final Long BUNDLE_SIZE_LIMIT = 100_000_000L;
@@ -58,9 +63,13 @@ public class ClientPaths {
     public final Path uncompressedPayloadStore;
     public final Path largestBundleIdReceived;
     public final Path receiveBundlePath;
+    // bundles whose download broke off, kept so that it can be resumed
+    public final Path partialBundlePath;
     public final Path sendADUsPath;
     public final Path receiveADUsPath;
     public final Path sendBundleDetailsPath;
+    // compression policies and dictionaries, see CompressionPolicies
+    public final Path compressionPath;
 
     public final Path bundleSecurityPath;
     public final Path serverKeyPath;
@@ -104,11 +113,13 @@ public class ClientPaths {
         largestBundleIdReceived = rootDir.resolve(LARGEST_BUNDLE_ID_RECEIVED);
         receiveBundlePath = rootDir.resolve(RECEIVED_BUNDLES_DIRECTORY);
         receiveBundlePath.toFile().mkdirs();
+        partialBundlePath = rootDir.resolve(PARTIAL_BUNDLES_DIRECTORY);
 
         // Application Data Manager
         sendADUsPath = rootDir.resolve("send");
         receiveADUsPath = rootDir.resolve("receive");
         sendBundleDetailsPath = rootDir.resolve(SENT_BUNDLE_DETAILS);
+        compressionPath = rootDir.resolve(COMPRESSION_DIRECTORY);
 
         // Bundle security directory
         bundleSecurityPath = rootDir.resolve(SecurityUtils.BUNDLE_SECURITY_DIR);
@@ -139,6 +150,7 @@ public class ClientPaths {
         clientWindowDataPath = rootDir.resolve(CLIENT_WINDOW_SUBDIR);
         clientWindowDataPath.toFile().mkdirs();
         dbFile = clientWindowDataPath.resolve(WINDOW_FILE);
+        windowLogFile = clientWindowDataPath.resolve(WINDOW_LOG_FILE);
 
         // client security
         clientKeyPath = bundleSecurityPath.resolve(SecurityUtils.CLIENT_KEY_PATH);
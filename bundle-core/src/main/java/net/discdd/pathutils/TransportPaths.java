@@ -16,12 +16,14 @@ import static java.util.logging.Level.SEVERE;
 //        |_ BundleTransmission
 //            |_ client - bundles to send to client + recencyBlob
 //            |_ server - bundles to send to server
+//            |_ partial - bundles whose upload or download broke off
 
 public class TransportPaths {
     private static final Logger logger = Logger.getLogger(TransportPaths.class.getName());
     public final Path toRootDir;
     public final Path toClientPath;
     public final Path toServerPath;
+    public final Path partialPath;
     public final Path grpcSecurityPath;
     public final Path crashReportPath;
 
@@ -30,6 +32,7 @@ public class TransportPaths {
         this.toRootDir = rootDir;
         this.toClientPath = rootDir.resolve("BundleTransmission/client");
         this.toServerPath = rootDir.resolve("BundleTransmission/server");
+        this.partialPath = rootDir.resolve("BundleTransmission/partial");
         this.crashReportPath = rootDir.resolve("crash_report.txt");
 
         try {
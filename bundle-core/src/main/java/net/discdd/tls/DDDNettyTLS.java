@@ -15,6 +15,7 @@ import java.security.KeyPair;
 import java.security.cert.X509Certificate;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 
 public class DDDNettyTLS {
@@ -30,7 +31,8 @@ public class DDDNettyTLS {
                         .build();
         var serviceBuilder = NettyServerBuilder.forPort(port)
                 .sslContext(sslServerContext)
-                .maxInboundMessageSize(53 * 1024 * 1024); // 53 MB
+                .maxInboundMessageSize(53 * 1024 * 1024) // 53 MB
+                .permitKeepAliveTime(GrpcChannelPool.PERMIT_KEEPALIVE_TIME_MS, TimeUnit.MILLISECONDS);
         for (var service : services) {
             serviceBuilder.addService(service);
         }
@@ -0,0 +1,182 @@
+package net.discdd.tls;
+
+import io.grpc.ConnectivityState;
+import io.grpc.ManagedChannel;
+import io.grpc.StatusRuntimeException;
+import io.grpc.okhttp.OkHttpChannelBuilder;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.INFO;
+
+/**
+ * Long-lived TLS channels to bundle servers and transports, keyed by host, port and the key pair we authenticate
+ * with. A channel keeps its connection between exchanges, so only the first exchange with a peer pays for the TLS
+ * handshake and the certificate checks.
+ *
+ * <p>Every {@link #acquire} is paired with a {@link #release} once the exchange is done. A channel that nobody has
+ * acquired for the idle time is shut down, and its connection is closed by the channel itself after the same time.
+ * While a call is in progress keepalive pings notice a connection that has gone away. A channel whose connection
+ * failed is told to reconnect right away on its next use rather than waiting out its backoff, and callers that see a
+ * call fail because of the connection can {@link #reconnect} to drop the channel and get a new one.
+ */
+public class GrpcChannelPool {
+    private static final Logger logger = Logger.getLogger(GrpcChannelPool.class.getName());
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(5);
+    public static final long KEEPALIVE_TIME_MS = TimeUnit.SECONDS.toMillis(30);
+    public static final long KEEPALIVE_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(10);
+    // servers have to allow our pings, by default they hang up on clients that ping more often than every 5 minutes
+    public static final long PERMIT_KEEPALIVE_TIME_MS = TimeUnit.SECONDS.toMillis(20);
+    private static final GrpcChannelPool shared = new GrpcChannelPool(DEFAULT_IDLE_TIMEOUT_MS,
+                                                                      GrpcChannelPool::createChannel);
+
+    interface ChannelFactory {
+        ManagedChannel create(GrpcSecurityKey key, String host, int port, long idleTimeoutMs) throws Exception;
+    }
+
+    private record PoolKey(String host, int port, String keyName) {}
+
+    private static class PooledChannel {
+        final ManagedChannel channel;
+        int users;
+        long lastUsed;
+
+        PooledChannel(ManagedChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    private final long idleTimeoutMs;
+    private final ChannelFactory factory;
+    // guarded by this
+    private final Map<PoolKey, PooledChannel> channels = new HashMap<>();
+
+    GrpcChannelPool(long idleTimeoutMs, ChannelFactory factory) {
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.factory = factory;
+    }
+
+    /**
+     * @return the pool shared by everything in this process
+     */
+    public static GrpcChannelPool getShared() {
+        return shared;
+    }
+
+    /**
+     * Create a TLS channel to host:port that authenticates with key. It is not pooled; the caller shuts it down.
+     */
+    public static ManagedChannel createChannel(GrpcSecurityKey key, String host, int port, long idleTimeoutMs) throws
+            Exception {
+        var sslClientContext = SSLContext.getInstance("TLS");
+        sslClientContext.init(DDDTLSUtil.getKeyManagerFactory(key.grpcKeyPair, key.grpcCert).getKeyManagers(),
+                              new TrustManager[] { new DDDX509ExtendedTrustManager(true) },
+                              new SecureRandom());
+        return OkHttpChannelBuilder.forAddress(host, port)
+                .hostnameVerifier((h, session) -> true)
+                .useTransportSecurity()
+                .sslSocketFactory(sslClientContext.getSocketFactory())
+                .keepAliveTime(KEEPALIVE_TIME_MS, TimeUnit.MILLISECONDS)
+                .keepAliveTimeout(KEEPALIVE_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .keepAliveWithoutCalls(false)
+                .idleTimeout(idleTimeoutMs, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * @return a channel to host:port that authenticates with key, reusing the pooled one if it is still usable
+     */
+    public synchronized ManagedChannel acquire(GrpcSecurityKey key, String host, int port) throws Exception {
+        long now = System.currentTimeMillis();
+        evictIdle(now);
+        var poolKey = new PoolKey(host, port, DDDTLSUtil.publicKeyToName(key.grpcKeyPair.getPublic()));
+        var pooled = channels.get(poolKey);
+        if (pooled != null) {
+            var state = pooled.channel.getState(false);
+            if (state == ConnectivityState.SHUTDOWN) {
+                channels.remove(poolKey);
+                pooled = null;
+            } else if (state == ConnectivityState.TRANSIENT_FAILURE) {
+                // the peer may be back, don't make the exchange wait for the reconnect backoff
+                pooled.channel.resetConnectBackoff();
+            }
+        }
+        if (pooled == null) {
+            logger.log(INFO, "Opening channel to " + host + ":" + port);
+            pooled = new PooledChannel(factory.create(key, host, port, idleTimeoutMs));
+            channels.put(poolKey, pooled);
+        }
+        pooled.users++;
+        pooled.lastUsed = now;
+        return pooled.channel;
+    }
+
+    /**
+     * Give back a channel returned by {@link #acquire}.
+     */
+    public synchronized void release(ManagedChannel channel) {
+        for (var pooled : channels.values()) {
+            if (pooled.channel == channel) {
+                pooled.users--;
+                pooled.lastUsed = System.currentTimeMillis();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Drop channel from the pool and shut it down, for instance because its peer has gone away. Calls still in
+     * progress on it are cancelled.
+     */
+    public synchronized void invalidate(ManagedChannel channel) {
+        channels.values().removeIf(pooled -> pooled.channel == channel);
+        channel.shutdownNow();
+    }
+
+    /**
+     * Replace a channel whose connection turned out to be broken with a new one to the same peer. The new channel
+     * is acquired in place of the old one.
+     */
+    public synchronized ManagedChannel reconnect(ManagedChannel channel,
+                                                 GrpcSecurityKey key,
+                                                 String host,
+                                                 int port) throws Exception {
+        logger.log(INFO, "Reconnecting to " + host + ":" + port);
+        invalidate(channel);
+        return acquire(key, host, port);
+    }
+
+    /**
+     * @return whether a call failed with t because of the connection rather than the peer's answer, so that it is
+     *         worth trying again on a new connection. A call that ran out of time (DEADLINE_EXCEEDED) doesn't count:
+     *         the peer may just be slow, and the connection is still good for other calls.
+     */
+    public static boolean isConnectionFailure(Throwable t) {
+        return t instanceof StatusRuntimeException sre && sre.getStatus().getCode() == io.grpc.Status.Code.UNAVAILABLE;
+    }
+
+    private void evictIdle(long now) {
+        for (Iterator<PooledChannel> it = channels.values().iterator(); it.hasNext(); ) {
+            var pooled = it.next();
+            if (pooled.users <= 0 && now - pooled.lastUsed >= idleTimeoutMs) {
+                it.remove();
+                pooled.channel.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Shut down every channel in the pool.
+     */
+    public synchronized void shutdown() {
+        channels.values().forEach(pooled -> pooled.channel.shutdown());
+        channels.clear();
+    }
+}
@@ -3,9 +3,12 @@ package net.discdd.transport;
 import com.google.protobuf.ByteString;
 import io.grpc.ManagedChannel;
 import io.grpc.StatusRuntimeException;
-import io.grpc.okhttp.OkHttpChannelBuilder;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
 import io.grpc.stub.StreamObserver;
 import net.discdd.bundlerouting.service.BundleUploadResponseObserver;
+import net.discdd.bundlerouting.service.PartialFile;
+import net.discdd.bundlerouting.service.ResumableTransfers;
 import net.discdd.grpc.BundleChunk;
 import net.discdd.grpc.BundleDownloadRequest;
 import net.discdd.grpc.BundleDownloadResponse;
@@ -20,43 +23,62 @@ import net.discdd.grpc.EncryptedBundleId;
 import net.discdd.grpc.CheckMessagesRequest;
 import net.discdd.grpc.GetRecencyBlobRequest;
 import net.discdd.grpc.ServerMessage;
+import net.discdd.grpc.Status;
+import net.discdd.grpc.UploadSession;
 import net.discdd.pathutils.TransportPaths;
-import net.discdd.tls.DDDTLSUtil;
-import net.discdd.tls.DDDX509ExtendedTrustManager;
+import net.discdd.tls.GrpcChannelPool;
 import net.discdd.tls.GrpcSecurityKey;
 import net.discdd.utils.Constants;
 
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManager;
 import java.io.File;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
-import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import static java.util.logging.Level.INFO;
 import static java.util.logging.Level.SEVERE;
+import static java.util.logging.Level.WARNING;
 
 public class TransportToBundleServerManager {
 
     private static final Logger logger = Logger.getLogger(TransportToBundleServerManager.class.getName());
     public static final String RECENCY_BLOB_BIN = "recencyBlob.bin";
+    public static final int DEFAULT_MAX_IN_FLIGHT_STREAMS = 4;
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    private static final int UPLOAD_CHUNK_SIZE = 1024 * 1024;
+    private static final long RETRY_BACKOFF_MS = 500;
     private final Path fromClientPath;
     private final Path fromServerPath;
+    private final Path partialPath;
     private final Path crashReportsPath;
     private final String serverHost;
     private final int serverPort;
     private final GrpcSecurityKey grpcSecurityKey;
+    private int maxInFlightStreams = DEFAULT_MAX_IN_FLIGHT_STREAMS;
+    private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    // null if the channel was supplied by the caller
+    private final GrpcChannelPool channelPool;
+    // the channel acquired from the pool, kept between exchanges, guarded by this
+    private ManagedChannel channel;
+    // the pool that runs the uploads and downloads of an exchange, its size is the in-flight stream limit
+    private ExecutorService transferExecutor;
 
     public TransportToBundleServerManager(GrpcSecurityKey grpcSecurityKey,
                                           TransportPaths transportPaths,
@@ -65,8 +87,26 @@ public class TransportToBundleServerManager {
         this.grpcSecurityKey = grpcSecurityKey;
         this.serverHost = host;
         this.serverPort = Integer.parseInt(port);
+        this.channelPool = GrpcChannelPool.getShared();
         this.fromClientPath = transportPaths.toServerPath;
         this.fromServerPath = transportPaths.toClientPath;
+        this.partialPath = transportPaths.partialPath;
+        this.crashReportsPath = transportPaths.crashReportPath;
+    }
+
+    /**
+     * Exchange over a channel supplied by the caller, for instance a plaintext channel in tests. The caller still
+     * owns the channel, but {@link #shutdown()} will shut it down.
+     */
+    public TransportToBundleServerManager(ManagedChannel channel, TransportPaths transportPaths) {
+        this.grpcSecurityKey = null;
+        this.serverHost = null;
+        this.serverPort = 0;
+        this.channelPool = null;
+        this.channel = channel;
+        this.fromClientPath = transportPaths.toServerPath;
+        this.fromServerPath = transportPaths.toClientPath;
+        this.partialPath = transportPaths.partialPath;
         this.crashReportsPath = transportPaths.crashReportPath;
     }
 
@@ -76,73 +116,146 @@ public class TransportToBundleServerManager {
         public int downloadCount = 0;
         public int toDownloadCount = 0;
         public int deleteCount = 0;
+        public boolean uploadsDeferred = false; // the server asked us to keep our bundles for a later exchange
         public List<ServerMessage> serverMessages = new ArrayList<>();
     }
 
+    /**
+     * Set the maximum number of uploads and downloads that will be in progress at the same time.
+     */
+    public synchronized void setMaxInFlightStreams(int maxInFlightStreams) {
+        if (maxInFlightStreams <= 0) {
+            throw new IllegalArgumentException("maxInFlightStreams must be positive: " + maxInFlightStreams);
+        }
+        this.maxInFlightStreams = maxInFlightStreams;
+        if (transferExecutor != null) {
+            transferExecutor.shutdown();
+            transferExecutor = null;
+        }
+    }
+
+    /**
+     * Set how many times an upload or download of a single bundle will be tried before giving up on it.
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        if (maxAttempts <= 0) {
+            throw new IllegalArgumentException("maxAttempts must be positive: " + maxAttempts);
+        }
+        this.maxAttempts = maxAttempts;
+    }
+
     public ExchangeResult doExchange() throws Exception {
         return doExchange(0);
     }
 
     public ExchangeResult doExchange(long lastMessageId) throws Exception {
-        ManagedChannel channel = null;
+        try {
+            return doExchange(getChannel(), lastMessageId);
+        } catch (Exception e) {
+            if (channelPool == null || !GrpcChannelPool.isConnectionFailure(e)) throw e;
+            // the connection kept from the last exchange may be broken without the channel having noticed yet. the
+            // exchange is driven by the inventory, so running it again only transfers what is still missing.
+            return doExchange(reconnect(), lastMessageId);
+        }
+    }
+
+    private ExchangeResult doExchange(ManagedChannel channel, long lastMessageId) throws Exception {
         ExchangeResult exchangeResult = new ExchangeResult();
+        var bsStub = BundleServerServiceGrpc.newBlockingStub(channel);
+
+        var exchangeStub = BundleExchangeServiceGrpc.newStub(channel);
+        var blockingExchangeStub = BundleExchangeServiceGrpc.newBlockingStub(channel);
+        PartialFile.deleteStale(partialPath, PartialFile.STALE_AFTER_MS);
+        var bundlesFromClients = populateListFromPath(fromClientPath);
+        var bundlesFromServer = populateListFromPath(fromServerPath);
+
+        if (crashReportsPath.toFile().exists()) {
+            var collectedCrashes = bsStub.withDeadlineAfter(Constants.GRPC_LONG_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                    .crashReports(CrashReportRequest.newBuilder()
+                                          .setCrashReportData(ByteString.copyFrom(Files.readAllBytes(
+                                                  crashReportsPath)))
+                                          .build());
+        }
+        var inventoryResponse = bsStub.withDeadlineAfter(Constants.GRPC_LONG_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .bundleInventory(BundleInventoryRequest.newBuilder()
+                                         .addAllBundlesFromClientsOnTransport(bundlesFromClients)
+                                         .addAllBundlesFromServerOnTransport(bundlesFromServer)
+                                         .build());
+
+        exchangeResult.toUploadCount = inventoryResponse.getBundlesToUploadCount();
+        exchangeResult.toDownloadCount = inventoryResponse.getBundlesToDownloadCount();
+        exchangeResult.uploadsDeferred = inventoryResponse.getDeferUploads();
+        if (exchangeResult.uploadsDeferred) {
+            logger.log(INFO, "Server is busy, keeping " + bundlesFromClients.size() + " bundles for the next exchange");
+        }
+        // uploads, downloads, and deletes don't depend on each other, so run them all at once. the uploads and
+        // downloads share the transfer pool, so together they stay under the in-flight stream limit. the deletes
+        // are done on this thread while they run.
+        var uploads = submitTransfers("upload",
+                                      inventoryResponse.getBundlesToUploadList(),
+                                      uploadTransfers(exchangeStub, blockingExchangeStub));
+        var downloads = submitTransfers("download",
+                                        inventoryResponse.getBundlesToDownloadList(),
+                                        downloadTransfers(exchangeStub));
+        exchangeResult.deleteCount = processDeleteBundles(inventoryResponse.getBundlesToDeleteList());
+        exchangeResult.uploadCount = awaitTransfers("upload", uploads);
+        exchangeResult.downloadCount = awaitTransfers("download", downloads);
+        processRecencyBlob(blockingExchangeStub);
+
+        var messagesResponse = bsStub.withDeadlineAfter(Constants.GRPC_SHORT_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .checkMessages(CheckMessagesRequest.newBuilder().setLastMessageId(lastMessageId).build());
+        exchangeResult.serverMessages = messagesResponse.getServerMessageList();
+
+        logger.log(INFO, "Connect server completed");
+        return exchangeResult;
+    }
+
+    /**
+     * Get the channel to the server from the channel pool, the first time or when the previous one was shut down.
+     * HTTP/2 multiplexes all the streams of an exchange over this one connection.
+     */
+    private synchronized ManagedChannel getChannel() throws Exception {
+        if (channelPool != null && (channel == null || channel.isShutdown())) {
+            if (channel != null) channelPool.release(channel);
+            channel = channelPool.acquire(grpcSecurityKey, serverHost, serverPort);
+        }
+        return channel;
+    }
+
+    private synchronized ManagedChannel reconnect() throws Exception {
+        logger.log(WARNING, "Exchange failed on the kept connection to " + serverHost + ", reconnecting");
+        channel = channelPool.reconnect(channel, grpcSecurityKey, serverHost, serverPort);
+        return channel;
+    }
+
+    private synchronized ExecutorService getTransferExecutor() {
+        if (transferExecutor == null) {
+            transferExecutor = Executors.newFixedThreadPool(maxInFlightStreams);
+        }
+        return transferExecutor;
+    }
+
+    /**
+     * Close the channel to the server and stop the transfer threads. The next exchange will open a new channel.
+     */
+    public synchronized void shutdown() {
+        if (transferExecutor != null) {
+            transferExecutor.shutdownNow();
+            transferExecutor = null;
+        }
         try {
-            var sslClientContext = SSLContext.getInstance("TLS");
-            sslClientContext.init(DDDTLSUtil.getKeyManagerFactory(grpcSecurityKey.grpcKeyPair, grpcSecurityKey.grpcCert)
-                                          .getKeyManagers(),
-                                  new TrustManager[] { new DDDX509ExtendedTrustManager(true) },
-                                  new SecureRandom());
-
-            channel = OkHttpChannelBuilder.forAddress(serverHost, serverPort)
-                    .hostnameVerifier((host, session) -> true)
-                    .useTransportSecurity()
-                    .sslSocketFactory(sslClientContext.getSocketFactory())
-                    .build();
-
-            var bsStub = BundleServerServiceGrpc.newBlockingStub(channel);
-
-            var exchangeStub = BundleExchangeServiceGrpc.newStub(channel);
-            var blockingExchangeStub = BundleExchangeServiceGrpc.newBlockingStub(channel);
-            var bundlesFromClients = populateListFromPath(fromClientPath);
-            var bundlesFromServer = populateListFromPath(fromServerPath);
-
-            if (crashReportsPath.toFile().exists()) {
-                var collectedCrashes = bsStub.withDeadlineAfter(Constants.GRPC_LONG_TIMEOUT_MS, TimeUnit.MILLISECONDS)
-                        .crashReports(CrashReportRequest.newBuilder()
-                                              .setCrashReportData(ByteString.copyFrom(Files.readAllBytes(
-                                                      crashReportsPath)))
-                                              .build());
-            }
-            var inventoryResponse = bsStub.withDeadlineAfter(Constants.GRPC_LONG_TIMEOUT_MS, TimeUnit.MILLISECONDS)
-                    .bundleInventory(BundleInventoryRequest.newBuilder()
-                                             .addAllBundlesFromClientsOnTransport(bundlesFromClients)
-                                             .addAllBundlesFromServerOnTransport(bundlesFromServer)
-                                             .build());
-
-            exchangeResult.downloadCount = inventoryResponse.getBundlesToDeleteCount();
-            processDeleteBundles(inventoryResponse.getBundlesToDeleteList());
-            exchangeResult.toUploadCount = inventoryResponse.getBundlesToUploadCount();
-            exchangeResult.uploadCount = processUploadBundles(inventoryResponse.getBundlesToUploadList(), exchangeStub);
-            exchangeResult.toDownloadCount = inventoryResponse.getBundlesToDownloadCount();
-            exchangeResult.downloadCount =
-                    processDownloadBundles(inventoryResponse.getBundlesToDownloadList(), exchangeStub);
-            processRecencyBlob(blockingExchangeStub);
-
-            var messagesResponse = bsStub.withDeadlineAfter(Constants.GRPC_SHORT_TIMEOUT_MS, TimeUnit.MILLISECONDS)
-                    .checkMessages(CheckMessagesRequest.newBuilder().setLastMessageId(lastMessageId).build());
-            exchangeResult.serverMessages = messagesResponse.getServerMessageList();
-
-            logger.log(INFO, "Connect server completed");
-        } finally {
-            try {
-                if (channel != null) {
-                    channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+            if (channel != null) {
+                if (channelPool != null) {
+                    channelPool.invalidate(channel);
+                } else {
+                    channel.shutdown();
                 }
-            } catch (InterruptedException e) {
-                logger.log(SEVERE, "could not shutdown channel, error: " + e.getMessage() + ", cause: " + e.getCause());
+                channel.awaitTermination(5, TimeUnit.SECONDS);
             }
+        } catch (InterruptedException e) {
+            logger.log(SEVERE, "could not shutdown channel, error: " + e.getMessage() + ", cause: " + e.getCause());
         }
-        return exchangeResult;
+        channel = null;
     }
 
     private void processRecencyBlob(BundleExchangeServiceGrpc.BundleExchangeServiceBlockingStub blockingExchangeStub) {
@@ -160,105 +273,277 @@ public class TransportToBundleServerManager {
         }
     }
 
+    private interface Transfer {
+        void run() throws Exception;
+    }
+
+    /**
+     * Runs each transfer on the transfer pool, retrying it up to maxAttempts times, and waits for them all.
+     *
+     * @return the number of transfers that succeeded
+     */
+    private int runTransfers(String what,
+                             List<EncryptedBundleId> bundleIds,
+                             Function<EncryptedBundleId, Transfer> transfers) {
+        return awaitTransfers(what, submitTransfers(what, bundleIds, transfers));
+    }
+
+    /**
+     * Queues each transfer on the transfer pool, to be retried up to maxAttempts times, without waiting for them.
+     */
+    private List<Future<Boolean>> submitTransfers(String what,
+                                                  List<EncryptedBundleId> bundleIds,
+                                                  Function<EncryptedBundleId, Transfer> transfers) {
+        var executor = getTransferExecutor();
+        var futures = new ArrayList<Future<Boolean>>();
+        for (var bundleId : bundleIds) {
+            var transfer = transfers.apply(bundleId);
+            futures.add(executor.submit(() -> withRetries(what + " " + bundleId.getEncryptedId(), transfer)));
+        }
+        return futures;
+    }
+
+    /**
+     * @return the number of transfers that succeeded
+     */
+    private int awaitTransfers(String what, List<Future<Boolean>> futures) {
+        int succeeded = 0;
+        for (var future : futures) {
+            try {
+                if (future.get()) succeeded++;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.log(SEVERE, "Interrupted waiting for " + what);
+                break;
+            } catch (ExecutionException e) {
+                logger.log(SEVERE, "Failed " + what, e.getCause());
+            }
+        }
+        return succeeded;
+    }
+
+    private boolean withRetries(String what, Transfer transfer) throws InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                transfer.run();
+                return true;
+            } catch (Exception e) {
+                var cause = e instanceof ExecutionException ? e.getCause() : e;
+                if (attempt >= maxAttempts || !ResumableTransfers.isRetryable(cause)) {
+                    var level = isNotFound(cause) ? Level.FINE : SEVERE;
+                    logger.log(level, "Giving up on " + what + " after " + attempt + " attempts", cause);
+                    return false;
+                }
+                logger.log(WARNING, "Attempt " + attempt + " of " + what + " failed, retrying: " + cause);
+                Thread.sleep(RETRY_BACKOFF_MS * attempt);
+            }
+        }
+    }
+
+    private static boolean isNotFound(Throwable t) {
+        // this is not an unexpected error, since we probe for bundles that we hope are there
+        return t instanceof StatusRuntimeException sre && sre.getStatus().getCode() == io.grpc.Status.Code.NOT_FOUND;
+    }
+
     private int processDownloadBundles(List<EncryptedBundleId> bundlesToDownloadList,
                                        BundleExchangeServiceGrpc.BundleExchangeServiceStub exchangeStub) {
-        int downloadCount = 0;
-        for (var toReceive : bundlesToDownloadList) {
-            var path = fromServerPath.resolve(toReceive.getEncryptedId());
-            try (OutputStream os = Files.newOutputStream(path,
-                                                         StandardOpenOption.CREATE,
-                                                         StandardOpenOption.TRUNCATE_EXISTING)) {
-                var completion = new CompletableFuture<Boolean>();
-                exchangeStub.withDeadlineAfter(Constants.GRPC_LONG_TIMEOUT_MS, TimeUnit.MILLISECONDS)
-                        .downloadBundle(BundleDownloadRequest.newBuilder()
-                                                .setBundleId(toReceive)
-                                                .setSenderType(BundleSenderType.TRANSPORT)
-                                                .build(), new StreamObserver<>() {
-                            @Override
-                            public void onNext(BundleDownloadResponse value) {
-                                try {
-                                    os.write(value.getChunk().getChunk().toByteArray());
-                                } catch (IOException e) {
-                                    onError(e);
-                                }
-                            }
+        return runTransfers("download", bundlesToDownloadList, downloadTransfers(exchangeStub));
+    }
 
-                            @Override
-                            public void onError(Throwable t) {
-                                var level = SEVERE;
-                                if (t instanceof StatusRuntimeException sre) {
-                                    if (sre.getStatus().getCode() == io.grpc.Status.Code.NOT_FOUND) {
-                                        // this is not an unexpected error, since we probe for bundles that we
-                                        // hope are there
-                                        level = Level.FINE;
-                                    }
-                                }
-                                logger.log(level, "Failed to download file: " + path, t);
-                                completion.completeExceptionally(t);
-                            }
+    private Function<EncryptedBundleId, Transfer> downloadTransfers(
+            BundleExchangeServiceGrpc.BundleExchangeServiceStub exchangeStub) {
+        return toReceive -> () -> downloadBundle(toReceive, exchangeStub);
+    }
 
-                            @Override
-                            public void onCompleted() {
-                                logger.log(INFO, "Downloaded " + path);
-                                completion.complete(true);
+    /**
+     * Download one bundle. It is received into the partial directory, so a download that breaks off is resumed from
+     * where it stopped by the next attempt, and an inventory never lists a partial bundle.
+     */
+    private void downloadBundle(EncryptedBundleId toReceive,
+                                BundleExchangeServiceGrpc.BundleExchangeServiceStub exchangeStub) throws Exception {
+        var path = fromServerPath.resolve(toReceive.getEncryptedId());
+        var partial = PartialFile.open(partialPath, "download-" + toReceive.getEncryptedId());
+        try {
+            var completion = new CompletableFuture<Boolean>();
+            exchangeStub.withDeadlineAfter(Constants.GRPC_LONG_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                    .downloadBundle(BundleDownloadRequest.newBuilder()
+                                            .setBundleId(toReceive)
+                                            .setSenderType(BundleSenderType.TRANSPORT)
+                                            .setOffset(partial.getCommittedOffset())
+                                            .build(), new StreamObserver<>() {
+                        @Override
+                        public void onNext(BundleDownloadResponse value) {
+                            try {
+                                partial.write(value.getChunk().getChunk().asReadOnlyByteBuffer());
+                            } catch (IOException e) {
+                                onError(e);
                             }
-                        });
+                        }
+
+                        @Override
+                        public void onError(Throwable t) {
+                            completion.completeExceptionally(t);
+                        }
 
-                completion.get(Constants.GRPC_LONG_TIMEOUT_MS, TimeUnit.MILLISECONDS);
-                downloadCount++;
-            } catch (IOException | ExecutionException | InterruptedException | TimeoutException e) {
-                logger.log(SEVERE, "Failed to download file: " + path, e);
+                        @Override
+                        public void onCompleted() {
+                            completion.complete(true);
+                        }
+                    });
+
+            completion.get(Constants.GRPC_LONG_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            partial.complete(path);
+            logger.log(INFO, "Downloaded " + path);
+        } catch (Exception e) {
+            var cause = e instanceof ExecutionException ? e.getCause() : e;
+            if (cause instanceof StatusRuntimeException sre &&
+                    sre.getStatus().getCode() == io.grpc.Status.Code.OUT_OF_RANGE) {
+                // the server's bundle is not the one we have the start of
+                partial.discard();
+            } else {
+                // keep what we have for the next attempt
+                partial.close();
             }
+            throw e;
         }
-        return downloadCount;
     }
 
     private int processUploadBundles(List<EncryptedBundleId> bundlesToUploadList,
-                                     BundleExchangeServiceGrpc.BundleExchangeServiceStub exchangeStub) {
-        int uploadCount = 0;
-        for (var toSend : bundlesToUploadList) {
-            var path = fromClientPath.resolve(toSend.getEncryptedId());
-            StreamObserver<BundleUploadResponse> responseObserver = null;
-            try (var is = Files.newInputStream(path, StandardOpenOption.READ)) {
-                responseObserver = new BundleUploadResponseObserver();
-                var uploadRequestStreamObserver =
-                        exchangeStub.withDeadlineAfter(Constants.GRPC_LONG_TIMEOUT_MS, TimeUnit.MILLISECONDS)
-                                .uploadBundle(responseObserver);
+                                     BundleExchangeServiceGrpc.BundleExchangeServiceStub exchangeStub,
+                                     BundleExchangeServiceGrpc.BundleExchangeServiceBlockingStub blockingStub) {
+        return runTransfers("upload", bundlesToUploadList, uploadTransfers(exchangeStub, blockingStub));
+    }
+
+    private Function<EncryptedBundleId, Transfer> uploadTransfers(
+            BundleExchangeServiceGrpc.BundleExchangeServiceStub exchangeStub,
+            BundleExchangeServiceGrpc.BundleExchangeServiceBlockingStub blockingStub) {
+        return toSend -> {
+            var token = ResumableTransfers.newUploadToken();
+            return () -> uploadBundle(toSend, token, exchangeStub, blockingStub);
+        };
+    }
+
+    /**
+     * Upload one bundle, and delete it once the server has acknowledged it. Chunks are only sent when the stream is
+     * ready for them, so a slow server does not make us buffer the whole bundle. Every attempt asks the server how
+     * much of the upload with token it already has and sends only the rest.
+     */
+    private void uploadBundle(EncryptedBundleId toSend,
+                              String token,
+                              BundleExchangeServiceGrpc.BundleExchangeServiceStub exchangeStub,
+                              BundleExchangeServiceGrpc.BundleExchangeServiceBlockingStub blockingStub) throws
+            Exception {
+        var path = fromClientPath.resolve(toSend.getEncryptedId());
+        long offset = ResumableTransfers.queryUploadOffset(blockingStub, token);
+        var responseObserver = new FlowControlledUploadObserver();
+        StreamObserver<BundleUploadRequest> uploadRequestStreamObserver = null;
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (offset > 0) {
+                logger.log(INFO, "Resuming upload of " + toSend.getEncryptedId() + " at " + offset);
+                channel.position(offset);
+            }
+            var is = Channels.newInputStream(channel);
+            uploadRequestStreamObserver =
+                    exchangeStub.withDeadlineAfter(Constants.GRPC_LONG_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                            .uploadBundle(responseObserver);
+            uploadRequestStreamObserver.onNext(BundleUploadRequest.newBuilder()
+                                                       .setSenderType(BundleSenderType.TRANSPORT)
+                                                       .build());
+            if (offset >= 0) {
                 uploadRequestStreamObserver.onNext(BundleUploadRequest.newBuilder()
-                                                           .setSenderType(BundleSenderType.TRANSPORT)
+                                                           .setSession(UploadSession.newBuilder()
+                                                                               .setToken(token)
+                                                                               .setOffset(offset)
+                                                                               .build())
                                                            .build());
-                uploadRequestStreamObserver.onNext(BundleUploadRequest.newBuilder().setBundleId(toSend).build());
-                byte[] data = new byte[1024 * 1024];
-                int rc;
-                while ((rc = is.read(data)) > 0) {
-                    var uploadRequest = BundleUploadRequest.newBuilder()
-                            .setChunk(BundleChunk.newBuilder().setChunk(ByteString.copyFrom(data, 0, rc)).build())
-                            .build();
-                    uploadRequestStreamObserver.onNext(uploadRequest);
+            }
+            uploadRequestStreamObserver.onNext(BundleUploadRequest.newBuilder().setBundleId(toSend).build());
+            byte[] data = new byte[UPLOAD_CHUNK_SIZE];
+            int rc;
+            while ((rc = is.read(data)) > 0) {
+                responseObserver.awaitReady();
+                // the server answers early if it already has the bundle
+                if (responseObserver.completed) break;
+                var uploadRequest = BundleUploadRequest.newBuilder()
+                        .setChunk(BundleChunk.newBuilder().setChunk(ByteString.copyFrom(data, 0, rc)).build())
+                        .build();
+                uploadRequestStreamObserver.onNext(uploadRequest);
+            }
+            uploadRequestStreamObserver.onCompleted();
+        } catch (IOException | InterruptedException e) {
+            // cancel the call so the server doesn't keep waiting for the rest of the bundle
+            if (uploadRequestStreamObserver != null) uploadRequestStreamObserver.onError(e);
+            throw e;
+        }
+        if (!responseObserver.waitForCompletion(Constants.GRPC_LONG_TIMEOUT_MS)) {
+            if (responseObserver.throwable instanceof Exception e) throw e;
+            throw new TimeoutException("No response to upload of " + toSend.getEncryptedId());
+        }
+        if (responseObserver.bundleUploadResponse == null ||
+                responseObserver.bundleUploadResponse.getStatus() != Status.SUCCESS) {
+            throw new IOException("Server failed to receive " + toSend.getEncryptedId());
+        }
+        logger.log(INFO, "Completed upload for bundle: " + toSend.getEncryptedId());
+        logger.log(INFO, "Deleting bundle file: " + path);
+        Files.delete(path);
+    }
+
+    private static class FlowControlledUploadObserver extends BundleUploadResponseObserver
+            implements ClientResponseObserver<BundleUploadRequest, BundleUploadResponse> {
+        private ClientCallStreamObserver<BundleUploadRequest> requestStream;
+
+        @Override
+        public void beforeStart(ClientCallStreamObserver<BundleUploadRequest> requestStream) {
+            this.requestStream = requestStream;
+            requestStream.setOnReadyHandler(() -> {
+                synchronized (this) {
+                    notifyAll();
+                }
+            });
+        }
+
+        void awaitReady() throws InterruptedException {
+            synchronized (this) {
+                while (!requestStream.isReady() && !completed && throwable == null) {
+                    wait(Constants.GRPC_SHORT_TIMEOUT_MS);
                 }
-                uploadRequestStreamObserver.onCompleted();
-                logger.log(INFO, "Completed upload for bundle: " + toSend.getEncryptedId());
-                responseObserver.onCompleted();
-                logger.log(INFO, "Deleting bundle file: " + path);
-                Files.delete(path);
-                uploadCount++;
-            } catch (IOException e) {
-                logger.log(SEVERE, "Failed to upload file: " + path, e);
-                if (responseObserver != null) responseObserver.onError(e);
             }
         }
-        return uploadCount;
     }
 
-    private void processDeleteBundles(List<EncryptedBundleId> bundlesToDeleteList) {
-        for (var toDelete : bundlesToDeleteList) {
-            var delPath = fromServerPath.resolve(toDelete.getEncryptedId());
-            try {
-                Files.delete(delPath);
-            } catch (IOException e) {
-                logger.log(SEVERE, "Failed to delete file: " + delPath, e);
+    /**
+     * Delete the bundles the server no longer needs in a single pass over each directory. These are bundles from the
+     * server that its clients are done with, and bundles from clients that the server already received from another
+     * transport.
+     *
+     * @return the number of bundles deleted
+     */
+    private int processDeleteBundles(List<EncryptedBundleId> bundlesToDeleteList) {
+        var toDelete = new HashSet<String>();
+        bundlesToDeleteList.forEach(id -> toDelete.add(id.getEncryptedId()));
+        int deleteCount = deleteBundles(fromServerPath, toDelete) + deleteBundles(fromClientPath, toDelete);
+        for (var missing : toDelete) {
+            logger.log(SEVERE, "Failed to delete file: " + fromServerPath.resolve(missing) + " does not exist");
+        }
+        return deleteCount;
+    }
+
+    /* deletes the bundles in directory that are in toDelete, and takes them out of toDelete */
+    private static int deleteBundles(Path directory, Set<String> toDelete) {
+        int deleteCount = 0;
+        var bundles = directory.toFile().listFiles();
+        if (bundles != null) {
+            for (File bundle : bundles) {
+                if (toDelete.remove(bundle.getName())) {
+                    if (bundle.delete()) {
+                        deleteCount++;
+                    } else {
+                        logger.log(SEVERE, "Failed to delete file: " + bundle);
+                    }
+                }
             }
         }
+        return deleteCount;
     }
 
     private List<EncryptedBundleId> populateListFromPath(Path path) {
@@ -21,7 +21,9 @@ public class ADUUtils {
     public static void writeADU(ADU adu, Path targetDirectory) throws IOException {
         String aduFileName = Long.toString(adu.getADUId());
         var aduFile = targetDirectory.resolve(aduFileName);
-        Files.copy(adu.getSource().toPath(), aduFile);
+        try (var in = adu.openStream()) {
+            Files.copy(in, aduFile);
+        }
     }
 
     public static void writeADUs(List<ADU> adus, Path targetDirectory) throws IOException {
@@ -0,0 +1,134 @@
+package net.discdd.utils;
+
+import net.discdd.model.Metadata;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * In-memory view of a single (clientId, appId) folder of a {@link StoreADUs}: the metadata counters plus the ids
+ * and sizes of the ADUs in its {@link AduStorage}, kept sorted by id in parallel primitive arrays.
+ * <p>
+ * StoreADUs keeps this write-through: the storage and metadata.json are always updated first, and the index after,
+ * so the index can be thrown away and rebuilt from the folder at any time.
+ * All access must be synchronized on the index.
+ */
+class AduIndex {
+    private static final long[] EMPTY = new long[0];
+    long lastAduAdded;
+    long lastAduDeleted;
+    long generation;
+    long cleanGeneration;
+    private long[] aduIds;
+    private long[] sizes;
+    private int count;
+
+    AduIndex(Metadata metadata, long[] aduIds, long[] sizes, int count) {
+        this.lastAduAdded = metadata.lastAduAdded;
+        this.lastAduDeleted = metadata.lastAduDeleted;
+        this.generation = metadata.generation;
+        this.cleanGeneration = metadata.cleanGeneration;
+        this.aduIds = aduIds;
+        this.sizes = sizes;
+        this.count = count;
+    }
+
+    /**
+     * Builds the index from the ADUs the storage has for the client app.
+     */
+    static AduIndex load(AduStorage storage, String clientId, String appId, Metadata metadata) throws IOException {
+        var listed = new AduIndex(metadata, EMPTY, EMPTY, 0);
+        storage.forEach(clientId, appId, (id, size) -> {
+            if (listed.count == listed.aduIds.length) {
+                listed.aduIds = Arrays.copyOf(listed.aduIds, Math.max(4, listed.count * 2));
+                listed.sizes = Arrays.copyOf(listed.sizes, listed.aduIds.length);
+            }
+            listed.aduIds[listed.count] = id;
+            listed.sizes[listed.count] = size;
+            listed.count++;
+        });
+        long[] ids = listed.aduIds;
+        long[] sizes = listed.sizes;
+        int count = listed.count;
+        // storages list ADUs in no particular order
+        long[] sortedIds = Arrays.copyOf(ids, count);
+        Arrays.sort(sortedIds);
+        long[] sortedSizes = new long[count];
+        for (int i = 0; i < count; i++) {
+            sortedSizes[Arrays.binarySearch(sortedIds, ids[i])] = sizes[i];
+        }
+        return new AduIndex(metadata, sortedIds, sortedSizes, count);
+    }
+
+    Metadata toMetadata() {
+        var metadata = new Metadata();
+        metadata.lastAduAdded = lastAduAdded;
+        metadata.lastAduDeleted = lastAduDeleted;
+        metadata.generation = generation;
+        metadata.cleanGeneration = cleanGeneration;
+        return metadata;
+    }
+
+    /**
+     * @return true if the ADUs changed since they last went out in a bundle
+     */
+    boolean isDirty() {
+        return generation > cleanGeneration;
+    }
+
+    int size() {
+        return count;
+    }
+
+    /**
+     * @return a copy of the indexed ADU ids in ascending order
+     */
+    long[] getAduIds() {
+        return Arrays.copyOf(aduIds, count);
+    }
+
+    /**
+     * @return a copy of the ADU sizes, in the same order as {@link #getAduIds()}
+     */
+    long[] getSizes() {
+        return Arrays.copyOf(sizes, count);
+    }
+
+    /**
+     * @return the size of the ADU, or -1 if it is not indexed
+     */
+    long getSize(long aduId) {
+        int i = Arrays.binarySearch(aduIds, 0, count, aduId);
+        return i >= 0 ? sizes[i] : -1;
+    }
+
+    /**
+     * Records that the ADU for aduId now has the given size, adding it if it is not already indexed.
+     */
+    void put(long aduId, long size) {
+        int i = Arrays.binarySearch(aduIds, 0, count, aduId);
+        if (i >= 0) {
+            sizes[i] = size;
+            return;
+        }
+        i = -i - 1;
+        if (count == aduIds.length) {
+            aduIds = Arrays.copyOf(aduIds, Math.max(4, count * 2));
+            sizes = Arrays.copyOf(sizes, aduIds.length);
+        }
+        System.arraycopy(aduIds, i, aduIds, i + 1, count - i);
+        System.arraycopy(sizes, i, sizes, i + 1, count - i);
+        aduIds[i] = aduId;
+        sizes[i] = size;
+        count++;
+    }
+
+    void remove(long aduId) {
+        int i = Arrays.binarySearch(aduIds, 0, count, aduId);
+        if (i >= 0) {
+            System.arraycopy(aduIds, i + 1, aduIds, i, count - i - 1);
+            System.arraycopy(sizes, i + 1, sizes, i, count - i - 1);
+            count--;
+        }
+    }
+}
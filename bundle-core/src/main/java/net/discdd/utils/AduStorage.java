@@ -0,0 +1,59 @@
+package net.discdd.utils;
+
+import net.discdd.model.ADU;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.LongConsumer;
+
+/**
+ * Where a {@link StoreADUs} keeps the data of its ADUs. StoreADUs does the bookkeeping (metadata, indexes, ADU ids,
+ * listeners) and the storage only has to hold on to the bytes of each ADU of a client app.
+ * <p>
+ * The clientId is null for a store that is used by a single client. StoreADUs never makes concurrent calls that
+ * change the same client app, but reads and calls for other client apps can come from any thread.
+ */
+public interface AduStorage {
+    interface AduVisitor {
+        void visit(long aduId, long size);
+    }
+
+    /**
+     * Calls visitor with every ADU of the client app, in no particular order.
+     */
+    void forEach(String clientId, String appId, AduVisitor visitor) throws IOException;
+
+    /**
+     * Writes data into the ADU at offset, creating the ADU if needed. Anything after offset is dropped first, and an
+     * offset past the end of the ADU appends.
+     *
+     * @return the size of the ADU after the write
+     */
+    long write(String clientId, String appId, long aduId, long offset, byte[] data) throws IOException;
+
+    /**
+     * Gives the ADU fromAduId the id toAduId, replacing any ADU that already has it.
+     */
+    void rename(String clientId, String appId, long fromAduId, long toAduId) throws IOException;
+
+    /**
+     * Deletes ADUs of the client app. The ids are in ascending order and are always all the finished ADUs up to the
+     * last of them, so the storage can delete them as a range.
+     *
+     * @param deleted called with each ADU that is gone
+     */
+    void delete(String clientId, String appId, long[] aduIds, LongConsumer deleted) throws IOException;
+
+    InputStream open(String clientId, String appId, long aduId) throws IOException;
+
+    /**
+     * @return an ADU that reads its data from this storage
+     */
+    ADU toADU(String clientId, String appId, long aduId, long size);
+
+    /**
+     * @return the file that holds the data of the ADU, which is only the ADU's own in the file per ADU layout
+     */
+    File fileOf(String clientId, String appId, long aduId);
+}
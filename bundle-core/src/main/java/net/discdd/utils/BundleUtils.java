@@ -12,12 +12,14 @@ import net.discdd.model.Bundle;
 import net.discdd.model.EncryptedPayload;
 import net.discdd.model.EncryptionHeader;
 import net.discdd.model.Payload;
+import net.discdd.model.ReceivedBundle;
 import net.discdd.model.UncompressedBundle;
 import net.discdd.model.UncompressedPayload;
 import org.whispersystems.libsignal.InvalidKeyException;
 import org.whispersystems.libsignal.InvalidMessageException;
 import org.whispersystems.libsignal.ecc.ECPublicKey;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
@@ -25,8 +27,6 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.lang.reflect.Type;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -44,6 +44,11 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.Manifest;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -80,6 +85,132 @@ public class BundleUtils {
         return new UncompressedBundle(bundleId, extractedBundlePath.toFile(), encryptionHeader, encryptedPayload);
     }
 
+    /**
+     * Reads the header entries of a received bundle into memory and spools the still-encrypted payload to
+     * encryptedPayloadPath, without extracting the bundle to a directory. Every entry is verified against the
+     * bundle manifest as it is read.
+     */
+    public static ReceivedBundle readReceivedBundle(Bundle bundle, Path encryptedPayloadPath) throws IOException {
+        logger.log(INFO, "Reading bundle " + bundle.getSource().getName());
+        try (var bundleReader = new DDDJarFileReader(bundle.getSource().toPath())) {
+            byte[] bundleId = readRequiredEntry(bundleReader, SecurityUtils.BUNDLEID_FILENAME);
+            byte[] clientIdentityKey = readRequiredEntry(bundleReader, SecurityUtils.CLIENT_IDENTITY_KEY);
+            byte[] clientBaseKey = readRequiredEntry(bundleReader, SecurityUtils.CLIENT_BASE_KEY);
+            byte[] serverIdentityKey = readRequiredEntry(bundleReader, SecurityUtils.SERVER_IDENTITY_KEY);
+            try (var os = Files.newOutputStream(encryptedPayloadPath,
+                                                StandardOpenOption.CREATE,
+                                                StandardOpenOption.TRUNCATE_EXISTING)) {
+                bundleReader.copyEntry(PAYLOAD_DIR + "/" + PAYLOAD_FILENAME, os);
+            } catch (SecurityException e) {
+                Files.deleteIfExists(encryptedPayloadPath);
+                throw e;
+            }
+            return new ReceivedBundle(new String(bundleId).trim(),
+                                      clientIdentityKey,
+                                      clientBaseKey,
+                                      serverIdentityKey,
+                                      encryptedPayloadPath);
+        }
+    }
+
+    /**
+     * A bundle read by {@link #readReceivedBundle(InputStream, Path)}, with the manifest it was verified against.
+     */
+    public record StreamedBundle(ReceivedBundle receivedBundle, Manifest manifest) {}
+
+    /**
+     * Like {@link #readReceivedBundle(Bundle, Path)}, but reads the bundle from a stream in a single pass, so that it
+     * can be read while it is still being uploaded. The stream is read up to the end of the manifest, the last entry.
+     */
+    public static StreamedBundle readReceivedBundle(InputStream bundleStream, Path encryptedPayloadPath)
+            throws IOException {
+        var headerEntries = new HashMap<String, byte[]>();
+        Files.deleteIfExists(encryptedPayloadPath);
+        try {
+            Manifest manifest = DDDJarStreamReader.read(bundleStream, (name, data) -> {
+                if (name.equals(PAYLOAD_DIR + "/" + PAYLOAD_FILENAME)) {
+                    try (var os = Files.newOutputStream(encryptedPayloadPath,
+                                                        StandardOpenOption.CREATE,
+                                                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                        copy(data, os);
+                    }
+                } else if (name.equals(SecurityUtils.BUNDLEID_FILENAME) ||
+                        name.equals(SecurityUtils.CLIENT_IDENTITY_KEY) || name.equals(SecurityUtils.CLIENT_BASE_KEY) ||
+                        name.equals(SecurityUtils.SERVER_IDENTITY_KEY)) {
+                    var bos = new ByteArrayOutputStream();
+                    copy(data, bos);
+                    headerEntries.put(name, bos.toByteArray());
+                }
+            });
+            if (!Files.exists(encryptedPayloadPath)) {
+                throw new IOException(PAYLOAD_DIR + "/" + PAYLOAD_FILENAME + " missing from bundle");
+            }
+            byte[] bundleId = requiredEntry(headerEntries, SecurityUtils.BUNDLEID_FILENAME);
+            var receivedBundle = new ReceivedBundle(new String(bundleId).trim(),
+                                                    requiredEntry(headerEntries, SecurityUtils.CLIENT_IDENTITY_KEY),
+                                                    requiredEntry(headerEntries, SecurityUtils.CLIENT_BASE_KEY),
+                                                    requiredEntry(headerEntries, SecurityUtils.SERVER_IDENTITY_KEY),
+                                                    encryptedPayloadPath);
+            return new StreamedBundle(receivedBundle, manifest);
+        } catch (IOException | SecurityException e) {
+            Files.deleteIfExists(encryptedPayloadPath);
+            throw e;
+        }
+    }
+
+    private static byte[] requiredEntry(Map<String, byte[]> entries, String name) throws IOException {
+        byte[] bytes = entries.get(name);
+        if (bytes == null) {
+            throw new IOException(name + " missing from bundle");
+        }
+        return bytes;
+    }
+
+    private static void copy(InputStream is, OutputStream os) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        int bytesRead;
+        while ((bytesRead = is.read(buffer)) != -1) {
+            os.write(buffer, 0, bytesRead);
+        }
+    }
+
+    /**
+     * The ID of a received bundle and the digest of its encrypted payload, which the same bundle carried by different
+     * transports has in common.
+     */
+    public record BundleFingerprint(String bundleId, String payloadDigest) {}
+
+    /**
+     * Reads the {@link BundleFingerprint} of a received bundle without extracting its payload, so that a bundle the
+     * server already has can be dropped before it is decrypted. Only the bundle ID entry is verified.
+     */
+    public static BundleFingerprint readBundleFingerprint(Path bundle) throws IOException {
+        try (var bundleReader = new DDDJarFileReader(bundle)) {
+            byte[] bundleId = readRequiredEntry(bundleReader, SecurityUtils.BUNDLEID_FILENAME);
+            return new BundleFingerprint(new String(bundleId).trim(),
+                                         bundleReader.getEntryDigest(PAYLOAD_DIR + "/" + PAYLOAD_FILENAME));
+        }
+    }
+
+    /**
+     * The {@link BundleFingerprint} of a bundle read by {@link #readReceivedBundle(InputStream, Path)}, from the
+     * manifest it was verified against.
+     */
+    public static BundleFingerprint getBundleFingerprint(String bundleId, Manifest manifest) {
+        var attributes = manifest.getAttributes(PAYLOAD_DIR + "/" + PAYLOAD_FILENAME);
+        return new BundleFingerprint(bundleId,
+                                     attributes == null ? null :
+                                     attributes.getValue(DDDJarFileCreator.SHA256_ATTRIBUTE_NAME));
+    }
+
+    private static byte[] readRequiredEntry(DDDJarFileReader reader, String name) throws IOException {
+        byte[] bytes = reader.readEntry(name);
+        if (bytes == null) {
+            throw new IOException(name + " missing from bundle");
+        }
+        return bytes;
+    }
+
     public static UncompressedPayload extractPayload(Payload payload, Path extractDirPath) throws IOException {
         var extractedPayloadPath = extractDirPath.resolve("extracted-payload");
 
@@ -324,6 +455,24 @@ public class BundleUtils {
                                                   String crashReport,
                                                   OutputStream outputStream) throws IOException,
             NoSuchAlgorithmException {
+        createBundlePayloadForAdus(adus,
+                                   routingData,
+                                   ackedEncryptedBundleId,
+                                   crashReport,
+                                   new CompressionPolicies(),
+                                   outputStream);
+    }
+
+    /**
+     * @param compressionPolicies how the ADUs of each app are compressed
+     */
+    public static void createBundlePayloadForAdus(List<ADU> adus,
+                                                  byte[] routingData,
+                                                  String ackedEncryptedBundleId,
+                                                  String crashReport,
+                                                  CompressionPolicies compressionPolicies,
+                                                  OutputStream outputStream) throws IOException,
+            NoSuchAlgorithmException {
         try (DDDJarFileCreator innerJar = new DDDJarFileCreator(outputStream)) {
             if (ackedEncryptedBundleId == null) ackedEncryptedBundleId = "HB";
             logger.log(INFO, "[BU/createBundlePayload] " + adus.size());
@@ -335,11 +484,21 @@ public class BundleUtils {
             }
 
             for (var adu : adus) {
-                try (var os = innerJar.createEntry(Paths.get(Constants.BUNDLE_ADU_DIRECTORY_NAME,
-                                                             adu.getAppId(),
-                                                             Long.toString(adu.getADUId())));
-                     var aos = Files.newInputStream(adu.getSource().toPath(), StandardOpenOption.READ)) {
-                    aos.transferTo(os);
+                var name = Paths.get(Constants.BUNDLE_ADU_DIRECTORY_NAME,
+                                     adu.getAppId(),
+                                     Long.toString(adu.getADUId()));
+                var policy = compressionPolicies.getPolicy(adu.getAppId());
+                var dictionary = policy.dictionary();
+                if (dictionary == null) {
+                    try (var os = innerJar.createEntry(name, policy.level()); var aos = adu.openStream()) {
+                        aos.transferTo(os);
+                    }
+                } else {
+                    // the jar can't deflate with a dictionary, so the entry holds the deflated ADU as is
+                    try (var os = innerJar.createUncompressedEntry(name); var aos = adu.openStream()) {
+                        dictionary.deflate(aos, os, policy.level());
+                    }
+                    innerJar.setEntryAttribute(name, CompressionDictionary.MANIFEST_ATTRIBUTE, dictionary.getId());
                 }
             }
         }
@@ -356,7 +515,8 @@ public class BundleUtils {
 
         DDDJarFileCreator outerJar = new DDDJarFileCreator(outputStream);
 
-        var os = outerJar.createEntry(Paths.get(PAYLOAD_DIR, PAYLOAD_FILENAME));
+        // the encrypted payload won't compress, don't spend time trying
+        var os = outerJar.createUncompressedEntry(Paths.get(PAYLOAD_DIR, PAYLOAD_FILENAME));
         // encrypt the payload
         payloadEncryptor.encrypt(payloadStream, os);
 
@@ -378,24 +538,66 @@ public class BundleUtils {
         outerJar.close();
     }
 
+    /**
+     * An executor for runFuture that keeps coreThreads threads around and starts another one whenever they are all
+     * busy. A payload writer blocks until its reader takes what it wrote, and the reader may be waiting for something
+     * else first, such as the lock of the client's session. With a fixed number of threads, writers stuck that way
+     * could leave no thread for the writer a reader is waiting on, so writers are never queued.
+     */
+    public static ExecutorService newPayloadExecutor(int coreThreads) {
+        var threadCount = new AtomicInteger();
+        return new ThreadPoolExecutor(coreThreads,
+                                      Integer.MAX_VALUE,
+                                      60,
+                                      TimeUnit.SECONDS,
+                                      new SynchronousQueue<>(),
+                                      r -> {
+                                          var thread =
+                                                  new Thread(r, "bundle-payload-" + threadCount.incrementAndGet());
+                                          thread.setDaemon(true);
+                                          return thread;
+                                      });
+    }
+
+    /**
+     * Write the payload of a bundle into pipe on executorService. The caller reads the payload from
+     * pipe.getInputStream(); if the payload can't be created, the read fails rather than ending early.
+     */
+    public static Future<?> runFuture(ExecutorService executorService,
+                                      String ackedEncryptedBundleId,
+                                      String crashReport,
+                                      List<ADU> adus,
+                                      byte[] routingData,
+                                      RingBufferPipe pipe) {
+        return runFuture(executorService,
+                         ackedEncryptedBundleId,
+                         crashReport,
+                         adus,
+                         routingData,
+                         new CompressionPolicies(),
+                         pipe);
+    }
+
     public static Future<?> runFuture(ExecutorService executorService,
                                       String ackedEncryptedBundleId,
                                       String crashReport,
                                       List<ADU> adus,
                                       byte[] routingData,
-                                      PipedInputStream inputPipe) throws IOException {
-        PipedOutputStream outputPipe = new PipedOutputStream(inputPipe);
+                                      CompressionPolicies compressionPolicies,
+                                      RingBufferPipe pipe) {
         Future<?> future = executorService.submit(() -> {
             try {
                 BundleUtils.createBundlePayloadForAdus(adus,
                                                        routingData,
                                                        ackedEncryptedBundleId,
                                                        crashReport,
-                                                       outputPipe);
+                                                       compressionPolicies,
+                                                       pipe.getOutputStream());
             } catch (IOException | NoSuchAlgorithmException e) {
+                pipe.fail(e instanceof IOException ioe ? ioe : new IOException(e));
                 return e;
             } finally {
-                outputPipe.close();
+                pipe.getOutputStream().close();
             }
             return null;
         });
@@ -0,0 +1,184 @@
+package net.discdd.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * A preset dictionary for deflating small ADUs that look alike, like the emails of K9. Deflate can refer back to the
+ * dictionary as if it came right before the data, so the headers and phrases that every email has don't have to be
+ * spelled out in each one. The sender and the receiver need the same dictionary, which is found by its id: the
+ * Adler-32 of its bytes, the same id zlib uses for dictionaries.
+ */
+public class CompressionDictionary {
+    public static final String EXTENSION = ".dict";
+    /* the manifest attribute of a payload entry that was deflated with a dictionary */
+    public static final String MANIFEST_ATTRIBUTE = "DDD-Dictionary-Id";
+    // deflate can't look back further than its 32 KB window
+    public static final int MAX_SIZE = 32 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MIN_CANDIDATE_LENGTH = 4;
+    private static final int MAX_CANDIDATE_LENGTH = 256;
+
+    private final byte[] bytes;
+    private final String id;
+
+    public CompressionDictionary(byte[] bytes) {
+        if (bytes.length == 0 || bytes.length > MAX_SIZE) {
+            throw new IllegalArgumentException("Dictionaries must have 1 to " + MAX_SIZE + " bytes");
+        }
+        this.bytes = bytes.clone();
+        var adler = new Adler32();
+        adler.update(this.bytes, 0, this.bytes.length);
+        this.id = String.format("%08x", adler.getValue());
+    }
+
+    public static CompressionDictionary read(Path file) throws IOException {
+        return new CompressionDictionary(Files.readAllBytes(file));
+    }
+
+    /**
+     * Writes the dictionary to dir as id.dict, which is where {@link CompressionPolicies#load} looks for it.
+     *
+     * @return the file that was written
+     */
+    public Path write(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        return Files.write(dir.resolve(id + EXTENSION), bytes);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public int size() {
+        return bytes.length;
+    }
+
+    public void deflate(InputStream in, OutputStream out, int level) throws IOException {
+        var deflater = new Deflater(level, true);
+        try {
+            deflater.setDictionary(bytes);
+            var deflaterOutputStream = new DeflaterOutputStream(out, deflater, BUFFER_SIZE);
+            var buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                deflaterOutputStream.write(buffer, 0, read);
+            }
+            // finish rather than close, out belongs to the caller
+            deflaterOutputStream.finish();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    public byte[] inflate(byte[] data) throws IOException {
+        var inflater = new Inflater(true);
+        try {
+            inflater.setDictionary(bytes);
+            inflater.setInput(data);
+            var out = new ByteArrayOutputStream(Math.max(BUFFER_SIZE, data.length * 4));
+            var buffer = new byte[BUFFER_SIZE];
+            while (!inflater.finished()) {
+                int inflated = inflater.inflate(buffer);
+                if (inflated == 0 && inflater.needsInput()) {
+                    throw new IOException("Data deflated with dictionary " + id + " ends early");
+                }
+                out.write(buffer, 0, inflated);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException("Data deflated with dictionary " + id + " is corrupt", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Builds a dictionary out of the lines, header names and words that show up in many of the samples, which works
+     * well for text like emails. The ones that save the most go last, where they are closest to the data.
+     *
+     * @param samples typical ADUs of the app the dictionary is for
+     * @param maxSize the size of the dictionary, at most {@link #MAX_SIZE}
+     */
+    public static CompressionDictionary train(List<byte[]> samples, int maxSize) {
+        maxSize = Math.min(maxSize, MAX_SIZE);
+        // how many samples each candidate is in, it only saves anything for the ones it is in
+        var sampleCounts = new HashMap<String, Integer>();
+        for (var sample : samples) {
+            // ISO-8859-1 maps every byte to a char and back
+            var text = new String(sample, StandardCharsets.ISO_8859_1);
+            var candidates = new HashSet<String>();
+            int start = 0;
+            while (start < text.length()) {
+                int end = text.indexOf('\n', start);
+                end = end < 0 ? text.length() : end + 1;
+                addCandidates(text.substring(start, end), candidates);
+                start = end;
+            }
+            for (var candidate : candidates) sampleCounts.merge(candidate, 1, Integer::sum);
+        }
+
+        var ranked = new ArrayList<Map.Entry<String, Integer>>();
+        for (var entry : sampleCounts.entrySet()) {
+            if (entry.getValue() > 1) ranked.add(entry);
+        }
+        ranked.sort((a, b) -> Long.compare(savings(b), savings(a)));
+        var chosen = new ArrayList<String>();
+        var chosenText = new StringBuilder();
+        int size = 0;
+        for (var entry : ranked) {
+            if (maxSize - size < MIN_CANDIDATE_LENGTH) break;
+            var candidate = entry.getKey();
+            if (size + candidate.length() > maxSize) continue;
+            // a header name is no use once its whole line is in
+            if (chosenText.indexOf(candidate) >= 0) continue;
+            chosen.add(candidate);
+            chosenText.append(candidate);
+            size += candidate.length();
+        }
+
+        var dictionary = new ByteArrayOutputStream(size);
+        for (int i = chosen.size() - 1; i >= 0; i--) {
+            var candidate = chosen.get(i).getBytes(StandardCharsets.ISO_8859_1);
+            dictionary.write(candidate, 0, candidate.length);
+        }
+        if (dictionary.size() == 0) {
+            throw new IllegalArgumentException("The samples have nothing in common to build a dictionary from");
+        }
+        return new CompressionDictionary(dictionary.toByteArray());
+    }
+
+    private static long savings(Map.Entry<String, Integer> candidate) {
+        return (long) candidate.getKey().length() * (candidate.getValue() - 1);
+    }
+
+    private static void addCandidates(String line, HashSet<String> candidates) {
+        if (line.length() >= MIN_CANDIDATE_LENGTH && line.length() <= MAX_CANDIDATE_LENGTH) {
+            candidates.add(line);
+        }
+        int colon = line.indexOf(": ");
+        if (colon > 0 && colon < MAX_CANDIDATE_LENGTH) {
+            candidates.add(line.substring(0, colon + 2));
+        }
+        for (var word : line.split("[\\s]+")) {
+            if (word.length() >= MIN_CANDIDATE_LENGTH && word.length() <= MAX_CANDIDATE_LENGTH) {
+                candidates.add(word + " ");
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package net.discdd.utils;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import static java.util.logging.Level.INFO;
+
+/**
+ * The {@link CompressionPolicy} of each app, and the dictionaries that received payloads can refer to. Apps without
+ * a policy are deflated at the default level.
+ * <p>
+ * {@link #load} reads a folder of id.dict dictionaries and a policies.properties file that maps app ids to a policy:
+ * <pre>
+ * net.discdd.k9=dictionary:0a1b2c3d.dict
+ * net.discdd.photos=stored
+ * net.discdd.chat=deflate:6
+ * </pre>
+ * Every dictionary in the folder can be read, not just the ones in use, so dictionaries that are retired should stay
+ * until no bundle that uses them can arrive anymore. A dictionary has to be installed on the receiving side before
+ * a sender starts using it.
+ */
+public class CompressionPolicies {
+    private static final Logger logger = Logger.getLogger(CompressionPolicies.class.getName());
+    public static final String POLICIES_FILE = "policies.properties";
+    private final Map<String, CompressionPolicy> policies = new ConcurrentHashMap<>();
+    private final Map<String, CompressionDictionary> dictionaries = new ConcurrentHashMap<>();
+
+    public static CompressionPolicies load(Path dir) throws IOException {
+        var compressionPolicies = new CompressionPolicies();
+        if (dir == null || !Files.isDirectory(dir)) return compressionPolicies;
+        try (Stream<Path> files = Files.list(dir)) {
+            for (var it = files.iterator(); it.hasNext(); ) {
+                var file = it.next();
+                if (file.getFileName().toString().endsWith(CompressionDictionary.EXTENSION)) {
+                    compressionPolicies.addDictionary(CompressionDictionary.read(file));
+                }
+            }
+        }
+        var policiesFile = dir.resolve(POLICIES_FILE);
+        if (Files.exists(policiesFile)) {
+            var properties = new Properties();
+            try (Reader reader = Files.newBufferedReader(policiesFile)) {
+                properties.load(reader);
+            }
+            for (var appId : properties.stringPropertyNames()) {
+                compressionPolicies.setPolicy(appId, parse(properties.getProperty(appId).trim(), dir));
+            }
+        }
+        logger.log(INFO,
+                   "Loaded " + compressionPolicies.policies.size() + " compression policies and " +
+                           compressionPolicies.dictionaries.size() + " dictionaries from " + dir);
+        return compressionPolicies;
+    }
+
+    private static CompressionPolicy parse(String spec, Path dir) throws IOException {
+        var parts = spec.split(":");
+        try {
+            switch (parts[0]) {
+                case "stored":
+                    if (parts.length == 1) return CompressionPolicy.STORED;
+                    break;
+                case "deflate":
+                    if (parts.length == 1) return CompressionPolicy.DEFAULT;
+                    if (parts.length == 2) return CompressionPolicy.deflate(Integer.parseInt(parts[1]));
+                    break;
+                case "dictionary":
+                    if (parts.length == 2 || parts.length == 3) {
+                        var dictionary = CompressionDictionary.read(dir.resolve(parts[1]));
+                        return parts.length == 2 ? CompressionPolicy.withDictionary(dictionary) :
+                               new CompressionPolicy(Integer.parseInt(parts[2]), dictionary);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Bad compression policy " + spec + ": " + e.getMessage(), e);
+        }
+        throw new IOException("Bad compression policy " + spec);
+    }
+
+    public CompressionPolicy getPolicy(String appId) {
+        return policies.getOrDefault(appId, CompressionPolicy.DEFAULT);
+    }
+
+    public void setPolicy(String appId, CompressionPolicy policy) {
+        if (policy.dictionary() != null) addDictionary(policy.dictionary());
+        policies.put(appId, policy);
+    }
+
+    public void addDictionary(CompressionDictionary dictionary) {
+        dictionaries.put(dictionary.getId(), dictionary);
+    }
+
+    /**
+     * @return the dictionary with the id or null if it isn't installed
+     */
+    public CompressionDictionary getDictionary(String id) {
+        return dictionaries.get(id);
+    }
+}
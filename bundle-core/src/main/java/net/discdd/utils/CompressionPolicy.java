@@ -0,0 +1,27 @@
+package net.discdd.utils;
+
+import java.util.zip.Deflater;
+
+/**
+ * How the ADUs of an app are compressed in a bundle payload: deflated at a level, or deflated with a preset
+ * dictionary when dictionary is not null. Level {@link Deflater#NO_COMPRESSION} is for data that is already
+ * compressed, like JPEGs.
+ */
+public record CompressionPolicy(int level, CompressionDictionary dictionary) {
+    public static final CompressionPolicy STORED = new CompressionPolicy(Deflater.NO_COMPRESSION, null);
+    public static final CompressionPolicy DEFAULT = new CompressionPolicy(Deflater.DEFAULT_COMPRESSION, null);
+
+    public CompressionPolicy {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Bad compression level " + level);
+        }
+    }
+
+    public static CompressionPolicy deflate(int level) {
+        return new CompressionPolicy(level, null);
+    }
+
+    public static CompressionPolicy withDictionary(CompressionDictionary dictionary) {
+        return new CompressionPolicy(Deflater.BEST_COMPRESSION, dictionary);
+    }
+}
@@ -1,5 +1,6 @@
 package net.discdd.utils;
 
+import java.io.BufferedOutputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -13,20 +14,46 @@ import java.util.jar.Attributes;
 import java.util.jar.JarEntry;
 import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
+import java.util.zip.Deflater;
 
 public class DDDJarFileCreator implements AutoCloseable {
-    private static final String SHA256_ATTRIBUTE_NAME = "SHA-256-Digest";
+    static final String SHA256_ATTRIBUTE_NAME = "SHA-256-Digest";
+    // the deflater hands out 512 byte chunks, so don't let them go straight to a file or socket
+    private static final int BUFFER_SIZE = 64 * 1024;
     final private JarOutputStream jarOutputStream;
     final private Manifest manifest = new Manifest();
     final private HashMap<String, MessageDigest> digestOutputStreams = new HashMap<>();
+    final private HashMap<String, Attributes> entryAttributes = new HashMap<>();
     private DigestOutputStream previousDigestStream = null;
 
     public DDDJarFileCreator(OutputStream os) throws IOException {
-        jarOutputStream = new JarOutputStream(os);
+        jarOutputStream = new JarOutputStream(new BufferedOutputStream(os, BUFFER_SIZE));
     }
 
     public OutputStream createEntry(String name) throws IOException, NoSuchAlgorithmException {
+        return createEntry(name, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Creates an entry for data that doesn't compress, like an encrypted payload. The data is only framed as deflate
+     * blocks without trying to compress it.
+     */
+    public OutputStream createUncompressedEntry(String name) throws IOException, NoSuchAlgorithmException {
+        return createEntry(name, Deflater.NO_COMPRESSION);
+    }
+
+    public OutputStream createUncompressedEntry(Path path) throws IOException, NoSuchAlgorithmException {
+        return createUncompressedEntry(path.toString());
+    }
+
+    /**
+     * @param level the deflate level of the entry, {@link Deflater#NO_COMPRESSION} for data that doesn't compress
+     */
+    public OutputStream createEntry(String name, int level) throws IOException, NoSuchAlgorithmException {
         name = name.replace('\\', '/');
+        // the level applies from the next entry on, so the current one has to be finished first
+        jarOutputStream.closeEntry();
+        jarOutputStream.setLevel(level);
         jarOutputStream.putNextEntry(new JarEntry(name));
         if (previousDigestStream != null) previousDigestStream.flush();
         var digest = MessageDigest.getInstance("SHA-256");
@@ -40,6 +67,22 @@ public class DDDJarFileCreator implements AutoCloseable {
         return createEntry(path.toString());
     }
 
+    public OutputStream createEntry(Path path, int level) throws IOException, NoSuchAlgorithmException {
+        return createEntry(path.toString(), level);
+    }
+
+    /**
+     * Adds an attribute to the manifest section of an entry, next to its digest.
+     */
+    public void setEntryAttribute(String name, String attribute, String value) {
+        name = name.replace('\\', '/');
+        entryAttributes.computeIfAbsent(name, k -> new Attributes()).putValue(attribute, value);
+    }
+
+    public void setEntryAttribute(Path path, String attribute, String value) {
+        setEntryAttribute(path.toString(), attribute, value);
+    }
+
     public void createEntry(String name, byte[] bytes) throws IOException, NoSuchAlgorithmException {
         name = name.replace('\\', '/');
         try (var os = createEntry(name)) {
@@ -56,7 +99,7 @@ public class DDDJarFileCreator implements AutoCloseable {
         for (var entry : digestOutputStreams.entrySet()) {
             var digest = entry.getValue();
             var name = entry.getKey();
-            var attributes = new Attributes();
+            var attributes = entryAttributes.getOrDefault(name, new Attributes());
             attributes.putValue(SHA256_ATTRIBUTE_NAME, Base64.getEncoder().encodeToString(digest.digest()));
             manifest.getEntries().put(name, attributes);
         }
@@ -70,6 +113,12 @@ public class DDDJarFileCreator implements AutoCloseable {
             super(out);
         }
 
+        // FilterOutputStream would hand the bytes to the digest and the deflater one at a time
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
         @Override
         public void close() throws IOException {
             // we don't want to close, but we would like to flush
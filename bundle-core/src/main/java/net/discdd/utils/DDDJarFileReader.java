@@ -0,0 +1,150 @@
+package net.discdd.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+/**
+ * Reads jars written by {@link DDDJarFileCreator} in place, without extracting them to a directory.
+ * Every entry is checked against the SHA-256 digest recorded in the manifest while it is being read, and a
+ * {@link SecurityException} is thrown if the entry has no digest or the digest does not match.
+ */
+public class DDDJarFileReader implements AutoCloseable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private final JarFile jarFile;
+    private final Manifest manifest;
+
+    public DDDJarFileReader(Path jarPath) throws IOException {
+        jarFile = new JarFile(jarPath.toFile(), false);
+        manifest = jarFile.getManifest();
+        if (manifest == null) {
+            jarFile.close();
+            throw new SecurityException("No manifest found in " + jarPath);
+        }
+    }
+
+    /**
+     * @return the names of all the file entries in the jar, in the order they were written, excluding the manifest
+     */
+    public List<String> getEntryNames() {
+        List<String> names = new ArrayList<>();
+        Enumeration<JarEntry> entries = jarFile.entries();
+        while (entries.hasMoreElements()) {
+            JarEntry entry = entries.nextElement();
+            if (!entry.isDirectory() && !entry.getName().equals(JarFile.MANIFEST_NAME)) {
+                names.add(entry.getName());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @return a copy of the manifest, which has the digest of every entry
+     */
+    public Manifest getManifest() {
+        return new Manifest(manifest);
+    }
+
+    public boolean hasEntry(String name) {
+        return jarFile.getJarEntry(name) != null;
+    }
+
+    /**
+     * @return the SHA-256 digest the manifest records for the entry, or null if it has none. It is not checked
+     *         against the entry.
+     */
+    public String getEntryDigest(String name) {
+        return getEntryAttribute(name, DDDJarFileCreator.SHA256_ATTRIBUTE_NAME);
+    }
+
+    /**
+     * @return the value of an attribute in the manifest section of the entry, or null if it doesn't have it
+     */
+    public String getEntryAttribute(String name, String attribute) {
+        Attributes attributes = manifest.getAttributes(name);
+        return attributes == null ? null : attributes.getValue(attribute);
+    }
+
+    /**
+     * Reads a whole entry into memory. The bytes are only returned once the digest has been verified.
+     *
+     * @return the contents of the entry or null if there is no such entry
+     */
+    public byte[] readEntry(String name) throws IOException {
+        JarEntry entry = jarFile.getJarEntry(name);
+        if (entry == null) {
+            return null;
+        }
+        var bos = new ByteArrayOutputStream(entry.getSize() > 0 ? (int) entry.getSize() : 1024);
+        copyEntry(entry, bos);
+        return bos.toByteArray();
+    }
+
+    /**
+     * Streams an entry to outputStream. The digest can only be checked once the last byte has been copied, so if a
+     * SecurityException is thrown, the caller must discard what was written.
+     *
+     * @return the number of bytes copied
+     */
+    public long copyEntry(String name, OutputStream outputStream) throws IOException {
+        JarEntry entry = jarFile.getJarEntry(name);
+        if (entry == null) {
+            throw new IOException(name + " not found in " + jarFile.getName());
+        }
+        return copyEntry(entry, outputStream);
+    }
+
+    private long copyEntry(JarEntry entry, OutputStream outputStream) throws IOException {
+        String expectedDigest = getExpectedDigest(entry.getName());
+        MessageDigest digest = newSha256Digest();
+        long total = 0;
+        try (InputStream is = jarFile.getInputStream(entry)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int bytesRead;
+            while ((bytesRead = is.read(buffer)) != -1) {
+                digest.update(buffer, 0, bytesRead);
+                outputStream.write(buffer, 0, bytesRead);
+                total += bytesRead;
+            }
+        }
+        if (!Base64.getEncoder().encodeToString(digest.digest()).equals(expectedDigest)) {
+            throw new SecurityException("Checksum verification failed for " + entry.getName());
+        }
+        return total;
+    }
+
+    private String getExpectedDigest(String name) {
+        Attributes attributes = manifest.getAttributes(name);
+        String expectedDigest =
+                attributes == null ? null : attributes.getValue(DDDJarFileCreator.SHA256_ATTRIBUTE_NAME);
+        if (expectedDigest == null) {
+            throw new SecurityException("No digest in manifest for " + name);
+        }
+        return expectedDigest;
+    }
+
+    private static MessageDigest newSha256Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        jarFile.close();
+    }
+}
@@ -0,0 +1,102 @@
+package net.discdd.utils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Reads jars written by {@link DDDJarFileCreator} from a stream in a single pass, so a jar can be read while it is
+ * still arriving. {@link DDDJarFileReader} needs the whole file, since it starts from the central directory at the end.
+ *
+ * <p>{@link DDDJarFileCreator} writes the manifest last, so the entries are handed out before their digests are
+ * known. Each entry is hashed as it goes by, and the digests are checked against the manifest once the stream has
+ * been read. Until {@link #read} has returned, nothing that was handed out can be trusted, and if it throws a
+ * {@link SecurityException}, the caller must discard what it kept.
+ */
+public class DDDJarStreamReader {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    public interface EntryConsumer {
+        /**
+         * Consume the data of an entry. Whatever isn't read is skipped, and data must not be closed.
+         */
+        void accept(String name, InputStream data) throws IOException;
+    }
+
+    /**
+     * Read the entries of the jar in inputStream, handing each one to consumer in the order they were written. The
+     * stream is read up to the end of the last entry, the manifest, and is not closed.
+     *
+     * @return the manifest of the jar, once all the entries were verified against it
+     */
+    public static Manifest read(InputStream inputStream, EntryConsumer consumer) throws IOException {
+        var zipInputStream = new ZipInputStream(inputStream);
+        var entry = new UncloseableInputStream(zipInputStream);
+        var digests = new LinkedHashMap<String, String>();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        Manifest manifest = null;
+        ZipEntry zipEntry;
+        while ((zipEntry = zipInputStream.getNextEntry()) != null) {
+            if (zipEntry.isDirectory()) continue;
+            String name = zipEntry.getName();
+            if (digests.containsKey(name) || (manifest != null && name.equals(JarFile.MANIFEST_NAME))) {
+                throw new SecurityException("Duplicate entry " + name);
+            }
+            if (name.equals(JarFile.MANIFEST_NAME)) {
+                manifest = new Manifest(entry);
+                continue;
+            }
+            var digest = newSha256Digest();
+            var digestInputStream = new DigestInputStream(entry, digest);
+            consumer.accept(name, digestInputStream);
+            while (digestInputStream.read(buffer) != -1) {
+                // the digest covers the whole entry, whatever the consumer left
+            }
+            digests.put(name, Base64.getEncoder().encodeToString(digest.digest()));
+        }
+        if (manifest == null) {
+            throw new SecurityException("No manifest found");
+        }
+        for (Map.Entry<String, String> digest : digests.entrySet()) {
+            Attributes attributes = manifest.getAttributes(digest.getKey());
+            String expectedDigest =
+                    attributes == null ? null : attributes.getValue(DDDJarFileCreator.SHA256_ATTRIBUTE_NAME);
+            if (expectedDigest == null) {
+                throw new SecurityException("No digest in manifest for " + digest.getKey());
+            }
+            if (!expectedDigest.equals(digest.getValue())) {
+                throw new SecurityException("Checksum verification failed for " + digest.getKey());
+            }
+        }
+        return manifest;
+    }
+
+    private static MessageDigest newSha256Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /* the consumer gets the current entry, it doesn't get to close the whole jar */
+    static private class UncloseableInputStream extends FilterInputStream {
+        UncloseableInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public void close() {}
+    }
+}
@@ -0,0 +1,104 @@
+package net.discdd.utils;
+
+import net.discdd.model.ADU;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.function.LongConsumer;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import static java.util.logging.Level.SEVERE;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * The original layout of a {@link StoreADUs}: every ADU is a file named by its id in rootFolder/clientId/appId.
+ */
+public class FileAduStorage implements AduStorage {
+    private static final Logger logger = Logger.getLogger(FileAduStorage.class.getName());
+    private final Path rootFolder;
+
+    public FileAduStorage(Path rootFolder) {
+        this.rootFolder = rootFolder;
+    }
+
+    private Path appFolder(String clientId, String appId) {
+        return clientId == null ? rootFolder.resolve(appId) : rootFolder.resolve(Paths.get(clientId, appId));
+    }
+
+    @Override
+    public void forEach(String clientId, String appId, AduVisitor visitor) throws IOException {
+        var appFolder = appFolder(clientId, appId);
+        if (!Files.isDirectory(appFolder)) return;
+        try (Stream<Path> files = Files.list(appFolder)) {
+            for (var it = files.iterator(); it.hasNext(); ) {
+                var file = it.next();
+                long id;
+                try {
+                    id = Long.parseLong(file.getFileName().toString());
+                } catch (NumberFormatException e) {
+                    // metadata.json and its temporary file
+                    continue;
+                }
+                visitor.visit(id, file.toFile().length());
+            }
+        }
+    }
+
+    @Override
+    public long write(String clientId, String appId, long aduId, long offset, byte[] data) throws IOException {
+        // write data to the file at the specified offset
+        try (FileOutputStream fos = new FileOutputStream(fileOf(clientId, appId, aduId), true)) {
+            var channel = fos.getChannel();
+            if (channel.size() > offset) {
+                logger.log(WARNING,
+                           "Offset " + offset + " is greater than file size " + channel.size() + " truncating");
+                channel.truncate(offset);
+            }
+            channel.position(offset);
+            fos.write(data);
+            return channel.size();
+        }
+    }
+
+    @Override
+    public void rename(String clientId, String appId, long fromAduId, long toAduId) throws IOException {
+        Files.move(fileOf(clientId, appId, fromAduId).toPath(),
+                   fileOf(clientId, appId, toAduId).toPath(),
+                   StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Override
+    public void delete(String clientId, String appId, long[] aduIds, LongConsumer deleted) {
+        for (long aduId : aduIds) {
+            File file = fileOf(clientId, appId, aduId);
+            if (file.delete() || !file.exists()) {
+                deleted.accept(aduId);
+            } else {
+                logger.log(SEVERE, "Failed to delete file " + file);
+            }
+        }
+    }
+
+    @Override
+    public InputStream open(String clientId, String appId, long aduId) throws IOException {
+        return new FileInputStream(fileOf(clientId, appId, aduId));
+    }
+
+    @Override
+    public ADU toADU(String clientId, String appId, long aduId, long size) {
+        return new ADU(fileOf(clientId, appId, aduId), appId, aduId, size, clientId);
+    }
+
+    @Override
+    public File fileOf(String clientId, String appId, long aduId) {
+        return appFolder(clientId, appId).resolve(Long.toString(aduId)).toFile();
+    }
+}
@@ -1,11 +1,13 @@
 package net.discdd.utils;
 
+import net.discdd.bundlesecurity.SecurityUtils;
+
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.Paths;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Base64;
@@ -15,27 +17,29 @@ import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
-import java.util.zip.CRC32;
-import java.util.zip.CheckedInputStream;
+import java.util.zip.Deflater;
 
 public class JarUtils {
-    private static long getChecksum(File file) throws IOException {
-        long checkSum = 0L;
-        try (CheckedInputStream checkedInputStream = new CheckedInputStream(new FileInputStream(file), new CRC32())) {
-            byte[] buffer = new byte[1024];
-            while (checkedInputStream.read(buffer) != -1) {}
-            checkSum = checkedInputStream.getChecksum().getValue();
-        }
-        return checkSum;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The encrypted payload of a bundle and files that are already compressed only get bigger when deflated.
+     */
+    private static boolean isIncompressible(String name) {
+        return name.startsWith(SecurityUtils.PAYLOAD_DIR + "/") || name.endsWith(".jar") || name.endsWith(".zip") ||
+                name.endsWith(".gz");
     }
 
-    private static void addFilesToJar(File file, JarOutputStream jarOutputStream, String path, Manifest manifest) throws
-            IOException {
+    private static void addFilesToJar(File file,
+                                      JarOutputStream jarOutputStream,
+                                      String path,
+                                      Manifest manifest,
+                                      byte[] buffer) throws IOException {
         // If the file is a directory, recursively add its contents to the JAR output stream
         if (file.isDirectory()) {
             File[] files = file.listFiles();
             for (File childFile : files) {
-                addFilesToJar(childFile, jarOutputStream, path + file.getName() + "/", manifest);
+                addFilesToJar(childFile, jarOutputStream, path + file.getName() + "/", manifest, buffer);
             }
         }
         // If the file is a file, add it to the JAR output stream and update the manifest
@@ -44,36 +48,33 @@ public class JarUtils {
             MessageDigest messageDigest = null;
             try {
                 messageDigest = MessageDigest.getInstance("SHA-256");
-                // Create a new JAR entry for the file
-                JarEntry jarEntry = new JarEntry(path + file.getName());
-                jarEntry.setSize(file.length());
-                jarEntry.setCrc(getChecksum(file));
-                jarOutputStream.putNextEntry(jarEntry);
+                String name = path + file.getName();
+                // Create a new JAR entry for the file, the CRC is computed by the JAR output stream as the data goes
+                // through, so the file is only read once
+                jarOutputStream.setLevel(isIncompressible(name) ? Deflater.NO_COMPRESSION :
+                                         Deflater.DEFAULT_COMPRESSION);
+                jarOutputStream.putNextEntry(new JarEntry(name));
 
                 // Copy the contents of the file to the JAR output stream
-                FileInputStream fileInputStream = new FileInputStream(file);
-                byte[] buffer = new byte[1024];
-                int bytesRead;
-                while ((bytesRead = fileInputStream.read(buffer)) != -1) {
-                    jarOutputStream.write(buffer, 0, bytesRead);
-                    messageDigest.update(buffer, 0, bytesRead);
+                try (FileInputStream fileInputStream = new FileInputStream(file)) {
+                    int bytesRead;
+                    while ((bytesRead = fileInputStream.read(buffer)) != -1) {
+                        jarOutputStream.write(buffer, 0, bytesRead);
+                        messageDigest.update(buffer, 0, bytesRead);
+                    }
                 }
-                fileInputStream.close();
 
                 // Update the manifest with the checksum of the file
-                Attributes attributes = manifest.getAttributes(path + file.getName());
+                Attributes attributes = manifest.getAttributes(name);
                 if (attributes == null) {
                     attributes = new Attributes();
-                    manifest.getEntries().put(path + file.getName(), attributes);
+                    manifest.getEntries().put(name, attributes);
                 }
                 attributes.putValue("SHA-256-Digest", Base64.getEncoder().encodeToString(messageDigest.digest()));
 
-                // Close the JAR entry
+                // Close the JAR entry, the level of the next entry only applies once this one is finished
                 jarOutputStream.closeEntry();
 
-                // Reset the message digest for the next file
-                messageDigest.reset();
-
             } catch (NoSuchAlgorithmException e) {
                 e.printStackTrace();
             }
@@ -81,26 +82,23 @@ public class JarUtils {
     }
 
     public static void dirToJar(String dirPath, String jarFilePath) {
-        try {
-            FileOutputStream fos = new FileOutputStream(jarFilePath);
-            JarOutputStream jos = new JarOutputStream(fos);
-
+        try (FileOutputStream fos = new FileOutputStream(jarFilePath);
+             JarOutputStream jos = new JarOutputStream(new BufferedOutputStream(fos, BUFFER_SIZE))) {
+            byte[] buffer = new byte[BUFFER_SIZE];
             Manifest manifest = new Manifest();
             File dir = new File(dirPath);
             if (dir.isDirectory()) {
                 File[] files = dir.listFiles();
                 for (File childFile : files) {
-                    addFilesToJar(childFile, jos, "", manifest);
+                    addFilesToJar(childFile, jos, "", manifest, buffer);
                 }
             }
 
+            jos.setLevel(Deflater.DEFAULT_COMPRESSION);
             JarEntry manifestEntry = new JarEntry("META-INF/MANIFEST.MF");
             jos.putNextEntry(manifestEntry);
             manifest.write(jos);
             jos.closeEntry();
-
-            jos.close();
-            fos.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -120,6 +118,7 @@ public class JarUtils {
             }
 
             // Iterate over the entries in the JAR file and extract them
+            byte[] buffer = new byte[BUFFER_SIZE];
             Enumeration<JarEntry> entries = jarFile.entries();
             while (entries.hasMoreElements()) {
                 JarEntry entry = entries.nextElement();
@@ -139,16 +138,14 @@ public class JarUtils {
 
                 // Extract the file
                 MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
-                InputStream inputStream = jarFile.getInputStream(entry);
-                FileOutputStream outputStream = new FileOutputStream(destinationFile);
-                byte[] buffer = new byte[1024];
-                int bytesRead;
-                while ((bytesRead = inputStream.read(buffer)) != -1) {
-                    outputStream.write(buffer, 0, bytesRead);
-                    messageDigest.update(buffer, 0, bytesRead);
+                try (InputStream inputStream = jarFile.getInputStream(entry);
+                     FileOutputStream outputStream = new FileOutputStream(destinationFile)) {
+                    int bytesRead;
+                    while ((bytesRead = inputStream.read(buffer)) != -1) {
+                        outputStream.write(buffer, 0, bytesRead);
+                        messageDigest.update(buffer, 0, bytesRead);
+                    }
                 }
-                inputStream.close();
-                outputStream.close();
 
                 // Verify the checksum of the extracted file
                 String fileChecksum = Base64.getEncoder().encodeToString(messageDigest.digest());
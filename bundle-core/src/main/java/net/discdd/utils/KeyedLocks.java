@@ -0,0 +1,79 @@
+package net.discdd.utils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A lock per key, such as a client ID, so that work on one key never waits for work on another. A key's lock only
+ * exists while some thread holds or is waiting for it, so the locks don't grow with the number of keys. The locks are
+ * reentrant.
+ */
+public class KeyedLocks<K> {
+    /* users is only changed inside the compute functions of the locks map, which run atomically for a key */
+    private static class KeyLock {
+        final ReentrantLock lock = new ReentrantLock();
+        int users;
+    }
+
+    /**
+     * Holds the lock of a key until it is closed, which has to be done by the thread that took it.
+     */
+    public final class Held implements AutoCloseable {
+        private final K key;
+        private final KeyLock keyLock;
+
+        private Held(K key, KeyLock keyLock) {
+            this.key = key;
+            this.keyLock = keyLock;
+        }
+
+        @Override
+        public void close() {
+            keyLock.lock.unlock();
+            release(key);
+        }
+    }
+
+    private final ConcurrentHashMap<K, KeyLock> locks = new ConcurrentHashMap<>();
+
+    /**
+     * Takes the lock of key, waiting for it if another thread holds it. Use it with try-with-resources so that it is
+     * released.
+     */
+    public Held lock(K key) {
+        var keyLock = use(key);
+        keyLock.lock.lock();
+        return new Held(key, keyLock);
+    }
+
+    /**
+     * @return the lock of key, or null if another thread holds it
+     */
+    public Held tryLock(K key) {
+        var keyLock = use(key);
+        if (!keyLock.lock.tryLock()) {
+            release(key);
+            return null;
+        }
+        return new Held(key, keyLock);
+    }
+
+    /**
+     * @return the number of keys whose lock is held or waited for
+     */
+    public int size() {
+        return locks.size();
+    }
+
+    private KeyLock use(K key) {
+        return locks.compute(key, (k, keyLock) -> {
+            if (keyLock == null) keyLock = new KeyLock();
+            keyLock.users++;
+            return keyLock;
+        });
+    }
+
+    private void release(K key) {
+        locks.computeIfPresent(key, (k, keyLock) -> --keyLock.users == 0 ? null : keyLock);
+    }
+}
@@ -0,0 +1,110 @@
+package net.discdd.utils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.INFO;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * A decrypted bundle payload that is read directly out of the payload jar. The acknowledgement, routing metadata
+ * and crash report are small and read on demand; ADUs are handed one at a time to an {@link AduVisitor} so they can
+ * go straight into a StoreADUs without being extracted to a directory first. ADUs that were deflated with a
+ * {@link CompressionDictionary} are inflated before they are handed over.
+ */
+public class ReceivedPayload implements AutoCloseable {
+    private static final Logger logger = Logger.getLogger(ReceivedPayload.class.getName());
+    private static final String ROUTING_METADATA_FILE_NAME = "routing.metadata";
+    private final DDDJarFileReader jarReader;
+    private final CompressionPolicies compressionPolicies;
+
+    public ReceivedPayload(Path decryptedPayload) throws IOException {
+        this(decryptedPayload, new CompressionPolicies());
+    }
+
+    /**
+     * @param compressionPolicies has the dictionaries that ADUs in the payload may have been deflated with
+     */
+    public ReceivedPayload(Path decryptedPayload, CompressionPolicies compressionPolicies) throws IOException {
+        this.jarReader = new DDDJarFileReader(decryptedPayload);
+        this.compressionPolicies = compressionPolicies;
+    }
+
+    public String getAcknowledgement() throws IOException {
+        byte[] ack = jarReader.readEntry(Constants.BUNDLE_ACKNOWLEDGEMENT_FILE_NAME);
+        if (ack == null) {
+            logger.log(WARNING, "No acknowledgement found in payload, treating it as a heartbeat");
+            return "HB";
+        }
+        return new String(ack).trim();
+    }
+
+    /**
+     * @return the routing metadata or null if the payload does not have any
+     */
+    public byte[] getRoutingMetadata() throws IOException {
+        return jarReader.readEntry(ROUTING_METADATA_FILE_NAME);
+    }
+
+    /**
+     * @return the crash report or null if the payload does not have one
+     */
+    public String getCrashReport() throws IOException {
+        byte[] report = jarReader.readEntry(Constants.BUNDLE_CRASH_REPORT_FILE_NAME);
+        return report == null ? null : new String(report, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Calls the visitor for each ADU in the payload in the order the ADUs were written. Each ADU's digest is
+     * verified before it is passed to the visitor.
+     *
+     * @return the number of ADUs visited
+     */
+    public int forEachAdu(AduVisitor visitor) throws IOException {
+        int count = 0;
+        for (String name : jarReader.getEntryNames()) {
+            String[] parts = name.split("/");
+            if (parts.length != 3 || !parts[0].equals(Constants.BUNDLE_ADU_DIRECTORY_NAME)) {
+                continue;
+            }
+            String appId = parts[1];
+            long aduId;
+            try {
+                aduId = Long.parseLong(parts[2]);
+            } catch (NumberFormatException e) {
+                logger.log(INFO, "Ignoring payload entry " + name);
+                continue;
+            }
+            if (appId.isEmpty() || appId.equals(".") || appId.equals("..")) {
+                logger.log(WARNING, "Ignoring payload entry with bad appId " + name);
+                continue;
+            }
+            visitor.visit(appId, aduId, readAdu(name));
+            count++;
+        }
+        return count;
+    }
+
+    private byte[] readAdu(String name) throws IOException {
+        byte[] data = jarReader.readEntry(name);
+        String dictionaryId = jarReader.getEntryAttribute(name, CompressionDictionary.MANIFEST_ATTRIBUTE);
+        if (dictionaryId == null) return data;
+        var dictionary = compressionPolicies.getDictionary(dictionaryId);
+        if (dictionary == null) {
+            // skipping the ADU would lose it, the payload can be processed again once the dictionary is installed
+            throw new IOException("Compression dictionary " + dictionaryId + " of " + name + " is not installed");
+        }
+        return dictionary.inflate(data);
+    }
+
+    @Override
+    public void close() throws IOException {
+        jarReader.close();
+    }
+
+    public interface AduVisitor {
+        void visit(String appId, long aduId, byte[] data) throws IOException;
+    }
+}
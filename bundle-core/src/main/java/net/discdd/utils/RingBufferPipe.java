@@ -0,0 +1,228 @@
+package net.discdd.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A pipe between one writing thread and one reading thread, used to stream a bundle payload into encryption while it
+ * is being created. It replaces PipedInputStream/PipedOutputStream, which have a 1 KB buffer, take a lock for every
+ * read and write and poll for space once a second.
+ *
+ * <p>The data goes through a ring buffer. The two sides only share the read and write positions, so a write or read
+ * that doesn't have to wait is just a copy and a volatile store. A side that has to wait parks, and is unparked by the
+ * other side once it has made progress. Ring buffers of the default size are pooled, so generating a bundle doesn't
+ * allocate a new one every time.
+ *
+ * <p>Closing the input stream makes further writes fail, so a writer whose reader went away doesn't block forever.
+ * The writer can pass an exception to {@link #fail(IOException)}, which the reader gets instead of the end of the
+ * stream, so a payload that couldn't be created isn't mistaken for a complete one.
+ */
+public class RingBufferPipe {
+    public static final int DEFAULT_CAPACITY = 1 << 20;
+    private static final int MAX_POOLED_BUFFERS = 16;
+    // a wakeup can't be lost, but parking is bounded anyway so a bug doesn't hang a bundle generation forever
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final ConcurrentLinkedQueue<byte[]> bufferPool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooledBuffers = new AtomicInteger();
+
+    private final byte[] buffer;
+    private final int mask;
+    private final AtomicLong writePosition = new AtomicLong();
+    private final AtomicLong readPosition = new AtomicLong();
+    private volatile boolean writerClosed;
+    private volatile boolean readerClosed;
+    private volatile IOException writerFailure;
+    private volatile Thread waitingReader;
+    private volatile Thread waitingWriter;
+    // the buffer goes back to the pool once both ends are closed
+    private final AtomicInteger openEnds = new AtomicInteger(2);
+    private final InputStream inputStream = new PipeInputStream();
+    private final OutputStream outputStream = new PipeOutputStream();
+
+    public RingBufferPipe() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity the size of the ring buffer, must be a power of two
+     */
+    public RingBufferPipe(int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        byte[] pooled = capacity == DEFAULT_CAPACITY ? bufferPool.poll() : null;
+        if (pooled != null) {
+            pooledBuffers.decrementAndGet();
+        }
+        this.buffer = pooled != null ? pooled : new byte[capacity];
+        this.mask = capacity - 1;
+    }
+
+    /* The end that is read by the consumer thread */
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    /* The end that is written by the producer thread */
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    /**
+     * Close the writing end with an error: once the data already written has been read, reads throw e.
+     */
+    public void fail(IOException e) {
+        writerFailure = e;
+        closeWriter();
+    }
+
+    private void closeWriter() {
+        if (!writerClosed) {
+            writerClosed = true;
+            LockSupport.unpark(waitingReader);
+            releaseEnd();
+        }
+    }
+
+    private void closeReader() {
+        if (!readerClosed) {
+            readerClosed = true;
+            LockSupport.unpark(waitingWriter);
+            releaseEnd();
+        }
+    }
+
+    private void releaseEnd() {
+        if (openEnds.decrementAndGet() == 0 && buffer.length == DEFAULT_CAPACITY) {
+            if (pooledBuffers.incrementAndGet() <= MAX_POOLED_BUFFERS) {
+                bufferPool.offer(buffer);
+            } else {
+                pooledBuffers.decrementAndGet();
+            }
+        }
+    }
+
+    private static void park(Object blocker) throws InterruptedIOException {
+        LockSupport.parkNanos(blocker, MAX_PARK_NANOS);
+        if (Thread.interrupted()) {
+            throw new InterruptedIOException("Interrupted while waiting on the pipe");
+        }
+    }
+
+    private class PipeOutputStream extends OutputStream {
+        private final byte[] single = new byte[1];
+
+        @Override
+        public void write(int b) throws IOException {
+            single[0] = (byte) b;
+            write(single, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || len > b.length - off) {
+                throw new IndexOutOfBoundsException();
+            }
+            if (writerClosed) {
+                throw new IOException("Pipe closed");
+            }
+            while (len > 0) {
+                if (readerClosed) {
+                    throw new IOException("Pipe closed by reader");
+                }
+                long write = writePosition.get();
+                int free = buffer.length - (int) (write - readPosition.get());
+                if (free == 0) {
+                    waitingWriter = Thread.currentThread();
+                    // the reader may have made room before it could see that we are waiting
+                    if (buffer.length - (int) (write - readPosition.get()) == 0 && !readerClosed) {
+                        park(this);
+                    }
+                    waitingWriter = null;
+                    continue;
+                }
+                int n = Math.min(len, free);
+                int index = (int) (write & mask);
+                int first = Math.min(n, buffer.length - index);
+                System.arraycopy(b, off, buffer, index, first);
+                System.arraycopy(b, off + first, buffer, 0, n - first);
+                writePosition.set(write + n);
+                LockSupport.unpark(waitingReader);
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void close() {
+            closeWriter();
+        }
+    }
+
+    private class PipeInputStream extends InputStream {
+        private final byte[] single = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || len > b.length - off) {
+                throw new IndexOutOfBoundsException();
+            }
+            if (len == 0) {
+                return 0;
+            }
+            while (true) {
+                if (readerClosed) {
+                    throw new IOException("Pipe closed");
+                }
+                long read = readPosition.get();
+                // read writerClosed before the position, everything written before the close is then visible
+                boolean closed = writerClosed;
+                int available = (int) (writePosition.get() - read);
+                if (available > 0) {
+                    int n = Math.min(len, available);
+                    int index = (int) (read & mask);
+                    int first = Math.min(n, buffer.length - index);
+                    System.arraycopy(buffer, index, b, off, first);
+                    System.arraycopy(buffer, 0, b, off + first, n - first);
+                    readPosition.set(read + n);
+                    LockSupport.unpark(waitingWriter);
+                    return n;
+                }
+                if (closed) {
+                    if (writerFailure != null) {
+                        throw new IOException("Writer failed", writerFailure);
+                    }
+                    return -1;
+                }
+                waitingReader = Thread.currentThread();
+                // the writer may have written or closed before it could see that we are waiting
+                if (writePosition.get() == read && !writerClosed) {
+                    park(this);
+                }
+                waitingReader = null;
+            }
+        }
+
+        @Override
+        public int available() {
+            return readerClosed ? 0 : (int) (writePosition.get() - readPosition.get());
+        }
+
+        @Override
+        public void close() {
+            closeReader();
+        }
+    }
+}
@@ -0,0 +1,654 @@
+package net.discdd.utils;
+
+import net.discdd.model.ADU;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.INFO;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * A log-structured {@link AduStorage} for stores with lots of small ADUs, where a file per ADU runs out of inodes and
+ * makes directory listings slow. The ADUs of a client are appended to segment files in
+ * rootFolder/clientId/.segments, and where the bytes of each ADU are is kept in memory. The index of a client is
+ * rebuilt from its segments the first time the client is used. Use a single instance for a root folder.
+ * <p>
+ * A segment is a sequence of records, each one [crc32][length][type, appId, aduId, argument, data]:
+ * <ul>
+ * <li>CHUNK: data written into the ADU at the offset in the argument, anything after the offset is dropped</li>
+ * <li>RENAME: the ADU gets the id in the argument</li>
+ * <li>DELETE: every finished ADU of the app up to aduId is deleted</li>
+ * <li>CHECKPOINT: the segments before this one don't matter anymore</li>
+ * </ul>
+ * A record torn by a crash fails its checksum, and the segment is cut off before it when it is read back.
+ * <p>
+ * Deleted and overwritten data stays in the segments until a background compaction copies the live ADUs of the
+ * client into a new segment that starts with a checkpoint. The new segment is written under a temporary name and only
+ * renamed into place once it is complete, so a crash during compaction leaves the old segments in charge.
+ */
+public class SegmentAduStorage implements AduStorage, Closeable {
+    private static final Logger logger = Logger.getLogger(SegmentAduStorage.class.getName());
+    public static final String SEGMENTS_FOLDER = ".segments";
+    public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+    public static final long DEFAULT_COMPACTION_THRESHOLD = 16L * 1024 * 1024;
+    static final String SEGMENT_EXT = ".seg";
+    static final String COMPACTING_EXT = ".compacting";
+    private static final byte CHUNK = 1;
+    private static final byte RENAME = 2;
+    private static final byte DELETE = 3;
+    private static final byte CHECKPOINT = 4;
+    // the crc and the length
+    private static final int RECORD_PREFIX = 8;
+    // type, length of the app ID, aduId and argument
+    private static final int FIXED_HEADER = 1 + 2 + 8 + 8;
+    private static final byte[] NO_DATA = new byte[0];
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final Path rootFolder;
+    private final long segmentSize;
+    private final long compactionThreshold;
+    private final Map<String, ClientLog> logs = new ConcurrentHashMap<>();
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        var thread = new Thread(r, "adu-segment-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public SegmentAduStorage(Path rootFolder) {
+        this(rootFolder, DEFAULT_SEGMENT_SIZE, DEFAULT_COMPACTION_THRESHOLD);
+    }
+
+    /**
+     * @param segmentSize         a new segment is started once the current one reaches this size
+     * @param compactionThreshold a client is compacted once its segments are at least this big and less than half of
+     *                            them is live data
+     */
+    public SegmentAduStorage(Path rootFolder, long segmentSize, long compactionThreshold) {
+        this.rootFolder = rootFolder;
+        this.segmentSize = segmentSize;
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    private static class Segment {
+        final long number;
+        final Path path;
+        long size;
+
+        Segment(long number, Path path) {
+            this.number = number;
+            this.path = path;
+        }
+    }
+
+    /* a run of the bytes of an ADU, starting at offset in the ADU, stored at position in a segment */
+    private static class Extent {
+        final Segment segment;
+        final long position;
+        final long offset;
+        long length;
+
+        Extent(Segment segment, long position, long offset, long length) {
+            this.segment = segment;
+            this.position = position;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static class StoredAdu {
+        final List<Extent> extents = new ArrayList<>();
+
+        long size() {
+            if (extents.isEmpty()) return 0;
+            var last = extents.get(extents.size() - 1);
+            return last.offset + last.length;
+        }
+    }
+
+    /* all access is synchronized on the log */
+    private static class ClientLog {
+        final Path folder;
+        final TreeMap<Long, Segment> segments = new TreeMap<>();
+        final Map<String, TreeMap<Long, StoredAdu>> apps = new HashMap<>();
+        // bytes of all the records in the segments, and of the ADU data that is still used
+        long totalBytes;
+        long liveBytes;
+        boolean loaded;
+        boolean compactionQueued;
+
+        ClientLog(Path folder) {
+            this.folder = folder;
+        }
+
+        TreeMap<Long, StoredAdu> app(String appId) {
+            return apps.computeIfAbsent(appId, k -> new TreeMap<>());
+        }
+    }
+
+    private static String segmentName(long number, String extension) {
+        return String.format("%016d%s", number, extension);
+    }
+
+    private ClientLog log(String clientId) throws IOException {
+        var folder = (clientId == null ? rootFolder : rootFolder.resolve(clientId)).resolve(SEGMENTS_FOLDER);
+        var log = logs.computeIfAbsent(clientId == null ? "" : clientId, k -> new ClientLog(folder));
+        synchronized (log) {
+            if (!log.loaded) {
+                load(log);
+                log.loaded = true;
+            }
+        }
+        return log;
+    }
+
+    /* replays the segments of a client, cutting off anything a crash left behind */
+    private static void load(ClientLog log) throws IOException {
+        if (!Files.isDirectory(log.folder)) return;
+        var numbers = new ArrayList<Long>();
+        try (Stream<Path> files = Files.list(log.folder)) {
+            for (var it = files.iterator(); it.hasNext(); ) {
+                var file = it.next();
+                var name = file.getFileName().toString();
+                if (name.endsWith(COMPACTING_EXT)) {
+                    logger.log(INFO, "Removing unfinished compaction " + file);
+                    Files.delete(file);
+                } else if (name.endsWith(SEGMENT_EXT)) {
+                    numbers.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_EXT.length())));
+                }
+            }
+        }
+        numbers.sort(null);
+        long checkpoint = -1;
+        for (long number : numbers) {
+            var segment = new Segment(number, log.folder.resolve(segmentName(number, SEGMENT_EXT)));
+            log.segments.put(number, segment);
+            if (replay(log, segment)) checkpoint = number;
+        }
+        // a crash after a compaction was renamed into place can leave the segments it replaced
+        while (!log.segments.isEmpty() && log.segments.firstKey() < checkpoint) {
+            var obsolete = log.segments.pollFirstEntry().getValue();
+            Files.deleteIfExists(obsolete.path);
+        }
+        log.totalBytes = 0;
+        log.segments.values().forEach(s -> log.totalBytes += s.size);
+    }
+
+    /* @return true if the segment starts with a checkpoint */
+    private static boolean replay(ClientLog log, Segment segment) throws IOException {
+        boolean checkpoint = false;
+        try (var channel = FileChannel.open(segment.path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long fileSize = channel.size();
+            var in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), COPY_BUFFER_SIZE));
+            long position = 0;
+            var crc = new CRC32();
+            while (position < fileSize) {
+                byte[] body;
+                int storedCrc;
+                try {
+                    storedCrc = in.readInt();
+                    int length = in.readInt();
+                    if (length < FIXED_HEADER || length > fileSize - position - RECORD_PREFIX) break;
+                    body = new byte[length];
+                    in.readFully(body);
+                } catch (EOFException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(body, 0, body.length);
+                if ((int) crc.getValue() != storedCrc) break;
+
+                var header = ByteBuffer.wrap(body);
+                byte type = header.get();
+                int appIdLength = header.getShort() & 0xffff;
+                var appId = new String(body, header.position(), appIdLength, StandardCharsets.UTF_8);
+                header.position(header.position() + appIdLength);
+                long aduId = header.getLong();
+                long argument = header.getLong();
+                long dataPosition = position + RECORD_PREFIX + header.position();
+                long dataLength = body.length - header.position();
+                switch (type) {
+                    case CHUNK:
+                        applyChunk(log, appId, aduId, new Extent(segment, dataPosition, argument, dataLength));
+                        break;
+                    case RENAME:
+                        applyRename(log, appId, aduId, argument);
+                        break;
+                    case DELETE:
+                        applyDelete(log, appId, aduId);
+                        break;
+                    case CHECKPOINT:
+                        log.apps.clear();
+                        log.liveBytes = 0;
+                        checkpoint = true;
+                        break;
+                    default:
+                        logger.log(WARNING, "Unknown record type " + type + " in " + segment.path);
+                }
+                position += RECORD_PREFIX + body.length;
+            }
+            if (position < fileSize) {
+                logger.log(WARNING,
+                           "Cutting off " + (fileSize - position) + " bytes of " + segment.path + " at " + position +
+                                   " that were not completely written");
+                channel.truncate(position);
+            }
+            segment.size = position;
+        }
+        return checkpoint;
+    }
+
+    private static void truncate(ClientLog log, StoredAdu adu, long offset) {
+        var extents = adu.extents;
+        while (!extents.isEmpty()) {
+            var last = extents.get(extents.size() - 1);
+            if (last.offset >= offset) {
+                extents.remove(extents.size() - 1);
+                log.liveBytes -= last.length;
+            } else {
+                long cut = last.offset + last.length - offset;
+                if (cut > 0) {
+                    last.length -= cut;
+                    log.liveBytes -= cut;
+                }
+                break;
+            }
+        }
+    }
+
+    private static void applyChunk(ClientLog log, String appId, long aduId, Extent extent) {
+        var adu = log.app(appId).computeIfAbsent(aduId, k -> new StoredAdu());
+        truncate(log, adu, extent.offset);
+        if (extent.length > 0) {
+            adu.extents.add(extent);
+            log.liveBytes += extent.length;
+        }
+    }
+
+    private static void applyRename(ClientLog log, String appId, long fromAduId, long toAduId) {
+        var app = log.app(appId);
+        var adu = app.remove(fromAduId);
+        if (adu == null) return;
+        var replaced = app.put(toAduId, adu);
+        if (replaced != null) log.liveBytes -= replaced.size();
+    }
+
+    private static void applyDelete(ClientLog log, String appId, long upToAduId) {
+        if (upToAduId < 0) return;
+        var deleted = log.app(appId).subMap(0L, true, upToAduId, true);
+        deleted.values().forEach(adu -> log.liveBytes -= adu.size());
+        deleted.clear();
+    }
+
+    private Segment activeSegment(ClientLog log) throws IOException {
+        var last = log.segments.isEmpty() ? null : log.segments.lastEntry().getValue();
+        if (last != null && last.size < segmentSize) return last;
+        Files.createDirectories(log.folder);
+        long number = last == null ? 1 : last.number + 1;
+        var segment = new Segment(number, log.folder.resolve(segmentName(number, SEGMENT_EXT)));
+        log.segments.put(number, segment);
+        return segment;
+    }
+
+    private static ByteBuffer header(byte type, String appId, long aduId, long argument, long dataLength) {
+        var app = appId.getBytes(StandardCharsets.UTF_8);
+        var header = ByteBuffer.allocate(RECORD_PREFIX + FIXED_HEADER + app.length);
+        header.putInt(0)
+                .putInt((int) (FIXED_HEADER + app.length + dataLength))
+                .put(type)
+                .putShort((short) app.length)
+                .put(app)
+                .putLong(aduId)
+                .putLong(argument);
+        header.flip();
+        return header;
+    }
+
+    /* @return where the data ended up */
+    private Extent append(ClientLog log, byte type, String appId, long aduId, long argument, byte[] data) throws
+            IOException {
+        var header = header(type, appId, aduId, argument, data.length);
+        var crc = new CRC32();
+        crc.update(header.array(), RECORD_PREFIX, header.limit() - RECORD_PREFIX);
+        crc.update(data, 0, data.length);
+        header.putInt(0, (int) crc.getValue());
+        int headerLength = header.limit();
+
+        var segment = activeSegment(log);
+        try (var channel = FileChannel.open(segment.path, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            channel.position(segment.size);
+            var buffers = new ByteBuffer[] { header, ByteBuffer.wrap(data) };
+            try {
+                long remaining = headerLength + (long) data.length;
+                while (remaining > 0) remaining -= channel.write(buffers);
+            } catch (IOException e) {
+                // don't leave half a record for the next one to land behind
+                channel.truncate(segment.size);
+                throw e;
+            }
+        }
+        var extent = new Extent(segment, segment.size + headerLength, argument, data.length);
+        segment.size += headerLength + data.length;
+        log.totalBytes += headerLength + data.length;
+        return extent;
+    }
+
+    private void maybeCompact(ClientLog log) {
+        if (log.compactionQueued || log.totalBytes < compactionThreshold || log.liveBytes * 2 > log.totalBytes) {
+            return;
+        }
+        log.compactionQueued = true;
+        try {
+            compactor.execute(() -> {
+                try {
+                    compact(log);
+                } catch (IOException e) {
+                    logger.log(WARNING, "Failed to compact " + log.folder, e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.compactionQueued = false;
+        }
+    }
+
+    /**
+     * Copies the live ADUs of the client into a new segment and deletes the old segments. This normally happens in
+     * the background once enough of the segments of the client is garbage.
+     */
+    public void compact(String clientId) throws IOException {
+        compact(log(clientId));
+    }
+
+    private void compact(ClientLog log) throws IOException {
+        synchronized (log) {
+            log.compactionQueued = false;
+            if (log.segments.isEmpty()) return;
+            long number = log.segments.lastKey() + 1;
+            var compacted = new Segment(number, log.folder.resolve(segmentName(number, SEGMENT_EXT)));
+            var temp = log.folder.resolve(segmentName(number, COMPACTING_EXT));
+            var newExtents = new HashMap<StoredAdu, Extent>();
+            var sources = new HashMap<Segment, FileChannel>();
+            try (var out = FileChannel.open(temp,
+                                            StandardOpenOption.CREATE,
+                                            StandardOpenOption.WRITE,
+                                            StandardOpenOption.TRUNCATE_EXISTING)) {
+                writeCopy(out, compacted, header(CHECKPOINT, "", 0, 0, 0), null, sources);
+                for (var app : log.apps.entrySet()) {
+                    for (var entry : app.getValue().entrySet()) {
+                        var adu = entry.getValue();
+                        var header = header(CHUNK, app.getKey(), entry.getKey(), 0, adu.size());
+                        long position = writeCopy(out, compacted, header, adu, sources);
+                        newExtents.put(adu, new Extent(compacted, position, 0, adu.size()));
+                    }
+                }
+                out.force(true);
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(temp);
+                throw e;
+            } finally {
+                for (var source : sources.values()) source.close();
+            }
+            try {
+                Files.move(temp, compacted.path, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, compacted.path);
+            }
+
+            // the new segment has everything, switch over to it before the old ones go
+            var obsolete = new ArrayList<>(log.segments.values());
+            log.segments.clear();
+            log.segments.put(number, compacted);
+            newExtents.forEach((adu, extent) -> {
+                adu.extents.clear();
+                if (extent.length > 0) adu.extents.add(extent);
+            });
+            long before = log.totalBytes;
+            log.totalBytes = compacted.size;
+            for (var segment : obsolete) {
+                Files.deleteIfExists(segment.path);
+            }
+            logger.log(FINE, "Compacted " + log.folder + " from " + before + " to " + compacted.size + " bytes");
+        }
+    }
+
+    /* writes a record whose data is copied from the extents of adu, @return the position of the data */
+    private static long writeCopy(FileChannel out,
+                                  Segment segment,
+                                  ByteBuffer header,
+                                  StoredAdu adu,
+                                  Map<Segment, FileChannel> sources) throws IOException {
+        long recordPosition = segment.size;
+        var crc = new CRC32();
+        crc.update(header.array(), RECORD_PREFIX, header.limit() - RECORD_PREFIX);
+        long position = recordPosition;
+        while (header.hasRemaining()) position += out.write(header, position);
+        if (adu != null) {
+            var buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+            for (var extent : adu.extents) {
+                var source = sources.get(extent.segment);
+                if (source == null) {
+                    source = FileChannel.open(extent.segment.path, StandardOpenOption.READ);
+                    sources.put(extent.segment, source);
+                }
+                long copied = 0;
+                while (copied < extent.length) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), extent.length - copied));
+                    int read = source.read(buffer, extent.position + copied);
+                    if (read < 0) {
+                        throw new EOFException("Segment " + extent.segment.path + " is shorter than expected");
+                    }
+                    crc.update(buffer.array(), 0, read);
+                    buffer.flip();
+                    while (buffer.hasRemaining()) position += out.write(buffer, position);
+                    copied += read;
+                }
+            }
+        }
+        out.write(ByteBuffer.allocate(4).putInt(0, (int) crc.getValue()), recordPosition);
+        long dataPosition = recordPosition + header.limit();
+        segment.size = position;
+        return dataPosition;
+    }
+
+    @Override
+    public void forEach(String clientId, String appId, AduVisitor visitor) throws IOException {
+        var log = log(clientId);
+        synchronized (log) {
+            var app = log.apps.get(appId);
+            if (app == null) return;
+            app.forEach((aduId, adu) -> visitor.visit(aduId, adu.size()));
+        }
+    }
+
+    @Override
+    public long write(String clientId, String appId, long aduId, long offset, byte[] data) throws IOException {
+        var log = log(clientId);
+        synchronized (log) {
+            var adu = log.app(appId).get(aduId);
+            long size = adu == null ? 0 : adu.size();
+            if (size > offset) {
+                logger.log(WARNING, "Offset " + offset + " is less than ADU size " + size + " truncating");
+            }
+            var extent = append(log, CHUNK, appId, aduId, Math.min(offset, size), data);
+            applyChunk(log, appId, aduId, extent);
+            maybeCompact(log);
+            return log.app(appId).get(aduId).size();
+        }
+    }
+
+    @Override
+    public void rename(String clientId, String appId, long fromAduId, long toAduId) throws IOException {
+        var log = log(clientId);
+        synchronized (log) {
+            if (!log.app(appId).containsKey(fromAduId)) {
+                throw new NoSuchFileException(appId + "/" + fromAduId);
+            }
+            append(log, RENAME, appId, fromAduId, toAduId, NO_DATA);
+            applyRename(log, appId, fromAduId, toAduId);
+        }
+    }
+
+    @Override
+    public void delete(String clientId, String appId, long[] aduIds, LongConsumer deleted) throws IOException {
+        if (aduIds.length == 0) return;
+        var log = log(clientId);
+        synchronized (log) {
+            long upToAduId = aduIds[aduIds.length - 1];
+            append(log, DELETE, appId, upToAduId, 0, NO_DATA);
+            applyDelete(log, appId, upToAduId);
+            maybeCompact(log);
+        }
+        for (long aduId : aduIds) deleted.accept(aduId);
+    }
+
+    @Override
+    public InputStream open(String clientId, String appId, long aduId) throws IOException {
+        var log = log(clientId);
+        var channels = new HashMap<Segment, FileChannel>();
+        var extents = new ArrayList<Extent>();
+        synchronized (log) {
+            var adu = log.app(appId).get(aduId);
+            if (adu == null) throw new NoSuchFileException(appId + "/" + aduId);
+            try {
+                // open the segments now, a compaction may delete them as soon as the lock is released
+                for (var extent : adu.extents) {
+                    extents.add(new Extent(extent.segment, extent.position, extent.offset, extent.length));
+                    if (!channels.containsKey(extent.segment)) {
+                        channels.put(extent.segment, FileChannel.open(extent.segment.path, StandardOpenOption.READ));
+                    }
+                }
+            } catch (IOException e) {
+                for (var channel : channels.values()) channel.close();
+                throw e;
+            }
+        }
+        return new ExtentInputStream(extents, channels);
+    }
+
+    @Override
+    public ADU toADU(String clientId, String appId, long aduId, long size) {
+        return new ADU(fileOf(clientId, appId, aduId),
+                       appId,
+                       aduId,
+                       size,
+                       clientId,
+                       () -> open(clientId, appId, aduId));
+    }
+
+    @Override
+    public File fileOf(String clientId, String appId, long aduId) {
+        try {
+            var log = log(clientId);
+            synchronized (log) {
+                var adu = log.app(appId).get(aduId);
+                if (adu != null && !adu.extents.isEmpty()) return adu.extents.get(0).segment.path.toFile();
+                return log.folder.toFile();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Stops the background compaction, waiting for one that is running to finish.
+     */
+    @Override
+    public void close() {
+        compactor.shutdown();
+        try {
+            if (!compactor.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger.log(WARNING, "Compaction of " + rootFolder + " did not finish");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class ExtentInputStream extends InputStream {
+        private final List<Extent> extents;
+        private final Map<Segment, FileChannel> channels;
+        private int extent;
+        private long extentRead;
+
+        ExtentInputStream(List<Extent> extents, Map<Segment, FileChannel> channels) {
+            this.extents = extents;
+            this.channels = channels;
+        }
+
+        @Override
+        public int read() throws IOException {
+            var one = new byte[1];
+            int read = read(one, 0, 1);
+            return read < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            while (extent < extents.size() && extentRead == extents.get(extent).length) {
+                extent++;
+                extentRead = 0;
+            }
+            if (extent == extents.size()) return -1;
+            var current = extents.get(extent);
+            int toRead = (int) Math.min(len, current.length - extentRead);
+            int read = channels.get(current.segment).read(ByteBuffer.wrap(b, off, toRead),
+                                                          current.position + extentRead);
+            if (read < 0) throw new EOFException("Segment " + current.segment.path + " is shorter than expected");
+            extentRead += read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = 0;
+            while (skipped < n && extent < extents.size()) {
+                long step = Math.min(n - skipped, extents.get(extent).length - extentRead);
+                extentRead += step;
+                skipped += step;
+                if (extentRead == extents.get(extent).length) {
+                    extent++;
+                    extentRead = 0;
+                }
+            }
+            return skipped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (var channel : channels.values()) channel.close();
+        }
+    }
+}
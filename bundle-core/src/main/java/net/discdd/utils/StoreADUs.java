@@ -5,21 +5,24 @@ import net.discdd.model.ADU;
 import net.discdd.model.Metadata;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import static java.util.logging.Level.FINE;
@@ -30,9 +33,20 @@ import static java.util.logging.Level.WARNING;
 
 public class StoreADUs {
     public static final String METADATA_FILENAME = "metadata.json";
-    private static final Path METADATA_PATH = Paths.get(METADATA_FILENAME);
+    private static final String METADATA_TEMP_FILENAME = METADATA_FILENAME + ".tmp";
+    private static final Gson gson = new Gson();
+    /**
+     * The indexes of every store, keyed by the store's absolute root folder. More than one StoreADUs can be opened on
+     * the same folder (the client opens its stores from the data manager and the content provider), so they have to
+     * share an index for it to stay in sync with the files.
+     */
+    private static final Map<Path, Map<ClientApp, AduIndex>> indexesByRoot = new ConcurrentHashMap<>();
+    private static final Map<Path, Changes> changesByRoot = new ConcurrentHashMap<>();
     public Path rootFolder;
     private static final Logger logger = Logger.getLogger(StoreADUs.class.getName());
+    private final Map<ClientApp, AduIndex> indexes;
+    private final Changes changes;
+    private final AduStorage storage;
     /**
      * Listeners that will be notified when a new ADU is added.
      * This member utilizes a ConcurrentHashMap to allow concurrent access, and listeners can directly add or remove
@@ -40,40 +54,171 @@ public class StoreADUs {
      * When a new ADU is added, all listeners will be notified with the appId of added ADUs.
      */
     public final Set<Consumer<String>> additionListeners = ConcurrentHashMap.newKeySet();
+    /**
+     * Listeners that will be notified with the clientId and appId of an ADU once it is finished, so that it will be
+     * returned by getADUs. Unlike additionListeners, they are not notified of partial writes.
+     */
+    public final Set<BiConsumer<String, String>> clientAdditionListeners = ConcurrentHashMap.newKeySet();
 
     public StoreADUs(Path rootFolder) {
+        this(rootFolder, new FileAduStorage(rootFolder));
+    }
+
+    /**
+     * @param storage where the data of the ADUs goes, metadata.json stays in the folder of each app either way
+     */
+    public StoreADUs(Path rootFolder, AduStorage storage) {
         logger.log(FINEST, "ADU rootFolder: " + rootFolder);
         this.rootFolder = rootFolder;
+        this.storage = storage;
+        var root = rootFolder.toAbsolutePath().normalize();
+        this.indexes = indexesByRoot.computeIfAbsent(root, k -> new ConcurrentHashMap<>());
+        this.changes = changesByRoot.computeIfAbsent(root, k -> new Changes());
     }
 
-    public Metadata getMetadata(String clientId, String appId) {
-        Path metadataPath = getAppFolder(clientId, appId).resolve(METADATA_FILENAME);
-        try {
-            String data = new String(Files.readAllBytes(metadataPath));
-            Gson gson = new Gson();
-            return gson.fromJson(data, Metadata.class);
-        } catch (Exception e) {
-            logger.log(FINE, "[FileStoreHelper] metadata not found at " + metadataPath + ". create a new one.");
-            Metadata metadata = new Metadata();
+    /**
+     * What changed in a store, so that asking whether there is anything new to send doesn't have to look at the
+     * files. Every finished ADU and every deletion takes the next generation of the store, which is recorded in the
+     * metadata of the app, and the app stays dirty until a bundle has taken all of its ADUs up to that generation.
+     * The dirty apps of a client are only known once the indexes of the client are loaded.
+     */
+    private static class Changes {
+        final AtomicLong generation = new AtomicLong();
+        // client ID ("" for a single client store) to the apps that changed since their ADUs last went out
+        final Map<String, Set<String>> dirtyApps = new ConcurrentHashMap<>();
+        final Set<String> loadedClients = ConcurrentHashMap.newKeySet();
+
+        void track(ClientApp clientApp, AduIndex index) {
+            var apps = dirtyApps.computeIfAbsent(clientApp.clientId(), k -> ConcurrentHashMap.newKeySet());
+            if (index.isDirty()) {
+                apps.add(clientApp.appId());
+            } else {
+                apps.remove(clientApp.appId());
+            }
+        }
+
+        void clear() {
+            generation.set(0);
+            dirtyApps.clear();
+            loadedClients.clear();
+        }
+    }
+
+    /**
+     * Loads the index of every client app in the store using a parallel stream. Indexes are otherwise loaded the
+     * first time a client app is used, so this just moves that cost to startup.
+     *
+     * @param singleClientId if true, there are no client IDs in the path, and the store is used by a single client
+     */
+    public void loadIndexes(boolean singleClientId) {
+        long start = System.currentTimeMillis();
+        Set<String> failedClients = ConcurrentHashMap.newKeySet();
+        long loaded = getAllClientApps(singleClientId).parallel().filter(clientApp -> {
             try {
-                setMetadata(clientId, appId, metadata);
+                getIndex(singleClientId ? null : clientApp.clientId(), clientApp.appId());
+                changes.loadedClients.add(clientApp.clientId());
+                return true;
+            } catch (IOException e) {
+                logger.log(WARNING, "Failed to load ADU index for " + clientApp, e);
+                failedClients.add(clientApp.clientId());
+                return false;
+            }
+        }).count();
+        // their dirty apps aren't all known, hasNewADUs will try again
+        changes.loadedClients.removeAll(failedClients);
+        logger.log(INFO,
+                   "Loaded " + loaded + " ADU indexes from " + rootFolder + " in " +
+                           (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Forget every loaded index, as if the process had been restarted. Only used by tests.
+     */
+    static void dropIndexes() {
+        indexesByRoot.values().forEach(Map::clear);
+        changesByRoot.values().forEach(Changes::clear);
+    }
+
+    /**
+     * Get the index for the app folder, loading it from disk if this is the first time it is used or if the folder
+     * was removed out from under us.
+     */
+    private AduIndex getIndex(String clientId, String appId) throws IOException {
+        var key = keyOf(clientId, appId);
+        Path appFolder = getAppFolder(clientId, appId);
+        var index = indexes.get(key);
+        if (index != null) {
+            if (Files.isDirectory(appFolder)) {
+                return index;
+            }
+            indexes.remove(key, index);
+        }
+        Metadata metadata = readMetadata(appFolder);
+        if (metadata == null) {
+            logger.log(FINE, "[FileStoreHelper] metadata not found at " + appFolder + ". create a new one.");
+            metadata = new Metadata();
+            try {
+                writeMetadata(appFolder, metadata);
             } catch (IOException ex) {
                 logger.log(SEVERE, "Failed to create metadata file. PROBLEMS IMMINENT!", ex);
             }
-            return metadata;
         }
+        var loaded = AduIndex.load(storage, clientId, appId, metadata);
+        // generations are only handed out after the metadata that has seen them is loaded, so they keep going up
+        changes.generation.accumulateAndGet(Math.max(loaded.generation, loaded.cleanGeneration), Math::max);
+        if (loaded.generation == 0 && (loaded.size() > 0 || loaded.lastAduDeleted > 0)) {
+            // written before changes were tracked, so it may have anything
+            loaded.generation = changes.generation.incrementAndGet();
+        }
+        // if another thread beat us to it, use its index since it may already have been updated
+        var existing = indexes.putIfAbsent(key, loaded);
+        if (existing != null) return existing;
+        synchronized (loaded) {
+            changes.track(key, loaded);
+        }
+        return loaded;
+    }
+
+    private static ClientApp keyOf(String clientId, String appId) {
+        return new ClientApp(clientId == null ? "" : clientId, appId);
     }
 
-    private void setMetadata(String clientId, String appId, Metadata metadata) throws IOException {
-        Gson gson = new Gson();
-        String metadataString = gson.toJson(metadata);
-        Path folder = getAppFolder(clientId, appId);
-        File file = folder.resolve(METADATA_PATH).toFile();
+    private static Metadata readMetadata(Path appFolder) {
+        try {
+            return gson.fromJson(Files.readString(appFolder.resolve(METADATA_FILENAME)), Metadata.class);
+        } catch (Exception e) {
+            return null;
+        }
+    }
 
-        var ignored = file.getParentFile().mkdirs();
-        FileOutputStream oFile = new FileOutputStream(file);
-        oFile.write(metadataString.getBytes());
-        oFile.close();
+    /**
+     * Metadata is written to a temporary file and renamed into place, so a reader (or a crash) never sees a
+     * partially written metadata.json.
+     */
+    private static void writeMetadata(Path appFolder, Metadata metadata) throws IOException {
+        Files.createDirectories(appFolder);
+        Path tempFile = appFolder.resolve(METADATA_TEMP_FILENAME);
+        Files.writeString(tempFile, gson.toJson(metadata));
+        try {
+            Files.move(tempFile,
+                       appFolder.resolve(METADATA_FILENAME),
+                       StandardCopyOption.ATOMIC_MOVE,
+                       StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile, appFolder.resolve(METADATA_FILENAME), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    public Metadata getMetadata(String clientId, String appId) {
+        try {
+            var index = getIndex(clientId, appId);
+            synchronized (index) {
+                return index.toMetadata();
+            }
+        } catch (IOException e) {
+            logger.log(SEVERE, "Failed to load ADU index for " + clientId + ":" + appId, e);
+            return new Metadata();
+        }
     }
 
     public List<ADU> getAppData(String clientId, String appId) throws IOException {
@@ -82,33 +227,73 @@ public class StoreADUs {
     }
 
     public Stream<ADU> getADUs(String clientId, String appId) throws IOException {
-        getMetadata(clientId, appId);
-
-        try (Stream<Path> files = Files.list(getAppFolder(clientId, appId))) {
-            var list = files.filter(p -> !p.endsWith(METADATA_PATH))
-                    .map(Path::toFile)
-                    .map(f -> new ADU(f, appId, Long.parseLong(f.getName()), f.length(), clientId))
-                    .sorted(Comparator.comparingLong(ADU::getADUId))
-                    .collect(Collectors.toUnmodifiableList());
-            return list.stream();
+        var index = getIndex(clientId, appId);
+        long[] aduIds;
+        long[] sizes;
+        synchronized (index) {
+            aduIds = index.getAduIds();
+            sizes = index.getSizes();
         }
+        // ADU objects are only created for the ADUs that are consumed, callers usually stop at a size limit
+        return IntStream.range(0, aduIds.length)
+                .mapToObj(i -> storage.toADU(clientId, appId, aduIds[i], sizes[i]));
     }
 
-    public boolean hasNewADUs(String clientId, long lastBundleSentTimestamp) {
-        var appAdus = clientId == null ? rootFolder : rootFolder.resolve(clientId);
-        try {
-            if (!Files.exists(appAdus)) {
-                logger.log(INFO, "No ADUs found for clientId: " + clientId);
-                return false;
-            }
-            try (Stream<Path> walk = Files.walk(appAdus)) {
-                return walk.filter(Files::isRegularFile)
-                        .map(Path::toFile)
-                        .anyMatch(f -> f.lastModified() > lastBundleSentTimestamp);
+    /**
+     * @return true if any app of the client has ADUs that changed since they last went out in a bundle
+     */
+    public boolean hasNewADUs(String clientId) {
+        var key = clientId == null ? "" : clientId;
+        if (!changes.loadedClients.contains(key)) {
+            var clientFolder = clientId == null ? rootFolder : rootFolder.resolve(clientId);
+            var appFolders = clientFolder.toFile().listFiles(f -> f.isDirectory() && isAppFolderName(f.getName()));
+            if (appFolders != null) {
+                for (var appFolder : appFolders) {
+                    try {
+                        getIndex(clientId, appFolder.getName());
+                    } catch (IOException e) {
+                        logger.log(SEVERE, "Failed to load ADU index for " + clientId + ":" + appFolder, e);
+                        return true;
+                    }
+                }
             }
-        } catch (IOException e) {
-            logger.log(SEVERE, "Failed to check for new ADUs answering false to newADUs", e);
-            return false;
+            changes.loadedClients.add(key);
+        }
+        var dirtyApps = changes.dirtyApps.get(key);
+        return dirtyApps != null && !dirtyApps.isEmpty();
+    }
+
+    /**
+     * @return the generation of the last change to the store
+     */
+    public long getGeneration() {
+        return changes.generation.get();
+    }
+
+    /**
+     * @return the generation of the last change to the ADUs of the app. Read it before getting the ADUs that go out
+     * in a bundle, and pass it to {@link #markClean} once they have.
+     */
+    public long getGeneration(String clientId, String appId) throws IOException {
+        var index = getIndex(clientId, appId);
+        synchronized (index) {
+            return index.generation;
+        }
+    }
+
+    /**
+     * Record that all the ADUs of the app up to the given generation have gone out in a bundle. Changes after that
+     * generation leave the app dirty.
+     */
+    public void markClean(String clientId, String appId, long generation) throws IOException {
+        var index = getIndex(clientId, appId);
+        synchronized (index) {
+            if (!index.isDirty() || index.generation > generation) return;
+            var metadata = index.toMetadata();
+            metadata.cleanGeneration = index.generation;
+            writeMetadata(getAppFolder(clientId, appId), metadata);
+            index.cleanGeneration = index.generation;
+            changes.track(keyOf(clientId, appId), index);
         }
     }
 
@@ -140,7 +325,7 @@ public class StoreADUs {
                 topPaths.add(rootFolder);
             } else {
                 try (var clientIds = Files.list(rootFolder)) {
-                    clientIds.forEach(v -> topPaths.add(v));
+                    clientIds.filter(v -> isAppFolderName(v.getFileName().toString())).forEach(v -> topPaths.add(v));
                 }
             }
             var allClientApps = topPaths.stream().filter(p -> p.toFile().isDirectory()).flatMap(clientIdPath -> {
@@ -149,6 +334,7 @@ public class StoreADUs {
                         return bottomPaths.map(Path::toFile)
                                 .filter(File::isDirectory)
                                 .map(File::getName)
+                                .filter(StoreADUs::isAppFolderName)
                                 .map(appId -> new ClientApp(singleClientId ? "" : clientIdPath.toFile().getName(),
                                                             appId))
                                 .collect(Collectors.toUnmodifiableList())
@@ -165,37 +351,39 @@ public class StoreADUs {
         }
     }
 
+    /* storages can keep their own folders next to the apps, like the segments of SegmentAduStorage */
+    private static boolean isAppFolderName(String name) {
+        return !name.startsWith(".");
+    }
+
     public record AduIdData(String id, byte[] data) {}
 
     public List<AduIdData> getAllAppIdAndData(String appId) throws IOException {
-        getMetadata(null, appId);
-        var folder = rootFolder.resolve(appId);
-        try (Stream<Path> list = Files.list(folder)) {
-            return list.filter(p -> p.getFileName().toString().chars().allMatch(Character::isDigit))
-                    .sorted(Comparator.comparingLong(p -> Long.parseLong(p.getFileName().toString())))
-                    .map(path -> {
-                        try {
-                            String id = path.getFileName().toString();
-                            return new AduIdData(id, Files.readAllBytes(path));
-                        } catch (IOException e) {
-                            logger.log(SEVERE, "Failed to read file " + path, e);
-                            return null;
-                        }
-                    })
-                    .collect(Collectors.toList());
+        List<AduIdData> list = new ArrayList<>();
+        for (long aduId : getAllADUIds(appId)) {
+            // negative ids are ADUs that are still being written
+            if (aduId < 0) continue;
+            try {
+                list.add(new AduIdData(Long.toString(aduId), getADU(null, appId, aduId)));
+            } catch (IOException e) {
+                logger.log(SEVERE, "Failed to read ADU " + appId + ":" + aduId, e);
+                list.add(null);
+            }
         }
+        return list;
     }
 
     public List<Long> getAllADUIds(String appId) throws IOException {
-        getMetadata(null, appId);
-        var folder = rootFolder.resolve(appId);
-        try (Stream<Path> list = Files.list(folder)) {
-            return list.map(path -> path.getFileName().toString())
-                    .filter(fileName -> !fileName.equals(METADATA_FILENAME))
-                    .map(Long::parseLong)
-                    .sorted()
-                    .collect(Collectors.toList());
+        var index = getIndex(null, appId);
+        long[] aduIds;
+        synchronized (index) {
+            aduIds = index.getAduIds();
         }
+        List<Long> list = new ArrayList<>(aduIds.length);
+        for (long aduId : aduIds) {
+            list.add(aduId);
+        }
+        return list;
     }
 
     public byte[] getADU(String clientId, String appId, Long aduId) throws IOException {
@@ -203,38 +391,60 @@ public class StoreADUs {
     }
 
     public void deleteAllFilesUpTo(String clientId, String appId, long aduId) throws IOException {
-        var metadata = getMetadata(clientId, appId);
-        StreamExt.takeWhile(getADUs(clientId, appId), adu -> adu.getADUId() <= aduId).forEach(adu -> {
-            // we don't want to delete negative aduIds since they are in process
-            if (adu.getADUId() < 0) {
-                logger.log(INFO, "Skipping deletion of negative ADU ID " + adu.getADUId());
-            } else if (!adu.getSource().delete()) {
-                logger.log(SEVERE, "Failed to delete file " + adu);
+        var index = getIndex(clientId, appId);
+        synchronized (index) {
+            var toDelete = new long[index.size()];
+            int count = 0;
+            for (long id : index.getAduIds()) {
+                if (id > aduId) break;
+                // we don't want to delete negative aduIds since they are in process
+                if (id < 0) {
+                    logger.log(INFO, "Skipping deletion of negative ADU ID " + id);
+                    continue;
+                }
+                toDelete[count++] = id;
+            }
+            storage.delete(clientId, appId, Arrays.copyOf(toDelete, count), index::remove);
+            if (count > 0 || index.lastAduDeleted < aduId) {
+                var metadata = index.toMetadata();
+                metadata.lastAduDeleted = Math.max(index.lastAduDeleted, aduId);
+                metadata.generation = changes.generation.incrementAndGet();
+                writeMetadata(getAppFolder(clientId, appId), metadata);
+                index.lastAduDeleted = metadata.lastAduDeleted;
+                index.generation = metadata.generation;
+                changes.track(keyOf(clientId, appId), index);
             }
-        });
-        if (metadata.lastAduDeleted < aduId) {
-            metadata.lastAduDeleted = aduId;
-            setMetadata(clientId, appId, metadata);
         }
     }
 
     public byte[] getADU(String clientId, String appId, long aduId, long offset, int readLimit) throws IOException {
-        var appFolder = getAppFolder(clientId, appId);
-        try (var fis = new FileInputStream(appFolder.resolve(Long.toString(aduId)).toFile())) {
-            if (fis.skip(offset) != offset) {
-                logger.log(SEVERE, "Failed to skip to offset " + offset + " in file " + appFolder.resolve(appId));
+        var index = getIndex(clientId, appId);
+        long size;
+        synchronized (index) {
+            size = index.getSize(aduId);
+        }
+        try (var in = storage.open(clientId, appId, aduId)) {
+            long skipped = 0;
+            while (skipped < offset) {
+                long n = in.skip(offset - skipped);
+                if (n <= 0) break;
+                skipped += n;
+            }
+            if (skipped != offset) {
+                logger.log(SEVERE, "Failed to skip to offset " + offset + " in ADU " + appId + ":" + aduId);
                 return new byte[0];
             }
-            long fileSize = fis.getChannel().size();
-            if (readLimit > fileSize - offset) {
-                readLimit = (int) (fileSize - offset);
+            if (size >= 0 && readLimit > size - offset) {
+                readLimit = (int) Math.max(0, size - offset);
             }
             byte[] data = new byte[readLimit];
-            int bytesRead = fis.read(data);
-            if (bytesRead < 0) {
-                return new byte[0];
+            int read = 0;
+            while (read < readLimit) {
+                int n = in.read(data, read, readLimit - read);
+                if (n < 0) break;
+                read += n;
             }
-            return data;
+            return read == readLimit ? data : Arrays.copyOf(data, read);
         }
     }
 
@@ -242,19 +452,19 @@ public class StoreADUs {
         return clientId == null ? rootFolder.resolve(appId) : rootFolder.resolve(Paths.get(clientId, appId));
     }
 
+    /**
+     * @return the file holding the ADU, which is the ADU's own file unless the store keeps ADUs in segments
+     */
     public File getADUFile(String clientId, String appId, long aduId) {
-        var appFolder = getAppFolder(clientId, appId);
-        return appFolder.resolve(Long.toString(aduId)).toFile();
+        return storage.fileOf(clientId, appId, aduId);
     }
 
     public long getLastADUIdAdded(String clientId, String appId) {
-        Metadata metadata = getMetadata(clientId, appId);
-        return metadata.lastAduAdded;
+        return getMetadata(clientId, appId).lastAduAdded;
     }
 
     public long getLastADUIdDeleted(String clientId, String appId) {
-        Metadata metadata = getMetadata(clientId, appId);
-        return metadata.lastAduDeleted;
+        return getMetadata(clientId, appId).lastAduDeleted;
     }
 
     public File addADU(String clientId, String appId, byte[] data, long aduId) throws IOException {
@@ -279,50 +489,56 @@ public class StoreADUs {
     public File addADU(String clientId, String appId, byte[] data, long aduId, long offset, Boolean finished) throws
             IOException {
         var appFolder = getAppFolder(clientId, appId);
-        Metadata metadata = getMetadata(clientId, appId);
-        var lastAduDeleted = metadata.lastAduDeleted;
-        var lastAduAdded = metadata.lastAduAdded;
-
-        if (aduId >= 0 && aduId <= lastAduDeleted) {
-            logger.log(INFO, "ADU ID " + aduId + " is less than last deleted ADU ID " + lastAduDeleted + " skipping");
-            return null;
-        }
-
-        // write out the data to the path for the aduId (this might be a negative number, so we will fix later)
-        Path aduPath = appFolder.resolve(java.lang.Long.toString(aduId));
-        logger.log(FINE, "Writing partial " + appId + ":" + aduId + " to " + aduPath + " with offset " + offset);
-        // write data to aduPath at the specified file offset
-        try (FileOutputStream fos = new FileOutputStream(aduPath.toFile(), true)) {
-            var channel = fos.getChannel();
-            if (channel.size() > offset) {
-                logger.log(WARNING,
-                           "Offset " + offset + " is greater than file size " + channel.size() + " truncating");
-                channel.truncate(offset);
+        var index = getIndex(clientId, appId);
+        File aduFile;
+        synchronized (index) {
+            var lastAduDeleted = index.lastAduDeleted;
+            var lastAduAdded = index.lastAduAdded;
+
+            if (aduId >= 0 && aduId <= lastAduDeleted) {
+                logger.log(INFO,
+                           "ADU ID " + aduId + " is less than last deleted ADU ID " + lastAduDeleted + " skipping");
+                return null;
             }
-            channel.position(offset);
-            fos.write(data);
-        }
 
-        if (finished == null || finished) {
-            if (aduId < 0) {
-                // if aduId is negative, we need to set it to the last adu added
-                // and move the temporary file to the new location
-                aduId = lastAduAdded + 1;
-                var oldAduPath = aduPath;
-                aduPath = appFolder.resolve(java.lang.Long.toString(aduId));
-                Files.move(oldAduPath, aduPath, StandardCopyOption.REPLACE_EXISTING);
-            }
-            // if finished, we need to set the last adu added
-            if (aduId > lastAduAdded) {
-                logger.log(INFO, "updating lastAdu from " + lastAduAdded + " to " + aduId);
-                metadata.lastAduAdded = aduId;
-                setMetadata(clientId, appId, metadata);
+            // write out the data for the aduId (this might be a negative number, so we will fix later)
+            logger.log(FINE, "Writing partial " + appId + ":" + aduId + " with offset " + offset);
+            long aduSize = storage.write(clientId, appId, aduId, offset, data);
+            index.put(aduId, aduSize);
+
+            if (finished == null || finished) {
+                if (aduId < 0) {
+                    // if aduId is negative, we need to set it to the last adu added
+                    // and move the temporary ADU to the new id
+                    var oldAduId = aduId;
+                    aduId = lastAduAdded + 1;
+                    storage.rename(clientId, appId, oldAduId, aduId);
+                    index.remove(oldAduId);
+                    index.put(aduId, aduSize);
+                }
+                // if finished, we need to set the last adu added, and the ADUs of the app have changed either way
+                var metadata = index.toMetadata();
+                if (aduId > lastAduAdded) {
+                    logger.log(INFO, "updating lastAdu from " + lastAduAdded + " to " + aduId);
+                    metadata.lastAduAdded = aduId;
+                }
+                metadata.generation = changes.generation.incrementAndGet();
+                writeMetadata(appFolder, metadata);
+                index.lastAduAdded = metadata.lastAduAdded;
+                index.generation = metadata.generation;
+                changes.track(keyOf(clientId, appId), index);
             }
+            aduFile = storage.fileOf(clientId, appId, aduId);
         }
 
         for (var c : List.copyOf(additionListeners)) {
             c.accept(appId);
         }
-        return aduPath.toFile();
+        if (finished == null || finished) {
+            for (var c : List.copyOf(clientAdditionListeners)) {
+                c.accept(clientId, appId);
+            }
+        }
+        return aduFile;
     }
 }
@@ -0,0 +1,70 @@
+package net.discdd.bundlerouting;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RoutingTableTest {
+    @Test
+    void testClientsOfATransport() {
+        var table = new RoutingTable();
+        assertEquals(List.of(), table.clientsFor("transport1"));
+
+        table.putAll("client1", Map.of("transport1", 0.0, "transport2", 2.5));
+        table.put("transport1", "client2", 1);
+        assertEquals(Set.of("client1", "client2"), new HashSet<>(table.clientsFor("transport1")));
+        assertEquals(List.of("client1"), table.clientsFor("transport2"));
+        assertEquals(2.5, table.score("transport2", "client1"));
+        assertTrue(Double.isNaN(table.score("transport2", "client2")));
+        assertEquals(3, table.size());
+        assertThrows(UnsupportedOperationException.class, () -> table.clientsFor("transport1").add("client3"));
+    }
+
+    @Test
+    void testClientsAreOnlyCopiedWhenTheyChange() {
+        var table = new RoutingTable();
+        table.put("transport1", "client1", 0);
+        var clients = table.clientsFor("transport1");
+        assertSame(clients, table.clientsFor("transport1"));
+
+        // a new score for a known client doesn't change who is reachable
+        table.put("transport1", "client1", 3);
+        assertSame(clients, table.clientsFor("transport1"));
+        assertEquals(3, table.score("transport1", "client1"));
+
+        table.put("transport1", "client2", 0);
+        assertEquals(Set.of("client1", "client2"), new HashSet<>(table.clientsFor("transport1")));
+    }
+
+    @Test
+    void testNoClientIsLostWhileReading() throws Exception {
+        var table = new RoutingTable();
+        int clients = 20_000;
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> writer = executor.submit(() -> {
+                for (int i = 0; i < clients; i++) table.put("transport1", "client" + i, i);
+            });
+            Future<?> reader = executor.submit(() -> {
+                while (!writer.isDone()) table.clientsFor("transport1");
+            });
+            writer.get(10, TimeUnit.SECONDS);
+            reader.get(10, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(clients, table.clientsFor("transport1").size());
+    }
+}
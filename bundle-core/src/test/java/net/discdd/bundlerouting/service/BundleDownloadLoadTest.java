@@ -0,0 +1,162 @@
+package net.discdd.bundlerouting.service;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.netty.NettyChannelBuilder;
+import io.grpc.netty.NettyServerBuilder;
+import net.discdd.grpc.BundleDownloadRequest;
+import net.discdd.grpc.BundleExchangeServiceGrpc;
+import net.discdd.grpc.BundleSenderType;
+import net.discdd.grpc.EncryptedBundleId;
+import net.discdd.grpc.PublicKeyMap;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import static java.util.logging.Level.INFO;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Downloads the same bundle concurrently over a real (plaintext) Netty channel and reports throughput and the heap
+ * high-water mark. The defaults keep the test quick; run with -Dbundle.download.loadtest.size=104857600 for the
+ * 50 x 100 MB load test.
+ */
+public class BundleDownloadLoadTest {
+    private static final Logger logger = Logger.getLogger(BundleDownloadLoadTest.class.getName());
+    private static final int DOWNLOADS = Integer.getInteger("bundle.download.loadtest.downloads", 50);
+    private static final int BUNDLE_SIZE = Integer.getInteger("bundle.download.loadtest.size", 8 * 1024 * 1024);
+
+    @TempDir
+    Path tempDir;
+    private Path bundlePath;
+    private Server server;
+    private ManagedChannel channel;
+    private final AtomicInteger finishedDownloads = new AtomicInteger();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        bundlePath = tempDir.resolve("bundle");
+        var random = new Random(17);
+        byte[] block = new byte[1024 * 1024];
+        try (OutputStream os = Files.newOutputStream(bundlePath)) {
+            for (int written = 0; written < BUNDLE_SIZE; written += block.length) {
+                random.nextBytes(block);
+                os.write(block, 0, Math.min(block.length, BUNDLE_SIZE - written));
+            }
+        }
+        var service = new BundleExchangeServiceImpl() {
+            @Override
+            protected void onBundleExchangeEvent(BundleExchangeEvent event) {
+                if (event == BundleExchangeEvent.DOWNLOAD_FINISHED) finishedDownloads.incrementAndGet();
+            }
+
+            @Override
+            protected Path pathProducer(BundleExchangeName bundleExchangeName,
+                                        BundleSenderType senderType,
+                                        PublicKeyMap publicKeyMap) {
+                return bundlePath;
+            }
+
+            @Override
+            protected void bundleCompletion(BundleExchangeName bundleExchangeName,
+                                            BundleSenderType senderType,
+                                            Path path) {}
+        };
+        server = NettyServerBuilder.forPort(0).addService(service).build().start();
+        channel = NettyChannelBuilder.forAddress("localhost", server.getPort()).usePlaintext().build();
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        channel.shutdownNow().awaitTermination(10, TimeUnit.SECONDS);
+        server.shutdownNow().awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    private static long crc(Path path) throws Exception {
+        var crc = new CRC32();
+        crc.update(Files.readAllBytes(path));
+        return crc.getValue();
+    }
+
+    @Test
+    void testConcurrentDownloads() throws Exception {
+        long expectedCrc = crc(bundlePath);
+        var memory = ManagementFactory.getMemoryMXBean();
+        System.gc();
+        long baselineHeap = memory.getHeapMemoryUsage().getUsed();
+        var peakHeap = new AtomicLong(baselineHeap);
+        var sampling = new AtomicInteger(1);
+        var sampler = new Thread(() -> {
+            while (sampling.get() == 1) {
+                peakHeap.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        sampler.start();
+
+        ExecutorService executor = Executors.newFixedThreadPool(DOWNLOADS);
+        List<Future<Long>> downloads = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < DOWNLOADS; i++) {
+            String bundleId = "bundle" + i;
+            downloads.add(executor.submit(() -> {
+                var stub = BundleExchangeServiceGrpc.newBlockingStub(channel);
+                var responses = stub.downloadBundle(BundleDownloadRequest.newBuilder()
+                                                            .setBundleId(EncryptedBundleId.newBuilder()
+                                                                                 .setEncryptedId(bundleId)
+                                                                                 .build())
+                                                            .setSenderType(BundleSenderType.CLIENT)
+                                                            .build());
+                var crc = new CRC32();
+                long received = 0;
+                while (responses.hasNext()) {
+                    var chunk = responses.next().getChunk().getChunk();
+                    crc.update(chunk.asReadOnlyByteBuffer());
+                    received += chunk.size();
+                }
+                assertEquals(expectedCrc, crc.getValue());
+                return received;
+            }));
+        }
+        long totalBytes = 0;
+        for (var download : downloads) {
+            totalBytes += download.get(5, TimeUnit.MINUTES);
+        }
+        long elapsedNanos = System.nanoTime() - start;
+        sampling.set(0);
+        sampler.join();
+        executor.shutdown();
+
+        assertEquals((long) DOWNLOADS * BUNDLE_SIZE, totalBytes);
+        // the server reports DOWNLOAD_FINISHED right after completing the call, which can race with the client
+        for (int i = 0; i < 100 && finishedDownloads.get() < DOWNLOADS; i++) Thread.sleep(10);
+        assertEquals(DOWNLOADS, finishedDownloads.get());
+        logger.log(INFO,
+                   String.format("%d concurrent downloads of %d MB: %.1f MB/s, heap high-water %d MB above baseline",
+                                 DOWNLOADS,
+                                 BUNDLE_SIZE / (1024 * 1024),
+                                 totalBytes / (1024.0 * 1024.0) / (elapsedNanos / 1e9),
+                                 (peakHeap.get() - baselineHeap) / (1024 * 1024)));
+    }
+}
@@ -0,0 +1,116 @@
+package net.discdd.bundlerouting.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PartialFileTest {
+    @TempDir
+    Path tempDir;
+
+    private static byte[] data(int size) {
+        var bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    void testResumeAfterClose() throws Exception {
+        var bytes = data(100_000);
+        var partial = PartialFile.open(tempDir, "b");
+        assertEquals(0, partial.getCommittedOffset());
+        partial.write(ByteBuffer.wrap(bytes, 0, 30_000));
+        partial.close();
+
+        assertEquals(30_000, PartialFile.committedOffset(tempDir, "b"));
+        partial = PartialFile.open(tempDir, "b");
+        assertEquals(30_000, partial.getCommittedOffset());
+        partial.write(ByteBuffer.wrap(bytes, 30_000, bytes.length - 30_000));
+        var target = tempDir.resolve("b");
+        partial.complete(target);
+
+        assertArrayEquals(bytes, Files.readAllBytes(target));
+        assertEquals(0, PartialFile.committedOffset(tempDir, "b"));
+        try (var left = Files.list(tempDir)) {
+            assertEquals(1, left.count());
+        }
+    }
+
+    @Test
+    void testUncheckpointedTailIsDropped() throws Exception {
+        var bytes = data((int) PartialFile.CHECKPOINT_BYTES + 5000);
+        var partial = PartialFile.open(tempDir, "b");
+        partial.write(ByteBuffer.wrap(bytes));
+        assertEquals(PartialFile.CHECKPOINT_BYTES + 5000, partial.getCommittedOffset());
+        // the process dies after writing more without checkpointing it
+        try (var out = Files.newOutputStream(tempDir.resolve("b.part"), StandardOpenOption.APPEND)) {
+            out.write(new byte[777]);
+        }
+
+        partial = PartialFile.open(tempDir, "b");
+        assertEquals(PartialFile.CHECKPOINT_BYTES + 5000, partial.getCommittedOffset());
+        assertEquals(PartialFile.CHECKPOINT_BYTES + 5000, Files.size(tempDir.resolve("b.part")));
+        partial.close();
+    }
+
+    @Test
+    void testCorruptPartStartsOver() throws Exception {
+        var partial = PartialFile.open(tempDir, "b");
+        partial.write(ByteBuffer.wrap(data(10_000)));
+        partial.close();
+        var part = tempDir.resolve("b.part");
+        var bytes = Files.readAllBytes(part);
+        bytes[1234] ^= 1;
+        Files.write(part, bytes);
+
+        partial = PartialFile.open(tempDir, "b");
+        assertEquals(0, partial.getCommittedOffset());
+        assertEquals(0, Files.size(part));
+        partial.close();
+    }
+
+    @Test
+    void testDiscardAndClosed() throws Exception {
+        var partial = PartialFile.open(tempDir, "b");
+        partial.write(ByteBuffer.wrap(data(1000)));
+        partial.discard();
+        assertThrows(ClosedChannelException.class, () -> partial.write(ByteBuffer.wrap(new byte[1])));
+        try (var left = Files.list(tempDir)) {
+            assertTrue(left.findAny().isEmpty());
+        }
+    }
+
+    @Test
+    void testDeleteStale() throws Exception {
+        var partial = PartialFile.open(tempDir, "old");
+        partial.write(ByteBuffer.wrap(data(100)));
+        partial.close();
+        var fresh = PartialFile.open(tempDir, "fresh");
+        fresh.write(ByteBuffer.wrap(data(100)));
+        fresh.close();
+        var old = System.currentTimeMillis() - 2 * PartialFile.STALE_AFTER_MS;
+        assertTrue(tempDir.resolve("old.part").toFile().setLastModified(old));
+        assertTrue(tempDir.resolve("old.ckpt").toFile().setLastModified(old));
+        Files.write(tempDir.resolve("unrelated"), new byte[1]);
+        assertTrue(tempDir.resolve("unrelated").toFile().setLastModified(old));
+
+        PartialFile.deleteStale(tempDir, PartialFile.STALE_AFTER_MS);
+
+        try (var left = Files.list(tempDir)) {
+            var names = left.map(p -> p.getFileName().toString()).sorted().toArray();
+            assertEquals(Arrays.asList("fresh.ckpt", "fresh.part", "unrelated"), Arrays.asList(names));
+        }
+    }
+}
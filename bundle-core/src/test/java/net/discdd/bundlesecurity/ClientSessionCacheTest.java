@@ -0,0 +1,136 @@
+package net.discdd.bundlesecurity;
+
+import net.discdd.bundlesecurity.SecurityUtils.ClientSession;
+import org.junit.jupiter.api.Test;
+import org.whispersystems.libsignal.InvalidKeyException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ClientSessionCacheTest {
+    private final AtomicInteger loads = new AtomicInteger();
+
+    private ClientSession load(String clientId) {
+        loads.incrementAndGet();
+        return new ClientSession();
+    }
+
+    private ClientSession get(ClientSessionCache cache, String clientId) throws IOException, InvalidKeyException {
+        try (var ignored = cache.lock(clientId)) {
+            return cache.get(clientId, this::load);
+        }
+    }
+
+    @Test
+    void testCachedSessionIsReused() throws Exception {
+        var cache = new ClientSessionCache(4);
+        var first = get(cache, "client1");
+        var second = get(cache, "client1");
+        assertSame(first, second);
+        assertEquals(1, loads.get());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+        assertEquals(0, cache.getEvictions());
+    }
+
+    @Test
+    void testCacheIsBounded() throws Exception {
+        var cache = new ClientSessionCache(2);
+        var a = get(cache, "a");
+        get(cache, "b");
+        // touch "a" so that "b" is the least recently used session
+        get(cache, "a");
+        get(cache, "c");
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+
+        assertSame(a, get(cache, "a"));
+        long misses = cache.getMisses();
+        get(cache, "b");
+        assertEquals(misses + 1, cache.getMisses());
+        assertEquals(2, cache.getEvictions());
+    }
+
+    @Test
+    void testFailedLoadIsNotCached() throws Exception {
+        var cache = new ClientSessionCache(2);
+        assertThrows(InvalidKeyException.class, () -> cache.get("unknown", id -> {
+            throw new InvalidKeyException("Keys for " + id + " not found and none provided");
+        }));
+        assertEquals(0, cache.size());
+        assertNotNull(get(cache, "unknown"));
+    }
+
+    /**
+     * A client whose lock is held doesn't hold up other clients, and locks go away once nobody holds them.
+     */
+    @Test
+    void testLocksArePerClient() throws Exception {
+        var cache = new ClientSessionCache(4);
+        var executor = Executors.newSingleThreadExecutor();
+        try (var ignored = cache.lock("a")) {
+            assertEquals(1, cache.lockCount());
+            assertNotNull(executor.submit(() -> get(cache, "b")).get(30, TimeUnit.SECONDS));
+            // taking a held lock again from the same thread doesn't block
+            assertNotNull(get(cache, "a"));
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(0, cache.lockCount());
+    }
+
+    /**
+     * Many threads asking for the same few clients at once: each session is loaded once, and no two threads are ever
+     * inside the lock of the same client at the same time.
+     */
+    @Test
+    void testSessionsAreLoadedOnceUnderConcurrency() throws Exception {
+        var cache = new ClientSessionCache(16);
+        int clients = 4;
+        var inside = new AtomicInteger[clients];
+        for (int i = 0; i < clients; i++) {
+            inside[i] = new AtomicInteger();
+        }
+        var overlaps = new AtomicInteger();
+        var start = new CountDownLatch(1);
+        var executor = Executors.newFixedThreadPool(8);
+        try {
+            var futures = new ArrayList<Future<?>>();
+            for (int t = 0; t < 8; t++) {
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < 200; i++) {
+                        int client = i % clients;
+                        String clientId = "client" + client;
+                        try (var ignored = cache.lock(clientId)) {
+                            if (inside[client].incrementAndGet() != 1) overlaps.incrementAndGet();
+                            cache.get(clientId, this::load);
+                            inside[client].decrementAndGet();
+                        }
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (var future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(0, overlaps.get());
+        assertEquals(clients, loads.get());
+        assertTrue(cache.getHits() >= 8 * 200 - clients);
+    }
+}
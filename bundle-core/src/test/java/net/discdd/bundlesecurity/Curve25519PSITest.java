@@ -0,0 +1,129 @@
+package net.discdd.bundlesecurity;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class Curve25519PSITest {
+
+    private Curve25519PSI psi;
+
+    @BeforeEach
+    void setUp() {
+        psi = new Curve25519PSI();
+    }
+
+    @Test
+    void testHashToCurveProducesCurvePoint() {
+        BigInteger p = Curve25519PSI.FIELD_PRIME;
+        for (String bundleId : List.of("bundle1", "bundle2", "", "a-much-longer-encrypted-bundle-id")) {
+            byte[] u = Curve25519PSI.hashToCurve(bundleId);
+            assertEquals(Curve25519PSI.ELEMENT_LENGTH, u.length);
+            byte[] bigEndian = u.clone();
+            for (int i = 0; i < bigEndian.length / 2; i++) {
+                byte tmp = bigEndian[i];
+                bigEndian[i] = bigEndian[bigEndian.length - 1 - i];
+                bigEndian[bigEndian.length - 1 - i] = tmp;
+            }
+            BigInteger x = new BigInteger(1, bigEndian);
+            assertTrue(x.compareTo(p) < 0);
+            // v^2 = x^3 + 486662 x^2 + x must have a solution
+            BigInteger gx = x.pow(3).add(BigInteger.valueOf(486662).multiply(x.pow(2))).add(x).mod(p);
+            BigInteger legendre = gx.modPow(p.subtract(BigInteger.ONE).shiftRight(1), p);
+            assertTrue(gx.signum() == 0 || legendre.equals(BigInteger.ONE));
+        }
+    }
+
+    @Test
+    void testHashToCurveDeterministic() {
+        assertArrayEquals(Curve25519PSI.hashToCurve("sameBundleId"), Curve25519PSI.hashToCurve("sameBundleId"));
+        assertFalse(Arrays.equals(Curve25519PSI.hashToCurve("bundle1"), Curve25519PSI.hashToCurve("bundle2")));
+    }
+
+    @Test
+    void testCommutativity() {
+        byte[] a = psi.newSecret();
+        byte[] b = psi.newSecret();
+        byte[] h = Curve25519PSI.hashToCurve("testBundle");
+        assertArrayEquals(psi.blind(psi.blind(h, a), b), psi.blind(psi.blind(h, b), a));
+    }
+
+    @Test
+    void testFullProtocolWithMatch() {
+        List<String> clientIds = Arrays.asList("bundleA", "bundleB", "bundleC");
+        List<String> transportFiles = Arrays.asList("bundleX", "bundleB", "bundleY", "bundleC");
+
+        byte[] a = psi.newSecret();
+        byte[] b = psi.newSecret();
+
+        var transportResponse = psi.transportProcess(psi.clientBlindBundleIds(clientIds, a), transportFiles, b);
+        var matches = psi.clientFindMatches(transportResponse.doublyBlindedClientValues(),
+                                            transportResponse.transportBlindedValues(),
+                                            a);
+
+        assertEquals(List.of(new BundleOwnershipPSI.PSIMatch(1, 1), new BundleOwnershipPSI.PSIMatch(3, 2)), matches);
+    }
+
+    @Test
+    void testFullProtocolNoMatch() {
+        byte[] a = psi.newSecret();
+        byte[] b = psi.newSecret();
+
+        var transportResponse =
+                psi.transportProcess(psi.clientBlindBundleIds(List.of("bundleA", "bundleB"), a), List.of("bundleX"), b);
+        assertTrue(psi.clientFindMatches(transportResponse.doublyBlindedClientValues(),
+                                         transportResponse.transportBlindedValues(),
+                                         a).isEmpty());
+    }
+
+    @Test
+    void testInvalidElementsRejected() {
+        byte[] secret = psi.newSecret();
+        assertThrows(IllegalArgumentException.class, () -> psi.blind(new byte[31], secret));
+        // u = 0 and u = 1 are low order points
+        assertThrows(IllegalArgumentException.class, () -> psi.blind(new byte[32], secret));
+        byte[] one = new byte[32];
+        one[0] = 1;
+        assertThrows(IllegalArgumentException.class, () -> psi.blind(one, secret));
+        // a 3072-bit element sent by a peer that thinks this is the MODP group
+        byte[] modpElement = BundleOwnershipPSI.hashToGroup("bundleA").toByteArray();
+        assertThrows(IllegalArgumentException.class, () -> psi.blind(modpElement, secret));
+    }
+
+    @Test
+    void testModpThroughPSIGroup() {
+        PSIGroup modp = PSIGroup.forVersion(PSIGroup.MODP_3072_VERSION);
+        assertInstanceOf(BundleOwnershipPSI.class, modp);
+        byte[] a = modp.newSecret();
+        byte[] b = modp.newSecret();
+
+        var clientBlinded = modp.clientBlindBundleIds(List.of("bundleA", "bundleB"), a);
+        var transportResponse = modp.transportProcess(clientBlinded, List.of("bundleB"), b);
+        // the matching must not depend on whether the leading zero byte was sent
+        var doublyBlinded = transportResponse.doublyBlindedClientValues()
+                .stream()
+                .map(v -> v[0] == 0 ? Arrays.copyOfRange(v, 1, v.length) : v)
+                .collect(Collectors.toList());
+        var matches = modp.clientFindMatches(doublyBlinded, transportResponse.transportBlindedValues(), a);
+        assertEquals(List.of(new BundleOwnershipPSI.PSIMatch(0, 1)), matches);
+    }
+
+    @Test
+    void testForVersion() {
+        assertEquals(PSIGroup.CURVE25519_VERSION, PSIGroup.forVersion(PSIGroup.CURVE25519_VERSION).version());
+        assertEquals(PSIGroup.MODP_3072_VERSION, PSIGroup.forVersion(PSIGroup.MODP_3072_VERSION).version());
+        assertNull(PSIGroup.forVersion(42));
+    }
+}
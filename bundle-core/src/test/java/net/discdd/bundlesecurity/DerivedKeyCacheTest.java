@@ -0,0 +1,57 @@
+package net.discdd.bundlesecurity;
+
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DerivedKeyCacheTest {
+    @Test
+    void testCachedKeyIsReused() throws GeneralSecurityException {
+        var cache = new DerivedKeyCache(4, SecurityUtils.ITERATIONS, SecurityUtils.KEYLEN);
+        SecretKeySpec first = cache.getKey("secret", "secret".getBytes());
+        SecretKeySpec second = cache.getKey("secret", "secret".getBytes());
+        assertSame(first, second);
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+
+        SecretKeySpec otherSalt = cache.getKey("secret", "pepper".getBytes());
+        assertNotSame(first, otherSalt);
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    void testCacheIsBounded() throws GeneralSecurityException {
+        var cache = new DerivedKeyCache(2, 1000, SecurityUtils.KEYLEN);
+        cache.getKey("a", "a".getBytes());
+        cache.getKey("b", "b".getBytes());
+        // touch "a" so that "b" is the least recently used entry
+        cache.getKey("a", "a".getBytes());
+        cache.getKey("c", "c".getBytes());
+        assertEquals(2, cache.size());
+
+        long misses = cache.getMisses();
+        cache.getKey("a", "a".getBytes());
+        assertEquals(misses, cache.getMisses());
+        cache.getKey("b", "b".getBytes());
+        assertEquals(misses + 1, cache.getMisses());
+    }
+
+    @Test
+    void testAesRoundTripUsesCache() throws GeneralSecurityException {
+        String sharedSecret = "c2hhcmVkLXNlY3JldC1mb3ItYnVuZGxlLWlkcw==";
+        String bundleId = "some-client-id#42";
+        long missesBefore = SecurityUtils.getDerivedKeyCache().getMisses();
+        String encrypted = SecurityUtils.encryptAesCbcPkcs5(sharedSecret, bundleId);
+        byte[] decrypted = SecurityUtils.decryptAesCbcPkcs5(sharedSecret, encrypted);
+        assertArrayEquals(bundleId.getBytes(StandardCharsets.UTF_8), decrypted);
+        assertTrue(SecurityUtils.getDerivedKeyCache().getMisses() <= missesBefore + 1);
+    }
+}
@@ -0,0 +1,207 @@
+package net.discdd.bundlesecurity;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SessionJournalTest {
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testLatestRecordWins() throws Exception {
+        var storeFile = tempDir.resolve(SecurityUtils.SESSION_STORE_FILE);
+        var journal = new SessionJournal(storeFile, SessionJournal.DEFAULT_COMPACT_SIZE);
+        assertNull(journal.load());
+        journal.append(record(1));
+        journal.append(record(2));
+        journal.commit();
+
+        assertArrayEquals(record(2), new SessionJournal(storeFile, SessionJournal.DEFAULT_COMPACT_SIZE).load());
+        // appends don't touch the store until the journal is compacted
+        assertTrue(Files.notExists(storeFile));
+    }
+
+    @Test
+    void testStoreWithoutJournalIsLoaded() throws Exception {
+        var storeFile = tempDir.resolve(SecurityUtils.SESSION_STORE_FILE);
+        Files.write(storeFile, record(7));
+        var journal = new SessionJournal(storeFile, SessionJournal.DEFAULT_COMPACT_SIZE);
+        assertArrayEquals(record(7), journal.load());
+
+        journal.append(record(8));
+        journal.commit();
+        assertArrayEquals(record(8), new SessionJournal(storeFile, SessionJournal.DEFAULT_COMPACT_SIZE).load());
+    }
+
+    @Test
+    void testTornRecordIsTruncatedAtEveryOffset() throws Exception {
+        var storeFile = tempDir.resolve(SecurityUtils.SESSION_STORE_FILE);
+        var journalFile = tempDir.resolve(SecurityUtils.SESSION_JOURNAL_FILE);
+        var journal = new SessionJournal(storeFile, SessionJournal.DEFAULT_COMPACT_SIZE);
+        journal.append(record(1));
+        journal.commit();
+        long goodSize = Files.size(journalFile);
+        journal.append(record(2));
+        journal.commit();
+        var bytes = Files.readAllBytes(journalFile);
+
+        for (int length = (int) goodSize; length < bytes.length; length++) {
+            Files.write(journalFile, Arrays.copyOf(bytes, length));
+            var reloaded = new SessionJournal(storeFile, SessionJournal.DEFAULT_COMPACT_SIZE);
+            assertArrayEquals(record(1), reloaded.load(), "torn at " + length);
+            assertEquals(goodSize, Files.size(journalFile));
+        }
+    }
+
+    @Test
+    void testCorruptRecordStopsReplay() throws Exception {
+        var storeFile = tempDir.resolve(SecurityUtils.SESSION_STORE_FILE);
+        var journalFile = tempDir.resolve(SecurityUtils.SESSION_JOURNAL_FILE);
+        var journal = new SessionJournal(storeFile, SessionJournal.DEFAULT_COMPACT_SIZE);
+        journal.append(record(1));
+        journal.commit();
+        long goodSize = Files.size(journalFile);
+        journal.append(record(2));
+        journal.append(record(3));
+        journal.commit();
+        var bytes = Files.readAllBytes(journalFile);
+        bytes[(int) goodSize + 20] ^= 1;
+        Files.write(journalFile, bytes);
+
+        var reloaded = new SessionJournal(storeFile, SessionJournal.DEFAULT_COMPACT_SIZE);
+        assertArrayEquals(record(1), reloaded.load());
+        assertEquals(goodSize, Files.size(journalFile));
+        reloaded.append(record(4));
+        reloaded.commit();
+        assertArrayEquals(record(4), new SessionJournal(storeFile, SessionJournal.DEFAULT_COMPACT_SIZE).load());
+    }
+
+    @Test
+    void testCommitCompactsIntoStore() throws Exception {
+        var storeFile = tempDir.resolve(SecurityUtils.SESSION_STORE_FILE);
+        var journalFile = tempDir.resolve(SecurityUtils.SESSION_JOURNAL_FILE);
+        var journal = new SessionJournal(storeFile, 16 * 1024);
+        long seq = 0;
+        // every append is committed before it returns, so the commit after the one that crosses the size compacts
+        while (Files.notExists(storeFile)) {
+            journal.append(record(seq++));
+        }
+
+        assertEquals(0, Files.size(journalFile));
+        assertArrayEquals(record(seq - 1), Files.readAllBytes(storeFile));
+        assertArrayEquals(record(seq - 1), new SessionJournal(storeFile, 16 * 1024).load());
+    }
+
+    /**
+     * Appends from many threads to their own journals only return once their record is fsynced.
+     */
+    @Test
+    void testAppendWaitsForCommit() throws Exception {
+        var executor = Executors.newFixedThreadPool(8);
+        try {
+            var futures = new ArrayList<Future<?>>();
+            for (int t = 0; t < 8; t++) {
+                var dir = Files.createDirectory(tempDir.resolve("client" + t));
+                var journal = new SessionJournal(dir.resolve(SecurityUtils.SESSION_STORE_FILE),
+                                                 SessionJournal.DEFAULT_COMPACT_SIZE);
+                futures.add(executor.submit(() -> {
+                    for (long seq = 0; seq < 50; seq++) {
+                        journal.append(record(seq));
+                        assertFalse(journal.hasUncommitted());
+                    }
+                    return null;
+                }));
+            }
+            for (var future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Kills a writer process in the middle of appending, several times over. Every restart has to recover an intact
+     * record no older than the last one the writer reported, and the next writer carries on right after it.
+     */
+    @Test
+    void testKilledWriterRecovers() throws Exception {
+        var storeFile = tempDir.resolve(SecurityUtils.SESSION_STORE_FILE);
+        var random = new Random(13);
+        long recoveredSeq = -1;
+        for (int round = 0; round < 3; round++) {
+            var writer = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                                            "-cp",
+                                            System.getProperty("java.class.path"),
+                                            SessionJournalTest.class.getName(),
+                                            storeFile.toString());
+            writer.redirectError(ProcessBuilder.Redirect.DISCARD);
+            var process = writer.start();
+            int killAfter = 200 + random.nextInt(200);
+            long lastReported = -1;
+            try (var lines = new BufferedReader(new InputStreamReader(process.getInputStream(),
+                                                                      StandardCharsets.UTF_8))) {
+                for (int count = 0; count < killAfter; count++) {
+                    lastReported = Long.parseLong(lines.readLine().trim());
+                    if (count == 0) {
+                        assertEquals(recoveredSeq + 1, lastReported);
+                    }
+                }
+                // the writer is still appending, so this usually lands in the middle of a record or a compaction
+                process.destroyForcibly();
+            }
+            assertTrue(process.waitFor(30, TimeUnit.SECONDS));
+
+            var recovered = new SessionJournal(storeFile, SessionJournal.DEFAULT_COMPACT_SIZE).load();
+            assertNotNull(recovered);
+            recoveredSeq = ByteBuffer.wrap(recovered).getLong();
+            assertTrue(recoveredSeq >= lastReported,
+                       "recovered " + recoveredSeq + " after the writer reported " + lastReported);
+            assertArrayEquals(record(recoveredSeq), recovered);
+        }
+    }
+
+    /* The writer process of testKilledWriterRecovers: appends records forever, printing each sequence number */
+    public static void main(String[] args) throws Exception {
+        var journal = new SessionJournal(Path.of(args[0]), 16 * 1024);
+        var last = journal.load();
+        long seq = last == null ? 0 : ByteBuffer.wrap(last).getLong() + 1;
+        while (true) {
+            journal.append(record(seq));
+            System.out.println(seq);
+            System.out.flush();
+            seq++;
+            Thread.sleep(1);
+        }
+    }
+
+    /* A record whose content and length are derived from its sequence number, so that a recovered one can be checked */
+    private static byte[] record(long seq) {
+        var record = ByteBuffer.allocate(8 + 500 + (int) (seq % 3000));
+        record.putLong(seq);
+        for (int i = 0; record.hasRemaining(); i++) {
+            record.put((byte) (seq * 31 + i));
+        }
+        return record.array();
+    }
+}
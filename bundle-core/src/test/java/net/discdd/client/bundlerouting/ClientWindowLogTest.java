@@ -0,0 +1,115 @@
+package net.discdd.client.bundlerouting;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ClientWindowLogTest {
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testReplayKeepsLatestWindowAndIdsInside() throws Exception {
+        var logFile = tempDir.resolve("clientWindow.log");
+        var log = new ClientWindowLog(logFile);
+        assertNull(log.load());
+
+        log.appendWindow(0, 9);
+        for (long counter = 0; counter <= 9; counter++) {
+            log.appendEncryptedId(42, counter, "enc" + counter);
+        }
+        // the window slides past 0-2
+        log.appendWindow(3, 12);
+        log.appendEncryptedId(42, 10, "enc10");
+
+        var state = new ClientWindowLog(logFile).load();
+        assertEquals(3, state.start());
+        assertEquals(12, state.end());
+        assertEquals(42, state.keyTag());
+        assertEquals(8, state.encryptedIds().size());
+        assertFalse(state.encryptedIds().containsKey(2L));
+        assertEquals("enc10", state.encryptedIds().get(10L));
+    }
+
+    @Test
+    void testIdsForOldKeysAreDropped() throws Exception {
+        var logFile = tempDir.resolve("clientWindow.log");
+        var log = new ClientWindowLog(logFile);
+        log.appendWindow(0, 9);
+        log.appendEncryptedId(1, 0, "old0");
+        log.appendEncryptedId(1, 1, "old1");
+        log.appendEncryptedId(2, 1, "new1");
+
+        var state = new ClientWindowLog(logFile).load();
+        assertEquals(2, state.keyTag());
+        assertEquals(Map.of(1L, "new1"), state.encryptedIds());
+    }
+
+    @Test
+    void testTornRecordIsTruncated() throws Exception {
+        var logFile = tempDir.resolve("clientWindow.log");
+        var log = new ClientWindowLog(logFile);
+        log.appendWindow(0, 9);
+        log.appendEncryptedId(7, 0, "enc0");
+        long goodSize = Files.size(logFile);
+        log.appendWindow(1, 10);
+        // the client died in the middle of the last append
+        var bytes = Files.readAllBytes(logFile);
+        Files.write(logFile, Arrays.copyOf(bytes, bytes.length - 3));
+
+        var reloaded = new ClientWindowLog(logFile);
+        var state = reloaded.load();
+        assertEquals(0, state.start());
+        assertEquals(9, state.end());
+        assertEquals("enc0", state.encryptedIds().get(0L));
+        assertEquals(goodSize, Files.size(logFile));
+
+        // appending after the truncation yields a readable log again
+        reloaded.appendWindow(1, 10);
+        assertEquals(1, new ClientWindowLog(logFile).load().start());
+    }
+
+    @Test
+    void testCorruptRecordStopsReplay() throws Exception {
+        var logFile = tempDir.resolve("clientWindow.log");
+        var log = new ClientWindowLog(logFile);
+        log.appendWindow(0, 9);
+        long goodSize = Files.size(logFile);
+        log.appendWindow(5, 14);
+        var bytes = Files.readAllBytes(logFile);
+        bytes[(int) goodSize + 5] ^= 1;
+        Files.write(logFile, bytes, StandardOpenOption.TRUNCATE_EXISTING);
+
+        assertEquals(0, new ClientWindowLog(logFile).load().start());
+        assertEquals(goodSize, Files.size(logFile));
+    }
+
+    @Test
+    void testRewriteCompacts() throws Exception {
+        var logFile = tempDir.resolve("clientWindow.log");
+        var log = new ClientWindowLog(logFile);
+        long counter = 0;
+        while (!log.needsCompaction()) {
+            log.appendWindow(counter, counter + 9);
+            log.appendEncryptedId(3, counter + 9, "enc" + (counter + 9));
+            counter++;
+        }
+        var state = new ClientWindowLog(logFile).load();
+        log.rewrite(state.start(), state.end(), state.keyTag(), state.encryptedIds());
+        assertFalse(log.needsCompaction());
+        assertTrue(Files.size(logFile) < ClientWindowLog.COMPACT_SIZE / 10);
+
+        var compacted = new ClientWindowLog(logFile).load();
+        assertEquals(state, compacted);
+    }
+}
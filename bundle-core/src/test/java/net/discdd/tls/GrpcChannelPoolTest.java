@@ -0,0 +1,105 @@
+package net.discdd.tls;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import net.discdd.bundlesecurity.SecurityUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class GrpcChannelPoolTest {
+    @TempDir
+    Path tempDir;
+    private final List<ManagedChannel> created = new ArrayList<>();
+    private GrpcChannelPool pool;
+
+    private GrpcChannelPool newPool(long idleTimeoutMs) {
+        pool = new GrpcChannelPool(idleTimeoutMs, (key, host, port, idle) -> {
+            var channel = InProcessChannelBuilder.forName(host + ":" + port).build();
+            created.add(channel);
+            return channel;
+        });
+        return pool;
+    }
+
+    private GrpcSecurityKey newKey(String name) throws Exception {
+        return new GrpcSecurityKey(tempDir.resolve(name), SecurityUtils.CLIENT);
+    }
+
+    @AfterEach
+    void tearDown() {
+        pool.shutdown();
+        created.forEach(ManagedChannel::shutdownNow);
+    }
+
+    @Test
+    void testChannelIsReusedPerHostPortAndKey() throws Exception {
+        var pool = newPool(GrpcChannelPool.DEFAULT_IDLE_TIMEOUT_MS);
+        var key = newKey("a");
+        var channel = pool.acquire(key, "transport", 7777);
+        pool.release(channel);
+        assertSame(channel, pool.acquire(key, "transport", 7777));
+        // the key is loaded again from the same files
+        assertSame(channel, pool.acquire(newKey("a"), "transport", 7777));
+
+        assertNotSame(channel, pool.acquire(key, "transport", 7778));
+        assertNotSame(channel, pool.acquire(key, "server", 7777));
+        assertNotSame(channel, pool.acquire(newKey("b"), "transport", 7777));
+        assertEquals(4, created.size());
+    }
+
+    @Test
+    void testIdleChannelIsEvicted() throws Exception {
+        var pool = newPool(0);
+        var key = newKey("a");
+        var channel = pool.acquire(key, "transport", 7777);
+        // in use, so it stays no matter how long ago it was acquired
+        var other = pool.acquire(key, "server", 7777);
+        assertSame(channel, pool.acquire(key, "transport", 7777));
+        assertFalse(channel.isShutdown());
+
+        pool.release(channel);
+        pool.release(channel);
+        pool.release(other);
+        var replacement = pool.acquire(key, "transport", 7777);
+        assertNotSame(channel, replacement);
+        assertTrue(channel.isShutdown());
+        assertTrue(other.isShutdown());
+    }
+
+    @Test
+    void testInvalidatedChannelIsReplaced() throws Exception {
+        var pool = newPool(GrpcChannelPool.DEFAULT_IDLE_TIMEOUT_MS);
+        var key = newKey("a");
+        var channel = pool.acquire(key, "transport", 7777);
+        var reconnected = pool.reconnect(channel, key, "transport", 7777);
+        assertTrue(channel.isShutdown());
+        assertNotSame(channel, reconnected);
+        assertSame(reconnected, pool.acquire(key, "transport", 7777));
+
+        // a channel shut down behind the pool's back is replaced too
+        reconnected.shutdownNow();
+        assertNotSame(reconnected, pool.acquire(key, "transport", 7777));
+    }
+
+    @Test
+    void testConnectionFailures() {
+        assertTrue(GrpcChannelPool.isConnectionFailure(new StatusRuntimeException(Status.UNAVAILABLE)));
+        assertFalse(GrpcChannelPool.isConnectionFailure(new StatusRuntimeException(Status.DEADLINE_EXCEEDED)));
+        assertFalse(GrpcChannelPool.isConnectionFailure(new StatusRuntimeException(Status.NOT_FOUND)));
+        assertFalse(GrpcChannelPool.isConnectionFailure(new IllegalStateException()));
+        assertFalse(GrpcChannelPool.isConnectionFailure(null));
+    }
+}
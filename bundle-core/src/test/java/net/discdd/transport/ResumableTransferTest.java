@@ -0,0 +1,298 @@
+package net.discdd.transport;
+
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.ForwardingClientCall;
+import io.grpc.ForwardingClientCallListener;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import net.discdd.bundlerouting.service.BundleExchangeServiceImpl;
+import net.discdd.grpc.BundleDownloadRequest;
+import net.discdd.grpc.BundleDownloadResponse;
+import net.discdd.grpc.BundleExchangeServiceGrpc;
+import net.discdd.grpc.BundleInventoryRequest;
+import net.discdd.grpc.BundleInventoryResponse;
+import net.discdd.grpc.BundleSenderType;
+import net.discdd.grpc.BundleServerServiceGrpc;
+import net.discdd.grpc.BundleUploadRequest;
+import net.discdd.grpc.CheckMessagesRequest;
+import net.discdd.grpc.CheckMessagesResponse;
+import net.discdd.grpc.EncryptedBundleId;
+import net.discdd.grpc.GetRecencyBlobRequest;
+import net.discdd.grpc.GetRecencyBlobResponse;
+import net.discdd.grpc.PublicKeyMap;
+import net.discdd.pathutils.TransportPaths;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Exchanges bundles with a fake bundle server over an in-process channel that drops upload and download streams at
+ * random offsets. Every bundle has to arrive intact, and since transfers resume rather than start over, far less
+ * than twice the data may cross the channel.
+ */
+public class ResumableTransferTest {
+    private static final int BUNDLE_COUNT = 4;
+    private static final int BUNDLE_SIZE = 3 * 1024 * 1024 + 12345;
+    // how many streams of one bundle get dropped before it is let through
+    private static final int FAULTS_PER_BUNDLE = 3;
+
+    @TempDir
+    Path tempDir;
+    private TransportPaths transportPaths;
+    private Path serverToSend;
+    private Path serverReceived;
+    private Path serverPartial;
+    private Server server;
+    private TransportToBundleServerManager manager;
+    private final FaultInjector faultInjector = new FaultInjector(new Random(14));
+
+    @BeforeEach
+    void setUp() throws IOException {
+        transportPaths = new TransportPaths(tempDir.resolve("transport"));
+        serverToSend = Files.createDirectories(tempDir.resolve("server/send"));
+        serverReceived = Files.createDirectories(tempDir.resolve("server/received"));
+        serverPartial = tempDir.resolve("server/partial");
+        var exchangeService = new BundleExchangeServiceImpl() {
+            @Override
+            protected void onBundleExchangeEvent(BundleExchangeEvent event) {}
+
+            @Override
+            protected Path partialUploadDirectory() {
+                return serverPartial;
+            }
+
+            @Override
+            protected Path pathProducer(BundleExchangeName bundleExchangeName,
+                                        BundleSenderType senderType,
+                                        PublicKeyMap publicKeyMap) {
+                var id = bundleExchangeName.encryptedBundleId();
+                return bundleExchangeName.isDownload() ? serverToSend.resolve(id) : serverReceived.resolve(id);
+            }
+
+            @Override
+            protected void bundleCompletion(BundleExchangeName bundleExchangeName,
+                                            BundleSenderType senderType,
+                                            Path path) {}
+
+            @Override
+            public void getRecencyBlob(GetRecencyBlobRequest request,
+                                       StreamObserver<GetRecencyBlobResponse> responseObserver) {
+                responseObserver.onNext(GetRecencyBlobResponse.getDefaultInstance());
+                responseObserver.onCompleted();
+            }
+        };
+        var serverService = new BundleServerServiceGrpc.BundleServerServiceImplBase() {
+            @Override
+            public void bundleInventory(BundleInventoryRequest request,
+                                        StreamObserver<BundleInventoryResponse> responseObserver) {
+                var response = BundleInventoryResponse.newBuilder()
+                        .addAllBundlesToUpload(request.getBundlesFromClientsOnTransportList());
+                try (var toSend = Files.list(serverToSend)) {
+                    toSend.forEach(p -> response.addBundlesToDownload(EncryptedBundleId.newBuilder()
+                                                                              .setEncryptedId(p.getFileName()
+                                                                                                      .toString())
+                                                                              .build()));
+                } catch (IOException e) {
+                    responseObserver.onError(e);
+                    return;
+                }
+                responseObserver.onNext(response.build());
+                responseObserver.onCompleted();
+            }
+
+            @Override
+            public void checkMessages(CheckMessagesRequest request,
+                                      StreamObserver<CheckMessagesResponse> responseObserver) {
+                responseObserver.onNext(CheckMessagesResponse.getDefaultInstance());
+                responseObserver.onCompleted();
+            }
+        };
+        var name = InProcessServerBuilder.generateName();
+        server = InProcessServerBuilder.forName(name)
+                .addService(exchangeService)
+                .addService(serverService)
+                .build()
+                .start();
+        var channel = InProcessChannelBuilder.forName(name).intercept(faultInjector).build();
+        manager = new TransportToBundleServerManager(channel, transportPaths);
+        manager.setMaxAttempts(FAULTS_PER_BUNDLE + 2);
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        manager.shutdown();
+        server.shutdownNow().awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    private List<String> createBundles(Path dir, String prefix) throws IOException {
+        var random = new Random(prefix.hashCode());
+        var ids = new ArrayList<String>();
+        for (int i = 0; i < BUNDLE_COUNT; i++) {
+            byte[] data = new byte[BUNDLE_SIZE];
+            random.nextBytes(data);
+            Files.write(dir.resolve(prefix + i), data);
+            ids.add(prefix + i);
+        }
+        return ids;
+    }
+
+    @Test
+    void testDroppedStreamsAreResumed() throws Exception {
+        var up = createBundles(transportPaths.toServerPath, "up");
+        var down = createBundles(serverToSend, "down");
+        var expected = new ArrayList<byte[]>();
+        for (var id : up) expected.add(Files.readAllBytes(transportPaths.toServerPath.resolve(id)));
+        for (var id : down) expected.add(Files.readAllBytes(serverToSend.resolve(id)));
+
+        var result = manager.doExchange();
+
+        assertEquals(BUNDLE_COUNT, result.uploadCount);
+        assertEquals(BUNDLE_COUNT, result.downloadCount);
+        for (int i = 0; i < BUNDLE_COUNT; i++) {
+            assertArrayEquals(expected.get(i), Files.readAllBytes(serverReceived.resolve(up.get(i))), up.get(i));
+            assertArrayEquals(expected.get(BUNDLE_COUNT + i),
+                              Files.readAllBytes(transportPaths.toClientPath.resolve(down.get(i))),
+                              down.get(i));
+        }
+        // every bundle lost its first stream at least
+        assertTrue(faultInjector.faults.get() >= 2 * BUNDLE_COUNT, "only " + faultInjector.faults + " faults");
+        long dataSize = 2L * BUNDLE_COUNT * BUNDLE_SIZE;
+        assertTrue(faultInjector.chunkBytes.get() < 2 * dataSize,
+                   faultInjector.chunkBytes + " bytes crossed the channel for " + dataSize + " bytes of bundles");
+        // nothing is left half done
+        try (var left = Files.list(serverPartial)) {
+            assertEquals(0, left.count());
+        }
+        try (var left = Files.list(transportPaths.partialPath)) {
+            assertEquals(0, left.count());
+        }
+    }
+
+    /**
+     * Drops the first FAULTS_PER_BUNDLE upload or download streams of every bundle after a random number of chunk
+     * bytes, the way a connection that goes away in the middle of a transfer would, and counts the chunk bytes that
+     * make it across.
+     */
+    private static class FaultInjector implements ClientInterceptor {
+        final AtomicInteger faults = new AtomicInteger();
+        final AtomicLong chunkBytes = new AtomicLong();
+        private final Random random;
+        private final Map<String, AtomicInteger> faultsPerBundle = new ConcurrentHashMap<>();
+
+        FaultInjector(Random random) {
+            this.random = random;
+        }
+
+        private synchronized long nextFaultOffset() {
+            return random.nextInt(BUNDLE_SIZE);
+        }
+
+        private boolean shouldFault(String bundleId) {
+            return faultsPerBundle.computeIfAbsent(bundleId, id -> new AtomicInteger()).getAndIncrement() <
+                    FAULTS_PER_BUNDLE;
+        }
+
+        @Override
+        public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(MethodDescriptor<ReqT, RespT> method,
+                                                                   CallOptions callOptions,
+                                                                   Channel next) {
+            var call = next.newCall(method, callOptions);
+            if (method == BundleExchangeServiceGrpc.getUploadBundleMethod() ||
+                    method == BundleExchangeServiceGrpc.getDownloadBundleMethod()) {
+                return new DroppingCall<>(call);
+            }
+            return call;
+        }
+
+        private class DroppingCall<ReqT, RespT> extends ForwardingClientCall.SimpleForwardingClientCall<ReqT, RespT> {
+            private final long faultOffset = nextFaultOffset();
+            private long transferred;
+            private boolean faulty;
+            private volatile boolean dropped;
+
+            DroppingCall(ClientCall<ReqT, RespT> delegate) {
+                super(delegate);
+            }
+
+            @Override
+            public void start(Listener<RespT> responseListener, Metadata headers) {
+                super.start(new ForwardingClientCallListener.SimpleForwardingClientCallListener<>(responseListener) {
+                    @Override
+                    public void onMessage(RespT message) {
+                        if (dropped) return;
+                        if (message instanceof BundleDownloadResponse response &&
+                                !passChunk(response.getChunk().getChunk().size())) {
+                            return;
+                        }
+                        super.onMessage(message);
+                    }
+
+                    @Override
+                    public void onClose(Status status, Metadata trailers) {
+                        super.onClose(dropped ? Status.UNAVAILABLE.withDescription("injected fault") : status,
+                                      trailers);
+                    }
+                }, headers);
+            }
+
+            @Override
+            public void sendMessage(ReqT message) {
+                if (dropped) return;
+                if (message instanceof BundleDownloadRequest request) {
+                    faulty = shouldFault(request.getBundleId().getEncryptedId());
+                } else if (message instanceof BundleUploadRequest request) {
+                    if (request.hasBundleId()) {
+                        faulty = shouldFault(request.getBundleId().getEncryptedId());
+                    } else if (request.hasChunk() && !passChunk(request.getChunk().getChunk().size())) {
+                        return;
+                    }
+                }
+                super.sendMessage(message);
+            }
+
+            @Override
+            public void halfClose() {
+                if (!dropped) super.halfClose();
+            }
+
+            /* returns false, and drops the call, if this chunk goes past the fault offset */
+            private synchronized boolean passChunk(int size) {
+                if (dropped) return false;
+                if (faulty && transferred + size > faultOffset) {
+                    dropped = true;
+                    faults.incrementAndGet();
+                    cancel("injected fault", null);
+                    return false;
+                }
+                transferred += size;
+                chunkBytes.addAndGet(size);
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package net.discdd.transport;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.netty.NettyChannelBuilder;
+import io.grpc.netty.NettyServerBuilder;
+import io.grpc.stub.StreamObserver;
+import net.discdd.bundlerouting.service.BundleExchangeServiceImpl;
+import net.discdd.grpc.BundleInventoryRequest;
+import net.discdd.grpc.BundleInventoryResponse;
+import net.discdd.grpc.BundleSenderType;
+import net.discdd.grpc.BundleServerServiceGrpc;
+import net.discdd.grpc.CheckMessagesRequest;
+import net.discdd.grpc.CheckMessagesResponse;
+import net.discdd.grpc.EncryptedBundleId;
+import net.discdd.grpc.GetRecencyBlobRequest;
+import net.discdd.grpc.GetRecencyBlobResponse;
+import net.discdd.grpc.PublicKeyMap;
+import net.discdd.pathutils.TransportPaths;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+import static java.util.logging.Level.INFO;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs exchanges against a fake bundle server on a local plaintext channel. Every transfer takes at least
+ * STREAM_LATENCY_MS on the server, to stand in for the round trips of a real network.
+ */
+public class TransportToBundleServerManagerTest {
+    private static final Logger logger = Logger.getLogger(TransportToBundleServerManagerTest.class.getName());
+    private static final int BUNDLE_COUNT = 500;
+    private static final int BUNDLE_SIZE = 8 * 1024;
+    private static final long STREAM_LATENCY_MS = 5;
+
+    @TempDir
+    Path tempDir;
+    private TransportPaths transportPaths;
+    private Path serverToSend;
+    private Path serverReceived;
+    private Server server;
+    private final List<TransportToBundleServerManager> managers = new ArrayList<>();
+    private final Set<String> failOnce = ConcurrentHashMap.newKeySet();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        transportPaths = new TransportPaths(tempDir.resolve("transport"));
+        serverToSend = Files.createDirectories(tempDir.resolve("server/send"));
+        serverReceived = Files.createDirectories(tempDir.resolve("server/received"));
+        var exchangeService = new BundleExchangeServiceImpl() {
+            @Override
+            protected void onBundleExchangeEvent(BundleExchangeEvent event) {}
+
+            @Override
+            protected Path pathProducer(BundleExchangeName bundleExchangeName,
+                                        BundleSenderType senderType,
+                                        PublicKeyMap publicKeyMap) {
+                sleep(STREAM_LATENCY_MS);
+                var id = bundleExchangeName.encryptedBundleId();
+                if (failOnce.remove(id)) {
+                    throw new IllegalStateException("simulated failure for " + id);
+                }
+                return bundleExchangeName.isDownload() ? serverToSend.resolve(id) : serverReceived.resolve(id);
+            }
+
+            @Override
+            protected void bundleCompletion(BundleExchangeName bundleExchangeName,
+                                            BundleSenderType senderType,
+                                            Path path) {}
+
+            @Override
+            public void getRecencyBlob(GetRecencyBlobRequest request,
+                                       StreamObserver<GetRecencyBlobResponse> responseObserver) {
+                responseObserver.onNext(GetRecencyBlobResponse.getDefaultInstance());
+                responseObserver.onCompleted();
+            }
+        };
+        var serverService = new BundleServerServiceGrpc.BundleServerServiceImplBase() {
+            @Override
+            public void bundleInventory(BundleInventoryRequest request,
+                                        StreamObserver<BundleInventoryResponse> responseObserver) {
+                var response = BundleInventoryResponse.newBuilder()
+                        .addAllBundlesToUpload(request.getBundlesFromClientsOnTransportList());
+                try (var toSend = Files.list(serverToSend)) {
+                    toSend.forEach(p -> response.addBundlesToDownload(EncryptedBundleId.newBuilder()
+                                                                              .setEncryptedId(p.getFileName()
+                                                                                                      .toString())
+                                                                              .build()));
+                } catch (IOException e) {
+                    responseObserver.onError(e);
+                    return;
+                }
+                responseObserver.onNext(response.build());
+                responseObserver.onCompleted();
+            }
+
+            @Override
+            public void checkMessages(CheckMessagesRequest request,
+                                      StreamObserver<CheckMessagesResponse> responseObserver) {
+                responseObserver.onNext(CheckMessagesResponse.getDefaultInstance());
+                responseObserver.onCompleted();
+            }
+        };
+        server = NettyServerBuilder.forPort(0).addService(exchangeService).addService(serverService).build().start();
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        managers.forEach(TransportToBundleServerManager::shutdown);
+        server.shutdownNow().awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    private TransportToBundleServerManager newManager() {
+        ManagedChannel channel = NettyChannelBuilder.forAddress("localhost", server.getPort()).usePlaintext().build();
+        var manager = new TransportToBundleServerManager(channel, transportPaths);
+        managers.add(manager);
+        return manager;
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private List<String> createBundles(Path dir, String prefix, int count) throws IOException {
+        var random = new Random(count);
+        byte[] data = new byte[BUNDLE_SIZE];
+        var ids = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            random.nextBytes(data);
+            Files.write(dir.resolve(prefix + i), data);
+            ids.add(prefix + i);
+        }
+        return ids;
+    }
+
+    private long timeExchange(int maxInFlightStreams, String prefix) throws Exception {
+        createBundles(transportPaths.toServerPath, prefix + "up", BUNDLE_COUNT);
+        createBundles(serverToSend, prefix + "down", BUNDLE_COUNT);
+        var manager = newManager();
+        manager.setMaxInFlightStreams(maxInFlightStreams);
+        long start = System.nanoTime();
+        var result = manager.doExchange();
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+
+        assertEquals(BUNDLE_COUNT, result.uploadCount);
+        assertEquals(BUNDLE_COUNT, result.downloadCount);
+        try (var left = Files.list(transportPaths.toServerPath)) {
+            assertEquals(0, left.count());
+        }
+        for (int i = 0; i < BUNDLE_COUNT; i++) {
+            assertEquals(BUNDLE_SIZE, Files.size(serverReceived.resolve(prefix + "up" + i)));
+            assertEquals(BUNDLE_SIZE, Files.size(transportPaths.toClientPath.resolve(prefix + "down" + i)));
+        }
+        // clean up so the next run only sees its own bundles
+        for (var dir : List.of(serverToSend, serverReceived, transportPaths.toClientPath)) {
+            try (var files = Files.list(dir)) {
+                for (var file : files.collect(Collectors.toList())) Files.delete(file);
+            }
+        }
+        return elapsedMs;
+    }
+
+    @Test
+    void testExchangeTime() throws Exception {
+        long serialMs = timeExchange(1, "a");
+        long pipelinedMs = timeExchange(16, "b");
+        logger.log(INFO,
+                   String.format("exchange of %d uploads and %d downloads: %d ms with 1 stream, %d ms with 16",
+                                 BUNDLE_COUNT,
+                                 BUNDLE_COUNT,
+                                 serialMs,
+                                 pipelinedMs));
+        assertTrue(pipelinedMs < serialMs, "pipelined exchange should be faster than serial");
+    }
+
+    @Test
+    void testFailedTransfersAreRetried() throws Exception {
+        var up = createBundles(transportPaths.toServerPath, "up", 3);
+        var down = createBundles(serverToSend, "down", 3);
+        failOnce.add(up.get(1));
+        failOnce.add(down.get(2));
+        var manager = newManager();
+        var result = manager.doExchange();
+        assertEquals(3, result.uploadCount);
+        assertEquals(3, result.downloadCount);
+        assertTrue(failOnce.isEmpty());
+    }
+
+    @Test
+    void testGiveUpAfterMaxAttempts() throws Exception {
+        var up = createBundles(transportPaths.toServerPath, "up", 1);
+        failOnce.add(up.get(0));
+        var manager = newManager();
+        manager.setMaxAttempts(1);
+        var result = manager.doExchange();
+        assertEquals(0, result.uploadCount);
+        // the bundle is kept for the next exchange
+        assertTrue(Files.exists(transportPaths.toServerPath.resolve(up.get(0))));
+    }
+}
@@ -0,0 +1,77 @@
+package net.discdd.utils;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CompressionPoliciesTest {
+    private static List<byte[]> mails(int count, int offset) {
+        var mails = new ArrayList<byte[]>();
+        for (int i = offset; i < offset + count; i++) {
+            mails.add(("From: user" + i + " <user" + i + "@discdd.net>\r\n" + "To: friend <friend@discdd.net>\r\n" +
+                    "Subject: note " + i + "\r\n" + "MIME-Version: 1.0\r\n" +
+                    "Content-Type: text/plain; charset=UTF-8\r\n\r\n" + "See you at the market on day " + i +
+                    "\r\n-- \r\nSent from my Android device with K-9 Mail.\r\n").getBytes());
+        }
+        return mails;
+    }
+
+    private static byte[] deflate(CompressionDictionary dictionary, byte[] data) throws IOException {
+        var bos = new ByteArrayOutputStream();
+        dictionary.deflate(new ByteArrayInputStream(data), bos, Deflater.BEST_COMPRESSION);
+        return bos.toByteArray();
+    }
+
+    @Test
+    void testTrainedDictionaryShrinksMails() throws Exception {
+        var dictionary = CompressionDictionary.train(mails(50, 0), CompressionDictionary.MAX_SIZE);
+        var mail = mails(1, 1000).get(0);
+        var deflated = deflate(dictionary, mail);
+        assertArrayEquals(mail, dictionary.inflate(deflated));
+        // the headers and the signature all come from the dictionary
+        assertTrue(deflated.length < mail.length / 3, deflated.length + " of " + mail.length);
+
+        assertThrows(IOException.class, () -> dictionary.inflate(Arrays.copyOf(deflated, deflated.length / 2)));
+        assertThrows(IllegalArgumentException.class,
+                     () -> CompressionDictionary.train(List.of("a".getBytes(), "b".getBytes()), 1024));
+    }
+
+    @Test
+    void testLoadPolicies(@TempDir Path dir) throws Exception {
+        var dictionary = CompressionDictionary.train(mails(10, 0), 1024);
+        var retired = new CompressionDictionary("Subject: ".getBytes());
+        var dictionaryFile = dictionary.write(dir);
+        retired.write(dir);
+        Files.writeString(dir.resolve(CompressionPolicies.POLICIES_FILE),
+                          "mail=dictionary:" + dictionaryFile.getFileName() + "\n" + "photos=stored\n" +
+                                  "chat=deflate:1\n");
+
+        var policies = CompressionPolicies.load(dir);
+        assertEquals(dictionary.getId(), policies.getPolicy("mail").dictionary().getId());
+        assertSame(CompressionPolicy.STORED, policies.getPolicy("photos"));
+        assertEquals(1, policies.getPolicy("chat").level());
+        assertSame(CompressionPolicy.DEFAULT, policies.getPolicy("other"));
+        assertEquals(retired.getId(), policies.getDictionary(retired.getId()).getId());
+        assertNull(policies.getDictionary("00000000"));
+
+        Files.writeString(dir.resolve(CompressionPolicies.POLICIES_FILE), "chat=deflate:11\n");
+        assertThrows(IOException.class, () -> CompressionPolicies.load(dir));
+        assertSame(CompressionPolicy.DEFAULT, CompressionPolicies.load(dir.resolve("missing")).getPolicy("mail"));
+    }
+}
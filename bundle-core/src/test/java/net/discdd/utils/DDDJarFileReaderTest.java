@@ -0,0 +1,225 @@
+package net.discdd.utils;
+
+import net.discdd.bundlesecurity.SecurityUtils;
+import net.discdd.model.ADU;
+import net.discdd.model.Bundle;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DDDJarFileReaderTest {
+    @Test
+    void testReadEntriesWrittenByCreator(@TempDir Path tempDir) throws Exception {
+        Path jarPath = tempDir.resolve("test.jar");
+        try (var creator = new DDDJarFileCreator(Files.newOutputStream(jarPath))) {
+            creator.createEntry("first", "one".getBytes());
+            creator.createEntry(Path.of("dir", "second"), "two".getBytes());
+        }
+
+        try (var reader = new DDDJarFileReader(jarPath)) {
+            assertEquals(List.of("first", "dir/second"), reader.getEntryNames());
+            assertArrayEquals("one".getBytes(), reader.readEntry("first"));
+            var bos = new ByteArrayOutputStream();
+            assertEquals(3, reader.copyEntry("dir/second", bos));
+            assertArrayEquals("two".getBytes(), bos.toByteArray());
+            assertNull(reader.readEntry("missing"));
+        }
+    }
+
+    @Test
+    void testUncompressedEntryIsNotDeflated(@TempDir Path tempDir) throws Exception {
+        Path jarPath = tempDir.resolve("uncompressed.jar");
+        var random = new byte[1024 * 1024];
+        new Random(1).nextBytes(random);
+        var text = "text that compresses ".repeat(1000).getBytes();
+        try (var creator = new DDDJarFileCreator(Files.newOutputStream(jarPath))) {
+            try (var os = creator.createUncompressedEntry(Path.of("payloads", "payload"))) {
+                os.write(random);
+            }
+            creator.createEntry("text", text);
+        }
+
+        try (var jarFile = new JarFile(jarPath.toFile())) {
+            // only the framing of the deflate blocks is added to the random data
+            var payloadEntry = jarFile.getJarEntry("payloads/payload");
+            assertTrue(payloadEntry.getCompressedSize() - payloadEntry.getSize() < 1024);
+            var textEntry = jarFile.getJarEntry("text");
+            assertTrue(textEntry.getCompressedSize() < textEntry.getSize() / 10);
+        }
+        try (var reader = new DDDJarFileReader(jarPath)) {
+            assertArrayEquals(random, reader.readEntry("payloads/payload"));
+            assertArrayEquals(text, reader.readEntry("text"));
+        }
+    }
+
+    @Test
+    void testTamperedEntryIsRejected(@TempDir Path tempDir) throws Exception {
+        Path jarPath = tempDir.resolve("tampered.jar");
+        var manifest = new Manifest();
+        var attributes = new Attributes();
+        byte[] originalDigest = MessageDigest.getInstance("SHA-256").digest("original".getBytes());
+        attributes.putValue("SHA-256-Digest", Base64.getEncoder().encodeToString(originalDigest));
+        manifest.getEntries().put("entry", attributes);
+        try (var jos = new JarOutputStream(Files.newOutputStream(jarPath))) {
+            jos.putNextEntry(new JarEntry("entry"));
+            jos.write("tampered".getBytes());
+            jos.putNextEntry(new JarEntry("unlisted"));
+            jos.write("unlisted".getBytes());
+            jos.putNextEntry(new JarEntry("META-INF/MANIFEST.MF"));
+            manifest.write(jos);
+        }
+
+        try (var reader = new DDDJarFileReader(jarPath)) {
+            assertThrows(SecurityException.class, () -> reader.readEntry("entry"));
+            assertThrows(SecurityException.class, () -> reader.readEntry("unlisted"));
+        }
+    }
+
+    @Test
+    void testStreamedBundleMatchesFile(@TempDir Path tempDir) throws Exception {
+        Path bundlePath = tempDir.resolve("bundle.jar");
+        var payload = new byte[3 * 1024 * 1024];
+        new Random(2).nextBytes(payload);
+        try (var creator = new DDDJarFileCreator(Files.newOutputStream(bundlePath))) {
+            creator.createEntry(SecurityUtils.BUNDLEID_FILENAME, "bundle1\n".getBytes());
+            creator.createEntry(SecurityUtils.CLIENT_IDENTITY_KEY, "identity".getBytes());
+            creator.createEntry(SecurityUtils.CLIENT_BASE_KEY, "base".getBytes());
+            creator.createEntry(SecurityUtils.SERVER_IDENTITY_KEY, "server".getBytes());
+            try (var os = creator.createUncompressedEntry(Path.of(SecurityUtils.PAYLOAD_DIR,
+                                                                  SecurityUtils.PAYLOAD_FILENAME))) {
+                os.write(payload);
+            }
+        }
+
+        BundleUtils.StreamedBundle streamed;
+        try (var is = Files.newInputStream(bundlePath)) {
+            streamed = BundleUtils.readReceivedBundle(is, tempDir.resolve("streamed-payload"));
+        }
+        var received = BundleUtils.readReceivedBundle(new Bundle(bundlePath.toFile()), tempDir.resolve("payload"));
+        var streamedBundle = streamed.receivedBundle();
+        assertEquals("bundle1", streamedBundle.bundleId());
+        assertEquals(received.bundleId(), streamedBundle.bundleId());
+        assertArrayEquals(received.encryptedClientIdentityKey(), streamedBundle.encryptedClientIdentityKey());
+        assertArrayEquals(received.clientBaseKey(), streamedBundle.clientBaseKey());
+        assertArrayEquals(received.serverIdentityKey(), streamedBundle.serverIdentityKey());
+        assertArrayEquals(payload, Files.readAllBytes(streamedBundle.encryptedPayload()));
+        try (var reader = new DDDJarFileReader(bundlePath)) {
+            assertEquals(reader.getManifest(), streamed.manifest());
+        }
+
+        // nothing is left of the payload of a bundle that was cut short
+        var truncated = Arrays.copyOf(Files.readAllBytes(bundlePath), 2 * 1024 * 1024);
+        assertThrows(IOException.class,
+                     () -> BundleUtils.readReceivedBundle(new ByteArrayInputStream(truncated),
+                                                          tempDir.resolve("truncated-payload")));
+        assertFalse(Files.exists(tempDir.resolve("truncated-payload")));
+    }
+
+    @Test
+    void testTamperedStreamIsRejected(@TempDir Path tempDir) throws Exception {
+        var manifest = new Manifest();
+        var attributes = new Attributes();
+        byte[] originalDigest = MessageDigest.getInstance("SHA-256").digest("original".getBytes());
+        attributes.putValue("SHA-256-Digest", Base64.getEncoder().encodeToString(originalDigest));
+        manifest.getEntries().put("entry", attributes);
+        var bos = new ByteArrayOutputStream();
+        try (var jos = new JarOutputStream(bos)) {
+            jos.putNextEntry(new JarEntry("entry"));
+            jos.write("tampered".getBytes());
+            jos.putNextEntry(new JarEntry("META-INF/MANIFEST.MF"));
+            manifest.write(jos);
+        }
+
+        List<String> names = new ArrayList<>();
+        var e = assertThrows(SecurityException.class,
+                             () -> DDDJarStreamReader.read(new ByteArrayInputStream(bos.toByteArray()),
+                                                           (name, data) -> names.add(name)));
+        assertEquals("Checksum verification failed for entry", e.getMessage());
+        // the entry was handed out before its digest could be checked
+        assertEquals(List.of("entry"), names);
+    }
+
+    @Test
+    void testReceivedPayloadVisitsAdus(@TempDir Path tempDir) throws Exception {
+        List<ADU> adus = new ArrayList<>();
+        for (int i = 1; i <= 3; i++) {
+            Path aduFile = tempDir.resolve("adu" + i);
+            Files.writeString(aduFile, "data" + i);
+            adus.add(new ADU(aduFile.toFile(), i == 3 ? "app2" : "app1", i, Files.size(aduFile)));
+        }
+        Path payloadPath = tempDir.resolve("payload.jar");
+        try (var os = Files.newOutputStream(payloadPath)) {
+            BundleUtils.createBundlePayloadForAdus(adus, "{\"t\":1}".getBytes(), "ackedId", null, os);
+        }
+
+        try (var payload = new ReceivedPayload(payloadPath)) {
+            assertEquals("ackedId", payload.getAcknowledgement());
+            assertArrayEquals("{\"t\":1}".getBytes(), payload.getRoutingMetadata());
+            assertNull(payload.getCrashReport());
+            List<String> visited = new ArrayList<>();
+            int count = payload.forEachAdu((appId, aduId, data) -> visited.add(
+                    appId + ":" + aduId + ":" + new String(data, StandardCharsets.UTF_8)));
+            assertEquals(3, count);
+            assertEquals(List.of("app1:1:data1", "app1:2:data2", "app2:3:data3"), visited);
+        }
+    }
+
+    @Test
+    void testDictionaryCompressedAdus(@TempDir Path tempDir) throws Exception {
+        List<ADU> adus = new ArrayList<>();
+        List<byte[]> samples = new ArrayList<>();
+        for (int i = 1; i <= 4; i++) {
+            byte[] mail = ("From: user" + i + "@discdd.net\r\nSubject: hello " + i + "\r\n\r\nSee you soon\r\n")
+                    .getBytes();
+            samples.add(mail);
+            Path aduFile = tempDir.resolve("adu" + i);
+            Files.write(aduFile, mail);
+            adus.add(new ADU(aduFile.toFile(), i == 4 ? "app2" : "app1", i, mail.length));
+        }
+        var dictionary = CompressionDictionary.train(samples, 1024);
+        var policies = new CompressionPolicies();
+        policies.setPolicy("app1", CompressionPolicy.withDictionary(dictionary));
+        Path payloadPath = tempDir.resolve("payload.jar");
+        try (var os = Files.newOutputStream(payloadPath)) {
+            BundleUtils.createBundlePayloadForAdus(adus, "{}".getBytes(), "HB", null, policies, os);
+        }
+
+        try (var reader = new DDDJarFileReader(payloadPath)) {
+            assertEquals(dictionary.getId(),
+                         reader.getEntryAttribute("ADU/app1/1", CompressionDictionary.MANIFEST_ATTRIBUTE));
+            assertNull(reader.getEntryAttribute("ADU/app2/4", CompressionDictionary.MANIFEST_ATTRIBUTE));
+        }
+        try (var payload = new ReceivedPayload(payloadPath, policies)) {
+            List<byte[]> visited = new ArrayList<>();
+            assertEquals(4, payload.forEachAdu((appId, aduId, data) -> visited.add(data)));
+            for (int i = 0; i < samples.size(); i++) assertArrayEquals(samples.get(i), visited.get(i));
+        }
+        try (var payload = new ReceivedPayload(payloadPath)) {
+            assertThrows(IOException.class, () -> payload.forEachAdu((appId, aduId, data) -> {}));
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package net.discdd.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class KeyedLocksTest {
+    @Test
+    void testLocksArePerKey() throws Exception {
+        var locks = new KeyedLocks<String>();
+        var executor = Executors.newSingleThreadExecutor();
+        try (var ignored = locks.lock("a")) {
+            // another thread can't have "a", but "b" is free
+            assertNull(executor.submit(() -> locks.tryLock("a")).get(30, TimeUnit.SECONDS));
+            executor.submit(() -> locks.lock("b").close()).get(30, TimeUnit.SECONDS);
+            // the thread holding a lock can take it again
+            try (var again = locks.tryLock("a")) {
+                assertNotNull(again);
+            }
+            assertEquals(1, locks.size());
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(0, locks.size());
+    }
+}
@@ -0,0 +1,114 @@
+package net.discdd.utils;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RingBufferPipeTest {
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void testDataWrapsAroundSmallBuffer() throws Exception {
+        var data = new byte[1_000_003];
+        new Random(1).nextBytes(data);
+        var pipe = new RingBufferPipe(1024);
+        var writer = executor.submit(() -> {
+            try (var out = pipe.getOutputStream()) {
+                var random = new Random(2);
+                int off = 0;
+                while (off < data.length) {
+                    // odd sized writes, and single bytes, so that writes straddle the end of the ring
+                    int len = Math.min(data.length - off, random.nextInt(3000));
+                    if (len == 1) {
+                        out.write(data[off]);
+                    } else {
+                        out.write(data, off, len);
+                    }
+                    off += len;
+                }
+            }
+            return null;
+        });
+
+        var received = new ByteArrayOutputStream();
+        try (var in = pipe.getInputStream()) {
+            var buffer = new byte[777];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                received.write(buffer, 0, n);
+            }
+            assertEquals(-1, in.read());
+        }
+        writer.get(10, TimeUnit.SECONDS);
+        assertArrayEquals(data, received.toByteArray());
+    }
+
+    @Test
+    void testWriterFailureReachesReader() throws Exception {
+        var pipe = new RingBufferPipe(16);
+        var failure = new IOException("ADU file went away");
+        executor.submit(() -> {
+            pipe.getOutputStream().write(new byte[10]);
+            pipe.fail(failure);
+            return null;
+        }).get(10, TimeUnit.SECONDS);
+
+        var in = pipe.getInputStream();
+        // what was written before the failure is still delivered
+        assertEquals(10, in.read(new byte[32]));
+        var e = assertThrows(IOException.class, () -> in.read(new byte[32]));
+        assertSame(failure, e.getCause());
+    }
+
+    @Test
+    void testClosingReaderReleasesBlockedWriter() throws Exception {
+        var pipe = new RingBufferPipe(16);
+        var writer = executor.submit(() -> {
+            // more than the buffer holds, so this blocks until the reader goes away
+            pipe.getOutputStream().write(new byte[1024]);
+            return null;
+        });
+        pipe.getInputStream().read(new byte[4]);
+        pipe.getInputStream().close();
+        var e = assertThrows(ExecutionException.class, () -> writer.get(10, TimeUnit.SECONDS));
+        assertInstanceOf(IOException.class, e.getCause());
+    }
+
+    @Test
+    void testInterruptedWriterStops() throws Exception {
+        var pipe = new RingBufferPipe(16);
+        var writer = executor.submit(() -> {
+            pipe.getOutputStream().write(new byte[1024]);
+            return null;
+        });
+        Thread.sleep(50);
+        writer.cancel(true);
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void testCapacityMustBePowerOfTwo() {
+        assertThrows(IllegalArgumentException.class, () -> new RingBufferPipe(1000));
+        assertThrows(IllegalArgumentException.class, () -> new RingBufferPipe(0));
+    }
+}
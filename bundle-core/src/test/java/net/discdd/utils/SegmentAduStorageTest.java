@@ -0,0 +1,198 @@
+package net.discdd.utils;
+
+import net.discdd.model.ADU;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SegmentAduStorageTest {
+    private static Map<Long, Long> sizes(AduStorage storage, String clientId, String appId) throws IOException {
+        var sizes = new TreeMap<Long, Long>();
+        storage.forEach(clientId, appId, sizes::put);
+        return sizes;
+    }
+
+    private static String read(AduStorage storage, String clientId, String appId, long aduId) throws IOException {
+        try (InputStream in = storage.open(clientId, appId, aduId)) {
+            var out = new StringBuilder();
+            int b;
+            while ((b = in.read()) >= 0) out.append((char) b);
+            return out.toString();
+        }
+    }
+
+    private static List<Path> segments(Path root, String clientId) throws IOException {
+        try (Stream<Path> files = Files.list(root.resolve(clientId).resolve(SegmentAduStorage.SEGMENTS_FOLDER))) {
+            return files.sorted().collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    void testWritesRenamesAndDeletesSurviveRestart(@TempDir Path root) throws Exception {
+        var storage = new SegmentAduStorage(root);
+        storage.write("c1", "app", 1, 0, "one".getBytes());
+        storage.write("c1", "app", -1, 0, "par".getBytes());
+        storage.write("c1", "app", -1, 3, "tial".getBytes());
+        // rewriting from an earlier offset drops what came after it
+        assertEquals(5, storage.write("c1", "app", -1, 2, "rts".getBytes()));
+        storage.rename("c1", "app", -1, 2);
+        storage.write("c1", "app", 3, 0, "three".getBytes());
+        storage.write("c1", "other", 1, 0, "x".getBytes());
+        var deleted = new ArrayList<Long>();
+        storage.delete("c1", "app", new long[] { 1, 2 }, deleted::add);
+        assertEquals(List.of(1L, 2L), deleted);
+        storage.close();
+
+        var reopened = new SegmentAduStorage(root);
+        assertEquals(Map.of(3L, 5L), sizes(reopened, "c1", "app"));
+        assertEquals("three", read(reopened, "c1", "app", 3));
+        assertEquals("x", read(reopened, "c1", "other", 1));
+        assertEquals(Map.of(), sizes(reopened, "c2", "app"));
+        reopened.close();
+    }
+
+    @Test
+    void testTornRecordIsCutOff(@TempDir Path root) throws Exception {
+        var storage = new SegmentAduStorage(root);
+        storage.write("c1", "app", 1, 0, "one".getBytes());
+        storage.write("c1", "app", 2, 0, "two".getBytes());
+        storage.close();
+        var segment = segments(root, "c1").get(0);
+        long intact = Files.size(segment);
+        // a crash in the middle of the last record leaves only part of it behind
+        try (var file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.setLength(intact - 2);
+        }
+
+        var reopened = new SegmentAduStorage(root);
+        assertEquals(Map.of(1L, 3L), sizes(reopened, "c1", "app"));
+        // the next record goes where the torn one was
+        reopened.write("c1", "app", 2, 0, "two".getBytes());
+        assertEquals(intact, Files.size(segment));
+        reopened.close();
+
+        var again = new SegmentAduStorage(root);
+        assertEquals(Map.of(1L, 3L, 2L, 3L), sizes(again, "c1", "app"));
+        assertEquals("two", read(again, "c1", "app", 2));
+        again.close();
+    }
+
+    @Test
+    void testCorruptRecordIsCutOff(@TempDir Path root) throws Exception {
+        var storage = new SegmentAduStorage(root);
+        storage.write("c1", "app", 1, 0, "one".getBytes());
+        storage.write("c1", "app", 2, 0, "two".getBytes());
+        storage.close();
+        var segment = segments(root, "c1").get(0);
+        try (var file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.seek(file.length() - 1);
+            file.write('X');
+        }
+
+        var reopened = new SegmentAduStorage(root);
+        assertEquals(Map.of(1L, 3L), sizes(reopened, "c1", "app"));
+        reopened.close();
+    }
+
+    @Test
+    void testCompactionKeepsLiveData(@TempDir Path root) throws Exception {
+        var storage = new SegmentAduStorage(root, 64, Long.MAX_VALUE);
+        for (long id = 1; id <= 10; id++) {
+            storage.write("c1", "app", id, 0, ("adu" + id).getBytes());
+        }
+        storage.write("c1", "app", -1, 0, "partial".getBytes());
+        storage.delete("c1", "app", new long[] { 1, 2, 3, 4, 5, 6, 7, 8 }, id -> {});
+        assertTrue(segments(root, "c1").size() > 1);
+        // a reader that is already open keeps reading from the old segments
+        var in = storage.open("c1", "app", 9);
+
+        storage.compact("c1");
+        assertEquals(1, segments(root, "c1").size());
+        assertEquals("adu9", new String(in.readAllBytes()));
+        in.close();
+        assertEquals("adu10", read(storage, "c1", "app", 10));
+        storage.close();
+
+        var reopened = new SegmentAduStorage(root);
+        assertEquals(Map.of(-1L, 7L, 9L, 4L, 10L, 5L), sizes(reopened, "c1", "app"));
+        assertEquals("partial", read(reopened, "c1", "app", -1));
+        reopened.close();
+    }
+
+    @Test
+    void testCrashDuringCompaction(@TempDir Path root) throws Exception {
+        var storage = new SegmentAduStorage(root);
+        storage.write("c1", "app", 1, 0, "one".getBytes());
+        storage.write("c1", "app", 2, 0, "two".getBytes());
+        storage.delete("c1", "app", new long[] { 1 }, id -> {});
+        var original = segments(root, "c1");
+        var before = new ArrayList<byte[]>();
+        for (var segment : original) before.add(Files.readAllBytes(segment));
+        storage.compact("c1");
+        var compacted = segments(root, "c1").get(0);
+        var compactedBytes = Files.readAllBytes(compacted);
+        storage.close();
+
+        // a crash before the compacted segment was renamed into place leaves the temporary file
+        var temp = compacted.resolveSibling(compacted.getFileName()
+                                                    .toString()
+                                                    .replace(SegmentAduStorage.SEGMENT_EXT,
+                                                             SegmentAduStorage.COMPACTING_EXT));
+        Files.move(compacted, temp);
+        for (int i = 0; i < original.size(); i++) Files.write(original.get(i), before.get(i));
+        var reopened = new SegmentAduStorage(root);
+        assertEquals(Map.of(2L, 3L), sizes(reopened, "c1", "app"));
+        assertFalse(Files.exists(temp));
+        assertEquals(original, segments(root, "c1"));
+        reopened.close();
+
+        // a crash after the rename but before the old segments were deleted leaves both
+        Files.write(compacted, compactedBytes);
+        reopened = new SegmentAduStorage(root);
+        assertEquals(Map.of(2L, 3L), sizes(reopened, "c1", "app"));
+        assertEquals("two", read(reopened, "c1", "app", 2));
+        assertEquals(List.of(compacted), segments(root, "c1"));
+        reopened.close();
+    }
+
+    @Test
+    void testStoreADUsOnSegments(@TempDir Path root) throws Exception {
+        var storage = new SegmentAduStorage(root);
+        var store = new StoreADUs(root, storage);
+        store.addADU("c1", "app", "one".getBytes(), 1);
+        store.addADU("c1", "app", "part1".getBytes(), -1, 0, false);
+        store.addADU("c1", "app", "part2".getBytes(), -1, 5, true);
+        store.addADU("c1", "app", "three".getBytes(), 3);
+        assertEquals("part1part2", new String(store.getADU("c1", "app", 2L)));
+        assertEquals("art", new String(store.getADU("c1", "app", 2L, 1, 3)));
+        try (var in = store.getADUs("c1", "app").filter(a -> a.getADUId() == 3).findFirst().get().openStream()) {
+            assertEquals("three", new String(in.readAllBytes()));
+        }
+        // the segments are not mistaken for an app
+        assertEquals(List.of("app"),
+                     store.getAllClientApps().map(StoreADUs.ClientApp::appId).collect(Collectors.toList()));
+
+        store.deleteAllFilesUpTo("c1", "app", 2);
+        StoreADUs.dropIndexes();
+        storage.close();
+        var reloaded = new StoreADUs(root, new SegmentAduStorage(root));
+        assertEquals(List.of(3L), reloaded.getADUs("c1", "app").map(ADU::getADUId).collect(Collectors.toList()));
+        assertEquals(3, reloaded.getLastADUIdAdded("c1", "app"));
+        assertEquals(2, reloaded.getLastADUIdDeleted("c1", "app"));
+    }
+}
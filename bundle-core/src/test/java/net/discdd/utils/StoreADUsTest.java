@@ -0,0 +1,128 @@
+package net.discdd.utils;
+
+import net.discdd.model.ADU;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class StoreADUsTest {
+    private static List<Long> ids(StoreADUs store, String clientId, String appId) throws Exception {
+        return store.getADUs(clientId, appId).map(ADU::getADUId).collect(Collectors.toList());
+    }
+
+    @Test
+    void testIndexTracksAddsAndDeletes(@TempDir Path root) throws Exception {
+        var store = new StoreADUs(root);
+        store.addADU("c1", "app", "three".getBytes(), 3);
+        store.addADU("c1", "app", "one".getBytes(), 1);
+        store.addADU("c1", "app", "two".getBytes(), 2);
+        assertEquals(List.of(1L, 2L, 3L), ids(store, "c1", "app"));
+        assertEquals(3, store.getLastADUIdAdded("c1", "app"));
+        assertEquals(List.of(3L, 3L, 5L),
+                     store.getADUs("c1", "app").map(ADU::getSize).collect(Collectors.toList()));
+
+        store.deleteAllFilesUpTo("c1", "app", 2);
+        assertEquals(List.of(3L), ids(store, "c1", "app"));
+        assertEquals(2, store.getLastADUIdDeleted("c1", "app"));
+        assertFalse(store.getADUFile("c1", "app", 1).exists());
+        assertNull(store.addADU("c1", "app", "old".getBytes(), 2));
+
+        // a second store on the same folder sees the same state, as does one rebuilt from disk
+        assertEquals(List.of(3L), ids(new StoreADUs(root), "c1", "app"));
+        StoreADUs.dropIndexes();
+        var reloaded = new StoreADUs(root);
+        assertEquals(List.of(3L), ids(reloaded, "c1", "app"));
+        assertEquals(3, reloaded.getLastADUIdAdded("c1", "app"));
+        assertEquals(2, reloaded.getLastADUIdDeleted("c1", "app"));
+    }
+
+    @Test
+    void testPartialAduIsRenumberedWhenFinished(@TempDir Path root) throws Exception {
+        var store = new StoreADUs(root);
+        store.addADU(null, "app", "first".getBytes(), 1);
+        store.addADU(null, "app", "part1".getBytes(), -1, 0, false);
+        store.addADU(null, "app", "part2".getBytes(), -1, 5, false);
+        assertEquals(List.of(-1L, 1L), ids(store, null, "app"));
+        assertEquals(List.of(-1L, 1L), store.getAllADUIds("app"));
+        assertEquals(1, store.getAllAppIdAndData("app").size());
+
+        store.addADU(null, "app", "part3".getBytes(), -1, 10, true);
+        assertEquals(List.of(1L, 2L), ids(store, null, "app"));
+        assertEquals(15, store.getADUs(null, "app").filter(a -> a.getADUId() == 2).findFirst().get().getSize());
+        assertEquals("part1part2part3", new String(store.getADU(null, "app", 2L)));
+        assertEquals(2, store.getLastADUIdAdded(null, "app"));
+    }
+
+    @Test
+    void testRemovedFolderIsReloaded(@TempDir Path root) throws Exception {
+        var store = new StoreADUs(root);
+        store.addADU("c1", "app", "one".getBytes(), 1);
+        FileUtils.recursiveDelete(root.resolve("c1"));
+        assertEquals(List.of(), ids(store, "c1", "app"));
+        assertEquals(0, store.getLastADUIdAdded("c1", "app"));
+        assertTrue(Files.exists(root.resolve("c1").resolve("app").resolve(StoreADUs.METADATA_FILENAME)));
+    }
+
+    @Test
+    void testChangesAreTrackedUntilSent(@TempDir Path root) throws Exception {
+        var store = new StoreADUs(root);
+        assertFalse(store.hasNewADUs("c1"));
+        store.addADU("c1", "app1", "one".getBytes(), 1);
+        store.addADU("c1", "app2", "one".getBytes(), 1);
+        assertTrue(store.hasNewADUs("c1"));
+        assertFalse(store.hasNewADUs("c2"));
+
+        // the ADUs of both apps go out in a bundle, but app2 gets another ADU while the bundle is being made
+        long app1Generation = store.getGeneration("c1", "app1");
+        long app2Generation = store.getGeneration("c1", "app2");
+        store.addADU("c1", "app2", "two".getBytes(), 2);
+        store.markClean("c1", "app1", app1Generation);
+        store.markClean("c1", "app2", app2Generation);
+        assertTrue(store.hasNewADUs("c1"));
+        store.markClean("c1", "app2", store.getGeneration("c1", "app2"));
+        assertFalse(store.hasNewADUs("c1"));
+        assertTrue(store.getGeneration() >= store.getGeneration("c1", "app2"));
+
+        store.deleteAllFilesUpTo("c1", "app1", 1);
+        assertTrue(store.hasNewADUs("c1"));
+        // deleting what is already gone is not a change
+        store.markClean("c1", "app1", store.getGeneration("c1", "app1"));
+        store.deleteAllFilesUpTo("c1", "app1", 1);
+        assertFalse(store.hasNewADUs("c1"));
+
+        // the state survives a restart, and generations keep going up after it
+        store.addADU("c1", "app1", "two".getBytes(), 2);
+        long generation = store.getGeneration();
+        StoreADUs.dropIndexes();
+        var reloaded = new StoreADUs(root);
+        assertTrue(reloaded.hasNewADUs("c1"));
+        assertEquals(generation, reloaded.getGeneration("c1", "app1"));
+        reloaded.markClean("c1", "app1", generation);
+        assertFalse(reloaded.hasNewADUs("c1"));
+        reloaded.addADU("c1", "app2", "three".getBytes(), 3);
+        assertTrue(reloaded.getGeneration("c1", "app2") > generation);
+    }
+
+    @Test
+    void testStoresWrittenBeforeTrackingAreDirty(@TempDir Path root) throws Exception {
+        var store = new StoreADUs(root);
+        store.addADU(null, "app", "one".getBytes(), 1);
+        StoreADUs.dropIndexes();
+        // metadata.json as it was written before generations were kept
+        Files.writeString(root.resolve("app").resolve(StoreADUs.METADATA_FILENAME),
+                          "{\"lastAduAdded\":1,\"lastAduDeleted\":0}");
+        var reloaded = new StoreADUs(root);
+        assertTrue(reloaded.hasNewADUs(null));
+        reloaded.markClean(null, "app", reloaded.getGeneration(null, "app"));
+        assertFalse(reloaded.hasNewADUs(null));
+    }
+}
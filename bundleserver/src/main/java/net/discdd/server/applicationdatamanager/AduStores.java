@@ -1,19 +1,61 @@
 package net.discdd.server.applicationdatamanager;
 
+import jakarta.annotation.PreDestroy;
+import net.discdd.utils.AduStorage;
+import net.discdd.utils.FileAduStorage;
+import net.discdd.utils.SegmentAduStorage;
 import net.discdd.utils.StoreADUs;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 
 @Component
 public class AduStores {
     private final StoreADUs receiveADUsStorage;
     private final StoreADUs sendADUsStorage;
+    private final List<Closeable> storages = new ArrayList<>();
 
-    public AduStores(@Value("${bundle-server.bundle-store-root}") Path rootDataDir) {
-        this.sendADUsStorage = new StoreADUs(rootDataDir.resolve("send"));
-        this.receiveADUsStorage = new StoreADUs(rootDataDir.resolve("receive"));
+    public AduStores(Path rootDataDir) {
+        this(rootDataDir, "files");
+    }
+
+    /**
+     * @param aduStorage "files" to keep every ADU in a file of its own, or "segments" to append the ADUs of each
+     *                   client to segment files
+     */
+    @Autowired
+    public AduStores(@Value("${bundle-server.bundle-store-root}") Path rootDataDir,
+                     @Value("${bundle-server.adu-storage:files}") String aduStorage) {
+        this.sendADUsStorage = new StoreADUs(rootDataDir.resolve("send"),
+                                             storage(rootDataDir.resolve("send"), aduStorage));
+        this.receiveADUsStorage = new StoreADUs(rootDataDir.resolve("receive"),
+                                                storage(rootDataDir.resolve("receive"), aduStorage));
+        sendADUsStorage.loadIndexes(false);
+        receiveADUsStorage.loadIndexes(false);
+    }
+
+    private AduStorage storage(Path rootFolder, String aduStorage) {
+        switch (aduStorage) {
+            case "files":
+                return new FileAduStorage(rootFolder);
+            case "segments":
+                var storage = new SegmentAduStorage(rootFolder);
+                storages.add(storage);
+                return storage;
+            default:
+                throw new IllegalArgumentException("Unknown bundle-server.adu-storage " + aduStorage);
+        }
+    }
+
+    @PreDestroy
+    void close() throws IOException {
+        for (var storage : storages) storage.close();
     }
 
     public StoreADUs getReceiveADUsStorage() {
@@ -1,6 +1,8 @@
 package net.discdd.server.applicationdatamanager;
 
 import com.google.protobuf.ByteString;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
 import io.grpc.netty.GrpcSslContexts;
 import io.grpc.netty.NettyChannelBuilder;
 import net.discdd.grpc.AppDataUnit;
@@ -24,6 +26,7 @@ import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
 import static java.util.logging.Level.INFO;
@@ -91,7 +94,10 @@ public class BundleServerAduDeliverer implements ServerApplicationDataManager.Ad
                                           // we might be reconnecting, so update the pending clients
                                           state == null ? new HashSet<>() : state.pendingClients,
                                           appAdapter.getAddress(),
-                                          stub));
+                                          stub,
+                                          ServiceAdapterServiceGrpc.newStub(channel),
+                                          // the adapter may have been upgraded, so try streaming again
+                                          new AtomicBoolean(false)));
                 } catch (SSLException e) {
                     throw new RuntimeException(e);
                 }
@@ -165,6 +171,22 @@ public class BundleServerAduDeliverer implements ServerApplicationDataManager.Ad
             synchronized (appState.pendingClients) {
                 appState.pendingClients.remove(clientId);
             }
+            if (!appState.unaryOnly.get()) {
+                try {
+                    new StreamingAduExchange(clientId,
+                                             appId,
+                                             sendFolder,
+                                             receiveFolder,
+                                             grpcTimeout).run(appState.asyncStub);
+                    return;
+                } catch (StatusRuntimeException e) {
+                    if (e.getStatus().getCode() != Status.Code.UNIMPLEMENTED) throw e;
+                    logger.log(INFO,
+                               appId + " at " + appState.stub.getChannel().authority() +
+                                       " does not support streamADUs, falling back to exchangeADUs");
+                    appState.unaryOnly.set(true);
+                }
+            }
             var appData = ExchangeADUsRequest.newBuilder()
                     .setClientId(clientId)
                     .setLastADUIdReceived(sendFolder.getLastADUIdAdded(clientId, appId));
@@ -212,5 +234,8 @@ public class BundleServerAduDeliverer implements ServerApplicationDataManager.Ad
                     Executor executor,
                     HashSet<String> pendingClients,
                     String addr,
-                    ServiceAdapterServiceGrpc.ServiceAdapterServiceBlockingStub stub) {}
+                    ServiceAdapterServiceGrpc.ServiceAdapterServiceBlockingStub stub,
+                    ServiceAdapterServiceGrpc.ServiceAdapterServiceStub asyncStub,
+                    // set once we find out the adapter only supports exchangeADUs
+                    AtomicBoolean unaryOnly) {}
 }
@@ -3,20 +3,23 @@ package net.discdd.server.applicationdatamanager;
 import net.discdd.model.ADU;
 import net.discdd.server.config.BundleServerConfig;
 import net.discdd.server.repository.BundleMetadataRepository;
-import net.discdd.server.repository.ClientBundleCountersRepository;
+import net.discdd.server.repository.ClientStateStore;
 import net.discdd.server.repository.RegisteredAppAdapterRepository;
-import net.discdd.server.repository.SentAduDetailsRepository;
 import net.discdd.server.repository.entity.BundleMetadata;
 import net.discdd.server.repository.entity.ClientBundleCounters;
 import net.discdd.server.repository.entity.SentAduDetails;
+import net.discdd.utils.ReceivedPayload;
 import net.discdd.utils.StoreADUs;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -24,6 +27,7 @@ import java.util.function.Predicate;
 import java.util.logging.Logger;
 
 import static java.util.logging.Level.INFO;
+import static java.util.logging.Level.WARNING;
 
 @Service
 public class ServerApplicationDataManager {
@@ -33,24 +37,21 @@ public class ServerApplicationDataManager {
     // the App ID must be explicitly included when collecting ADUs to send to the client.
     static final String BUNDLE_CLIENT_APP_ID = "net.discdd.bundleclient";
     private final BundleServerConfig bundleServerConfig;
-    private final SentAduDetailsRepository sentAduDetailsRepository;
+    private final ClientStateStore clientStateStore;
     private final BundleMetadataRepository bundleMetadataRepository;
     private final RegisteredAppAdapterRepository registeredAppAdapterRepository;
-    private final ClientBundleCountersRepository clientBundleCountersRepository;
     AduDeliveredListener aduDeliveredListener;
     private final StoreADUs receiveADUsStorage;
     private final StoreADUs sendADUsStorage;
 
     public ServerApplicationDataManager(AduStores aduStores,
                                         AduDeliveredListener aduDeliveredListener,
-                                        SentAduDetailsRepository sentAduDetailsRepository,
+                                        ClientStateStore clientStateStore,
                                         BundleMetadataRepository bundleMetadataRepository,
                                         RegisteredAppAdapterRepository registeredAppAdapterRepository,
-                                        ClientBundleCountersRepository clientBundleCountersRepository,
                                         BundleServerConfig bundleServerConfig) {
         this.aduDeliveredListener = aduDeliveredListener;
-        this.clientBundleCountersRepository = clientBundleCountersRepository;
-        this.sentAduDetailsRepository = sentAduDetailsRepository;
+        this.clientStateStore = clientStateStore;
         this.bundleMetadataRepository = bundleMetadataRepository;
         this.bundleServerConfig = bundleServerConfig;
         this.registeredAppAdapterRepository = registeredAppAdapterRepository;
@@ -71,19 +72,21 @@ public class ServerApplicationDataManager {
             return;
         }
 
-        List<SentAduDetails> sentAduDetailsList = this.sentAduDetailsRepository.findByBundleId(bundleId);
+        try (var unitOfWork = clientStateStore.begin()) {
+            var clientState = unitOfWork.get(clientId);
+            for (SentAduDetails sentAduDetails : clientState.getSentAduDetails(bundleId)) {
+                String appId = sentAduDetails.appId;
+                Long lastAduIdForAppId = sentAduDetails.aduIdRangeEnd;
+                sendADUsStorage.deleteAllFilesUpTo(clientId, appId, lastAduIdForAppId);
+                logger.log(INFO,
+                           "[DataStoreAdaptor] Deleted ADUs for application " + appId + " with id upto " +
+                                   lastAduIdForAppId);
+            }
 
-        for (SentAduDetails sentAduDetails : sentAduDetailsList) {
-            String appId = sentAduDetails.appId;
-            Long lastAduIdForAppId = sentAduDetails.aduIdRangeEnd;
-            sendADUsStorage.deleteAllFilesUpTo(clientId, appId, lastAduIdForAppId);
-            logger.log(INFO,
-                       "[DataStoreAdaptor] Deleted ADUs for application " + appId + " with id upto " +
-                               lastAduIdForAppId);
+            clientState.deleteSentAduDetails(bundleId);
+            unitOfWork.commit();
         }
 
-        sentAduDetailsRepository.deleteByBundleId(bundleId);
-
         logger.log(INFO,
                    "[StateManager] Processed acknowledgement and deleted bundle id " + bundleId +
                            " corresponding to client " + clientId);
@@ -108,26 +111,79 @@ public class ServerApplicationDataManager {
         aduDeliveredListener.onAduDelivered(clientId, affectedAppIds);
     }
 
-    private void updateLastReceivedCounter(String clientId, long receivedBundleCounter, String receivedBundleId) {
-        var counters = getBundleCountersForClient(clientId);
-        if (counters.lastReceivedBundleCounter < receivedBundleCounter) {
-            counters.lastReceivedBundleCounter = receivedBundleCounter;
-            counters.lastReceivedBundleId = receivedBundleId;
-            clientBundleCountersRepository.save(counters);
+    /**
+     * The ADUs of a received payload that {@link #writeReceivedADUs} put in the receive store.
+     *
+     * @param aduCount       how many ADUs the payload carried
+     * @param affectedAppIds the apps that got ADUs they didn't have yet
+     */
+    public record ReceivedAdus(int aduCount, Set<String> affectedAppIds) {}
+
+    /**
+     * Stores the ADUs of a received payload straight from the payload jar, without extracting them first.
+     * As with the list version, the received counter is only advanced if the payload carried ADUs.
+     */
+    public void storeReceivedADUs(String clientId, String bundleId, long receivedBundleCounter, ReceivedPayload payload)
+            throws IOException {
+        registerReceivedADUs(clientId, bundleId, receivedBundleCounter, writeReceivedADUs(clientId, payload));
+    }
+
+    /**
+     * Write the ADUs of a received payload to the receive store without registering the bundle, so that it can be
+     * done outside of a unit of work. Writing them again, if registering fails, stores the same files.
+     */
+    public ReceivedAdus writeReceivedADUs(String clientId, ReceivedPayload payload) throws IOException {
+        logger.log(INFO, "[ApplicationDataManager] Store ADUs");
+
+        var affectedAppIds = new HashSet<String>();
+        int aduCount = payload.forEachAdu((appId, aduId, data) -> {
+            var addedFile = receiveADUsStorage.addADU(clientId, appId, data, aduId);
+            if (addedFile != null) affectedAppIds.add(appId);
+        });
+        return new ReceivedAdus(aduCount, affectedAppIds);
+    }
+
+    /**
+     * Advance the received counter of clientId for ADUs written by {@link #writeReceivedADUs}. The service adapters
+     * are told about the ADUs once the counter is committed.
+     */
+    public void registerReceivedADUs(String clientId, String bundleId, long receivedBundleCounter,
+                                     ReceivedAdus received) {
+        if (received.aduCount() == 0) {
+            return;
+        }
+        updateLastReceivedCounter(clientId, receivedBundleCounter, bundleId);
+        logger.log(INFO, "[StateManager] Registered bundle identifier: " + bundleId + " of client " + clientId);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    aduDeliveredListener.onAduDelivered(clientId, received.affectedAppIds());
+                }
+            });
+        } else {
+            aduDeliveredListener.onAduDelivered(clientId, received.affectedAppIds());
         }
     }
 
-    public ClientBundleCounters getBundleCountersForClient(String clientId) {
-        return clientBundleCountersRepository.findById(clientId)
-                .orElse(new ClientBundleCounters(clientId, 0, "", 0, ""));
+    private void updateLastReceivedCounter(String clientId, long receivedBundleCounter, String receivedBundleId) {
+        try (var unitOfWork = clientStateStore.begin()) {
+            var clientState = unitOfWork.get(clientId);
+            var counters = clientState.getCounters();
+            if (counters.lastReceivedBundleCounter < receivedBundleCounter) {
+                counters.lastReceivedBundleCounter = receivedBundleCounter;
+                counters.lastReceivedBundleId = receivedBundleId;
+                clientState.countersChanged();
+            }
+            unitOfWork.commit();
+        }
     }
 
-    private void updateLastSentCounter(String clientId, long sentBundleCounter, String sentBundleId) {
-        var counters = getBundleCountersForClient(clientId);
-        if (counters.lastSentBundleCounter < sentBundleCounter) {
-            counters.lastSentBundleCounter = sentBundleCounter;
-            counters.lastSentBundleId = sentBundleId;
-            clientBundleCountersRepository.save(counters);
+    public ClientBundleCounters getBundleCountersForClient(String clientId) {
+        try (var unitOfWork = clientStateStore.begin()) {
+            var counters = unitOfWork.get(clientId).getCounters();
+            unitOfWork.commit();
+            return counters;
         }
     }
 
@@ -145,41 +201,100 @@ public class ServerApplicationDataManager {
         }
     }
 
+    /**
+     * The ADUs for the next bundle of a client, picked by {@link #selectADUsToSend} but not recorded as sent yet.
+     *
+     * @param drainedGenerations the generation of each app whose ADUs all fit, as of before they were listed
+     */
+    public record SelectedAdus(List<ADU> adus, Map<String, Long> drainedGenerations) {}
+
     public List<ADU> fetchADUsToSend(String bundleId, long bundleCounter, long initialSize, String clientId) throws
             IOException {
+        return recordADUsToSend(clientId, bundleId, bundleCounter, selectADUsToSend(clientId, initialSize));
+    }
+
+    /**
+     * Pick the ADUs of clientId that fit in a bundle without changing anything, so the caller can look at them
+     * before deciding on a new bundle. {@link #recordADUsToSend} then records them as sent in that bundle.
+     */
+    public SelectedAdus selectADUsToSend(String clientId, long initialSize) throws IOException {
         List<ADU> adusToSend = new ArrayList<>();
 
         final long dataSizeLimit = this.bundleServerConfig.getApplicationDataManager().getAppDataSizeLimit();
         var sizeLimiter = new SizeLimiter(dataSizeLimit - initialSize);
+        var drainedGenerations = new HashMap<String, Long>();
         for (String appId : this.getRegisteredAppIds()) {
-            var sentAdus = new SentAduDetails();
-            sentAdus.appId = appId;
-            sentAdus.bundleId = bundleId;
-            sentAdus.ClientBundleCounter = bundleCounter;
-            sendADUsStorage.getADUs(clientId, appId).takeWhile(a -> sizeLimiter.test(a.getSize())).peek(adu -> {
-                if (adu.getADUId() > sentAdus.aduIdRangeEnd) {
-                    sentAdus.aduIdRangeEnd = adu.getADUId();
-                }
-                if (adu.getADUId() < sentAdus.aduIdRangeStart || sentAdus.aduIdRangeStart == 0) {
-                    sentAdus.aduIdRangeStart = adu.getADUId();
-                }
-            }).forEach(adusToSend::add);
-            if (sentAdus.aduIdRangeEnd > 0) {
-                sentAduDetailsRepository.save(sentAdus);
+            long generation = sendADUsStorage.getGeneration(clientId, appId);
+            sendADUsStorage.getADUs(clientId, appId)
+                    .takeWhile(a -> sizeLimiter.test(a.getSize()))
+                    .forEach(adusToSend::add);
+            // an app whose ADUs didn't all fit still has something new for the next bundle
+            if (sizeLimiter.remaining >= 0) {
+                drainedGenerations.put(appId, generation);
             }
         }
-        return adusToSend;
+        return new SelectedAdus(adusToSend, drainedGenerations);
+    }
+
+    public List<ADU> recordADUsToSend(String clientId, String bundleId, long bundleCounter, SelectedAdus selected) {
+        var sentAdusByApp = new LinkedHashMap<String, SentAduDetails>();
+        for (var adu : selected.adus()) {
+            var sentAdus = sentAdusByApp.computeIfAbsent(adu.getAppId(), appId -> {
+                var details = new SentAduDetails();
+                details.appId = appId;
+                details.bundleId = bundleId;
+                details.ClientBundleCounter = bundleCounter;
+                return details;
+            });
+            if (adu.getADUId() > sentAdus.aduIdRangeEnd) {
+                sentAdus.aduIdRangeEnd = adu.getADUId();
+            }
+            if (adu.getADUId() < sentAdus.aduIdRangeStart || sentAdus.aduIdRangeStart == 0) {
+                sentAdus.aduIdRangeStart = adu.getADUId();
+            }
+        }
+        try (var unitOfWork = clientStateStore.begin()) {
+            var clientState = unitOfWork.get(clientId);
+            sentAdusByApp.values().forEach(clientState::addSentAduDetails);
+            // if the bundle isn't registered after all, the ADUs are still new
+            if (TransactionSynchronizationManager.isSynchronizationActive()) {
+                TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                    @Override
+                    public void afterCommit() {
+                        markClean(clientId, selected.drainedGenerations());
+                    }
+                });
+            } else {
+                markClean(clientId, selected.drainedGenerations());
+            }
+            unitOfWork.commit();
+        }
+        return selected.adus();
+    }
+
+    private void markClean(String clientId, Map<String, Long> generations) {
+        generations.forEach((appId, generation) -> {
+            try {
+                sendADUsStorage.markClean(clientId, appId, generation);
+            } catch (IOException e) {
+                logger.log(WARNING, "Failed to mark ADUs of " + clientId + ":" + appId + " as sent", e);
+            }
+        });
     }
 
     /**
      * Generate a new bundle and return the newly generated encrypted bundleId.
      */
     public void registerNewBundleId(String clientId, String encryptedBundleId, long bundleCounter, long ackCounter) {
-        var counters = getBundleCountersForClient(clientId);
-        counters.lastSentBundleId = encryptedBundleId;
-        counters.lastSentBundleCounter = bundleCounter;
-        clientBundleCountersRepository.save(counters);
-        bundleMetadataRepository.save(new BundleMetadata(encryptedBundleId, bundleCounter, clientId, ackCounter));
+        try (var unitOfWork = clientStateStore.begin()) {
+            var clientState = unitOfWork.get(clientId);
+            var counters = clientState.getCounters();
+            counters.lastSentBundleId = encryptedBundleId;
+            counters.lastSentBundleCounter = bundleCounter;
+            clientState.countersChanged();
+            bundleMetadataRepository.save(new BundleMetadata(encryptedBundleId, bundleCounter, clientId, ackCounter));
+            unitOfWork.commit();
+        }
     }
 
     /**
@@ -190,8 +305,22 @@ public class ServerApplicationDataManager {
         if (bundleMetadata.isEmpty()) {
             return true;
         }
-        var clientId = bundleMetadata.get().clientId;
-        var details = sentAduDetailsRepository.findByBundleId(lastBundleSent);
+        return newDataToSend(bundleMetadata.get().clientId, lastBundleSent);
+    }
+
+    /**
+     * Same as {@link #newDataToSend(String)} for the last bundle sent to clientId. Nothing has to be looked up unless
+     * the outgoing ADUs of the client changed since that bundle was generated.
+     */
+    public boolean newDataToSend(String clientId, String lastBundleSent) {
+        if (!sendADUsStorage.hasNewADUs(clientId)) {
+            return false;
+        }
+        List<SentAduDetails> details;
+        try (var unitOfWork = clientStateStore.begin()) {
+            details = unitOfWork.get(clientId).getSentAduDetails(lastBundleSent);
+            unitOfWork.commit();
+        }
         var lastAdus = new HashMap<String, Long>();
         details.forEach(d -> lastAdus.put(d.appId, d.aduIdRangeEnd));
         return getRegisteredAppIds().stream().anyMatch(app -> {
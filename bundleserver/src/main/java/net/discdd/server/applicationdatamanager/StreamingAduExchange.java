@@ -0,0 +1,201 @@
+package net.discdd.server.applicationdatamanager;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import net.discdd.grpc.AduAck;
+import net.discdd.grpc.AduFrame;
+import net.discdd.grpc.AduStreamEnd;
+import net.discdd.grpc.AduStreamMessage;
+import net.discdd.grpc.AduStreamStart;
+import net.discdd.grpc.ServiceAdapterServiceGrpc;
+import net.discdd.utils.StoreADUs;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.INFO;
+import static java.util.logging.Level.SEVERE;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * One streamADUs exchange with a service adapter for a client. The ADUs in the receive folder are sent in frames read
+ * straight from their files, and are deleted as the adapter acknowledges them. The ADUs the adapter sends back are
+ * stored in the send folder and acknowledged one by one, so if the exchange fails part way through, the next one only
+ * has to send what wasn't acknowledged.
+ */
+class StreamingAduExchange implements ClientResponseObserver<AduStreamMessage, AduStreamMessage> {
+    private static final Logger logger = Logger.getLogger(StreamingAduExchange.class.getName());
+    static final int ADU_FRAME_SIZE = 1024 * 1024;
+    private final String clientId;
+    private final String appId;
+    private final StoreADUs sendFolder;
+    private final StoreADUs receiveFolder;
+    private final long idleTimeoutMs;
+    private final CompletableFuture<Void> completion = new CompletableFuture<>();
+    private ClientCallStreamObserver<AduStreamMessage> requestStream;
+    private volatile long lastActivityMs;
+    // the frames of the ADU the adapter is sending, only touched by gRPC callbacks
+    private long incomingId;
+    private ByteString incoming = ByteString.EMPTY;
+    int sentCount;
+    int receivedCount;
+
+    /**
+     * @param idleTimeoutMs the exchange is cancelled if nothing is sent or received for this long
+     */
+    StreamingAduExchange(String clientId,
+                         String appId,
+                         StoreADUs sendFolder,
+                         StoreADUs receiveFolder,
+                         long idleTimeoutMs) {
+        this.clientId = clientId;
+        this.appId = appId;
+        this.sendFolder = sendFolder;
+        this.receiveFolder = receiveFolder;
+        this.idleTimeoutMs = idleTimeoutMs;
+    }
+
+    /**
+     * Run the exchange, returning when the adapter has finished it.
+     *
+     * @throws io.grpc.StatusRuntimeException with UNIMPLEMENTED if the adapter doesn't support streamADUs
+     */
+    void run(ServiceAdapterServiceGrpc.ServiceAdapterServiceStub stub) throws Exception {
+        lastActivityMs = System.currentTimeMillis();
+        stub.streamADUs(this);
+        try {
+            send(AduStreamMessage.newBuilder()
+                         .setStart(AduStreamStart.newBuilder()
+                                           .setClientId(clientId)
+                                           .setLastADUIdReceived(sendFolder.getLastADUIdAdded(clientId, appId)))
+                         .build());
+            for (var adu : receiveFolder.getAppData(clientId, appId)) {
+                long aduId = adu.getADUId();
+                long size = adu.getSize();
+                long offset = 0;
+                do {
+                    var data = receiveFolder.getADU(clientId, appId, aduId, offset, ADU_FRAME_SIZE);
+                    if (data.length == 0 && offset < size) {
+                        throw new IOException("Could only read " + offset + " of " + size + " bytes of ADU " + aduId);
+                    }
+                    offset += data.length;
+                    awaitReady();
+                    send(AduStreamMessage.newBuilder()
+                                 .setFrame(AduFrame.newBuilder()
+                                                   .setAduId(aduId)
+                                                   .setData(UnsafeByteOperations.unsafeWrap(data))
+                                                   .setLast(offset >= size))
+                                 .build());
+                } while (offset < size);
+                sentCount++;
+            }
+            send(AduStreamMessage.newBuilder().setEnd(AduStreamEnd.getDefaultInstance()).build());
+        } catch (IOException | InterruptedException e) {
+            requestStream.cancel("Failed sending ADUs", e);
+            throw e;
+        }
+        awaitCompletion();
+    }
+
+    private synchronized void send(AduStreamMessage message) {
+        requestStream.onNext(message);
+        lastActivityMs = System.currentTimeMillis();
+    }
+
+    private synchronized void awaitReady() throws Exception {
+        while (!requestStream.isReady() && !completion.isDone()) {
+            wait(idleTimeoutMs);
+            checkIdle();
+        }
+        if (completion.isCompletedExceptionally()) awaitCompletion();
+    }
+
+    private void awaitCompletion() throws Exception {
+        while (true) {
+            try {
+                completion.get(idleTimeoutMs, TimeUnit.MILLISECONDS);
+                return;
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception cause ? cause : e;
+            } catch (TimeoutException e) {
+                checkIdle();
+            }
+        }
+    }
+
+    private void checkIdle() throws TimeoutException {
+        if (System.currentTimeMillis() - lastActivityMs >= idleTimeoutMs) {
+            requestStream.cancel("No progress for " + idleTimeoutMs + " ms", null);
+            throw new TimeoutException("ADU exchange with " + appId + " for " + clientId + " stalled");
+        }
+    }
+
+    @Override
+    public void beforeStart(ClientCallStreamObserver<AduStreamMessage> requestStream) {
+        this.requestStream = requestStream;
+        requestStream.setOnReadyHandler(() -> {
+            synchronized (this) {
+                notifyAll();
+            }
+        });
+    }
+
+    @Override
+    public void onNext(AduStreamMessage message) {
+        lastActivityMs = System.currentTimeMillis();
+        switch (message.getMessageCase()) {
+            case ACK -> {
+                try {
+                    receiveFolder.deleteAllFilesUpTo(clientId, appId, message.getAck().getAduId());
+                } catch (IOException e) {
+                    logger.log(SEVERE, "Failed to delete ADUs for " + clientId + " up to " + message.getAck(), e);
+                }
+            }
+            case FRAME -> {
+                var frame = message.getFrame();
+                if (frame.getAduId() != incomingId) {
+                    incomingId = frame.getAduId();
+                    incoming = ByteString.EMPTY;
+                }
+                incoming = incoming.concat(frame.getData());
+                if (frame.getLast()) {
+                    try {
+                        sendFolder.addADU(clientId, appId, incoming.toByteArray(), incomingId);
+                    } catch (IOException e) {
+                        logger.log(SEVERE, "Failed to store ADU " + incomingId + " from " + appId, e);
+                        completion.completeExceptionally(e);
+                        requestStream.cancel("Failed to store ADU", e);
+                        return;
+                    }
+                    incoming = ByteString.EMPTY;
+                    receivedCount++;
+                    send(AduStreamMessage.newBuilder().setAck(AduAck.newBuilder().setAduId(incomingId)).build());
+                }
+            }
+            // the adapter has sent everything and we have acked it all
+            case END -> requestStream.onCompleted();
+            default -> logger.log(WARNING, "Ignoring unexpected message from " + appId + ": " + message);
+        }
+    }
+
+    @Override
+    public synchronized void onError(Throwable t) {
+        completion.completeExceptionally(t);
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void onCompleted() {
+        logger.log(INFO,
+                   "Streamed " + sentCount + " ADUs to " + appId + " for " + clientId + " and received " +
+                           receivedCount);
+        completion.complete(null);
+        notifyAll();
+    }
+}
@@ -2,55 +2,67 @@ package net.discdd.server.bundlerouting;
 
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
 import net.discdd.bundlerouting.RoutingExceptions;
+import net.discdd.bundlerouting.RoutingTable;
 import net.discdd.server.repository.ServerRoutingRepository;
 import net.discdd.server.repository.entity.ServerRouting;
-import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
 
 import static java.util.logging.Level.FINE;
-import static java.util.logging.Level.WARNING;
+import static java.util.logging.Level.INFO;
 
+/**
+ * Keeps track of the transports through which each client can be reached. The routes are stored in the
+ * serverroutingtable and kept in a {@link RoutingTable} loaded at startup, so an inventory never has to query them.
+ * The routing metadata of a received bundle is written with a single upsert of all of its routes.
+ */
 @Service
 public class BundleRouting {
     private static final Logger logger = Logger.getLogger(BundleRouting.class.getName());
+    private static final ObjectMapper mapper = new ObjectMapper();
     private final String METADATAFILE = "routing.metadata";
 
-    @Autowired
-    ServerRoutingRepository serverRoutingRepository;
+    private final ServerRoutingRepository serverRoutingRepository;
+    private final JdbcTemplate jdbcTemplate;
+    private final RoutingTable routingTable = new RoutingTable();
+    private boolean mysql;
 
-    public List<String> getClientsForTransportId(String transportId) {
-        List<ServerRouting> serverRoutings = serverRoutingRepository.findByServerRoutingIdTransportID(transportId);
-        List<String> clientIDs = new ArrayList<>();
-        if (serverRoutings != null) {
-            for (ServerRouting serverRouting : serverRoutings) {
-                clientIDs.add(serverRouting.getServerRoutingId().getClientID());
-            }
-        }
-        return clientIDs;
+    public BundleRouting(ServerRoutingRepository serverRoutingRepository, JdbcTemplate jdbcTemplate) {
+        this.serverRoutingRepository = serverRoutingRepository;
+        this.jdbcTemplate = jdbcTemplate;
     }
 
-    private void updateEntry(String transportID, String clientID, long score) {
-        logger.log(FINE, String.format("Updating %s : %s mapping in serverRoutingRepository", transportID, clientID));
-        if (null == transportID) return;
-        ServerRouting serverRouting =
-                serverRoutingRepository.findByServerRoutingIdClientIDAndServerRoutingIdTransportID(clientID,
-                                                                                                   transportID);
-        if (null == serverRouting) {
-            serverRouting = new ServerRouting(transportID, clientID, String.valueOf(score));
-        } else {
-            serverRouting.setScore(String.valueOf(score));
+    @PostConstruct
+    public void load() {
+        String product = jdbcTemplate.execute((ConnectionCallback<String>) connection -> connection.getMetaData()
+                .getDatabaseProductName());
+        mysql = product != null && product.toLowerCase().contains("mysql");
+        for (ServerRouting serverRouting : serverRoutingRepository.findAll()) {
+            routingTable.put(serverRouting.getServerRoutingId().getTransportID(),
+                             serverRouting.getServerRoutingId().getClientID(),
+                             serverRouting.getScore());
         }
-        serverRoutingRepository.save(serverRouting);
-        logger.log(FINE, "Updating transport-client mapping entry in serverRoutingRepository");
+        logger.log(INFO, "Loaded " + routingTable.size() + " routes");
+    }
+
+    public List<String> getClientsForTransportId(String transportId) {
+        return routingTable.clientsFor(transportId);
     }
 
     /*
@@ -58,24 +70,70 @@ public class BundleRouting {
      */
     public void processClientMetaData(Path payloadPath, String transportID, String clientID) throws
             RoutingExceptions.ClientMetaDataFileException, SQLException {
-        logger.log(FINE, "processing client metadata, for transportId: " + transportID, ",clientID: " + clientID);
-        var clientMetaDataPath = payloadPath.resolve(METADATAFILE);
-        HashMap<String, Long> clientMap = null;
-        ObjectMapper mapper = new ObjectMapper();
+        byte[] routingData;
+        try {
+            routingData = Files.readAllBytes(payloadPath.resolve(METADATAFILE));
+        } catch (IOException e) {
+            throw new RoutingExceptions.ClientMetaDataFileException("Error Reading client metadata: " + e);
+        }
+        processClientMetaData(routingData, transportID, clientID);
+    }
+
+    /*
+     * routingData: contents of the routing metadata file of a received payload
+     */
+    public void processClientMetaData(byte[] routingData, String transportID, String clientID) throws
+            RoutingExceptions.ClientMetaDataFileException, SQLException {
+        logger.log(FINE, "processing client metadata, for transportId: " + transportID + ",clientID: " + clientID);
+        HashMap<String, Double> clientMap = null;
 
         try {
-            clientMap = mapper.readValue(clientMetaDataPath.toFile(), new TypeReference<HashMap<String, Long>>() {});
+            clientMap = mapper.readValue(routingData, new TypeReference<HashMap<String, Double>>() {});
         } catch (Exception e) {
             throw new RoutingExceptions.ClientMetaDataFileException("Error Reading client metadata: " + e);
         }
 
-        updateEntry(transportID, clientID, 0);
+        // the transport that brought the bundle gets a score of 0 unless the client scored it itself
+        var scores = new LinkedHashMap<String, Double>();
+        if (transportID != null) scores.put(transportID, 0.0);
+        if (clientMap != null) {
+            clientMap.forEach((transport, score) -> {
+                if (transport != null && score != null) scores.put(transport, score);
+            });
+        }
+        if (scores.isEmpty()) return;
+
+        upsert(clientID, scores);
+        // the table must not show routes that end up rolled back
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    routingTable.putAll(clientID, scores);
+                }
+            });
+        } else {
+            routingTable.putAll(clientID, scores);
+        }
+    }
 
-        if (clientMap != null && !clientMap.keySet().isEmpty()) {
-            for (Map.Entry<String, Long> entry : clientMap.entrySet()) {
-                updateEntry(entry.getKey(), clientID, entry.getValue());
-            }
+    /* one statement for all the routes of the client, whether they are new or not */
+    private void upsert(String clientID, Map<String, Double> scores) {
+        var sql = new StringBuilder(mysql ?
+                                    "INSERT INTO serverroutingtable (transportid, clientid, score) VALUES " :
+                                    "MERGE INTO serverroutingtable (transportid, clientid, score) " +
+                                            "KEY (transportid, clientid) VALUES ");
+        var args = new ArrayList<>(scores.size() * 3);
+        for (var entry : scores.entrySet()) {
+            if (!args.isEmpty()) sql.append(", ");
+            sql.append("(?, ?, ?)");
+            args.add(entry.getKey());
+            args.add(clientID);
+            args.add(entry.getValue());
         }
+        if (mysql) sql.append(" ON DUPLICATE KEY UPDATE score = VALUES(score)");
+        jdbcTemplate.update(sql.toString(), args.toArray());
+        logger.log(FINE, "Updated " + scores.size() + " transport-client mappings of " + clientID);
     }
 
     public void addClient(String clientId, int windowLength) {}
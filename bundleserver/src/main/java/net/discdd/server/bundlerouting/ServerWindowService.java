@@ -3,9 +3,7 @@ package net.discdd.server.bundlerouting;
 import net.discdd.bundlesecurity.BundleIDGenerator;
 import net.discdd.bundlesecurity.InvalidClientIDException;
 import net.discdd.bundlesecurity.ServerSecurity;
-import net.discdd.server.bundletransmission.ServerBundleTransmission;
-import net.discdd.server.repository.ServerWindowRepository;
-import net.discdd.server.repository.entity.ServerWindow;
+import net.discdd.server.repository.ClientStateStore;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.whispersystems.libsignal.InvalidKeyException;
@@ -19,11 +17,11 @@ import static java.util.logging.Level.FINE;
 @Service
 public class ServerWindowService {
 
-    private final ServerWindowRepository serverwindowrepo;
+    private final ClientStateStore clientStateStore;
 
     @Autowired
-    public ServerWindowService(ServerWindowRepository serverWindowRepository) {
-        this.serverwindowrepo = serverWindowRepository;
+    public ServerWindowService(ClientStateStore clientStateStore) {
+        this.clientStateStore = clientStateStore;
     }
 
     private static final Logger logger = Logger.getLogger(ServerWindowService.class.getName());
@@ -31,27 +29,30 @@ public class ServerWindowService {
     @Autowired
     ServerSecurity serverSecurity;
 
-    private ServerWindow getValueFromTable(String clientID) {
-        var window = serverwindowrepo.findByClientID(clientID);
-        return window == null ? new ServerWindow(clientID, 1, 1, ServerBundleTransmission.WINDOW_LENGTH) : window;
-    }
-
     /**
      * If a new bundle counter is generated, it will be returned, otherwise returns -currentCounter
      */
     public long generateNewBundleCounter(String clientID) {
-        var window = getValueFromTable(clientID);
-        if (window.getCurrentCounter() >= window.getStartCounter() + window.getWindowLength()) {
-            return -window.getCurrentCounter();
+        try (var unitOfWork = clientStateStore.begin()) {
+            var clientState = unitOfWork.get(clientID);
+            var window = clientState.getWindow();
+            if (window.getCurrentCounter() >= window.getStartCounter() + window.getWindowLength()) {
+                unitOfWork.commit();
+                return -window.getCurrentCounter();
+            }
+            window.setCurrentCounter(window.getCurrentCounter() + 1);
+            clientState.windowChanged();
+            unitOfWork.commit();
+            return window.getCurrentCounter();
         }
-        window.setCurrentCounter(window.getCurrentCounter() + 1);
-        serverwindowrepo.save(window);
-        return window.getCurrentCounter();
     }
 
     public boolean isWindowFull(String clientId) {
-        var window = getValueFromTable(clientId);
-        return window.getCurrentCounter() >= window.getStartCounter() + window.getWindowLength();
+        try (var unitOfWork = clientStateStore.begin()) {
+            var window = unitOfWork.get(clientId).getWindow();
+            unitOfWork.commit();
+            return window.getCurrentCounter() >= window.getStartCounter() + window.getWindowLength();
+        }
     }
 
     /* Move window ahead based on the ACK received
@@ -63,15 +64,31 @@ public class ServerWindowService {
      */
     public void processACK(String clientID, String ackedBundleID) throws GeneralSecurityException, InvalidKeyException,
             InvalidClientIDException, IOException {
-        String decryptedBundleID = null;
-        decryptedBundleID = serverSecurity.decryptBundleID(ackedBundleID, clientID);
+        advanceWindow(clientID, getAckedCounter(clientID, ackedBundleID));
+    }
+
+    /**
+     * @return the bundle counter of the encrypted bundle ID acked by clientID, without touching the window
+     */
+    public long getAckedCounter(String clientID, String ackedBundleID) throws GeneralSecurityException,
+            InvalidKeyException, InvalidClientIDException, IOException {
+        String decryptedBundleID = serverSecurity.decryptBundleID(ackedBundleID, clientID);
         logger.log(FINE, "[ServerWindow]: Decrypted Ack from file = " + decryptedBundleID);
-        long ack = BundleIDGenerator.getCounterFromBundleID(decryptedBundleID, BundleIDGenerator.DOWNSTREAM);
+        return BundleIDGenerator.getCounterFromBundleID(decryptedBundleID, BundleIDGenerator.DOWNSTREAM);
+    }
 
-        ServerWindow serverWindow = getValueFromTable(clientID);
-        if (ack > serverWindow.getStartCounter()) {
-            serverWindow.setStartCounter(ack);
-            serverwindowrepo.save(serverWindow);
+    /**
+     * Move the start of the window of clientID up to the acked bundle counter, if it is further along
+     */
+    public void advanceWindow(String clientID, long ack) {
+        try (var unitOfWork = clientStateStore.begin()) {
+            var clientState = unitOfWork.get(clientID);
+            var serverWindow = clientState.getWindow();
+            if (ack > serverWindow.getStartCounter()) {
+                serverWindow.setStartCounter(ack);
+                clientState.windowChanged();
+            }
+            unitOfWork.commit();
         }
     }
 }
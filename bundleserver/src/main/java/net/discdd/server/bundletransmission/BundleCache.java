@@ -0,0 +1,104 @@
+package net.discdd.server.bundletransmission;
+
+import net.discdd.model.ADU;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.FINE;
+
+/**
+ * Remembers what is in the encrypted bundle waiting for each client, so that a bundle with the same contents is not
+ * jarred and encrypted again. A new bundle is generated whenever there are ADUs the last one didn't have or a bundle
+ * to acknowledge, but the ADUs that fit in a bundle can be the same as before, for example when the new ADUs are past
+ * the size limit. Those requests get the waiting bundle instead.
+ *
+ * <p>A bundle is identified by the bundle it acknowledges and the range of ADUs it has of each app. Only the newest
+ * bundle of a client is kept in its send directory, so there is one entry per client, and it goes when the bundle is
+ * deleted.
+ */
+public class BundleCache {
+    private static final Logger logger = Logger.getLogger(BundleCache.class.getName());
+
+    public record AduRange(long first, long last, int count) {}
+
+    public record Key(String ackedBundleId, Map<String, AduRange> aduRanges) {}
+
+    private record Entry(Key key, String bundleId) {}
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final BiFunction<String, String, Path> bundlePath;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param bundlePath the path of the bundle file for a clientId and bundle ID
+     */
+    public BundleCache(BiFunction<String, String, Path> bundlePath) {
+        this.bundlePath = bundlePath;
+    }
+
+    public static Key key(String ackedBundleId, List<ADU> adus) {
+        var aduRanges = new HashMap<String, AduRange>();
+        for (var adu : adus) {
+            aduRanges.merge(adu.getAppId(),
+                            new AduRange(adu.getADUId(), adu.getADUId(), 1),
+                            (a, b) -> new AduRange(Math.min(a.first, b.first),
+                                                   Math.max(a.last, b.last),
+                                                   a.count + b.count));
+        }
+        return new Key(ackedBundleId, aduRanges);
+    }
+
+    /**
+     * @return the ID of the bundle of clientId with the contents of key, or null if there isn't one
+     */
+    public String get(String clientId, Key key) {
+        var entry = entries.get(clientId);
+        if (entry != null && entry.key.equals(key)) {
+            if (Files.exists(bundlePath.apply(clientId, entry.bundleId))) {
+                hits.incrementAndGet();
+                logger.log(FINE, "Reusing bundle " + entry.bundleId + " for client " + clientId);
+                return entry.bundleId;
+            }
+            entries.remove(clientId, entry);
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    public void put(String clientId, Key key, String bundleId) {
+        entries.put(clientId, new Entry(key, bundleId));
+    }
+
+    /**
+     * Forget the bundles of clientId other than bundleId, which are about to be deleted.
+     */
+    public void retain(String clientId, String bundleId) {
+        entries.computeIfPresent(clientId, (k, entry) -> entry.bundleId.equals(bundleId) ? entry : null);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the fraction of lookups that found a bundle, or 0 if there were none
+     */
+    public double getHitRate() {
+        long hits = this.hits.get();
+        long lookups = hits + misses.get();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+}
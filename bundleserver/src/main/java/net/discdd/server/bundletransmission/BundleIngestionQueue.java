@@ -0,0 +1,373 @@
+package net.discdd.server.bundletransmission;
+
+import net.discdd.grpc.BundleSenderType;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.INFO;
+import static java.util.logging.Level.SEVERE;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * Processes uploaded bundles in the background, so that an upload completes as soon as the bundle is on disk instead
+ * of after it has been decrypted and its ADUs stored.
+ *
+ * <p>An uploaded bundle is moved into the spool directory and synced, and then a small file recording who sent it is
+ * written next to it. Once that file is in place, and the directory has been synced so that both names are durable,
+ * the bundle is queued: if the server stops before the bundle has been processed, it is processed again when the
+ * queue is started, in the order the bundles arrived. Processing a bundle twice is harmless, its counter shows that it
+ * has already been received.
+ *
+ * <p>A bundle is only deleted once it has been processed. One whose processing fails is moved with its meta file to
+ * the {@value #FAILED_DIRECTORY} directory of the spool, where it stays until someone looks at it; moving both files
+ * back into the spool directory queues it again at the next start. One whose processing is interrupted by a shutdown
+ * stays spooled.
+ *
+ * <p>Bundles are processed by {@code workers} threads. The bundles of a client always go to the same thread, so they
+ * are processed in the order they arrived; a bundle processed after a later one from the same client would be
+ * dropped as already received. While {@code deferThreshold} or more bundles are waiting, {@link #shouldDeferUploads}
+ * tells transports to hold on to their bundles until the queue has caught up.
+ */
+public class BundleIngestionQueue {
+    private static final Logger logger = Logger.getLogger(BundleIngestionQueue.class.getName());
+    static final String BUNDLE_EXT = ".bundle";
+    static final String META_EXT = ".meta";
+    private static final String TMP_EXT = ".tmp";
+    static final String FAILED_DIRECTORY = "failed";
+
+    /* Works out which client a spooled bundle is from, so that its bundles are processed in order */
+    public interface ClientResolver {
+        String clientIdOf(Path bundle) throws Exception;
+    }
+
+    /* Processes a spooled bundle. The bundle is deleted if this returns, and kept if it throws */
+    public interface BundleProcessor {
+        void process(Path bundle, BundleSenderType senderType, String senderId) throws Exception;
+    }
+
+    private record Entry(long sequence, Path bundle, Path meta, BundleSenderType senderType, String senderId) {}
+
+    private final Path spoolDirectory;
+    private final int deferThreshold;
+    private final ClientResolver resolver;
+    private final BundleProcessor processor;
+    /* resolves the client of each bundle in arrival order and hands it to the worker of that client */
+    private final ExecutorService dispatcher;
+    private final ExecutorService[] workers;
+    private final AtomicLong nextSequence = new AtomicLong();
+    private final AtomicInteger depth = new AtomicInteger();
+    /* bundles whose client is not known yet, and bundles handed to a worker but not processed yet per client */
+    private final AtomicInteger undispatched = new AtomicInteger();
+    private final ConcurrentHashMap<String, Integer> queuedPerClient = new ConcurrentHashMap<>();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public BundleIngestionQueue(Path spoolDirectory,
+                                int workers,
+                                int deferThreshold,
+                                ClientResolver resolver,
+                                BundleProcessor processor) {
+        if (workers <= 0) {
+            throw new IllegalArgumentException("workers must be positive: " + workers);
+        }
+        if (deferThreshold <= 0) {
+            throw new IllegalArgumentException("deferThreshold must be positive: " + deferThreshold);
+        }
+        this.spoolDirectory = spoolDirectory;
+        this.deferThreshold = deferThreshold;
+        this.resolver = resolver;
+        this.processor = processor;
+        this.dispatcher = Executors.newSingleThreadExecutor(r -> {
+            var thread = new Thread(r, "bundle-ingest-dispatch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.workers = new ExecutorService[workers];
+        for (int i = 0; i < workers; i++) {
+            var name = "bundle-ingest-" + (i + 1);
+            this.workers[i] = Executors.newSingleThreadExecutor(r -> {
+                var thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Queue the bundles that were spooled but not processed before the last shutdown, and clean up after uploads
+     * that were being spooled when it happened.
+     */
+    public synchronized void start() throws IOException {
+        Files.createDirectories(spoolDirectory);
+        var recovered = new ArrayList<Entry>();
+        // failed bundles keep their names, new ones must not take them in case they are put back
+        long maxSequence = maxSequence(failedDirectory());
+        try (var files = Files.list(spoolDirectory)) {
+            for (var path : (Iterable<Path>) files::iterator) {
+                var name = path.getFileName().toString();
+                var sequence = sequenceOf(name);
+                if (sequence < 0) continue;
+                maxSequence = Math.max(maxSequence, sequence);
+                if (name.endsWith(META_EXT)) {
+                    try {
+                        recovered.add(readEntry(sequence, path));
+                    } catch (IOException | IllegalArgumentException e) {
+                        logger.log(WARNING, "Moving unreadable spooled bundle " + name + " to " + failedDirectory(), e);
+                        moveToFailed(sequence);
+                    }
+                } else if (name.endsWith(TMP_EXT) ||
+                        (name.endsWith(BUNDLE_EXT) && !Files.exists(metaPath(sequence)))) {
+                    // the upload was still being spooled, so it was never acknowledged and will be sent again
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+        nextSequence.set(maxSequence);
+        recovered.sort(Comparator.comparingLong(Entry::sequence));
+        if (!recovered.isEmpty()) {
+            logger.log(INFO, "Processing " + recovered.size() + " bundles spooled before the last shutdown");
+        }
+        recovered.forEach(this::enqueue);
+    }
+
+    /**
+     * Take over an uploaded bundle and queue it. When this returns the bundle is safely on disk and will be
+     * processed even if the server stops first.
+     */
+    public void submit(Path uploadedBundle, BundleSenderType senderType, String senderId) throws IOException {
+        long sequence = nextSequence.incrementAndGet();
+        var bundle = bundlePath(sequence);
+        var meta = metaPath(sequence);
+        move(uploadedBundle, bundle);
+        sync(bundle);
+        // the bundle is only part of the queue once the meta file is there, which is why it is written last
+        var tmp = spoolDirectory.resolve(meta.getFileName() + TMP_EXT);
+        Files.write(tmp,
+                    (senderType.name() + "\n" + senderId + "\n").getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        sync(tmp);
+        move(tmp, meta);
+        syncDirectory(spoolDirectory);
+        enqueue(new Entry(sequence, bundle, meta, senderType, senderId));
+    }
+
+    private void enqueue(Entry entry) {
+        depth.incrementAndGet();
+        undispatched.incrementAndGet();
+        dispatcher.execute(() -> dispatch(entry));
+    }
+
+    private void dispatch(Entry entry) {
+        String clientId;
+        try {
+            clientId = resolver.clientIdOf(entry.bundle);
+        } catch (Exception e) {
+            // it will most likely fail to process too, and will be logged then
+            logger.log(WARNING, "Couldn't find the client of spooled bundle " + entry.bundle.getFileName(), e);
+            clientId = null;
+        }
+        var shardKey = clientId == null ? entry.bundle.getFileName().toString() : clientId;
+        if (clientId != null) queuedPerClient.merge(clientId, 1, Integer::sum);
+        undispatched.decrementAndGet();
+        try {
+            final var client = clientId;
+            workers[Math.floorMod(shardKey.hashCode(), workers.length)].execute(() -> process(entry, client));
+        } catch (RejectedExecutionException e) {
+            // shutting down, it stays spooled until the next start
+            unqueue(clientId);
+        }
+    }
+
+    private void unqueue(String clientId) {
+        if (clientId != null) queuedPerClient.computeIfPresent(clientId, (id, count) -> count == 1 ? null : count - 1);
+        depth.decrementAndGet();
+    }
+
+    private void process(Entry entry, String clientId) {
+        try {
+            processor.process(entry.bundle, entry.senderType, entry.senderId);
+            processed.incrementAndGet();
+            remove(entry);
+        } catch (InterruptedException e) {
+            // shutting down, it stays spooled until the next start
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            failed.incrementAndGet();
+            logger.log(SEVERE,
+                       "[BundleTransmission] Failed to process received bundle " + entry.bundle.getFileName() +
+                               " from: " +
+                               ServerBundleTransmission.bundleSenderToString(entry.senderType, entry.senderId) +
+                               ", moving it to " + failedDirectory(),
+                       e);
+            moveToFailed(entry.sequence);
+        } finally {
+            unqueue(clientId);
+        }
+    }
+
+    private void remove(Entry entry) {
+        try {
+            Files.deleteIfExists(entry.meta);
+            Files.deleteIfExists(entry.bundle);
+        } catch (IOException e) {
+            logger.log(WARNING, "Couldn't remove spooled bundle " + entry.bundle.getFileName(), e);
+        }
+    }
+
+    private void moveToFailed(long sequence) {
+        var bundle = bundlePath(sequence);
+        var meta = metaPath(sequence);
+        try {
+            var failedDirectory = Files.createDirectories(failedDirectory());
+            // the bundle goes first: if the server stops in between, the meta file left in the spool is moved at the
+            // next start, but a bundle left without its meta file would be taken for an unfinished upload
+            if (Files.exists(bundle)) move(bundle, failedDirectory.resolve(bundle.getFileName()));
+            if (Files.exists(meta)) move(meta, failedDirectory.resolve(meta.getFileName()));
+            syncDirectory(failedDirectory);
+            syncDirectory(spoolDirectory);
+        } catch (IOException e) {
+            // what is still in the spool is processed again at the next start
+            logger.log(WARNING, "Couldn't move " + bundle.getFileName() + " to " + failedDirectory(), e);
+        }
+    }
+
+    private Path failedDirectory() {
+        return spoolDirectory.resolve(FAILED_DIRECTORY);
+    }
+
+    private static long maxSequence(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) return 0;
+        try (var files = Files.list(directory)) {
+            return files.mapToLong(path -> sequenceOf(path.getFileName().toString())).filter(seq -> seq >= 0)
+                    .max().orElse(0);
+        }
+    }
+
+    private Entry readEntry(long sequence, Path meta) throws IOException {
+        var lines = Files.readAllLines(meta, StandardCharsets.UTF_8);
+        if (lines.size() != 2) {
+            throw new IOException("Malformed " + meta.getFileName());
+        }
+        var bundle = bundlePath(sequence);
+        if (!Files.exists(bundle)) {
+            throw new IOException(bundle.getFileName() + " is missing");
+        }
+        return new Entry(sequence, bundle, meta, BundleSenderType.valueOf(lines.get(0)), lines.get(1));
+    }
+
+    private Path bundlePath(long sequence) {
+        return spoolDirectory.resolve(String.format("%016d%s", sequence, BUNDLE_EXT));
+    }
+
+    private Path metaPath(long sequence) {
+        return spoolDirectory.resolve(String.format("%016d%s", sequence, META_EXT));
+    }
+
+    /* returns -1 for files that aren't part of the queue */
+    private static long sequenceOf(String name) {
+        int dot = name.indexOf('.');
+        if (dot <= 0) return -1;
+        try {
+            return Long.parseLong(name.substring(0, dot));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void move(Path from, Path to) throws IOException {
+        try {
+            Files.move(from, to, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void sync(Path path) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    /* Makes the names moved into directory durable. Platforms that can't open a directory (Windows) skip this */
+    private static void syncDirectory(Path directory) {
+        try (var channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            logger.log(FINE, "Couldn't sync " + directory, e);
+        }
+    }
+
+    /**
+     * @return the number of bundles that are queued or being processed
+     */
+    public int getDepth() {
+        return depth.get();
+    }
+
+    /**
+     * @return true if a bundle of clientId may be queued or being processed. Bundles whose client has not been worked
+     *         out yet count for every client.
+     */
+    public boolean hasQueued(String clientId) {
+        return undispatched.get() > 0 || queuedPerClient.containsKey(clientId);
+    }
+
+    /**
+     * @return true if so many bundles are waiting that transports should not upload more for now
+     */
+    public boolean shouldDeferUploads() {
+        return depth.get() >= deferThreshold;
+    }
+
+    public long getProcessed() {
+        return processed.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Stop taking bundles. Bundles already queued are still processed unless the process exits first, in which case
+     * they are processed after the next {@link #start}.
+     */
+    public void shutdown() {
+        dispatcher.shutdown();
+        try {
+            // the dispatcher has to hand over its queue before the workers stop accepting work
+            dispatcher.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (var worker : workers) {
+            worker.shutdown();
+        }
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (var worker : workers) {
+            if (!worker.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,112 @@
+package net.discdd.server.bundletransmission;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.SEVERE;
+
+/**
+ * Generates client bundles in the background, so that a bundle inventory only has to list bundles that are already
+ * in the to-send directory instead of encrypting one for every client the transport can reach.
+ *
+ * <p>Triggers for the same client are coalesced: a client is queued at most once, and a trigger that arrives while
+ * its bundle is being generated causes exactly one more generation when that one finishes, so the last trigger is
+ * never lost. At most {@code threads} bundles are generated at a time.
+ */
+public class BundlePreGenerator {
+    private static final Logger logger = Logger.getLogger(BundlePreGenerator.class.getName());
+
+    /* Generates the bundle of a client */
+    public interface BundleGenerator {
+        void generate(String clientId) throws Exception;
+    }
+
+    private enum State {
+        QUEUED,
+        RUNNING,
+        /* running, and triggered again since it started */
+        RERUN
+    }
+
+    private final BundleGenerator generator;
+    private final ExecutorService executor;
+    private final ConcurrentHashMap<String, State> states = new ConcurrentHashMap<>();
+    private final AtomicLong generated = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public BundlePreGenerator(int threads, BundleGenerator generator) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        }
+        this.generator = generator;
+        var threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            var thread = new Thread(r, "bundle-pregen-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Ask for the bundle of clientId to be brought up to date.
+     */
+    public void trigger(String clientId) {
+        if (clientId == null) return;
+        var submit = new boolean[1];
+        states.compute(clientId, (k, state) -> {
+            if (state == null) {
+                submit[0] = true;
+                return State.QUEUED;
+            }
+            return state == State.RUNNING ? State.RERUN : state;
+        });
+        if (submit[0]) {
+            executor.execute(() -> run(clientId));
+        }
+    }
+
+    /**
+     * @return true if a generation is queued or running for clientId
+     */
+    public boolean isPending(String clientId) {
+        return states.containsKey(clientId);
+    }
+
+    private void run(String clientId) {
+        states.put(clientId, State.RUNNING);
+        try {
+            generator.generate(clientId);
+            generated.incrementAndGet();
+        } catch (Exception e) {
+            failed.incrementAndGet();
+            logger.log(SEVERE, "Failed to pre-generate bundle for client " + clientId, e);
+        }
+        var next = states.compute(clientId, (k, state) -> state == State.RERUN ? State.QUEUED : null);
+        if (next == State.QUEUED) {
+            logger.log(FINE, "Client " + clientId + " was triggered while generating, generating again");
+            executor.execute(() -> run(clientId));
+        }
+    }
+
+    public long getGenerated() {
+        return generated.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+}
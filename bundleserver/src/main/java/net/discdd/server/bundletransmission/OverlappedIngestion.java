@@ -0,0 +1,324 @@
+package net.discdd.server.bundletransmission;
+
+import com.google.protobuf.ByteString;
+import net.discdd.bundlerouting.service.BundleExchangeServiceImpl.UploadTap;
+import net.discdd.model.ReceivedBundle;
+import net.discdd.utils.BundleUtils;
+import net.discdd.utils.BundleUtils.BundleFingerprint;
+import net.discdd.utils.DDDJarFileReader;
+import net.discdd.utils.FileUtils;
+import net.discdd.utils.RingBufferPipe;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.jar.Manifest;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.INFO;
+import static java.util.logging.Level.WARNING;
+import static net.discdd.bundlesecurity.SecurityUtils.PAYLOAD_FILENAME;
+
+/**
+ * Reads uploaded bundles while they are still arriving, and processes them as soon as they are complete. The chunks
+ * of an upload are fed through a bounded in-memory pipe to a worker, which parses the bundle jar, verifies its entries
+ * and spools the encrypted payload. Once the whole upload is in and every entry has matched the manifest, the worker
+ * offers the bundle to the {@link TapProcessor}. If the bundle is the next one in its client's order, the processor
+ * claims it before the upload is acknowledged, and the worker then decrypts it and stores its ADUs straight away,
+ * without waiting for the ingestion queue to get to it. A bundle that is not claimed is left to the ingestion queue,
+ * which starts from what the worker spooled instead of reading the payload out of the bundle file again.
+ *
+ * <p>The upload is still written to its file and goes through the ingestion queue as before, so nothing depends on
+ * this: when the bundle file gets to the front of the queue, {@link #take} waits for the worker to finish with it, and
+ * a bundle the worker processed is then skipped as already received. The bundle is read from the file whenever
+ * nothing was prepared for it, after a restart, a failed upload or when all the workers were busy.
+ *
+ * <p>A prepared bundle is looked up by the manifest of the bundle file. The manifest has the digest of every entry, so
+ * a bundle is only ever matched with what was prepared from the same bytes.
+ */
+public class OverlappedIngestion {
+    private static final Logger logger = Logger.getLogger(OverlappedIngestion.class.getName());
+    // once the last chunk is in, the worker only has the tail of the jar left to read
+    private static final long COMPLETION_TIMEOUT_SECONDS = 30;
+    // a prepared bundle whose file never made it to processing is dropped eventually
+    private static final long PREPARED_EXPIRY_MS = TimeUnit.HOURS.toMillis(1);
+
+    public record PreparedBundle(Path directory,
+                                 ReceivedBundle receivedBundle,
+                                 BundleFingerprint fingerprint,
+                                 long size) {}
+
+    /**
+     * Decides whether the bundle of a completed upload is processed by the worker that read it.
+     */
+    public interface TapProcessor {
+        /**
+         * Called once the whole upload has arrived and been verified, before the upload is acknowledged, so it must
+         * be quick.
+         *
+         * @return what processes the bundle, or null to leave it to the ingestion queue
+         */
+        TappedBundle claim(PreparedBundle bundle, String senderId) throws Exception;
+    }
+
+    /**
+     * A claimed bundle. It is always processed, on the thread that claimed it.
+     */
+    public interface TappedBundle {
+        void process() throws Exception;
+    }
+
+    /* done is counted down once the worker is finished with the bundle, until then it is the worker's */
+    private record Prepared(PreparedBundle bundle, Manifest manifest, long preparedAt, CountDownLatch done) {}
+
+    private final Path workDirectory;
+    private final TapProcessor processor;
+    private final Semaphore workers;
+    private final ExecutorService executor;
+    private final ConcurrentHashMap<Manifest, Prepared> prepared = new ConcurrentHashMap<>();
+    private final Random random = new Random();
+    private final AtomicLong tapped = new AtomicLong();
+    private final AtomicLong used = new AtomicLong();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * Prepares uploaded bundles for the ingestion queue, without processing any of them.
+     */
+    public OverlappedIngestion(Path workDirectory, int workers) {
+        this(workDirectory, workers, null);
+    }
+
+    /**
+     * @param workDirectory where the payloads of the bundles are spooled to, each in a directory of its own
+     * @param workers       the number of uploads that can be read at the same time
+     * @param processor     processes the bundles it claims as soon as their upload is complete, may be null
+     */
+    public OverlappedIngestion(Path workDirectory, int workers, TapProcessor processor) {
+        if (workers <= 0) {
+            throw new IllegalArgumentException("workers must be positive: " + workers);
+        }
+        this.workDirectory = workDirectory;
+        this.processor = processor;
+        this.workers = new Semaphore(workers);
+        var threadNumber = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(workers, r -> {
+            var thread = new Thread(r, "bundle-overlapped-ingest-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Start reading an upload as it arrives.
+     *
+     * @param senderId who is uploading the bundle, for the {@link TapProcessor}
+     * @return the tap that gets the chunks of the upload, or null if all the workers are busy and the upload is only
+     *         read once it is complete
+     */
+    public UploadTap tap(String senderId) {
+        if (!workers.tryAcquire()) {
+            logger.log(FINE, "No worker free to read an upload as it arrives");
+            return null;
+        }
+        expire();
+        tapped.incrementAndGet();
+        try {
+            return new Tap(senderId);
+        } catch (RuntimeException e) {
+            workers.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Take what was prepared for a bundle file, waiting for the worker if it is still processing the bundle. The
+     * caller gets the directory of the prepared bundle and must delete it when done.
+     *
+     * @return the prepared bundle, or null if nothing was prepared from the same bytes
+     */
+    public PreparedBundle take(Path bundle) throws IOException, InterruptedException {
+        if (prepared.isEmpty()) return null;
+        Prepared entry;
+        try (var bundleReader = new DDDJarFileReader(bundle)) {
+            entry = prepared.remove(bundleReader.getManifest());
+        }
+        if (entry == null) return null;
+        entry.done.await();
+        used.incrementAndGet();
+        return entry.bundle;
+    }
+
+    /**
+     * @return the number of uploads that were read as they arrived
+     */
+    public long getTapped() {
+        return tapped.get();
+    }
+
+    /**
+     * @return the number of bundles whose processing started from what was prepared during the upload
+     */
+    public long getUsed() {
+        return used.get();
+    }
+
+    /**
+     * @return the number of bundles that were processed by the worker that read them
+     */
+    public long getProcessed() {
+        return processed.get();
+    }
+
+    /**
+     * @return the number of uploads that broke off or could not be read as they arrived
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+        prepared.values().forEach(entry -> FileUtils.recursiveDelete(entry.bundle.directory()));
+        prepared.clear();
+    }
+
+    private void expire() {
+        long cutoff = System.currentTimeMillis() - PREPARED_EXPIRY_MS;
+        prepared.values().removeIf(entry -> {
+            if (entry.preparedAt >= cutoff || entry.done.getCount() > 0) return false;
+            FileUtils.recursiveDelete(entry.bundle.directory());
+            return true;
+        });
+    }
+
+    private class Tap implements UploadTap {
+        private final RingBufferPipe pipe = new RingBufferPipe();
+        private final String senderId;
+        // completes once the bundle is in prepared, or the worker has given up on it
+        private final CompletableFuture<Void> registered = new CompletableFuture<>();
+        // guarded by this, a bundle of an upload that broke off is not kept
+        private boolean aborted;
+        // only written by the thread of the upload, and only read once the pipe has ended
+        private volatile long size;
+
+        Tap(String senderId) {
+            this.senderId = senderId;
+            executor.execute(this::prepare);
+        }
+
+        private void prepare() {
+            Path directory = workDirectory.resolve(Long.toHexString(random.nextLong()));
+            Prepared entry;
+            TappedBundle tapped = null;
+            try (InputStream is = pipe.getInputStream()) {
+                Files.createDirectories(directory);
+                var streamedBundle = BundleUtils.readReceivedBundle(is, directory.resolve(PAYLOAD_FILENAME));
+                // the central directory follows the manifest, the upload must not find the pipe closed. the pipe only
+                // ends once complete() has been called, so the whole upload is in its file after this
+                byte[] buffer = new byte[8192];
+                while (is.read(buffer) != -1) {
+                    // nothing more to read out of it
+                }
+                var receivedBundle = streamedBundle.receivedBundle();
+                var preparedBundle = new PreparedBundle(directory,
+                                                        receivedBundle,
+                                                        BundleUtils.getBundleFingerprint(receivedBundle.bundleId(),
+                                                                                         streamedBundle.manifest()),
+                                                        size);
+                entry = new Prepared(preparedBundle,
+                                     streamedBundle.manifest(),
+                                     System.currentTimeMillis(),
+                                     new CountDownLatch(1));
+                synchronized (this) {
+                    if (aborted) throw new IOException("Upload broke off");
+                    // the same bundle uploaded twice at once, the first copy will do
+                    if (prepared.putIfAbsent(entry.manifest, entry) != null) {
+                        throw new IOException("Already prepared from another upload");
+                    }
+                    tapped = claim(preparedBundle);
+                }
+            } catch (IOException | RuntimeException e) {
+                FileUtils.recursiveDelete(directory);
+                workers.release();
+                registered.completeExceptionally(e);
+                return;
+            }
+            registered.complete(null);
+            try {
+                if (tapped != null) {
+                    tapped.process();
+                    processed.incrementAndGet();
+                    // nothing in it is needed any more, delete it before it is written back to disk
+                    FileUtils.recursiveDelete(directory);
+                }
+            } catch (Exception e) {
+                // the ingestion queue processes it from what is left in the directory
+                logger.log(WARNING, "Could not process " + directory + " as soon as it was uploaded", e);
+            } finally {
+                entry.done.countDown();
+                workers.release();
+            }
+        }
+
+        private TappedBundle claim(PreparedBundle preparedBundle) {
+            if (processor == null) return null;
+            try {
+                return processor.claim(preparedBundle, senderId);
+            } catch (Exception e) {
+                logger.log(INFO, "Leaving " + preparedBundle.directory() + " to the ingestion queue", e);
+                return null;
+            }
+        }
+
+        @Override
+        public void write(ByteString chunk) throws IOException {
+            chunk.writeTo(pipe.getOutputStream());
+            size += chunk.size();
+        }
+
+        @Override
+        public void complete() {
+            try {
+                pipe.getOutputStream().close();
+                registered.get(COMPLETION_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (IOException e) {
+                logger.log(WARNING, "Could not finish the tap of an upload, it will be read from its file", e);
+                abort();
+            } catch (ExecutionException e) {
+                failed.incrementAndGet();
+                logger.log(INFO, "Could not read upload as it arrived, it will be read from its file", e.getCause());
+            } catch (TimeoutException e) {
+                logger.log(WARNING, "Reading upload as it arrived did not finish, it will be read from its file");
+                abort();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                abort();
+            }
+        }
+
+        @Override
+        public void abort() {
+            synchronized (this) {
+                aborted = true;
+            }
+            failed.incrementAndGet();
+            // the worker fails once it has read up to here, and cleans up after itself
+            pipe.fail(new IOException("Upload broke off"));
+        }
+    }
+}
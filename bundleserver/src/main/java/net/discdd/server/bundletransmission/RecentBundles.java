@@ -0,0 +1,164 @@
+package net.discdd.server.bundletransmission;
+
+import net.discdd.utils.BundleUtils.BundleFingerprint;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.FINE;
+
+/**
+ * The bundles that were received from clients recently, so that another copy of one can be turned away before it is
+ * uploaded, extracted and decrypted. Several transports often carry the same bundle of a client, and only the first
+ * copy to arrive is of any use.
+ *
+ * <p>Bundles are known by their ID and by the digest of their encrypted payload. The last {@code capacity} bundles
+ * are kept in an exact set, and only that set can turn a bundle away. Every lookup goes through a bloom filter first,
+ * which answers for the bundles that were never seen, the common case, without taking the lock of the set. A bundle
+ * that is no longer in the set is simply received and processed again, which the bundle counters catch as before.
+ */
+public class RecentBundles {
+    private static final Logger logger = Logger.getLogger(RecentBundles.class.getName());
+    private static final String ID_PREFIX = "id:";
+    private static final String DIGEST_PREFIX = "digest:";
+
+    private final int maxKeys;
+    // the size of the bundle of each ID and payload digest, oldest first
+    private final LinkedHashMap<String, Long> sizes;
+    private volatile BloomFilter bloomFilter;
+    private int addedSinceRebuild;
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong savedBytes = new AtomicLong();
+
+    public RecentBundles(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        // an ID and a digest for each bundle
+        this.maxKeys = 2 * capacity;
+        this.sizes = new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > maxKeys;
+            }
+        };
+        this.bloomFilter = new BloomFilter(maxKeys);
+    }
+
+    /**
+     * @return true if a bundle with bundleId was received recently. It is counted as a rejected duplicate.
+     */
+    public boolean wasReceived(String bundleId) {
+        return wasReceived(ID_PREFIX + bundleId, null);
+    }
+
+    /**
+     * @return true if a bundle with the ID or payload digest of fingerprint was received recently. It is counted as a
+     *         rejected duplicate.
+     */
+    public boolean wasReceived(BundleFingerprint fingerprint) {
+        return wasReceived(ID_PREFIX + fingerprint.bundleId(),
+                           fingerprint.payloadDigest() == null ? null : DIGEST_PREFIX + fingerprint.payloadDigest());
+    }
+
+    private boolean wasReceived(String idKey, String digestKey) {
+        var filter = bloomFilter;
+        if (!filter.mightContain(idKey) && (digestKey == null || !filter.mightContain(digestKey))) return false;
+        Long size;
+        synchronized (this) {
+            size = sizes.get(idKey);
+            if (size == null && digestKey != null) size = sizes.get(digestKey);
+        }
+        if (size == null) return false;
+        rejected.incrementAndGet();
+        savedBytes.addAndGet(size);
+        logger.log(FINE, "Turning away " + idKey + " which was already received");
+        return true;
+    }
+
+    /**
+     * Remember a bundle that was received, or found to be older than the last one received from its client.
+     */
+    public void add(BundleFingerprint fingerprint, long size) {
+        var idKey = ID_PREFIX + fingerprint.bundleId();
+        var digestKey = fingerprint.payloadDigest() == null ? null : DIGEST_PREFIX + fingerprint.payloadDigest();
+        synchronized (this) {
+            sizes.put(idKey, size);
+            bloomFilter.add(idKey);
+            if (digestKey != null) {
+                sizes.put(digestKey, size);
+                bloomFilter.add(digestKey);
+            }
+            // the filter keeps everything that was ever added, so it is rebuilt from the set once the set has turned
+            // over, before it fills up with bundles that are gone
+            addedSinceRebuild++;
+            if (addedSinceRebuild > maxKeys) {
+                var rebuilt = new BloomFilter(maxKeys);
+                sizes.keySet().forEach(rebuilt::add);
+                bloomFilter = rebuilt;
+                addedSinceRebuild = 0;
+            }
+        }
+    }
+
+    /**
+     * @return the number of duplicate bundles that were turned away
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return the bytes of the duplicate bundles that were turned away, which didn't have to be uploaded or processed
+     */
+    public long getSavedBytes() {
+        return savedBytes.get();
+    }
+
+    /* about 1% false positives at the expected number of keys */
+    static class BloomFilter {
+        private static final int BITS_PER_KEY = 10;
+        private static final int HASHES = 7;
+        private final AtomicLongArray bits;
+        private final long bitCount;
+
+        BloomFilter(int expectedKeys) {
+            int words = Math.max(1, (int) (((long) expectedKeys * BITS_PER_KEY + 63) / 64));
+            this.bits = new AtomicLongArray(words);
+            this.bitCount = (long) words * 64;
+        }
+
+        void add(String key) {
+            int h1 = key.hashCode();
+            int h2 = mix(h1);
+            for (int i = 0; i < HASHES; i++) {
+                long bit = Math.floorMod(h1 + (long) i * h2, bitCount);
+                long mask = 1L << (bit & 63);
+                bits.getAndAccumulate((int) (bit >>> 6), mask, (a, b) -> a | b);
+            }
+        }
+
+        boolean mightContain(String key) {
+            int h1 = key.hashCode();
+            int h2 = mix(h1);
+            for (int i = 0; i < HASHES; i++) {
+                long bit = Math.floorMod(h1 + (long) i * h2, bitCount);
+                if ((bits.get((int) (bit >>> 6)) & (1L << (bit & 63))) == 0) return false;
+            }
+            return true;
+        }
+
+        /* the finalizer of murmur3, so the second hash doesn't follow the first */
+        private static int mix(int h) {
+            h ^= h >>> 16;
+            h *= 0x85ebca6b;
+            h ^= h >>> 13;
+            h *= 0xc2b2ae35;
+            h ^= h >>> 16;
+            return h | 1;
+        }
+    }
+}
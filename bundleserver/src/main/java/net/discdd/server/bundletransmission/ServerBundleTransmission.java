@@ -2,6 +2,7 @@ package net.discdd.server.bundletransmission;
 
 import com.google.protobuf.ByteString;
 import net.discdd.bundlerouting.RoutingExceptions.ClientMetaDataFileException;
+import net.discdd.bundlerouting.service.BundleExchangeServiceImpl.UploadTap;
 import net.discdd.bundlesecurity.BundleIDGenerator;
 import net.discdd.bundlesecurity.DDDPEMEncoder;
 import net.discdd.bundlesecurity.InvalidClientIDException;
@@ -11,58 +12,69 @@ import net.discdd.grpc.BundleSenderType;
 import net.discdd.grpc.GetRecencyBlobResponse;
 import net.discdd.grpc.RecencyBlob;
 import net.discdd.grpc.RecencyBlobStatus;
+import net.discdd.model.ADU;
 import net.discdd.model.Bundle;
-import net.discdd.model.Payload;
-import net.discdd.model.UncompressedBundle;
-import net.discdd.model.UncompressedPayload;
+import net.discdd.model.ReceivedBundle;
+import net.discdd.server.applicationdatamanager.AduStores;
 import net.discdd.server.applicationdatamanager.ServerApplicationDataManager;
 import net.discdd.server.bundlerouting.BundleRouting;
 import net.discdd.server.bundlerouting.ServerWindowService;
 import net.discdd.server.bundlesecurity.ServerBundleSecurity;
 import net.discdd.server.config.BundleServerConfig;
+import net.discdd.server.repository.ClientStateStore;
 import net.discdd.server.repository.entity.ClientBundleCounters;
 import net.discdd.utils.BundleUtils;
+import net.discdd.utils.CompressionPolicies;
+import net.discdd.utils.DDDJarFileReader;
 import net.discdd.utils.FileUtils;
-import org.springframework.scheduling.annotation.Async;
-import org.springframework.scheduling.annotation.EnableAsync;
+import net.discdd.utils.KeyedLocks;
+import net.discdd.utils.ReceivedPayload;
+import net.discdd.utils.RingBufferPipe;
+import net.discdd.utils.StoreADUs;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
 import org.whispersystems.libsignal.InvalidKeyException;
 import org.whispersystems.libsignal.InvalidMessageException;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.File;
 import java.io.IOException;
-import java.io.PipedInputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
 import java.util.logging.Logger;
 
 import static java.util.logging.Level.FINE;
 import static java.util.logging.Level.INFO;
 import static java.util.logging.Level.SEVERE;
 import static java.util.logging.Level.WARNING;
+import static net.discdd.bundlesecurity.SecurityUtils.DECRYPTED_FILE_EXT;
+import static net.discdd.bundlesecurity.SecurityUtils.PAYLOAD_FILENAME;
 import static net.discdd.bundlesecurity.SecurityUtils.generateID;
 import static net.discdd.grpc.BundleSenderType.CLIENT;
 
-@EnableAsync
 @Service
 public class ServerBundleTransmission {
 
     private static final Logger logger = Logger.getLogger(ServerBundleTransmission.class.getName());
-    private final ExecutorService executorService = Executors.newCachedThreadPool();
+    private final ExecutorService executorService =
+            BundleUtils.newPayloadExecutor(Runtime.getRuntime().availableProcessors());
     public static final int WINDOW_LENGTH = 3;
     private final BundleServerConfig config;
     private final ServerBundleSecurity bundleSecurity;
@@ -70,6 +82,23 @@ public class ServerBundleTransmission {
     private final BundleRouting bundleRouting;
     private final ServerWindowService serverWindowService;
     private final ServerSecurity serverSecurity;
+    private final StoreADUs sendADUsStorage;
+    private final ClientStateStore clientStateStore;
+    private static final int GENERATION_LOCK_STRIPES = 64;
+    // a client's bundle must not be generated by two threads at once, they would both register a new bundle ID. a
+    // received bundle of the client is registered under the same lock, so neither writes over the other's counters
+    private final Object[] generationLocks = new Object[GENERATION_LOCK_STRIPES];
+    private final BundlePreGenerator preGenerator;
+    private final BundleCache bundleCache;
+    private final RecentBundles recentBundles;
+    private final BundleIngestionQueue ingestionQueue;
+    // null when uploads are only read once they have completed
+    private final OverlappedIngestion overlappedIngestion;
+    // the received bundles of a client are ingested one at a time, whether by the ingestion queue or by the tap of
+    // their upload, so that they are registered in the order they arrived
+    private final KeyedLocks<String> ingestionLocks = new KeyedLocks<>();
+    private final BiConsumer<String, String> aduAdditionListener;
+    private final CompressionPolicies compressionPolicies;
     SecureRandom secureRandom = new SecureRandom();
 
     public ServerBundleTransmission(ServerBundleSecurity bundleSecurity,
@@ -77,13 +106,105 @@ public class ServerBundleTransmission {
                                     BundleRouting bundleRouting,
                                     BundleServerConfig config,
                                     ServerWindowService serverWindowService,
-                                    ServerSecurity serverSecurity) {
+                                    ServerSecurity serverSecurity,
+                                    AduStores aduStores,
+                                    ClientStateStore clientStateStore,
+                                    @Value("${bundle-server.bundle-transmission.pregeneration-threads:4}")
+                                    int preGenerationThreads,
+                                    @Value("${bundle-server.bundle-transmission.ingestion-threads:4}")
+                                    int ingestionThreads,
+                                    @Value("${bundle-server.bundle-transmission.ingestion-defer-threshold:64}")
+                                    int ingestionDeferThreshold,
+                                    @Value("${bundle-server.bundle-transmission.compression-policies:#{null}}")
+                                    Path compressionPoliciesDir,
+                                    @Value("${bundle-server.bundle-transmission.recent-bundles:10000}")
+                                    int recentBundlesCapacity,
+                                    @Value("${bundle-server.bundle-transmission.overlapped-ingestion-threads:4}")
+                                    int overlappedIngestionThreads) throws IOException {
         this.config = config;
+        this.compressionPolicies = CompressionPolicies.load(compressionPoliciesDir);
         this.bundleSecurity = bundleSecurity;
         this.applicationDataManager = applicationDataManager;
         this.bundleRouting = bundleRouting;
         this.serverWindowService = serverWindowService;
         this.serverSecurity = serverSecurity;
+        this.sendADUsStorage = aduStores.getSendADUsStorage();
+        this.clientStateStore = clientStateStore;
+        for (int i = 0; i < generationLocks.length; i++) {
+            generationLocks[i] = new Object();
+        }
+        this.preGenerator = new BundlePreGenerator(preGenerationThreads, this::generateBundleForClient);
+        this.bundleCache = new BundleCache(this::getPathForBundleToSend);
+        this.recentBundles = new RecentBundles(recentBundlesCapacity);
+        this.aduAdditionListener = (clientId, appId) -> preGenerator.trigger(clientId);
+        this.ingestionQueue = new BundleIngestionQueue(getPathForBundleReceiveDirectory().resolve("queue"),
+                                                       ingestionThreads,
+                                                       ingestionDeferThreshold,
+                                                       this::clientIdOfReceivedBundle,
+                                                       (bundle, senderType, senderId) -> processReceivedBundle(
+                                                               senderType,
+                                                               senderId,
+                                                               new Bundle(bundle.toFile())));
+        this.overlappedIngestion = overlappedIngestionThreads <= 0 ? null : new OverlappedIngestion(
+                config.getBundleTransmission().getReceivedProcessingDirectory(),
+                overlappedIngestionThreads,
+                this::claimTappedBundle);
+    }
+
+    @PostConstruct
+    public void startIngestion() throws IOException {
+        ingestionQueue.start();
+    }
+
+    @PreDestroy
+    public void stopIngestion() {
+        ingestionQueue.shutdown();
+        if (overlappedIngestion != null) overlappedIngestion.shutdown();
+    }
+
+    @PostConstruct
+    public void startPreGeneration() {
+        sendADUsStorage.clientAdditionListeners.add(aduAdditionListener);
+        // bring the bundles of clients that have data waiting up to date, ADUs may have arrived while we were down
+        sendADUsStorage.getAllClientApps()
+                .map(StoreADUs.ClientApp::clientId)
+                .distinct()
+                .forEach(preGenerator::trigger);
+    }
+
+    @PreDestroy
+    public void stopPreGeneration() {
+        sendADUsStorage.clientAdditionListeners.remove(aduAdditionListener);
+        preGenerator.shutdown();
+    }
+
+    public BundlePreGenerator getPreGenerator() {
+        return preGenerator;
+    }
+
+    public BundleCache getBundleCache() {
+        return bundleCache;
+    }
+
+    /**
+     * @return the bundles received recently, which transports don't need to upload again
+     */
+    public RecentBundles getRecentBundles() {
+        return recentBundles;
+    }
+
+    /**
+     * @return what reads uploads as they arrive, or null if uploads are only read once they have completed
+     */
+    public OverlappedIngestion getOverlappedIngestion() {
+        return overlappedIngestion;
+    }
+
+    /**
+     * @return a tap that reads an upload from senderId as it arrives, or null if it is only read once it has completed
+     */
+    public UploadTap tapUpload(String senderId) {
+        return overlappedIngestion == null ? null : overlappedIngestion.tap(senderId);
     }
 
     public static String bundleSenderToString(BundleSenderType senderType, String senderId) {
@@ -96,8 +217,6 @@ public class ServerBundleTransmission {
         return Long.toHexString(random.nextLong());
     }
 
-    @Async
-    @Transactional
     public void processReceivedBundle(BundleSenderType senderType, String senderId, Bundle bundle) throws Exception {
         logger.log(INFO,
                    "Processing received bundle: " + bundle.getSource().getName() + " from " +
@@ -105,87 +224,209 @@ public class ServerBundleTransmission {
         if (!bundle.getSource().exists() || bundle.getSource().length() == 0) {
             return;
         }
-
-        Path bundleRecvProcDir =
-                this.config.getBundleTransmission().getReceivedProcessingDirectory().resolve(nextRandomString());
+        // the bundle may have been read while it was being uploaded. it is taken first, so that what was read is
+        // cleaned up below whatever happens to the bundle
+        var prepared = overlappedIngestion == null ? null : overlappedIngestion.take(bundle.getSource().toPath());
+        Path bundleRecvProcDir = prepared != null ? prepared.directory() :
+                                 this.config.getBundleTransmission()
+                                         .getReceivedProcessingDirectory()
+                                         .resolve(nextRandomString());
         try {
-            Files.createDirectories(bundleRecvProcDir);
-
-            UncompressedBundle uncompressedBundle = BundleUtils.extractBundle(bundle, bundleRecvProcDir);
-            String serverIdReceived =
-                    generateID(uncompressedBundle.getSource().toPath().resolve(SecurityUtils.SERVER_IDENTITY_KEY));
-            if (!bundleSecurity.bundleServerIdMatchesCurrentServer(serverIdReceived)) {
-                logger.log(WARNING,
-                           "Received bundle's serverIdentity didn't match with current server, " +
-                                   "ignoring bundle with bundleId: " + uncompressedBundle.getBundleId());
+            // another transport may have brought the same bundle, which is cheap to spot before anything is decrypted.
+            // so is a bundle that was processed by the tap of its upload
+            var fingerprint = BundleUtils.readBundleFingerprint(bundle.getSource().toPath());
+            if (recentBundles.wasReceived(fingerprint)) {
+                logger.log(INFO,
+                           "[BundleTransmission] Skipping bundle " + fingerprint.bundleId() + " already received");
                 return;
             }
+            long bundleSize = bundle.getSource().length();
 
-            String clientIdBase64 = DDDPEMEncoder.decodeEncryptedPublicKeyfromFile(serverSecurity.getSigningKey(),
-                                                                                   uncompressedBundle.getSource()
-                                                                                           .toPath()
-                                                                                           .resolve(SecurityUtils.CLIENT_IDENTITY_KEY));
-            String clientId = generateID(clientIdBase64);
-            var counters = this.applicationDataManager.getBundleCountersForClient(clientId);
+            Files.createDirectories(bundleRecvProcDir);
 
-            var receivedBundleCounter =
-                    this.bundleSecurity.getCounterFromBundlePath(uncompressedBundle.getSource().toPath(),
-                                                                 BundleIDGenerator.UPSTREAM);
+            ReceivedBundle receivedBundle = prepared != null ? prepared.receivedBundle() :
+                                            BundleUtils.readReceivedBundle(bundle,
+                                                                           bundleRecvProcDir.resolve(PAYLOAD_FILENAME));
+            var origin = getBundleOrigin(receivedBundle);
+            if (origin == null) return;
 
-            if (receivedBundleCounter <= counters.lastReceivedBundleCounter) {
+            boolean ingested;
+            try (var ignored = ingestionLocks.lock(origin.clientId())) {
+                ingested = ingestReceivedBundle(senderId, receivedBundle, origin, bundleRecvProcDir);
+            }
+            if (!ingested) {
                 logger.log(WARNING,
                            "[BundleTransmission] Skipping bundle " + bundle.getSource().getName() +
                                    " already received");
-                return;
             }
+            recentBundles.add(fingerprint, bundleSize);
+            // the next bundle for the client carries the new ACK and no longer needs the ADUs the client acked
+            if (ingested) preGenerator.trigger(origin.clientId());
+        } finally {
+            // not created yet if the bundle was turned away before it was read
+            if (Files.exists(bundleRecvProcDir)) FileUtils.recursiveDelete(bundleRecvProcDir);
+        }
+    }
 
-            Payload payload = this.bundleSecurity.decryptPayload(uncompressedBundle);
-            if (payload == null) {
-                throw new Exception("Payload is null");
-            }
+    /* The client a received bundle is from, and the counter of the bundle */
+    private record BundleOrigin(String clientId, long bundleCounter) {}
+
+    /* returns null if the bundle is for another server */
+    private BundleOrigin getBundleOrigin(ReceivedBundle receivedBundle) throws Exception {
+        String serverIdReceived = generateID(DDDPEMEncoder.decodePublicKey(receivedBundle.serverIdentityKey(),
+                                                                           SecurityUtils.SERVER_IDENTITY_KEY));
+        if (!bundleSecurity.bundleServerIdMatchesCurrentServer(serverIdReceived)) {
+            logger.log(WARNING,
+                       "Received bundle's serverIdentity didn't match with current server, " +
+                               "ignoring bundle with bundleId: " + receivedBundle.bundleId());
+            return null;
+        }
 
-            UncompressedPayload uncompressedPayload =
-                    BundleUtils.extractPayload(payload, uncompressedBundle.getSource().toPath());
-            logger.log(FINE, "[BundleTransmission] extracted payload from uncompressed bundle");
+        String clientIdBase64 = DDDPEMEncoder.decodeEncryptedPublicKey(serverSecurity.getSigningKey(),
+                                                                       receivedBundle.encryptedClientIdentityKey(),
+                                                                       SecurityUtils.CLIENT_IDENTITY_KEY);
+        return new BundleOrigin(generateID(clientIdBase64),
+                                this.bundleSecurity.getCounterFromBundleId(receivedBundle.bundleId(),
+                                                                           clientIdBase64,
+                                                                           BundleIDGenerator.UPSTREAM));
+    }
 
-            if (!"HB".equals(uncompressedPayload.getAckRecord().getBundleId())) {
-                this.serverWindowService.processACK(clientId, uncompressedPayload.getAckRecord().getBundleId());
+    /**
+     * Decrypt a received bundle into bundleRecvProcDir, store its ADUs and register it, unless a bundle of the client
+     * with the same or a later counter has been received already. The caller holds the client's ingestion lock.
+     *
+     * @return false if the bundle had already been received
+     */
+    private boolean ingestReceivedBundle(String senderId,
+                                         ReceivedBundle receivedBundle,
+                                         BundleOrigin origin,
+                                         Path bundleRecvProcDir) throws Exception {
+        var clientId = origin.clientId();
+        var lastReceivedBundleCounter =
+                this.applicationDataManager.getBundleCountersForClient(clientId).lastReceivedBundleCounter;
+        if (origin.bundleCounter() <= lastReceivedBundleCounter) {
+            return false;
+        }
+
+        Path decryptedPayload = bundleRecvProcDir.resolve(PAYLOAD_FILENAME + DECRYPTED_FILE_EXT);
+        // the tap of the upload may have decrypted it before it failed, and the session has moved past the payload
+        // since, so it can't be decrypted again
+        if (Files.notExists(decryptedPayload)) {
+            try {
+                if (!this.bundleSecurity.decryptPayload(clientId, receivedBundle, decryptedPayload)) {
+                    throw new Exception("Payload is null");
+                }
+            } catch (Exception e) {
+                Files.deleteIfExists(decryptedPayload);
+                throw e;
             }
+        }
+
+        try (var payload = new ReceivedPayload(decryptedPayload, compressionPolicies)) {
+            logger.log(FINE, "[BundleTransmission] opened payload of received bundle");
+            String ackedBundleId = payload.getAcknowledgement();
+            boolean heartbeat = "HB".equals(ackedBundleId);
+            long ackedBundleCounter = heartbeat ? 0 : this.serverWindowService.getAckedCounter(clientId, ackedBundleId);
 
             try {
-                this.bundleRouting.processClientMetaData(uncompressedPayload.getSource().toPath(), senderId, clientId);
+                byte[] routingData = payload.getRoutingMetadata();
+                if (routingData == null) {
+                    throw new ClientMetaDataFileException("No routing metadata in payload");
+                }
+                this.bundleRouting.processClientMetaData(routingData, senderId, clientId);
             } catch (ClientMetaDataFileException | SQLException e) {
                 // TODO Auto-generated catch block
                 e.printStackTrace();
             }
 
-            this.applicationDataManager.processAcknowledgement(clientId,
-                                                               uncompressedPayload.getAckRecord().getBundleId());
-            if (!uncompressedPayload.getADUs().isEmpty()) {
-                this.applicationDataManager.storeReceivedADUs(clientId,
-                                                              uncompressedPayload.getBundleId(),
-                                                              receivedBundleCounter,
-                                                              uncompressedPayload.getADUs());
+            // the ADUs are written before the bundle is registered. if registering fails, the bundle is processed
+            // again and the same ADUs are written again
+            var receivedAdus = this.applicationDataManager.writeReceivedADUs(clientId, payload);
+
+            // generation writes the same counters and window, it must not work from a copy read before these changes
+            // are committed
+            synchronized (generationLock(clientId)) {
+                this.applicationDataManager.processAcknowledgement(clientId, ackedBundleId);
+                // only the database is touched while the unit of work is open
+                try (var unitOfWork = clientStateStore.begin()) {
+                    if (!heartbeat) {
+                        this.serverWindowService.advanceWindow(clientId, ackedBundleCounter);
+                    }
+                    this.applicationDataManager.registerReceivedADUs(clientId,
+                                                                     receivedBundle.bundleId(),
+                                                                     origin.bundleCounter(),
+                                                                     receivedAdus);
+                    unitOfWork.commit();
+                }
             }
-        } finally {
-            FileUtils.recursiveDelete(bundleRecvProcDir);
         }
+        return true;
     }
 
+    /**
+     * Claims the bundle of a completed upload for the tap that read it, if it is the next one of its client: none of
+     * the client's earlier bundles are waiting in the ingestion queue, and no other bundle of the client is being
+     * ingested. The claim holds the client's ingestion lock until the bundle has been processed, so the ingestion
+     * queue can't overtake it.
+     */
+    private OverlappedIngestion.TappedBundle claimTappedBundle(OverlappedIngestion.PreparedBundle prepared,
+                                                               String senderId) throws Exception {
+        if (recentBundles.wasReceived(prepared.fingerprint())) return null;
+        var origin = getBundleOrigin(prepared.receivedBundle());
+        if (origin == null || ingestionQueue.hasQueued(origin.clientId())) return null;
+        var lock = ingestionLocks.tryLock(origin.clientId());
+        if (lock == null) return null;
+        return () -> {
+            try (lock) {
+                boolean ingested =
+                        ingestReceivedBundle(senderId, prepared.receivedBundle(), origin, prepared.directory());
+                recentBundles.add(prepared.fingerprint(), prepared.size());
+                if (ingested) preGenerator.trigger(origin.clientId());
+            }
+        };
+    }
+
+    /**
+     * Hand a completely uploaded bundle to the ingestion queue, which takes over the file. The bundle is processed in
+     * the background.
+     */
     public void processBundleFile(File bundleFile, BundleSenderType senderType, String senderId) {
-        Bundle bundle = new Bundle(bundleFile);
         try {
-            this.processReceivedBundle(senderType, senderId, bundle);
-        } catch (Exception e) {
+            ingestionQueue.submit(bundleFile.toPath(), senderType, senderId);
+        } catch (IOException e) {
             logger.log(SEVERE,
-                       "[BundleTransmission] Failed to process received bundle from: " +
+                       "[BundleTransmission] Failed to queue received bundle from: " +
                                bundleSenderToString(senderType, senderId),
                        e);
-        } finally {
-            FileUtils.recursiveDelete(bundle.getSource().toPath());
+            FileUtils.recursiveDelete(bundleFile.toPath());
+        }
+    }
+
+    /* reads just the client identity key, so that the ingestion queue can keep the bundles of a client in order */
+    private String clientIdOfReceivedBundle(Path bundle) throws Exception {
+        try (var bundleReader = new DDDJarFileReader(bundle)) {
+            byte[] clientIdentityKey = bundleReader.readEntry(SecurityUtils.CLIENT_IDENTITY_KEY);
+            if (clientIdentityKey == null) {
+                return null;
+            }
+            return generateID(DDDPEMEncoder.decodeEncryptedPublicKey(serverSecurity.getSigningKey(),
+                                                                     clientIdentityKey,
+                                                                     SecurityUtils.CLIENT_IDENTITY_KEY));
         }
     }
 
+    public BundleIngestionQueue getIngestionQueue() {
+        return ingestionQueue;
+    }
+
+    /**
+     * @return true if received bundles are piling up faster than they can be processed, and transports should keep
+     *         their bundles until the next exchange
+     */
+    public boolean shouldDeferUploads() {
+        return ingestionQueue.shouldDeferUploads();
+    }
+
     public String generateBundleId(String clientId) {
         if (this.serverWindowService.generateNewBundleCounter(clientId) <= 0) {
             logger.log(INFO, "Server's window is full for the client " + clientId);
@@ -195,57 +436,106 @@ public class ServerBundleTransmission {
 
     public String generateBundleForClient(String clientId) throws InvalidClientIDException, GeneralSecurityException,
             InvalidKeyException, IOException {
+        synchronized (generationLock(clientId)) {
+            return generateBundleForClientLocked(clientId);
+        }
+    }
+
+    private Object generationLock(String clientId) {
+        return generationLocks[Math.floorMod(clientId.hashCode(), generationLocks.length)];
+    }
+
+    private String generateBundleForClientLocked(String clientId) throws InvalidClientIDException,
+            GeneralSecurityException, InvalidKeyException, IOException {
         logger.log(INFO, "[BundleTransmission] Processing bundle generation request for client " + clientId);
 
-        ClientBundleCounters bundleCountersForClient = this.applicationDataManager.getBundleCountersForClient(clientId);
-        if (this.serverWindowService.isWindowFull(clientId)) {
-            logger.log(INFO,
-                       "Server's window is full for the client " + clientId + " returning last sent bundle ID " +
-                               bundleCountersForClient.lastSentBundleId);
-            return bundleCountersForClient.lastSentBundleId;
-        }
+        ClientBundleCounters counts;
+        String encryptedBundleId;
+        List<ADU> adus;
+        BundleCache.Key bundleKey;
+        // the bookkeeping for the bundle is read once and written together, the encryption happens outside of it
+        try (var unitOfWork = clientStateStore.begin()) {
+            counts = unitOfWork.get(clientId).getCounters();
+            if (this.serverWindowService.isWindowFull(clientId)) {
+                logger.log(INFO,
+                           "Server's window is full for the client " + clientId + " returning last sent bundle ID " +
+                                   counts.lastSentBundleId);
+                return counts.lastSentBundleId;
+            }
 
-        var counts = bundleCountersForClient;
-        if (counts.lastSentBundleCounter > 0 && !applicationDataManager.newDataToSend(counts.lastSentBundleId) &&
-                !applicationDataManager.newAckNeeded(counts.lastSentBundleId)) {
-            // Nothing new to send, so lets send the last bundle again.
-            return counts.lastSentBundleId;
-        }
+            if (counts.lastSentBundleCounter > 0 && !applicationDataManager.newDataToSend(clientId, counts.lastSentBundleId) &&
+                    !applicationDataManager.newAckNeeded(counts.lastSentBundleId)) {
+                // Nothing new to send, so lets send the last bundle again.
+                return counts.lastSentBundleId;
+            }
+
+            // the ADUs that fit can be the same as in the waiting bundle, which makes a new one a waste
+            var selectedAdus = applicationDataManager.selectADUsToSend(clientId, 0);
+            bundleKey = BundleCache.key(counts.lastReceivedBundleId, selectedAdus.adus());
+            var cachedBundleId = bundleCache.get(clientId, bundleKey);
+            if (cachedBundleId != null) {
+                logger.log(INFO,
+                           "Client " + clientId + " already has a bundle with the same contents: " + cachedBundleId);
+                return cachedBundleId;
+            }
 
-        var bundleCounter = counts.lastSentBundleCounter + 1;
-        var encryptedBundleId =
-                serverSecurity.createEncryptedBundleId(clientId, bundleCounter, BundleIDGenerator.DOWNSTREAM);
-        long ackedRecievedBundle = counts.lastReceivedBundleCounter;
-        applicationDataManager.registerNewBundleId(clientId, encryptedBundleId, bundleCounter, ackedRecievedBundle);
+            var bundleCounter = counts.lastSentBundleCounter + 1;
+            encryptedBundleId =
+                    serverSecurity.createEncryptedBundleId(clientId, bundleCounter, BundleIDGenerator.DOWNSTREAM);
+            long ackedRecievedBundle = counts.lastReceivedBundleCounter;
+            applicationDataManager.registerNewBundleId(clientId, encryptedBundleId, bundleCounter, ackedRecievedBundle);
 
-        var adus = applicationDataManager.fetchADUsToSend(encryptedBundleId, bundleCounter, 0, clientId);
-        PipedInputStream pipedInputStream = new PipedInputStream();
-        Future<?> future =
-                BundleUtils.runFuture(executorService, counts.lastReceivedBundleId, null, adus, null, pipedInputStream);
+            adus = applicationDataManager.recordADUsToSend(clientId, encryptedBundleId, bundleCounter, selectedAdus);
+            unitOfWork.commit();
+        }
+        // the waiting bundle is not the last one sent anymore, even if this one fails
+        bundleCache.retain(clientId, encryptedBundleId);
+        var payloadPipe = new RingBufferPipe();
+        Future<?> future = BundleUtils.runFuture(executorService,
+                                                 counts.lastReceivedBundleId,
+                                                 null,
+                                                 adus,
+                                                 null,
+                                                 compressionPolicies,
+                                                 payloadPipe);
         Files.createDirectories(getClientSendDirectory(clientId));
+        var bundlePath = getPathForBundleToSend(clientId, encryptedBundleId);
+        // the bundle is written outside the send directory and moved in once complete, so that an inventory never
+        // lists a partially written bundle
+        var partialBundleDirectory = config.getBundleTransmission().getEncryptedPayloadDirectory();
+        Files.createDirectories(partialBundleDirectory);
+        var partialBundlePath = partialBundleDirectory.resolve(encryptedBundleId);
+        BundleUtils.Encrypter encrypter =
+                (inputStream, outputStream) -> serverSecurity.encrypt(clientId, inputStream, outputStream);
         try {
-            var bundleOutputStream = Files.newOutputStream(getPathForBundleToSend(clientId, encryptedBundleId),
-                                                           StandardOpenOption.CREATE,
-                                                           StandardOpenOption.TRUNCATE_EXISTING);
-            BundleUtils.encryptPayloadAndCreateBundle((inputStream, outputStream) -> serverSecurity.encrypt(clientId,
-                                                                                                            inputStream,
-                                                                                                            outputStream),
-                                                      serverSecurity.getClientIdentityPublicKey(clientId),
-                                                      serverSecurity.getClientBaseKey(clientId),
-                                                      serverSecurity.getIdentityPublicKey().getPublicKey(),
-                                                      encryptedBundleId,
-                                                      pipedInputStream,
-                                                      bundleOutputStream);
-
-        } catch (InvalidMessageException e) {
-            throw new GeneralSecurityException(e);
+            try (var bundleOutputStream = Files.newOutputStream(partialBundlePath,
+                                                                StandardOpenOption.CREATE,
+                                                                StandardOpenOption.TRUNCATE_EXISTING)) {
+                BundleUtils.encryptPayloadAndCreateBundle(encrypter,
+                                                          serverSecurity.getClientIdentityPublicKey(clientId),
+                                                          serverSecurity.getClientBaseKey(clientId),
+                                                          serverSecurity.getIdentityPublicKey().getPublicKey(),
+                                                          encryptedBundleId,
+                                                          payloadPipe.getInputStream(),
+                                                          bundleOutputStream);
+            } catch (InvalidMessageException e) {
+                throw new GeneralSecurityException(e);
+            } finally {
+                payloadPipe.getInputStream().close();
+                future.cancel(true);
+            }
+            Files.move(partialBundlePath,
+                       bundlePath,
+                       StandardCopyOption.ATOMIC_MOVE,
+                       StandardCopyOption.REPLACE_EXISTING);
         } finally {
-            future.cancel(true);
+            // only left behind if the bundle couldn't be created
+            Files.deleteIfExists(partialBundlePath);
         }
+        bundleCache.put(clientId, bundleKey, encryptedBundleId);
         cleanupOldBundles(clientId, encryptedBundleId);
         logger.log(INFO,
-                   "Bundle generated for client " + clientId + " with ID: " + encryptedBundleId + " in " +
-                           getPathForBundleToSend(clientId, encryptedBundleId));
+                   "Bundle generated for client " + clientId + " with ID: " + encryptedBundleId + " in " + bundlePath);
         return encryptedBundleId;
     }
 
@@ -286,7 +576,20 @@ public class ServerBundleTransmission {
         return config.getBundleTransmission().getToSendDirectory().resolve(encryptedBundleId);
     }
 
+    /**
+     * @return the ID of the bundle waiting in the client's send directory, or null if there is none
+     */
+    private String readyBundleForClient(String clientId) {
+        var files = getClientSendDirectory(clientId).toFile().listFiles();
+        if (files == null || files.length == 0) {
+            return null;
+        }
+        // there can briefly be two, between a new bundle being moved into place and the old one being deleted
+        return Arrays.stream(files).max(Comparator.comparingLong(File::lastModified)).get().getName();
+    }
+
     private void cleanupOldBundles(String clientId, String currentBundleId) {
+        bundleCache.retain(clientId, currentBundleId);
         var clientDir = getClientSendDirectory(clientId);
         var files = clientDir.toFile().listFiles();
         if (files != null) {
@@ -307,6 +610,13 @@ public class ServerBundleTransmission {
         return config.getBundleTransmission().getBundleReceivedLocation();
     }
 
+    /**
+     * @return where uploads that broke off are kept until they are resumed
+     */
+    public Path getPartialUploadDirectory() {
+        return getPathForBundleReceiveDirectory().resolve("partial");
+    }
+
     public BundlesToExchange inventoryBundlesForTransmission(BundleSenderType senderType,
                                                              String senderId,
                                                              Set<String> bundleIdsPresent) {
@@ -321,6 +631,17 @@ public class ServerBundleTransmission {
         List<String> bundlesToSend = new ArrayList<>();
 
         for (String clientId : clientIds) {
+            if (CLIENT != senderType) {
+                // transports only get bundles that have already been generated in the background; a client without
+                // one gets it generated now and picked up by the next inventory
+                var readyBundle = readyBundleForClient(clientId);
+                if (readyBundle == null) {
+                    preGenerator.trigger(clientId);
+                } else {
+                    bundlesToSend.add(readyBundle);
+                }
+                continue;
+            }
             try {
                 var clientBundle = this.generateBundleForClient(clientId);
                 bundlesToSend.add(clientBundle);
@@ -0,0 +1,105 @@
+package net.discdd.server.repository;
+
+import net.discdd.server.bundletransmission.ServerBundleTransmission;
+import net.discdd.server.repository.entity.ClientBundleCounters;
+import net.discdd.server.repository.entity.SentAduDetails;
+import net.discdd.server.repository.entity.ServerWindow;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The database state of one client as seen by a {@link ClientStateStore.UnitOfWork}: its bundle counters, its server
+ * window and the ADUs sent in its bundles. Each part is loaded the first time it is asked for and then kept for the
+ * rest of the unit of work, and changes are written when the unit of work commits.
+ *
+ * <p>The entities handed out are managed, so changing a field is enough to have it written. A client that has no
+ * counters or window yet gets new ones, which are only stored if {@link #countersChanged} or {@link #windowChanged}
+ * is called.
+ */
+public class ClientState {
+    private final String clientId;
+    private final ClientStateStore store;
+    private ClientBundleCounters counters;
+    private boolean newCounters;
+    private boolean countersChanged;
+    private ServerWindow window;
+    private boolean newWindow;
+    private boolean windowChanged;
+    private final Map<String, List<SentAduDetails>> sentAduDetails = new HashMap<>();
+
+    ClientState(String clientId, ClientStateStore store) {
+        this.clientId = clientId;
+        this.store = store;
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    public ClientBundleCounters getCounters() {
+        if (counters == null) {
+            counters = store.countersRepository.findById(clientId).orElse(null);
+            if (counters == null) {
+                counters = new ClientBundleCounters(clientId, 0, "", 0, "", 0);
+                newCounters = true;
+            }
+        }
+        return counters;
+    }
+
+    public void countersChanged() {
+        countersChanged = true;
+    }
+
+    public ServerWindow getWindow() {
+        if (window == null) {
+            window = store.windowRepository.findByClientID(clientId);
+            if (window == null) {
+                window = new ServerWindow(clientId, 1, 1, ServerBundleTransmission.WINDOW_LENGTH, 0);
+                newWindow = true;
+            }
+        }
+        return window;
+    }
+
+    public void windowChanged() {
+        windowChanged = true;
+    }
+
+    /**
+     * @return the ADU ranges sent in a bundle of this client, don't modify it
+     */
+    public List<SentAduDetails> getSentAduDetails(String bundleId) {
+        return sentAduDetails.computeIfAbsent(bundleId,
+                                              id -> new ArrayList<>(store.sentAduDetailsRepository.findByBundleId(id)));
+    }
+
+    public void addSentAduDetails(SentAduDetails details) {
+        store.sentAduDetailsRepository.save(details);
+        // a bundle being generated has nothing stored yet, there is no need to look. if it is asked for later the
+        // query writes the new details before it runs
+        var loaded = sentAduDetails.get(details.bundleId);
+        if (loaded != null) loaded.add(details);
+    }
+
+    public void deleteSentAduDetails(String bundleId) {
+        var details = getSentAduDetails(bundleId);
+        store.sentAduDetailsRepository.deleteAll(details);
+        details.clear();
+    }
+
+    /* stores the counters and window of a client seen for the first time, if they were changed */
+    void persistNew() {
+        if (newCounters && countersChanged) {
+            store.entityManager.persist(counters);
+            newCounters = false;
+        }
+        if (newWindow && windowChanged) {
+            store.entityManager.persist(window);
+            newWindow = false;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package net.discdd.server.repository;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.DefaultTransactionDefinition;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Gives out the {@link ClientState} of clients within a unit of work, so that handling a bundle reads the counters,
+ * window and sent ADUs of its client once, however many steps look at them, and writes them together at the end.
+ *
+ * <pre>
+ * try (var unitOfWork = clientStateStore.begin()) {
+ *     var counters = unitOfWork.get(clientId).getCounters();
+ *     ...
+ *     unitOfWork.commit();
+ * }
+ * </pre>
+ *
+ * <p>A unit of work is a transaction. Units of work begun on a thread that already has one join it and commit with
+ * it, so that methods that do their own unit of work can be called on their own as well as from a bigger one. A unit
+ * of work that is closed without being committed is rolled back. The writes are flushed in one go on commit, where
+ * Hibernate batches the statements for the same table.
+ */
+@Component
+public class ClientStateStore {
+    final ClientBundleCountersRepository countersRepository;
+    final ServerWindowRepository windowRepository;
+    final SentAduDetailsRepository sentAduDetailsRepository;
+    private final PlatformTransactionManager transactionManager;
+    @PersistenceContext
+    EntityManager entityManager;
+    private final ThreadLocal<UnitOfWork> current = new ThreadLocal<>();
+
+    public ClientStateStore(ClientBundleCountersRepository countersRepository,
+                            ServerWindowRepository windowRepository,
+                            SentAduDetailsRepository sentAduDetailsRepository,
+                            PlatformTransactionManager transactionManager) {
+        this.countersRepository = countersRepository;
+        this.windowRepository = windowRepository;
+        this.sentAduDetailsRepository = sentAduDetailsRepository;
+        this.transactionManager = transactionManager;
+    }
+
+    /**
+     * Begin a unit of work, or join the one this thread is already in.
+     */
+    public UnitOfWork begin() {
+        var outer = current.get();
+        if (outer != null) {
+            return new UnitOfWork(outer.states, null);
+        }
+        var transaction = transactionManager.getTransaction(new DefaultTransactionDefinition());
+        var unitOfWork = new UnitOfWork(new HashMap<>(), transaction);
+        current.set(unitOfWork);
+        return unitOfWork;
+    }
+
+    public class UnitOfWork implements AutoCloseable {
+        private final Map<String, ClientState> states;
+        // null if this unit of work joined an outer one
+        private final TransactionStatus transaction;
+        private boolean done;
+
+        private UnitOfWork(Map<String, ClientState> states, TransactionStatus transaction) {
+            this.states = states;
+            this.transaction = transaction;
+        }
+
+        public ClientState get(String clientId) {
+            return states.computeIfAbsent(clientId, id -> new ClientState(id, ClientStateStore.this));
+        }
+
+        /**
+         * Write the changes made in this unit of work. A joined unit of work leaves that to the outer one.
+         */
+        public void commit() {
+            if (transaction == null || done) return;
+            done = true;
+            try {
+                states.values().forEach(ClientState::persistNew);
+                entityManager.flush();
+            } catch (RuntimeException e) {
+                current.remove();
+                transactionManager.rollback(transaction);
+                throw e;
+            }
+            current.remove();
+            transactionManager.commit(transaction);
+        }
+
+        @Override
+        public void close() {
+            if (transaction == null || done) return;
+            done = true;
+            current.remove();
+            transactionManager.rollback(transaction);
+        }
+    }
+}
@@ -2,6 +2,7 @@ package net.discdd.server.repository.entity;
 
 import jakarta.persistence.Entity;
 import jakarta.persistence.Id;
+import jakarta.persistence.Version;
 import lombok.AllArgsConstructor;
 import lombok.NoArgsConstructor;
 
@@ -15,4 +16,10 @@ public class ClientBundleCounters {
     public String lastReceivedBundleId;
     public long lastSentBundleCounter;
     public String lastSentBundleId;
+    /**
+     * bundle generation and ingestion both write the counters, a write from a stale copy fails instead of undoing the
+     * other one
+     */
+    @Version
+    public long version;
 }
@@ -19,15 +19,15 @@ public class ServerRouting {
     @EmbeddedId
     private ServerRoutingId serverRoutingId;
 
-    @Column(name = "score", columnDefinition = "VARCHAR(256)")
-    private String score;
+    @Column(name = "score", columnDefinition = "DOUBLE")
+    private double score;
 
     /**
      * this constructor is used by JPA
      */
     private ServerRouting() {}
 
-    public ServerRouting(String transportId, String clientId, String score) {
+    public ServerRouting(String transportId, String clientId, double score) {
         this.serverRoutingId = new ServerRoutingId();
         this.serverRoutingId.setTransportID(transportId);
         this.serverRoutingId.setClientID(clientId);
@@ -37,6 +37,6 @@ public class ServerRouting {
     @Override
     public String toString() {
         return "ServerRouting{" + "transportID='" + serverRoutingId.getTransportID() + '\'' + ", clientID='" +
-                serverRoutingId.getClientID() + '\'' + ", score ='" + score + '\'' + '}';
+                serverRoutingId.getClientID() + '\'' + ", score =" + score + '}';
     }
 }
@@ -4,6 +4,7 @@ import jakarta.persistence.Column;
 import jakarta.persistence.Entity;
 import jakarta.persistence.Id;
 import jakarta.persistence.Table;
+import jakarta.persistence.Version;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
@@ -29,6 +30,11 @@ public class ServerWindow {
     @Column(name = "windowLength", columnDefinition = "INTEGER")
     private int windowLength;
 
+    // a write from a stale copy of the window fails instead of undoing a newer one
+    @Version
+    @Column(name = "version")
+    private long version;
+
     @Override
     public String toString() {
         return "ServerWindow{" + "clientId='" + clientID + '\'' + ", startCounter='" + startCounter + '\'' +
@@ -13,6 +13,7 @@ import net.discdd.grpc.RecencyBlobStatus;
 import net.discdd.server.bundletransmission.ServerBundleTransmission;
 import net.discdd.tls.DDDTLSUtil;
 import net.discdd.tls.NettyServerCertificateInterceptor;
+import org.springframework.beans.factory.annotation.Value;
 import org.whispersystems.libsignal.InvalidKeyException;
 import org.whispersystems.libsignal.ecc.Curve;
 
@@ -33,8 +34,11 @@ public class BundleServerExchangeServiceImpl extends BundleExchangeServiceImpl {
     private Path downloadingFrom;
     private Path uploadingTo;
 
-    public BundleServerExchangeServiceImpl(ServerBundleTransmission bundleTransmission) {
+    public BundleServerExchangeServiceImpl(ServerBundleTransmission bundleTransmission,
+                                           @Value("${bundle-server.bundle-transmission.download-chunk-size:" +
+                                                   DEFAULT_DOWNLOAD_CHUNK_SIZE + "}") int downloadChunkSize) {
         this.bundleTransmission = bundleTransmission;
+        setDownloadChunkSize(downloadChunkSize);
     }
 
     @Override
@@ -51,6 +55,22 @@ public class BundleServerExchangeServiceImpl extends BundleExchangeServiceImpl {
         // ignore
     }
 
+    @Override
+    protected Path partialUploadDirectory() {
+        return bundleTransmission.getPartialUploadDirectory();
+    }
+
+    @Override
+    protected boolean isAlreadyReceived(BundleExchangeName bundleExchangeName) {
+        return bundleTransmission.getRecentBundles().wasReceived(bundleExchangeName.encryptedBundleId());
+    }
+
+    @Override
+    protected UploadTap tapUpload(BundleExchangeName bundleExchangeName) {
+        X509Certificate clientCert = NettyServerCertificateInterceptor.CLIENT_CERTIFICATE_KEY.get(Context.current());
+        return bundleTransmission.tapUpload(DDDTLSUtil.publicKeyToName(clientCert.getPublicKey()));
+    }
+
     @Override
     public Path pathProducer(BundleExchangeName bundleExchangeName,
                              BundleSenderType senderType,
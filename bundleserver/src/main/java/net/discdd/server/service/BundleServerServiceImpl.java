@@ -95,11 +95,28 @@ public class BundleServerServiceImpl extends BundleServerServiceGrpc.BundleServe
         } catch (Exception e) {
             logger.log(SEVERE, "Couldn't generate deletion list", e);
         }
-        BundleInventoryResponse inventoryResponse = BundleInventoryResponse.newBuilder()
+        // bundles the server already received from another transport are deleted instead of uploaded again
+        var uploadList = new ArrayList<EncryptedBundleId>();
+        for (var bundleId : request.getBundlesFromClientsOnTransportList()) {
+            if (bundleTransmission.getRecentBundles().wasReceived(bundleId.getEncryptedId())) {
+                deletionList.add(bundleId);
+            } else {
+                uploadList.add(bundleId);
+            }
+        }
+        var responseBuilder = BundleInventoryResponse.newBuilder()
                 .addAllBundlesToDelete(deletionList)
-                .addAllBundlesToDownload(downloadList)
-                .addAllBundlesToUpload(request.getBundlesFromClientsOnTransportList())
-                .build();
+                .addAllBundlesToDownload(downloadList);
+        if (bundleTransmission.shouldDeferUploads()) {
+            // received bundles are piling up, the transport keeps its bundles and offers them again next time
+            logger.log(WARNING,
+                       senderId + " asked to defer " + uploadList.size() +
+                               " uploads, " + bundleTransmission.getIngestionQueue().getDepth() + " bundles queued");
+            responseBuilder.setDeferUploads(true);
+        } else {
+            responseBuilder.addAllBundlesToUpload(uploadList);
+        }
+        BundleInventoryResponse inventoryResponse = responseBuilder.build();
         logger.info(String.format("%s to delete %s download %s upload %s",
                                   senderId,
                                   bundleListToString(inventoryResponse.getBundlesToDeleteList()),
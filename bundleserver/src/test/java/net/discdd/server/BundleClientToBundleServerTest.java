@@ -6,6 +6,7 @@ import io.grpc.StatusRuntimeException;
 import io.grpc.stub.StreamObserver;
 import net.discdd.bundlerouting.RoutingExceptions;
 import net.discdd.bundlerouting.service.BundleUploadResponseObserver;
+import net.discdd.bundlesecurity.SecurityUtils;
 import net.discdd.client.bundletransmission.ClientBundleTransmission;
 import net.discdd.grpc.AppDataUnit;
 import net.discdd.grpc.BundleChunk;
@@ -21,8 +22,11 @@ import net.discdd.grpc.PublicKeyMap;
 import net.discdd.grpc.Status;
 import net.discdd.model.Bundle;
 import net.discdd.pathutils.ClientPaths;
+import net.discdd.server.applicationdatamanager.AduStores;
 import net.discdd.server.bundletransmission.ServerBundleTransmission;
 import net.discdd.server.config.BundleServerConfig;
+import net.discdd.server.repository.BundleMetadataRepository;
+import net.discdd.server.repository.ClientBundleCountersRepository;
 import net.discdd.server.repository.SentAduDetailsRepository;
 import net.discdd.tls.DDDNettyTLS;
 import net.discdd.utils.Constants;
@@ -49,11 +53,15 @@ import java.security.GeneralSecurityException;
 import java.security.KeyPair;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
@@ -65,6 +73,7 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @SpringBootTest(classes = { BundleServerApplication.class, End2EndTest.End2EndTestInitializer.class })
@@ -89,6 +98,12 @@ public class BundleClientToBundleServerTest extends End2EndTest {
     private ServerBundleTransmission serverBundleTransmission;
     @Autowired
     private BundleServerConfig bundleServerConfig;
+    @Autowired
+    private ClientBundleCountersRepository clientBundleCountersRepository;
+    @Autowired
+    private BundleMetadataRepository bundleMetadataRepository;
+    @Autowired
+    private AduStores aduStores;
 
     @BeforeAll
     static void setUp() throws Exception {
@@ -277,6 +292,120 @@ public class BundleClientToBundleServerTest extends End2EndTest {
                     "Old bundle file should have been deleted by cleanupOldBundles()");
     }
 
+    /**
+     * Ingesting a bundle of a client while a bundle is generated for it must not undo the counters either one wrote.
+     */
+    @Test
+    void test8IngestionInterleavedWithGeneration() throws Exception {
+        final int rounds = 5;
+        var serverSendStore = aduStores.getSendADUsStorage();
+        var before = clientBundleCountersRepository.findById(clientId).orElseThrow();
+        var executor = Executors.newFixedThreadPool(2);
+        try {
+            for (int i = 0; i < rounds; i++) {
+                // both sides have something new, so the client sends a new bundle and the server generates one
+                sendStore.addADU(null, TEST_APPID, ("client-" + i).getBytes(), -1, 0, true);
+                var clientBundle = bundleTransmission.generateBundleForTransmission();
+                serverSendStore.addADU(clientId,
+                                       TEST_APPID,
+                                       ("server-" + i).getBytes(),
+                                       serverSendStore.getLastADUIdAdded(clientId, TEST_APPID) + 1);
+
+                var start = new CountDownLatch(1);
+                var ingestion = executor.submit(() -> {
+                    start.await();
+                    serverBundleTransmission.processReceivedBundle(BundleSenderType.CLIENT, clientId, clientBundle);
+                    return null;
+                });
+                var generation = executor.submit(() -> {
+                    start.await();
+                    return serverBundleTransmission.generateBundleForClient(clientId);
+                });
+                start.countDown();
+                ingestion.get(30, TimeUnit.SECONDS);
+                generation.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        var after = clientBundleCountersRepository.findById(clientId).orElseThrow();
+        assertEquals(before.lastReceivedBundleCounter + rounds, after.lastReceivedBundleCounter);
+        var sentCounters = new ArrayList<Long>();
+        bundleMetadataRepository.findAll().forEach(metadata -> {
+            if (clientId.equals(metadata.clientId)) sentCounters.add(metadata.bundleCounter);
+        });
+        assertEquals(sentCounters.size(), new HashSet<>(sentCounters).size(), "a bundle counter was used twice");
+        assertEquals(Collections.max(sentCounters), after.lastSentBundleCounter);
+        assertEquals(after.lastSentBundleCounter,
+                     bundleMetadataRepository.findById(after.lastSentBundleId).orElseThrow().bundleCounter);
+    }
+
+    /**
+     * A bundle that is corrupt when it is read as it is uploaded, and again when it is read from its file, must not
+     * leave what was read behind.
+     */
+    @Test
+    void test9CorruptTappedUploadLeavesNothing() throws Exception {
+        var bundleBytes = Files.readAllBytes(bundleTransmission.generateBundleForTransmission().getSource().toPath());
+        // the manifest at the end still matches, but the local header of the bundle ID is broken
+        bundleBytes[localHeaderOffset(bundleBytes, SecurityUtils.BUNDLEID_FILENAME)] ^= 0xff;
+        var tap = serverBundleTransmission.tapUpload(clientId);
+        assertNotNull(tap);
+        tap.write(ByteString.copyFrom(bundleBytes));
+        tap.complete();
+
+        var corruptBundle = Files.write(clientTestRoot.resolve("corrupt.bundle"), bundleBytes);
+        assertThrows(Exception.class,
+                     () -> serverBundleTransmission.processReceivedBundle(BundleSenderType.CLIENT,
+                                                                          clientId,
+                                                                          new Bundle(corruptBundle.toFile())));
+
+        var workDirectory = bundleServerConfig.getBundleTransmission().getReceivedProcessingDirectory();
+        try (var files = Files.walk(workDirectory)) {
+            assertEquals(0, files.filter(Files::isRegularFile).count());
+        }
+    }
+
+    /**
+     * The next bundle of a client is processed by the tap of its upload, and is then skipped when its file is
+     * processed.
+     */
+    @Test
+    void test9TappedBundleIsProcessedByItsTap() throws Exception {
+        var ingestion = serverBundleTransmission.getOverlappedIngestion();
+        assertNotNull(ingestion);
+        long processed = ingestion.getProcessed();
+        var before = clientBundleCountersRepository.findById(clientId).orElseThrow();
+
+        var bundle = bundleTransmission.generateBundleForTransmission();
+        var tap = serverBundleTransmission.tapUpload(clientId);
+        assertNotNull(tap);
+        tap.write(ByteString.copyFrom(Files.readAllBytes(bundle.getSource().toPath())));
+        tap.complete();
+        // waits for the tap to finish with the bundle
+        serverBundleTransmission.processReceivedBundle(BundleSenderType.CLIENT, clientId, bundle);
+
+        assertEquals(processed + 1, ingestion.getProcessed());
+        assertEquals(before.lastReceivedBundleCounter + 1,
+                     clientBundleCountersRepository.findById(clientId).orElseThrow().lastReceivedBundleCounter);
+        var workDirectory = bundleServerConfig.getBundleTransmission().getReceivedProcessingDirectory();
+        try (var files = Files.walk(workDirectory)) {
+            assertEquals(0, files.filter(Files::isRegularFile).count());
+        }
+    }
+
+    /* the offset of the local header of a jar entry, which comes before the entry's name */
+    private static int localHeaderOffset(byte[] jar, String entryName) {
+        var name = entryName.getBytes();
+        for (int i = 30; i <= jar.length - name.length; i++) {
+            if (Arrays.equals(jar, i, i + name.length, name, 0, name.length)) {
+                return i - 30;
+            }
+        }
+        throw new IllegalArgumentException(entryName + " not in jar");
+    }
+
     // send the bundle the same way the client does. we should move this code into bundle transmission so we are really
     // testing the exact code that the client is using
     private static void sendBundle() throws RoutingExceptions.ClientMetaDataFileException, IOException,
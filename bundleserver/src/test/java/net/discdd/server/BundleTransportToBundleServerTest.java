@@ -83,6 +83,7 @@ public class BundleTransportToBundleServerTest extends End2EndTest {
         if (channel != null) {
             channel.shutdownNow();
         }
+        manager.shutdown();
     }
 
     private void recursiveDelete(Path path) throws IOException {
@@ -173,11 +174,12 @@ public class BundleTransportToBundleServerTest extends End2EndTest {
         // Prepare to upload the bundles
         Method processUploadBundles = TransportToBundleServerManager.class.getDeclaredMethod("processUploadBundles",
                                                                                              List.class,
-                                                                                             BundleExchangeServiceGrpc.BundleExchangeServiceStub.class);
+                                                                                             BundleExchangeServiceGrpc.BundleExchangeServiceStub.class,
+                                                                                             BundleExchangeServiceGrpc.BundleExchangeServiceBlockingStub.class);
         processUploadBundles.setAccessible(true);
 
         // Upload all bundles
-        processUploadBundles.invoke(manager, bundlesToUpload, stub);
+        processUploadBundles.invoke(manager, bundlesToUpload, stub, blockingStub);
 
         // Check that the bundles were uploaded to server
         for (EncryptedBundleId toUpload : bundlesToUpload) {
@@ -301,9 +303,10 @@ public class BundleTransportToBundleServerTest extends End2EndTest {
         // Attempt to upload bundles
         Method processUploadBundles = TransportToBundleServerManager.class.getDeclaredMethod("processUploadBundles",
                                                                                              List.class,
-                                                                                             BundleExchangeServiceGrpc.BundleExchangeServiceStub.class);
+                                                                                             BundleExchangeServiceGrpc.BundleExchangeServiceStub.class,
+                                                                                             BundleExchangeServiceGrpc.BundleExchangeServiceBlockingStub.class);
         processUploadBundles.setAccessible(true);
-        processUploadBundles.invoke(manager, bundlesToUpload, stub);
+        processUploadBundles.invoke(manager, bundlesToUpload, stub, blockingStub);
 
         // Verify that no files were uploaded
         assertEquals(0, Files.list(toServerPath).count(), "No files should have been uploaded.");
@@ -3,9 +3,8 @@ package net.discdd.server.applicationdatamanager;
 import net.discdd.model.ADU;
 import net.discdd.server.config.BundleServerConfig;
 import net.discdd.server.repository.BundleMetadataRepository;
-import net.discdd.server.repository.ClientBundleCountersRepository;
+import net.discdd.server.repository.ClientStateStore;
 import net.discdd.server.repository.RegisteredAppAdapterRepository;
-import net.discdd.server.repository.SentAduDetailsRepository;
 import net.discdd.server.repository.entity.RegisteredAppAdapter;
 import net.discdd.server.service.GrpcExecutor;
 import net.discdd.utils.StoreADUs;
@@ -32,7 +31,7 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
  * Also, these tests use H2 database for testing
  */
 @DataJpaTest
-@Import({ GrpcExecutor.class })
+@Import({ GrpcExecutor.class, ClientStateStore.class })
 public class ApplicationDataManagerTest {
     @TempDir
     static Path tempDir;
@@ -46,11 +45,9 @@ public class ApplicationDataManagerTest {
     private RegisteredAppAdapterRepository registeredAppAdapterRepository;
     private ServerApplicationDataManager applicationDataManager;
     @Autowired
-    private SentAduDetailsRepository sentAduDetailsRepository;
+    private ClientStateStore clientStateStore;
     @Autowired
     private BundleMetadataRepository bundleMetadataRepository;
-    @Autowired
-    private ClientBundleCountersRepository clientBundleCountersRepository;
     private BundleServerConfig bundleServerConfig; // = mock(BundleServerConfig.class);
     private StoreADUs receiveADUsStorage;
     private StoreADUs sendADUsStorage;
@@ -64,10 +61,9 @@ public class ApplicationDataManagerTest {
         bundleServerConfig.getApplicationDataManager().setAppDataSizeLimit(100_000_000L);
         applicationDataManager = new ServerApplicationDataManager(new AduStores(tempRootDir),
                                                                   (a, b) -> System.out.println("hello"),
-                                                                  sentAduDetailsRepository,
+                                                                  clientStateStore,
                                                                   bundleMetadataRepository,
                                                                   registeredAppAdapterRepository,
-                                                                  clientBundleCountersRepository,
                                                                   bundleServerConfig);
         var receiveADUsStorageField = ServerApplicationDataManager.class.getDeclaredField("receiveADUsStorage");
         receiveADUsStorageField.setAccessible(true);
@@ -99,10 +95,9 @@ public class ApplicationDataManagerTest {
         cfg.getApplicationDataManager().setAppDataSizeLimit(100_000_000L);
         return new ServerApplicationDataManager(new AduStores(tempRootDir),
                                                 (a, b) -> {},
-                                                sentAduDetailsRepository,
+                                                clientStateStore,
                                                 bundleMetadataRepository,
                                                 registeredAppAdapterRepository,
-                                                clientBundleCountersRepository,
                                                 cfg);
     }
 
@@ -0,0 +1,162 @@
+package net.discdd.server.applicationdatamanager;
+
+import com.google.protobuf.ByteString;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.netty.NettyChannelBuilder;
+import io.grpc.netty.NettyServerBuilder;
+import net.discdd.grpc.AppDataUnit;
+import net.discdd.grpc.ServiceAdapterServiceGrpc;
+import net.discdd.grpc.StreamingServiceAdapter;
+import net.discdd.utils.StoreADUs;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class StreamingAduExchangeTest {
+    private static final String CLIENT_ID = "client";
+    private static final String APP_ID = "net.discdd.test";
+    @TempDir
+    Path tempDir;
+    private StoreADUs sendFolder;
+    private StoreADUs receiveFolder;
+    private StoreADUs adapterFolder;
+    private final ConcurrentHashMap<Long, byte[]> processed = new ConcurrentHashMap<>();
+    private volatile long failOnAduId = -1;
+    private Server server;
+    private ManagedChannel channel;
+
+    private class TestAdapter extends StreamingServiceAdapter {
+        @Override
+        protected void processAdu(String clientId, AppDataUnit adu) {
+            if (adu.getAduId() == failOnAduId) throw new IllegalStateException("adapter crashed");
+            processed.put(adu.getAduId(), adu.getData().toByteArray());
+        }
+
+        @Override
+        protected void adusDeliveredUpTo(String clientId, long aduId) throws IOException {
+            adapterFolder.deleteAllFilesUpTo(clientId, APP_ID, aduId);
+        }
+
+        @Override
+        protected Iterator<AppDataUnit> adusToSend(String clientId) throws IOException {
+            return adapterFolder.getADUs(clientId, APP_ID).map(adu -> {
+                try {
+                    return AppDataUnit.newBuilder()
+                            .setAduId(adu.getADUId())
+                            .setData(ByteString.copyFrom(adapterFolder.getADU(clientId, APP_ID, adu.getADUId())))
+                            .build();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).iterator();
+        }
+    }
+
+    @BeforeEach
+    void setUp() {
+        sendFolder = new StoreADUs(tempDir.resolve("send"));
+        receiveFolder = new StoreADUs(tempDir.resolve("receive"));
+        adapterFolder = new StoreADUs(tempDir.resolve("adapter"));
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        if (channel != null) channel.shutdownNow().awaitTermination(10, TimeUnit.SECONDS);
+        if (server != null) server.shutdownNow().awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    private ServiceAdapterServiceGrpc.ServiceAdapterServiceStub startAdapter(
+            ServiceAdapterServiceGrpc.ServiceAdapterServiceImplBase adapter) throws IOException {
+        server = NettyServerBuilder.forPort(0).addService(adapter).build().start();
+        channel = NettyChannelBuilder.forAddress("localhost", server.getPort()).usePlaintext().build();
+        return ServiceAdapterServiceGrpc.newStub(channel);
+    }
+
+    private static byte[] randomBytes(int size) {
+        var bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    private StreamingAduExchange newExchange() {
+        return new StreamingAduExchange(CLIENT_ID, APP_ID, sendFolder, receiveFolder, 10_000);
+    }
+
+    @Test
+    void testExchange() throws Exception {
+        // the large ADUs take several frames
+        var toAdapter = List.of(randomBytes(10), randomBytes(StreamingAduExchange.ADU_FRAME_SIZE * 5 / 2), new byte[0]);
+        for (int i = 0; i < toAdapter.size(); i++) {
+            receiveFolder.addADU(CLIENT_ID, APP_ID, toAdapter.get(i), i + 1);
+        }
+        var fromAdapter = List.of(randomBytes(StreamingServiceAdapter.ADU_FRAME_SIZE * 3), randomBytes(20));
+        for (int i = 0; i < fromAdapter.size(); i++) {
+            adapterFolder.addADU(CLIENT_ID, APP_ID, fromAdapter.get(i), i + 1);
+        }
+
+        var exchange = newExchange();
+        exchange.run(startAdapter(new TestAdapter()));
+
+        assertEquals(toAdapter.size(), exchange.sentCount);
+        assertEquals(fromAdapter.size(), exchange.receivedCount);
+        for (int i = 0; i < toAdapter.size(); i++) assertArrayEquals(toAdapter.get(i), processed.get(i + 1L));
+        for (int i = 0; i < fromAdapter.size(); i++) {
+            assertArrayEquals(fromAdapter.get(i), sendFolder.getADU(CLIENT_ID, APP_ID, i + 1L));
+        }
+        // everything was acknowledged, so it has been dropped on both sides
+        assertEquals(0, receiveFolder.getAppData(CLIENT_ID, APP_ID).size());
+        assertEquals(3, receiveFolder.getLastADUIdDeleted(CLIENT_ID, APP_ID));
+        assertEquals(0, adapterFolder.getAppData(CLIENT_ID, APP_ID).size());
+        assertEquals(2, sendFolder.getLastADUIdAdded(CLIENT_ID, APP_ID));
+
+        // so there is nothing left to exchange
+        var nextExchange = newExchange();
+        nextExchange.run(ServiceAdapterServiceGrpc.newStub(channel));
+        assertEquals(0, nextExchange.sentCount);
+        assertEquals(0, nextExchange.receivedCount);
+    }
+
+    @Test
+    void testResumeAfterFailure() throws Exception {
+        for (int i = 1; i <= 3; i++) receiveFolder.addADU(CLIENT_ID, APP_ID, randomBytes(i), i);
+        var stub = startAdapter(new TestAdapter());
+        failOnAduId = 2;
+        assertThrows(StatusRuntimeException.class, () -> newExchange().run(stub));
+        // the first ADU was acknowledged before the failure, so it won't be sent again
+        assertEquals(1, receiveFolder.getLastADUIdDeleted(CLIENT_ID, APP_ID));
+        assertEquals(2, receiveFolder.getAppData(CLIENT_ID, APP_ID).size());
+        processed.clear();
+        failOnAduId = -1;
+        var exchange = newExchange();
+        exchange.run(stub);
+        assertEquals(2, exchange.sentCount);
+        assertEquals(List.of(2L, 3L), processed.keySet().stream().sorted().toList());
+    }
+
+    @Test
+    void testUnimplementedByOlderAdapter() throws Exception {
+        receiveFolder.addADU(CLIENT_ID, APP_ID, randomBytes(10), 1);
+        var stub = startAdapter(new ServiceAdapterServiceGrpc.ServiceAdapterServiceImplBase() {});
+        var e = assertThrows(StatusRuntimeException.class, () -> newExchange().run(stub));
+        assertEquals(Status.Code.UNIMPLEMENTED, e.getStatus().getCode());
+        // nothing was acknowledged, so the ADU is still there for exchangeADUs
+        assertEquals(1, receiveFolder.getAppData(CLIENT_ID, APP_ID).size());
+    }
+}
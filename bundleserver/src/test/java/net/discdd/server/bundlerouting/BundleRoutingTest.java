@@ -0,0 +1,106 @@
+package net.discdd.server.bundlerouting;
+
+import net.discdd.bundlerouting.RoutingExceptions;
+import net.discdd.server.repository.ServerRoutingRepository;
+import net.discdd.server.service.GrpcExecutor;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * The routes of received bundles are upserted into the database and show up in the in-memory table once committed.
+ * The tests commit, so each one uses its own transports.
+ */
+@DataJpaTest
+@Import({ GrpcExecutor.class, BundleRouting.class })
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+public class BundleRoutingTest {
+    @TempDir
+    static Path tempDir;
+
+    @DynamicPropertySource
+    static void configureProperties(DynamicPropertyRegistry registry) {
+        registry.add("bundle-server.bundle-store-root", () -> tempDir.toString());
+    }
+
+    @Autowired
+    private BundleRouting bundleRouting;
+    @Autowired
+    private ServerRoutingRepository serverRoutingRepository;
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private static byte[] metadata(String json) {
+        return json.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void testRoutesAreUpserted() throws Exception {
+        bundleRouting.processClientMetaData(metadata("{\"upsert-t2\": 3, \"upsert-t3\": 0.5}"), "upsert-t1", "c1");
+        bundleRouting.processClientMetaData(metadata("{}"), "upsert-t1", "c2");
+        assertEquals(Set.of("c1", "c2"), new HashSet<>(bundleRouting.getClientsForTransportId("upsert-t1")));
+        assertEquals(List.of("c1"), bundleRouting.getClientsForTransportId("upsert-t2"));
+
+        // the client scores the transport that brought the bundle itself, and a known route gets a new score
+        bundleRouting.processClientMetaData(metadata("{\"upsert-t1\": 7, \"upsert-t2\": 1.25}"), "upsert-t1", "c1");
+        assertEquals(7, score("upsert-t1", "c1"));
+        assertEquals(1.25, score("upsert-t2", "c1"));
+        assertEquals(0.5, score("upsert-t3", "c1"));
+        assertEquals(0, score("upsert-t1", "c2"));
+        assertEquals(2, serverRoutingRepository.findByServerRoutingIdTransportID("upsert-t1").size());
+
+        // a restarted server finds the same routes
+        var restarted = new BundleRouting(serverRoutingRepository, jdbcTemplate);
+        restarted.load();
+        assertEquals(Set.of("c1", "c2"), new HashSet<>(restarted.getClientsForTransportId("upsert-t1")));
+        assertEquals(List.of("c1"), restarted.getClientsForTransportId("upsert-t3"));
+    }
+
+    @Test
+    void testRolledBackRoutesAreNotReachable() {
+        var transaction = new TransactionTemplate(transactionManager);
+        assertThrows(IllegalStateException.class, () -> transaction.executeWithoutResult(status -> {
+            try {
+                bundleRouting.processClientMetaData(metadata("{}"), "rollback-t1", "c1");
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            throw new IllegalStateException("bundle failed");
+        }));
+        assertEquals(List.of(), bundleRouting.getClientsForTransportId("rollback-t1"));
+        assertEquals(0, serverRoutingRepository.findByServerRoutingIdTransportID("rollback-t1").size());
+    }
+
+    @Test
+    void testBadMetadataIsRejected() {
+        assertThrows(RoutingExceptions.ClientMetaDataFileException.class,
+                     () -> bundleRouting.processClientMetaData(metadata("not json"), "bad-t1", "c1"));
+        assertEquals(List.of(), bundleRouting.getClientsForTransportId("bad-t1"));
+    }
+
+    private double score(String transportId, String clientId) {
+        return serverRoutingRepository.findByServerRoutingIdClientIDAndServerRoutingIdTransportID(clientId,
+                                                                                                  transportId)
+                .getScore();
+    }
+}
@@ -0,0 +1,57 @@
+package net.discdd.server.bundletransmission;
+
+import net.discdd.model.ADU;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class BundleCacheTest {
+    private static ADU adu(String appId, long aduId) {
+        return new ADU(null, appId, aduId, 10);
+    }
+
+    @Test
+    void testKeyIsTheAckAndAduRanges() {
+        var key = BundleCache.key("ack1", List.of(adu("app1", 3), adu("app1", 4), adu("app2", 1)));
+        assertEquals(key, BundleCache.key("ack1", List.of(adu("app2", 1), adu("app1", 3), adu("app1", 4))));
+        assertNotEquals(key, BundleCache.key("ack2", List.of(adu("app1", 3), adu("app1", 4), adu("app2", 1))));
+        assertNotEquals(key, BundleCache.key("ack1", List.of(adu("app1", 3), adu("app1", 4), adu("app1", 5))));
+        assertNotEquals(key, BundleCache.key("ack1", List.of(adu("app1", 3), adu("app1", 4))));
+    }
+
+    @Test
+    void testBundlesAreReusedUntilDeleted(@TempDir Path dir) throws Exception {
+        var bundleCache = new BundleCache((clientId, bundleId) -> dir.resolve(clientId).resolve(bundleId));
+        Files.createDirectories(dir.resolve("client1"));
+        var key = BundleCache.key("ack1", List.of(adu("app1", 1)));
+        assertNull(bundleCache.get("client1", key));
+
+        Files.writeString(dir.resolve("client1").resolve("bundle1"), "bundle");
+        bundleCache.put("client1", key, "bundle1");
+        assertEquals("bundle1", bundleCache.get("client1", BundleCache.key("ack1", List.of(adu("app1", 1)))));
+        assertNull(bundleCache.get("client2", key));
+        assertNull(bundleCache.get("client1", BundleCache.key("ack1", List.of(adu("app1", 1), adu("app1", 2)))));
+
+        // a bundle that is deleted behind the cache's back is not handed out
+        Files.delete(dir.resolve("client1").resolve("bundle1"));
+        assertNull(bundleCache.get("client1", key));
+
+        Files.writeString(dir.resolve("client1").resolve("bundle2"), "bundle");
+        bundleCache.put("client1", key, "bundle2");
+        bundleCache.retain("client1", "bundle2");
+        assertEquals("bundle2", bundleCache.get("client1", key));
+        bundleCache.retain("client1", "bundle3");
+        assertNull(bundleCache.get("client1", key));
+
+        assertEquals(2, bundleCache.getHits());
+        assertEquals(5, bundleCache.getMisses());
+        assertEquals(2.0 / 7, bundleCache.getHitRate(), 1e-9);
+    }
+}
@@ -0,0 +1,199 @@
+package net.discdd.server.bundletransmission;
+
+import net.discdd.grpc.BundleSenderType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BundleIngestionQueueTest {
+    @TempDir
+    Path tempDir;
+    private BundleIngestionQueue queue;
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        queue.shutdown();
+        assertTrue(queue.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    /* the test bundles just contain "clientId:n" */
+    private static String clientOf(Path bundle) throws Exception {
+        return Files.readString(bundle).split(":")[0];
+    }
+
+    private Path upload(String content) throws Exception {
+        var uploaded = Files.createTempFile(Files.createDirectories(tempDir.resolve("uploads")), "upload", null);
+        Files.writeString(uploaded, content, StandardCharsets.UTF_8);
+        return uploaded;
+    }
+
+    private static void waitUntilEmpty(BundleIngestionQueue queue) throws Exception {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (queue.getDepth() > 0) {
+            assertTrue(System.currentTimeMillis() < deadline, queue.getDepth() + " bundles never processed");
+            Thread.sleep(10);
+        }
+    }
+
+    private Path spool() {
+        return tempDir.resolve("queue");
+    }
+
+    @Test
+    void testBundlesOfAClientAreProcessedInOrder() throws Exception {
+        var processedPerClient = Collections.synchronizedMap(new HashMap<String, List<Integer>>());
+        queue = new BundleIngestionQueue(spool(), 4, 1000, BundleIngestionQueueTest::clientOf, (bundle, type, id) -> {
+            var parts = Files.readString(bundle).split(":");
+            // give the other workers a chance to overtake
+            Thread.sleep(parts[1].hashCode() % 3);
+            processedPerClient.computeIfAbsent(parts[0], k -> Collections.synchronizedList(new ArrayList<>()))
+                    .add(Integer.parseInt(parts[1]));
+        });
+        queue.start();
+
+        int clients = 10;
+        int bundlesPerClient = 20;
+        for (int n = 0; n < bundlesPerClient; n++) {
+            for (int c = 0; c < clients; c++) {
+                queue.submit(upload("client" + c + ":" + n), BundleSenderType.TRANSPORT, "transport");
+            }
+        }
+        waitUntilEmpty(queue);
+
+        assertEquals(clients, processedPerClient.size());
+        for (var processed : processedPerClient.values()) {
+            assertEquals(bundlesPerClient, processed.size());
+            for (int n = 0; n < bundlesPerClient; n++) {
+                assertEquals(n, processed.get(n));
+            }
+        }
+        assertEquals(clients * bundlesPerClient, queue.getProcessed());
+        try (var left = Files.list(spool())) {
+            assertEquals(0, left.count());
+        }
+    }
+
+    @Test
+    void testSpooledBundlesSurviveRestart() throws Exception {
+        var release = new CountDownLatch(1);
+        queue = new BundleIngestionQueue(spool(), 1, 1000, BundleIngestionQueueTest::clientOf, (bundle, type, id) -> {
+            // the server goes down before anything is processed
+            release.await(10, TimeUnit.SECONDS);
+            throw new InterruptedException("shut down");
+        });
+        queue.start();
+        for (int n = 0; n < 5; n++) {
+            queue.submit(upload("client:" + n), BundleSenderType.CLIENT, "sender" + n);
+        }
+        // an upload that was interrupted while being spooled
+        Files.writeString(spool().resolve(String.format("%016d%s", 99, BundleIngestionQueue.BUNDLE_EXT)), "junk");
+        Files.writeString(spool().resolve(String.format("%016d%s.tmp", 99, BundleIngestionQueue.META_EXT)), "junk");
+        // copy the spool as it was when the server went down, before the latch lets the first queue carry on
+        var crashed = Files.createDirectories(tempDir.resolve("crashed"));
+        try (var files = Files.list(spool())) {
+            for (var file : (Iterable<Path>) files::iterator) {
+                Files.copy(file, crashed.resolve(file.getFileName()));
+            }
+        }
+        release.countDown();
+        queue.shutdown();
+        assertTrue(queue.awaitTermination(10, TimeUnit.SECONDS));
+
+        var processed = Collections.synchronizedList(new ArrayList<String>());
+        queue = new BundleIngestionQueue(crashed, 2, 1000, BundleIngestionQueueTest::clientOf, (bundle, type, id) -> {
+            assertEquals(BundleSenderType.CLIENT, type);
+            processed.add(Files.readString(bundle) + "@" + id);
+        });
+        queue.start();
+        waitUntilEmpty(queue);
+
+        assertEquals(List.of("client:0@sender0",
+                             "client:1@sender1",
+                             "client:2@sender2",
+                             "client:3@sender3",
+                             "client:4@sender4"), processed);
+        try (var left = Files.list(crashed)) {
+            assertEquals(0, left.count());
+        }
+        // new bundles don't reuse the names of recovered ones
+        queue.submit(upload("client:5"), BundleSenderType.CLIENT, "sender5");
+        waitUntilEmpty(queue);
+        assertEquals("client:5@sender5", processed.get(5));
+    }
+
+    @Test
+    void testFailedBundlesAreKept() throws Exception {
+        var processed = Collections.synchronizedList(new ArrayList<String>());
+        queue = new BundleIngestionQueue(spool(), 1, 1000, BundleIngestionQueueTest::clientOf, (bundle, type, id) -> {
+            var content = Files.readString(bundle);
+            if (content.startsWith("bad")) throw new IOException("can't process " + content);
+            processed.add(content);
+        });
+        queue.start();
+        queue.submit(upload("good:1"), BundleSenderType.TRANSPORT, "transport");
+        queue.submit(upload("bad:1"), BundleSenderType.TRANSPORT, "transport");
+        waitUntilEmpty(queue);
+        assertEquals(List.of("good:1"), processed);
+        assertEquals(1, queue.getFailed());
+
+        var failed = spool().resolve(BundleIngestionQueue.FAILED_DIRECTORY);
+        try (var left = Files.list(spool())) {
+            assertEquals(List.of(failed), left.toList());
+        }
+        var bundle = failed.resolve(String.format("%016d%s", 2, BundleIngestionQueue.BUNDLE_EXT));
+        var meta = failed.resolve(String.format("%016d%s", 2, BundleIngestionQueue.META_EXT));
+        assertEquals("bad:1", Files.readString(bundle));
+        assertTrue(Files.exists(meta));
+        queue.shutdown();
+        assertTrue(queue.awaitTermination(10, TimeUnit.SECONDS));
+
+        // once it can be processed, putting it back queues it again at the next start
+        Files.writeString(bundle, "fixed:1");
+        Files.move(bundle, spool().resolve(bundle.getFileName()));
+        Files.move(meta, spool().resolve(meta.getFileName()));
+        queue = new BundleIngestionQueue(spool(), 1, 1000, BundleIngestionQueueTest::clientOf, (b, type, id) -> {
+            processed.add(Files.readString(b));
+        });
+        queue.start();
+        waitUntilEmpty(queue);
+        assertEquals(List.of("good:1", "fixed:1"), processed);
+    }
+
+    @Test
+    void testUploadsAreDeferredWhileBacklogged() throws Exception {
+        var release = new CountDownLatch(1);
+        var seen = Collections.synchronizedMap(new HashMap<String, Integer>());
+        queue = new BundleIngestionQueue(spool(), 2, 3, BundleIngestionQueueTest::clientOf, (bundle, type, id) -> {
+            assertTrue(release.await(10, TimeUnit.SECONDS));
+            seen.merge(clientOf(bundle), 1, Integer::sum);
+        });
+        queue.start();
+        queue.submit(upload("a:1"), BundleSenderType.TRANSPORT, "transport");
+        queue.submit(upload("b:1"), BundleSenderType.TRANSPORT, "transport");
+        assertFalse(queue.shouldDeferUploads());
+        queue.submit(upload("c:1"), BundleSenderType.TRANSPORT, "transport");
+        assertTrue(queue.shouldDeferUploads());
+        assertEquals(3, queue.getDepth());
+
+        release.countDown();
+        waitUntilEmpty(queue);
+        assertFalse(queue.shouldDeferUploads());
+        assertEquals(Map.of("a", 1, "b", 1, "c", 1), seen);
+    }
+}
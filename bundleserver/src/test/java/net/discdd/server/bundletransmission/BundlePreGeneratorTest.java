@@ -0,0 +1,103 @@
+package net.discdd.server.bundletransmission;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BundlePreGeneratorTest {
+    private BundlePreGenerator preGenerator;
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        preGenerator.shutdown();
+        assertTrue(preGenerator.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    private static void waitUntilIdle(BundlePreGenerator preGenerator, String... clientIds) throws Exception {
+        long deadline = System.currentTimeMillis() + 10_000;
+        for (var clientId : clientIds) {
+            while (preGenerator.isPending(clientId)) {
+                assertTrue(System.currentTimeMillis() < deadline, clientId + " never finished generating");
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    @Test
+    void testTriggersWhileGeneratingAreCoalesced() throws Exception {
+        var started = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var generations = new AtomicInteger();
+        preGenerator = new BundlePreGenerator(2, clientId -> {
+            if (generations.incrementAndGet() == 1) {
+                started.countDown();
+                assertTrue(release.await(10, TimeUnit.SECONDS));
+            }
+        });
+
+        preGenerator.trigger("client");
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        // all of these arrive while the first generation is running, so they need exactly one more generation
+        for (int i = 0; i < 100; i++) {
+            preGenerator.trigger("client");
+        }
+        assertTrue(preGenerator.isPending("client"));
+        release.countDown();
+        waitUntilIdle(preGenerator, "client");
+
+        assertEquals(2, generations.get());
+        assertEquals(2, preGenerator.getGenerated());
+    }
+
+    @Test
+    void testParallelismIsBounded() throws Exception {
+        int threads = 3;
+        var running = new AtomicInteger();
+        var maxRunning = new AtomicInteger();
+        var generatedClients = ConcurrentHashMap.<String>newKeySet();
+        preGenerator = new BundlePreGenerator(threads, clientId -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            Thread.sleep(5);
+            generatedClients.add(clientId);
+            running.decrementAndGet();
+        });
+
+        var clientIds = new String[50];
+        for (int i = 0; i < clientIds.length; i++) {
+            clientIds[i] = "client" + i;
+            preGenerator.trigger(clientIds[i]);
+        }
+        waitUntilIdle(preGenerator, clientIds);
+
+        assertEquals(clientIds.length, generatedClients.size());
+        assertTrue(maxRunning.get() <= threads, "ran " + maxRunning.get() + " generations at once");
+    }
+
+    @Test
+    void testFailedGenerationCanBeRetriggered() throws Exception {
+        var attempts = new AtomicInteger();
+        preGenerator = new BundlePreGenerator(1, clientId -> {
+            if (attempts.incrementAndGet() == 1) {
+                throw new IllegalStateException("no keys for " + clientId);
+            }
+        });
+
+        preGenerator.trigger("client");
+        waitUntilIdle(preGenerator, "client");
+        assertEquals(1, preGenerator.getFailed());
+        assertFalse(preGenerator.isPending("client"));
+
+        preGenerator.trigger("client");
+        waitUntilIdle(preGenerator, "client");
+        assertEquals(1, preGenerator.getGenerated());
+        assertEquals(2, attempts.get());
+    }
+}
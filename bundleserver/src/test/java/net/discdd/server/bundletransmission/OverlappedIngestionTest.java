@@ -0,0 +1,159 @@
+package net.discdd.server.bundletransmission;
+
+import com.google.protobuf.ByteString;
+import net.discdd.bundlerouting.service.BundleExchangeServiceImpl.UploadTap;
+import net.discdd.bundlesecurity.SecurityUtils;
+import net.discdd.utils.DDDJarFileCreator;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class OverlappedIngestionTest {
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private static byte[] payload(int seed) {
+        var payload = new byte[2 * 1024 * 1024];
+        new Random(seed).nextBytes(payload);
+        return payload;
+    }
+
+    private static Path writeBundle(Path dir, String bundleId, byte[] payload) throws Exception {
+        Path bundle = dir.resolve(bundleId + ".bundle");
+        try (var creator = new DDDJarFileCreator(Files.newOutputStream(bundle))) {
+            creator.createEntry(SecurityUtils.BUNDLEID_FILENAME, bundleId.getBytes());
+            creator.createEntry(SecurityUtils.CLIENT_IDENTITY_KEY, "identity".getBytes());
+            creator.createEntry(SecurityUtils.CLIENT_BASE_KEY, "base".getBytes());
+            creator.createEntry(SecurityUtils.SERVER_IDENTITY_KEY, "server".getBytes());
+            try (var os = creator.createUncompressedEntry(Path.of(SecurityUtils.PAYLOAD_DIR,
+                                                                  SecurityUtils.PAYLOAD_FILENAME))) {
+                os.write(payload);
+            }
+        }
+        return bundle;
+    }
+
+    private static void upload(UploadTap tap, byte[] bytes, int length) throws Exception {
+        for (int offset = 0; offset < length; offset += CHUNK_SIZE) {
+            tap.write(ByteString.copyFrom(bytes, offset, Math.min(CHUNK_SIZE, length - offset)));
+        }
+    }
+
+    @Test
+    void testBundleIsPreparedWhileUploading(@TempDir Path dir) throws Exception {
+        var workDirectory = Files.createDirectories(dir.resolve("work"));
+        var ingestion = new OverlappedIngestion(workDirectory, 1);
+        var payload = payload(1);
+        var bundle = writeBundle(dir, "bundle1", payload);
+        var bytes = Files.readAllBytes(bundle);
+
+        var tap = ingestion.tap("sender");
+        assertNotNull(tap);
+        // the only worker is busy with the first upload
+        assertNull(ingestion.tap("sender"));
+        upload(tap, bytes, bytes.length);
+        tap.complete();
+
+        // another bundle with the same ID was not prepared
+        assertNull(ingestion.take(writeBundle(Files.createDirectories(dir.resolve("other")), "bundle1", payload(2))));
+        var prepared = ingestion.take(bundle);
+        assertNotNull(prepared);
+        assertEquals("bundle1", prepared.receivedBundle().bundleId());
+        assertArrayEquals("identity".getBytes(), prepared.receivedBundle().encryptedClientIdentityKey());
+        assertArrayEquals(payload, Files.readAllBytes(prepared.receivedBundle().encryptedPayload()));
+        assertTrue(prepared.receivedBundle().encryptedPayload().startsWith(workDirectory));
+        assertNull(ingestion.take(bundle));
+
+        assertEquals(1, ingestion.getTapped());
+        assertEquals(1, ingestion.getUsed());
+        assertEquals(0, ingestion.getFailed());
+        ingestion.shutdown();
+    }
+
+    @Test
+    void testBrokenOffUploadLeavesNothing(@TempDir Path dir) throws Exception {
+        var workDirectory = Files.createDirectories(dir.resolve("work"));
+        var ingestion = new OverlappedIngestion(workDirectory, 1);
+        var bundle = writeBundle(dir, "bundle1", payload(1));
+        var bytes = Files.readAllBytes(bundle);
+
+        var tap = ingestion.tap("sender");
+        upload(tap, bytes, bytes.length / 2);
+        tap.abort();
+        assertEquals(1, ingestion.getFailed());
+
+        // the worker is free again once it has cleaned up
+        UploadTap next = null;
+        for (int i = 0; i < 100 && next == null; i++) {
+            Thread.sleep(50);
+            next = ingestion.tap("sender");
+        }
+        assertNotNull(next);
+        // only the empty directory of the next upload is left
+        try (var files = Files.list(workDirectory)) {
+            assertEquals(0, files.filter(OverlappedIngestionTest::hasFiles).count());
+        }
+        assertNull(ingestion.take(bundle));
+        upload(next, bytes, bytes.length);
+        next.complete();
+        assertNotNull(ingestion.take(bundle));
+        ingestion.shutdown();
+    }
+
+    @Test
+    void testClaimedBundleIsProcessedByItsTap(@TempDir Path dir) throws Exception {
+        var workDirectory = Files.createDirectories(dir.resolve("work"));
+        var claimedBy = new AtomicReference<String>();
+        var finishProcessing = new CountDownLatch(1);
+        var ingestion = new OverlappedIngestion(workDirectory, 1, (prepared, senderId) -> {
+            claimedBy.set(senderId);
+            return finishProcessing::await;
+        });
+        var bundle = writeBundle(dir, "bundle1", payload(1));
+        var bytes = Files.readAllBytes(bundle);
+
+        var tap = ingestion.tap("sender");
+        upload(tap, bytes, bytes.length);
+        // the bundle is claimed before the upload is acknowledged
+        tap.complete();
+        assertEquals("sender", claimedBy.get());
+
+        // the bundle file waits for the tap to finish with the bundle
+        var executor = Executors.newSingleThreadExecutor();
+        try {
+            var taken = executor.submit(() -> ingestion.take(bundle));
+            Thread.sleep(200);
+            assertFalse(taken.isDone());
+            finishProcessing.countDown();
+            var prepared = taken.get(30, TimeUnit.SECONDS);
+            assertNotNull(prepared);
+            assertEquals(bytes.length, prepared.size());
+            assertFalse(Files.exists(prepared.directory()));
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, ingestion.getProcessed());
+        ingestion.shutdown();
+    }
+
+    private static boolean hasFiles(Path dir) {
+        try (var files = Files.list(dir)) {
+            return files.findAny().isPresent();
+        } catch (Exception e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package net.discdd.server.bundletransmission;
+
+import net.discdd.utils.BundleUtils.BundleFingerprint;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RecentBundlesTest {
+    @Test
+    void testReceivedBundlesAreKnownByIdAndDigest() {
+        var recentBundles = new RecentBundles(10);
+        assertFalse(recentBundles.wasReceived("bundle1"));
+        recentBundles.add(new BundleFingerprint("bundle1", "digest1"), 1000);
+
+        assertTrue(recentBundles.wasReceived("bundle1"));
+        assertTrue(recentBundles.wasReceived(new BundleFingerprint("renamed", "digest1")));
+        assertFalse(recentBundles.wasReceived(new BundleFingerprint("bundle2", "digest2")));
+        assertFalse(recentBundles.wasReceived(new BundleFingerprint("bundle2", null)));
+        // an ID is never mistaken for a digest
+        assertFalse(recentBundles.wasReceived("digest1"));
+
+        assertEquals(2, recentBundles.getRejected());
+        assertEquals(2000, recentBundles.getSavedBytes());
+    }
+
+    @Test
+    void testOnlyTheLastBundlesAreKept() {
+        var recentBundles = new RecentBundles(100);
+        for (int i = 0; i < 1000; i++) {
+            recentBundles.add(new BundleFingerprint("bundle" + i, "digest" + i), i);
+        }
+        for (int i = 0; i < 900; i++) {
+            assertFalse(recentBundles.wasReceived("bundle" + i), "bundle" + i);
+        }
+        for (int i = 900; i < 1000; i++) {
+            assertTrue(recentBundles.wasReceived(new BundleFingerprint("other" + i, "digest" + i)), "digest" + i);
+        }
+        assertEquals(100, recentBundles.getRejected());
+    }
+
+    @Test
+    void testBloomFilterHasFewFalsePositives() {
+        var bloomFilter = new RecentBundles.BloomFilter(10_000);
+        for (int i = 0; i < 10_000; i++) bloomFilter.add("id:bundle" + i);
+        for (int i = 0; i < 10_000; i++) assertTrue(bloomFilter.mightContain("id:bundle" + i));
+        int falsePositives = 0;
+        for (int i = 10_000; i < 110_000; i++) {
+            if (bloomFilter.mightContain("id:bundle" + i)) falsePositives++;
+        }
+        assertTrue(falsePositives < 3_000, falsePositives + " false positives in 100000");
+    }
+}
@@ -0,0 +1,144 @@
+package net.discdd.server.repository;
+
+import jakarta.persistence.EntityManagerFactory;
+import net.discdd.model.ADU;
+import net.discdd.server.applicationdatamanager.AduStores;
+import net.discdd.server.applicationdatamanager.ServerApplicationDataManager;
+import net.discdd.server.bundlerouting.ServerWindowService;
+import net.discdd.server.config.BundleServerConfig;
+import net.discdd.server.repository.entity.RegisteredAppAdapter;
+import net.discdd.server.service.GrpcExecutor;
+import org.hibernate.SessionFactory;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.context.annotation.Import;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Counts the SQL statements it takes to process a received bundle and generate the next one for its client.
+ */
+@DataJpaTest(properties = { "spring.jpa.properties.hibernate.generate_statistics=true" })
+@Import({ GrpcExecutor.class, ClientStateStore.class })
+public class ClientStateStoreTest {
+    private static final String CLIENT_ID = "client1";
+    private static final List<String> APP_IDS = List.of("app1", "app2", "app3");
+    @TempDir
+    static Path tempDir;
+
+    @DynamicPropertySource
+    static void configureProperties(DynamicPropertyRegistry registry) {
+        registry.add("bundle-server.bundle-store-root", () -> tempDir.toString());
+    }
+
+    @Autowired
+    private ClientStateStore clientStateStore;
+    @Autowired
+    private BundleMetadataRepository bundleMetadataRepository;
+    @Autowired
+    private RegisteredAppAdapterRepository registeredAppAdapterRepository;
+    @Autowired
+    private SentAduDetailsRepository sentAduDetailsRepository;
+    @Autowired
+    private TestEntityManager testEntityManager;
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+    @TempDir
+    Path tempRootDir;
+
+    @Test
+    void testStatementsPerProcessedBundle() throws Exception {
+        var config = new BundleServerConfig();
+        config.getApplicationDataManager().setAppDataSizeLimit(100_000_000L);
+        var aduStores = new AduStores(tempRootDir);
+        var dataManager = new ServerApplicationDataManager(aduStores,
+                                                           (a, b) -> {},
+                                                           clientStateStore,
+                                                           bundleMetadataRepository,
+                                                           registeredAppAdapterRepository,
+                                                           config);
+        var windowService = new ServerWindowService(clientStateStore);
+        var sendStore = aduStores.getSendADUsStorage();
+
+        // the client got bundle 1 with an ADU of each app, and has more ADUs waiting
+        int port = 10000;
+        for (var appId : APP_IDS) {
+            registeredAppAdapterRepository.save(new RegisteredAppAdapter(appId, "localhost:" + port++));
+            sendStore.addADU(CLIENT_ID, appId, "first".getBytes(), 1);
+        }
+        windowService.generateNewBundleCounter(CLIENT_ID);
+        dataManager.registerNewBundleId(CLIENT_ID, "bundle1", 1, 0);
+        dataManager.fetchADUsToSend("bundle1", 1, 0, CLIENT_ID);
+        for (var appId : APP_IDS) {
+            sendStore.addADU(CLIENT_ID, appId, "second".getBytes(), 2);
+        }
+        testEntityManager.flush();
+        testEntityManager.clear();
+        var statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        statistics.clear();
+
+        // what processing a bundle that acks bundle 1 and carries an ADU does to the database, followed by the
+        // generation of bundle 2
+        var aduFile = Files.write(tempRootDir.resolve("adu"), "received".getBytes()).toFile();
+        try (var unitOfWork = clientStateStore.begin()) {
+            assertEquals(0, dataManager.getBundleCountersForClient(CLIENT_ID).lastReceivedBundleCounter);
+            windowService.advanceWindow(CLIENT_ID, 1);
+            dataManager.processAcknowledgement(CLIENT_ID, "bundle1");
+            dataManager.storeReceivedADUs(CLIENT_ID,
+                                          "received1",
+                                          1,
+                                          List.of(new ADU(aduFile, "app1", 1, aduFile.length(), CLIENT_ID)));
+            assertFalse(windowService.isWindowFull(CLIENT_ID));
+            long bundleCounter = windowService.generateNewBundleCounter(CLIENT_ID);
+            dataManager.registerNewBundleId(CLIENT_ID, "bundle2", bundleCounter, 1);
+            assertEquals(APP_IDS.size(), dataManager.fetchADUsToSend("bundle2", bundleCounter, 0, CLIENT_ID).size());
+            unitOfWork.commit();
+        }
+
+        // selects of the counters, the window, the details of bundle 1, the metadata of bundle 2 and the app IDs,
+        // then one insert of the metadata, one batch of inserts of the details of bundle 2, one update each of the
+        // counters and the window, and one batch of deletes of the details of bundle 1
+        long statements = statistics.getPrepareStatementCount();
+        assertTrue(statements <= 10, statements + " statements for one bundle");
+        assertEquals(APP_IDS.size() + 1, statistics.getEntityInsertCount());
+        assertEquals(APP_IDS.size(), statistics.getEntityDeleteCount());
+
+        testEntityManager.clear();
+        var counters = clientStateStore.countersRepository.findById(CLIENT_ID).orElseThrow();
+        assertEquals(1, counters.lastReceivedBundleCounter);
+        assertEquals("bundle2", counters.lastSentBundleId);
+        var window = clientStateStore.windowRepository.findByClientID(CLIENT_ID);
+        assertEquals(1, window.getStartCounter());
+        assertEquals(3, window.getCurrentCounter());
+        assertEquals(0, sentAduDetailsRepository.findByBundleId("bundle1").size());
+        assertEquals(APP_IDS.size(), sentAduDetailsRepository.findByBundleId("bundle2").size());
+    }
+
+    @Test
+    void testNewClientIsOnlyStoredOnCommit() {
+        try (var unitOfWork = clientStateStore.begin()) {
+            var clientState = unitOfWork.get("client2");
+            try (var joined = clientStateStore.begin()) {
+                // the joined unit of work sees the same state
+                assertSame(clientState, joined.get("client2"));
+                joined.commit();
+            }
+            clientState.getCounters().lastReceivedBundleCounter = 5;
+            clientState.countersChanged();
+        }
+        testEntityManager.clear();
+        assertTrue(clientStateStore.countersRepository.findById("client2").isEmpty());
+    }
+}
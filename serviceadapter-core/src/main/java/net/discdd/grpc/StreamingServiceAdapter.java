@@ -0,0 +1,202 @@
+package net.discdd.grpc;
+
+import com.google.protobuf.ByteString;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.INFO;
+import static java.util.logging.Level.SEVERE;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * A service adapter that implements both exchangeADUs and streamADUs on top of three methods, so that adapters get
+ * the streaming exchange without having to deal with frames and acknowledgements.
+ * <p>
+ * When streaming, ADUs from clients are processed and acknowledged one at a time as they arrive, and the ADUs to send
+ * back are pulled from {@link #adusToSend(String)} only as fast as the BundleServer takes them.
+ */
+public abstract class StreamingServiceAdapter extends ServiceAdapterServiceGrpc.ServiceAdapterServiceImplBase {
+    private static final Logger logger = Logger.getLogger(StreamingServiceAdapter.class.getName());
+    public static final int ADU_FRAME_SIZE = 1024 * 1024;
+
+    /**
+     * Process an ADU that a client sent to this adapter. ADUs are passed in order of their ids. If this throws an
+     * IOException, the error is logged and the ADU is still acknowledged, so a bad ADU won't be sent again. Any other
+     * exception fails the exchange, and the unacknowledged ADUs will be sent again in the next one.
+     */
+    protected abstract void processAdu(String clientId, AppDataUnit adu) throws IOException;
+
+    /**
+     * The BundleServer has stored all the ADUs for the client up to and including aduId, so they don't need to be
+     * sent again.
+     */
+    protected abstract void adusDeliveredUpTo(String clientId, long aduId) throws IOException;
+
+    /**
+     * The ADUs waiting to be sent to the client, in order of their ids. When streaming, the iterator is consumed as
+     * the ADUs are sent, so it only needs to load each ADU when it is asked for.
+     */
+    protected abstract Iterator<AppDataUnit> adusToSend(String clientId) throws IOException;
+
+    @Override
+    public void exchangeADUs(ExchangeADUsRequest request, StreamObserver<ExchangeADUsResponse> responseObserver) {
+        String clientId = request.getClientId();
+        logger.log(INFO, "Received " + request.getAdusCount() + " ADUs for clientId: " + clientId);
+        long lastProcessedADUId = 0;
+        for (var adu : request.getAdusList()) {
+            try {
+                processAdu(clientId, adu);
+                lastProcessedADUId = Math.max(lastProcessedADUId, adu.getAduId());
+            } catch (IOException e) {
+                logger.log(SEVERE, "Error while processing aduId:" + adu.getAduId(), e);
+            }
+        }
+        deliveredUpTo(clientId, request.getLastADUIdReceived());
+
+        var response = ExchangeADUsResponse.newBuilder().setLastADUIdReceived(lastProcessedADUId);
+        try {
+            adusToSend(clientId).forEachRemaining(response::addAdus);
+        } catch (IOException | UncheckedIOException e) {
+            logger.log(SEVERE, "Error fetching ADUs to return for clientId: " + clientId, e);
+        }
+        responseObserver.onNext(response.build());
+        responseObserver.onCompleted();
+    }
+
+    @Override
+    public StreamObserver<AduStreamMessage> streamADUs(StreamObserver<AduStreamMessage> responseObserver) {
+        return new AduStreamHandler((ServerCallStreamObserver<AduStreamMessage>) responseObserver);
+    }
+
+    private void deliveredUpTo(String clientId, long aduId) {
+        try {
+            adusDeliveredUpTo(clientId, aduId);
+        } catch (IOException e) {
+            logger.log(SEVERE, "Error while dropping delivered ADUs for " + clientId + " up to " + aduId, e);
+        }
+    }
+
+    /**
+     * Handles one streamADUs call. gRPC delivers the messages and onReady callbacks of a call one at a time, but
+     * access is still synchronized since sending happens from both.
+     */
+    private class AduStreamHandler implements StreamObserver<AduStreamMessage>, Runnable {
+        private final ServerCallStreamObserver<AduStreamMessage> responseObserver;
+        private String clientId;
+        private long lastADUIdReceived;
+        // the frames of the ADU we are receiving
+        private long incomingId;
+        private ByteString incoming = ByteString.EMPTY;
+        // set once the BundleServer has sent all its ADUs
+        private Iterator<AppDataUnit> outgoing;
+        private AppDataUnit current;
+        private int currentOffset;
+        private boolean sendingDone;
+
+        AduStreamHandler(ServerCallStreamObserver<AduStreamMessage> responseObserver) {
+            this.responseObserver = responseObserver;
+            responseObserver.setOnReadyHandler(this);
+        }
+
+        @Override
+        public synchronized void onNext(AduStreamMessage message) {
+            switch (message.getMessageCase()) {
+                case START -> {
+                    clientId = message.getStart().getClientId();
+                    lastADUIdReceived = message.getStart().getLastADUIdReceived();
+                    deliveredUpTo(clientId, lastADUIdReceived);
+                }
+                case FRAME -> {
+                    var frame = message.getFrame();
+                    if (frame.getAduId() != incomingId) {
+                        incomingId = frame.getAduId();
+                        incoming = ByteString.EMPTY;
+                    }
+                    incoming = incoming.concat(frame.getData());
+                    if (frame.getLast()) {
+                        try {
+                            processAdu(clientId,
+                                       AppDataUnit.newBuilder().setAduId(incomingId).setData(incoming).build());
+                        } catch (IOException e) {
+                            logger.log(SEVERE, "Error while processing aduId:" + incomingId, e);
+                        }
+                        incoming = ByteString.EMPTY;
+                        responseObserver.onNext(AduStreamMessage.newBuilder()
+                                                        .setAck(AduAck.newBuilder().setAduId(incomingId))
+                                                        .build());
+                    }
+                }
+                case ACK -> deliveredUpTo(clientId, message.getAck().getAduId());
+                case END -> {
+                    try {
+                        outgoing = adusToSend(clientId);
+                    } catch (IOException e) {
+                        logger.log(SEVERE, "Error fetching ADUs to return for clientId: " + clientId, e);
+                        outgoing = Collections.emptyIterator();
+                    }
+                    run();
+                }
+                default -> logger.log(WARNING, "Ignoring unexpected message from BundleServer: " + message);
+            }
+        }
+
+        /**
+         * Send frames of the outgoing ADUs for as long as the stream will take them.
+         */
+        @Override
+        public synchronized void run() {
+            if (outgoing == null || sendingDone) return;
+            try {
+                while (responseObserver.isReady()) {
+                    if (current == null) {
+                        if (!outgoing.hasNext()) {
+                            sendingDone = true;
+                            responseObserver.onNext(AduStreamMessage.newBuilder()
+                                                            .setEnd(AduStreamEnd.getDefaultInstance())
+                                                            .build());
+                            return;
+                        }
+                        current = outgoing.next();
+                        currentOffset = 0;
+                        // the BundleServer already has it
+                        if (current.getAduId() <= lastADUIdReceived) {
+                            current = null;
+                            continue;
+                        }
+                    }
+                    var data = current.getData();
+                    int end = Math.min(data.size(), currentOffset + ADU_FRAME_SIZE);
+                    responseObserver.onNext(AduStreamMessage.newBuilder()
+                                                    .setFrame(AduFrame.newBuilder()
+                                                                      .setAduId(current.getAduId())
+                                                                      .setData(data.substring(currentOffset, end))
+                                                                      .setLast(end == data.size()))
+                                                    .build());
+                    currentOffset = end;
+                    if (end == data.size()) current = null;
+                }
+            } catch (UncheckedIOException e) {
+                logger.log(SEVERE, "Error reading ADUs to send to " + clientId, e);
+                sendingDone = true;
+                responseObserver.onError(io.grpc.Status.INTERNAL.withDescription(e.getMessage()).asException());
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            logger.log(WARNING, "ADU stream for " + clientId + " failed: " + t.getMessage());
+        }
+
+        @Override
+        public void onCompleted() {
+            // the BundleServer closes the stream once it has acknowledged all our ADUs
+            responseObserver.onCompleted();
+        }
+    }
+}